@@ -0,0 +1,370 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Merges the frames of a split exposure into a running sum as they arrive, each frame shifted
+ * onto the first one, so that the memory used doesn't grow with the number of frames.
+ * <p/>
+ * The shift of a frame is the translation that best matches its luma to the luma of the first
+ * frame, searched coarse to fine: exhaustively on the coarsest level of a pyramid of 2x2
+ * averages, then one pixel around the doubled shift on every finer level. Between two frames of
+ * a handheld burst, the shake is mostly a translation of a few pixels. The pixels shifted in from
+ * past the edges repeat the edge.
+ * <p/>
+ * The sum and both pyramids are allocated once, and the rows are processed on a
+ * {@link ForkJoinPool}. The frames are ARGB pixels, as {@code Bitmap.getPixels} gives them.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class AlignedAccumulator {
+
+    /**
+     * The most frames summed: the sum of a channel must fit in a short.
+     */
+    public static final int MAX_FRAMES = Short.MAX_VALUE / 255;
+
+    /**
+     * Pyramid levels are added until the coarsest one is this small, in pixels of its shorter
+     * side, or the largest shift is a couple of pixels there.
+     */
+    private static final int MIN_LEVEL_SIZE = 32;
+    private static final int MIN_LEVEL_SHIFT = 2;
+
+    /**
+     * Largest number of pixels compared to rate a shift: the pixels of the large levels are
+     * sampled on a grid.
+     */
+    private static final int MAX_SAMPLES = 1 << 16;
+
+    /**
+     * Luma is roughly linear light to the power of 1 / GAMMA.
+     */
+    private static final double GAMMA = 2.2;
+
+    /**
+     * The shift of a frame onto the first one.
+     */
+    public static final class Alignment {
+
+        /**
+         * The pixel of the frame at (x + dx, y + dy) is added to the pixel of the sum at (x, y).
+         */
+        public final int dx;
+        public final int dy;
+
+        /**
+         * The mean absolute luma difference left with the first frame, on the full size level.
+         */
+        public final float error;
+
+        public Alignment(int dx, int dy, float error) {
+            this.dx = dx;
+            this.dy = dy;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(%d, %d), error %.1f", dx, dy, error);
+        }
+
+    }
+
+    private final ForkJoinPool mPool;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMaxShift;
+
+    /**
+     * The sums of the red, green and blue channels of every pixel, interleaved, unsigned.
+     */
+    private final short[] mSums;
+
+    /**
+     * The luma pyramids of the first frame and of the frame being added, full size first.
+     */
+    private final byte[][] mReference;
+    private final byte[][] mFrame;
+    private final int[] mLevelWidths;
+    private final int[] mLevelHeights;
+
+    private int mCount;
+
+    /**
+     * @param width    The width of the frames
+     * @param height   The height of the frames
+     * @param maxShift The largest shift searched, in pixels in both directions
+     */
+    public AlignedAccumulator(ForkJoinPool pool, int width, int height, int maxShift) {
+        if (width < 1 || height < 1 || maxShift < 0) {
+            throw new IllegalArgumentException(width + "x" + height + ", shift " + maxShift);
+        }
+        mPool = pool;
+        mWidth = width;
+        mHeight = height;
+        mMaxShift = maxShift;
+        mSums = new short[3 * width * height];
+        int levels = getLevelCount(width, height, maxShift);
+        mLevelWidths = new int[levels];
+        mLevelHeights = new int[levels];
+        mReference = new byte[levels][];
+        mFrame = new byte[levels][];
+        for (int level = 0; level < levels; level++) {
+            mLevelWidths[level] = width >> level;
+            mLevelHeights[level] = height >> level;
+            mReference[level] = new byte[mLevelWidths[level] * mLevelHeights[level]];
+            mFrame[level] = new byte[mReference[level].length];
+        }
+    }
+
+    private static int getLevelCount(int width, int height, int maxShift) {
+        int levels = 1;
+        while (Math.min(width, height) >> levels >= MIN_LEVEL_SIZE
+                && maxShift >> (levels - 1) > MIN_LEVEL_SHIFT) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * @return The memory an accumulator of this size allocates, in bytes
+     */
+    public static long getBytes(int width, int height, int maxShift) {
+        long bytes = 6L * width * height;
+        int levels = getLevelCount(width, height, maxShift);
+        for (int level = 0; level < levels; level++) {
+            bytes += 2L * (width >> level) * (height >> level);
+        }
+        return bytes;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public synchronized int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * Forgets the frames added, to merge another exposure of the same size.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+    }
+
+    /**
+     * Aligns a frame on the first one and adds it to the sum.
+     *
+     * @param pixels The ARGB pixels of the frame, row after row
+     * @return The shift the frame was added with
+     */
+    public synchronized Alignment add(final int[] pixels) {
+        if (pixels.length < mWidth * mHeight) {
+            throw new IllegalArgumentException(pixels.length + " pixels for " + mWidth + "x"
+                    + mHeight);
+        }
+        if (mCount >= MAX_FRAMES) {
+            throw new IllegalStateException("Already " + mCount + " frames");
+        }
+        final boolean first = 0 == mCount;
+        final byte[][] pyramid = first ? mReference : mFrame;
+        mPool.invoke(new YuvKernels.RowTask(new YuvKernels.RowKernel() {
+            @Override
+            public void run(int start, int end) {
+                computeLuma(pixels, pyramid[0], start, end);
+            }
+        }, mWidth, 0, mHeight));
+        for (int level = 1; level < pyramid.length; level++) {
+            downsample(pyramid[level - 1], mLevelWidths[level - 1], pyramid[level],
+                    mLevelWidths[level], mLevelHeights[level]);
+        }
+
+        final Alignment alignment = first ? new Alignment(0, 0, 0) : align();
+        mPool.invoke(new YuvKernels.RowTask(new YuvKernels.RowKernel() {
+            @Override
+            public void run(int start, int end) {
+                accumulateRows(pixels, alignment.dx, alignment.dy, first, start, end);
+            }
+        }, mWidth, 0, mHeight));
+        mCount++;
+        return alignment;
+    }
+
+    private void computeLuma(int[] pixels, byte[] luma, int start, int end) {
+        for (int i = start * mWidth; i < end * mWidth; i++) {
+            int pixel = pixels[i];
+            luma[i] = (byte) ((77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF)
+                    + 29 * (pixel & 0xFF)) >> 8);
+        }
+    }
+
+    private static void downsample(byte[] in, int inWidth, byte[] out, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int top = 2 * y * inWidth;
+            int bottom = top + inWidth;
+            for (int x = 0; x < width; x++) {
+                out[y * width + x] = (byte) (((in[top + 2 * x] & 0xFF)
+                        + (in[top + 2 * x + 1] & 0xFF) + (in[bottom + 2 * x] & 0xFF)
+                        + (in[bottom + 2 * x + 1] & 0xFF) + 2) >> 2);
+            }
+        }
+    }
+
+    /**
+     * @return The shift of the frame pyramid onto the reference pyramid
+     */
+    private Alignment align() {
+        int coarsest = mReference.length - 1;
+        int radius = (mMaxShift + (1 << coarsest) - 1) >> coarsest;
+        int bestX = 0;
+        int bestY = 0;
+        float bestError = getError(coarsest, 0, 0);
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                float error = getError(coarsest, dx, dy);
+                if (error < bestError) {
+                    bestError = error;
+                    bestX = dx;
+                    bestY = dy;
+                }
+            }
+        }
+        for (int level = coarsest - 1; level >= 0; level--) {
+            int centerX = 2 * bestX;
+            int centerY = 2 * bestY;
+            int limit = mMaxShift >> level;
+            bestError = Float.MAX_VALUE;
+            for (int dy = centerY - 1; dy <= centerY + 1; dy++) {
+                for (int dx = centerX - 1; dx <= centerX + 1; dx++) {
+                    if (Math.abs(dx) > limit || Math.abs(dy) > limit) {
+                        continue;
+                    }
+                    float error = getError(level, dx, dy);
+                    if (error < bestError) {
+                        bestError = error;
+                        bestX = dx;
+                        bestY = dy;
+                    }
+                }
+            }
+        }
+        return new Alignment(bestX, bestY, bestError);
+    }
+
+    /**
+     * @return The mean absolute difference between the reference and the frame shifted, over
+     * the pixels they share, sampled on a grid
+     */
+    private float getError(int level, int dx, int dy) {
+        int width = mLevelWidths[level];
+        int height = mLevelHeights[level];
+        byte[] reference = mReference[level];
+        byte[] frame = mFrame[level];
+        int left = Math.max(0, -dx);
+        int right = Math.min(width, width - dx);
+        int top = Math.max(0, -dy);
+        int bottom = Math.min(height, height - dy);
+        if (right <= left || bottom <= top) {
+            return Float.MAX_VALUE;
+        }
+        int step = Math.max(1, (int) Math.sqrt((double) (right - left) * (bottom - top)
+                / MAX_SAMPLES));
+        long sum = 0;
+        int count = 0;
+        for (int y = top; y < bottom; y += step) {
+            int index = y * width;
+            int shifted = (y + dy) * width + dx;
+            for (int x = left; x < right; x += step) {
+                sum += Math.abs((reference[index + x] & 0xFF) - (frame[shifted + x] & 0xFF));
+                count++;
+            }
+        }
+        return (float) sum / count;
+    }
+
+    private void accumulateRows(int[] pixels, int dx, int dy, boolean first, int start,
+                                int end) {
+        short[] sums = mSums;
+        int maxX = mWidth - 1;
+        for (int y = start; y < end; y++) {
+            int row = Math.max(0, Math.min(mHeight - 1, y + dy)) * mWidth;
+            int out = 3 * y * mWidth;
+            for (int x = 0; x < mWidth; x++) {
+                int pixel = pixels[row + Math.max(0, Math.min(maxX, x + dx))];
+                int red = (pixel >> 16) & 0xFF;
+                int green = (pixel >> 8) & 0xFF;
+                int blue = pixel & 0xFF;
+                if (first) {
+                    sums[out] = (short) red;
+                    sums[out + 1] = (short) green;
+                    sums[out + 2] = (short) blue;
+                } else {
+                    sums[out] += red;
+                    sums[out + 1] += green;
+                    sums[out + 2] += blue;
+                }
+                out += 3;
+            }
+        }
+    }
+
+    /**
+     * Writes the average of the frames added so far.
+     *
+     * @param pixels The ARGB pixels to write, row after row
+     * @param gain   The gain to apply to the average in linear light, as
+     *               {@link ExposureSplitPlanner.Plan#gain}
+     */
+    public synchronized void getResult(final int[] pixels, double gain) {
+        if (0 == mCount) {
+            throw new IllegalStateException("No frame added");
+        }
+        if (pixels.length < mWidth * mHeight) {
+            throw new IllegalArgumentException(pixels.length + " pixels for " + mWidth + "x"
+                    + mHeight);
+        }
+        // From a sum straight to the output value.
+        final int[] table = new int[255 * mCount + 1];
+        for (int sum = 0; sum < table.length; sum++) {
+            if (1 == gain) {
+                table[sum] = (sum + mCount / 2) / mCount;
+            } else {
+                double linear = Math.pow(sum / (255.0 * mCount), GAMMA) * gain;
+                table[sum] = (int) Math.round(255 * Math.pow(Math.min(1, linear), 1 / GAMMA));
+            }
+        }
+        mPool.invoke(new YuvKernels.RowTask(new YuvKernels.RowKernel() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start * mWidth; i < end * mWidth; i++) {
+                    pixels[i] = 0xFF000000 | table[mSums[3 * i] & 0xFFFF] << 16
+                            | table[mSums[3 * i + 1] & 0xFFFF] << 8
+                            | table[mSums[3 * i + 2] & 0xFFFF];
+                }
+            }
+        }, mWidth, 0, mHeight));
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Removes the camera shake from a saved JPEG, given the {@link MotionBlurKernel} of its exposure.
+ * <p/>
+ * Only the luma is deconvolved: the eye barely notices blurred chroma, and it divides the work by
+ * three. Large pictures are downsampled first to keep the memory used bounded, and further if the
+ * {@link MemoryGovernor} has no room for them. Given the metadata of its frame, the restored JPEG
+ * is written with it by {@link JpegMetadataWriter}, and with the orientation of the blurred one.
+ */
+public class BlurRestorer {
+
+    /**
+     * Largest picture we restore, in pixels. The restoration needs three planes of this size on
+     * top of the bitmap.
+     */
+    private static final int MAX_RESTORED_PIXELS = 4000000;
+
+    /**
+     * Smallest picture we restore under memory pressure, in pixels.
+     */
+    private static final int MIN_RESTORED_PIXELS = 1000000;
+
+    /**
+     * Memory taken by the restoration per pixel: the ARGB bitmap, its pixels and the two planes.
+     */
+    private static final int BYTES_PER_PIXEL = 16;
+
+    private static final String TAG = "BlurRestorer";
+
+    /**
+     * Largest kernel we deconvolve, in pixels of the restored picture.
+     */
+    private static final int MAX_KERNEL_SIZE = 65;
+
+    private static final int JPEG_QUALITY = 95;
+
+    /**
+     * What the restored JPEG is written with.
+     */
+    private static final class Metadata {
+
+        final BurstContainer.FrameInfo info;
+        final int frameIndex;
+        final int frameCount;
+        final int orientation;
+
+        Metadata(BurstContainer.FrameInfo info, int frameIndex, int frameCount, int orientation) {
+            this.info = info;
+            this.frameIndex = frameIndex;
+            this.frameCount = frameCount;
+            this.orientation = orientation;
+        }
+
+    }
+
+    private final WienerDeconvolver mDeconvolver;
+    private final MemoryGovernor.Account mMemory;
+
+    /**
+     * @param pool          The pool the deconvolution runs on
+     * @param noiseToSignal The noise to signal ratio of {@link WienerDeconvolver}
+     */
+    public BlurRestorer(ForkJoinPool pool, double noiseToSignal) {
+        this(pool, noiseToSignal, null);
+    }
+
+    /**
+     * @param memory The account the memory of the restoration is reserved on, or null
+     */
+    public BlurRestorer(ForkJoinPool pool, double noiseToSignal, MemoryGovernor.Account memory) {
+        mDeconvolver = new WienerDeconvolver(pool, noiseToSignal);
+        mMemory = memory;
+    }
+
+    /**
+     * Restores a picture.
+     *
+     * @param source The blurred JPEG
+     * @param target The file the restored JPEG is written to
+     * @param kernel The blur of the picture, at its full resolution
+     * @return Whether the picture was restored
+     */
+    public boolean restore(File source, File target, MotionBlurKernel kernel) throws IOException {
+        return restore(source, target, kernel, null);
+    }
+
+    /**
+     * Restores a picture, checking for the cancellation of a task between the tiles.
+     *
+     * @param task The task running the restoration, or null
+     * @throws java.util.concurrent.CancellationException If the task was cancelled
+     */
+    public boolean restore(File source, File target, MotionBlurKernel kernel,
+                           ProcessingScheduler.Task<?> task) throws IOException {
+        return restore(source, target, kernel, task, null, 0, 0);
+    }
+
+    /**
+     * Restores a picture and writes it with the metadata of its frame.
+     *
+     * @param info       The metadata of the frame, or null to write the restored JPEG without any
+     * @param frameIndex The index of the frame in its burst
+     * @param frameCount The number of frames in the burst
+     */
+    public boolean restore(File source, File target, MotionBlurKernel kernel,
+                           ProcessingScheduler.Task<?> task, BurstContainer.FrameInfo info,
+                           int frameIndex, int frameCount) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        int sampleSize = 1;
+        while ((long) options.outWidth * options.outHeight / sampleSize / sampleSize
+                > MAX_RESTORED_PIXELS) {
+            sampleSize *= 2;
+        }
+        Metadata metadata = null == info ? null
+                : new Metadata(info, frameIndex, frameCount, readOrientation(source));
+        if (null == mMemory) {
+            return restore(source, target, kernel, task, metadata, options, sampleSize);
+        }
+        long pixels = (long) options.outWidth * options.outHeight / sampleSize / sampleSize;
+        while (!mMemory.tryReserve(pixels * BYTES_PER_PIXEL)) {
+            if (pixels / 4 < MIN_RESTORED_PIXELS) {
+                Log.w(TAG, "No memory to restore " + source.getName());
+                return false;
+            }
+            sampleSize *= 2;
+            pixels /= 4;
+        }
+        try {
+            return restore(source, target, kernel, task, metadata, options, sampleSize);
+        } finally {
+            mMemory.release(pixels * BYTES_PER_PIXEL);
+        }
+    }
+
+    private boolean restore(File source, File target, MotionBlurKernel kernel,
+                            ProcessingScheduler.Task<?> task, Metadata metadata,
+                            BitmapFactory.Options options, int sampleSize) throws IOException {
+        MotionBlurKernel scaled = kernel.scale(1f / sampleSize, MAX_KERNEL_SIZE);
+        if (null == scaled) {
+            return false;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = BitmapFactory.decodeFile(source.getPath(), options);
+        if (null == bitmap) {
+            return false;
+        }
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            float[] luma = new float[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+                int pixel = pixels[i];
+                luma[i] = 0.299f * Color.red(pixel) + 0.587f * Color.green(pixel)
+                        + 0.114f * Color.blue(pixel);
+            }
+            float[] restored = mDeconvolver.deconvolve(luma, width, height, scaled, task);
+            // Adding the same offset to the three channels changes the luma only.
+            for (int i = 0; i < pixels.length; i++) {
+                int pixel = pixels[i];
+                int delta = Math.round(restored[i] - luma[i]);
+                pixels[i] = Color.rgb(clamp(Color.red(pixel) + delta),
+                        clamp(Color.green(pixel) + delta), clamp(Color.blue(pixel) + delta));
+            }
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg)) {
+                return false;
+            }
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(target);
+                if (null == metadata) {
+                    jpeg.writeTo(output);
+                } else {
+                    // The bitmap was decoded without the rotation: the picture keeps the source's.
+                    new JpegMetadataWriter().write(ByteBuffer.wrap(jpeg.toByteArray()),
+                            output.getChannel(), metadata.info, metadata.frameIndex,
+                            metadata.frameCount, metadata.orientation);
+                }
+                return true;
+            } finally {
+                if (null != output) {
+                    output.close();
+                }
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @return The EXIF orientation of a JPEG file
+     */
+    private static int readOrientation(File jpeg) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(jpeg, "r");
+        try {
+            return JpegThumbnail.readOrientation(file.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            file.close();
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+
+/**
+ * The format of the burst container files: all the frames of a burst in one append-only file.
+ * <p/>
+ * The file starts with a 16 byte header, followed by one record per frame:
+ * <pre>
+ *   int   FRAME_MAGIC
+ *   32 bytes of {@link FrameInfo}: long timestamp, long exposure time, int ISO, float score,
+ *         int JPEG length, int 0
+ *   the JPEG
+ *   int   FRAME_END_MAGIC
+ *   int   JPEG length
+ * </pre>
+ * Once the burst is complete, a footer indexes the frames:
+ * <pre>
+ *   int   INDEX_MAGIC
+ *   int   frame count
+ *   int   index of the selected frame, or -1
+ *   int   0
+ *   for each frame: long offset of its record, 32 bytes of {@link FrameInfo}
+ *   long  offset of the footer
+ *   int   TRAILER_MAGIC
+ *   int   0
+ * </pre>
+ * A file without a valid footer was not finished, for instance because the app crashed: the
+ * complete frame records are found by scanning it. All values are big endian.
+ */
+public final class BurstContainer {
+
+    public static final String EXTENSION = ".burst";
+
+    static final int HEADER_MAGIC = 0x42525354; // BRST
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    static final int FRAME_MAGIC = 0x46524D45; // FRME
+    static final int FRAME_END_MAGIC = 0x46454E44; // FEND
+    static final int INFO_SIZE = 32;
+    static final int FRAME_HEADER_SIZE = 4 + INFO_SIZE;
+    static final int FRAME_TRAILER_SIZE = 8;
+
+    static final int INDEX_MAGIC = 0x42494458; // BIDX
+    static final int INDEX_HEADER_SIZE = 16;
+    static final int INDEX_ENTRY_SIZE = 8 + INFO_SIZE;
+    static final int TRAILER_MAGIC = 0x42454E44; // BEND
+    static final int TRAILER_SIZE = 16;
+
+    private static final Comparator<File> NEWEST_FIRST = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            long lhsTime = lhs.lastModified();
+            long rhsTime = rhs.lastModified();
+            return lhsTime < rhsTime ? 1 : lhsTime > rhsTime ? -1
+                    : rhs.getName().compareTo(lhs.getName());
+        }
+    };
+
+    private BurstContainer() {
+    }
+
+    /**
+     * Deletes the oldest containers of a directory, until the others fit in a number of files and
+     * a number of bytes. The containers still needed are kept, but count towards the limits.
+     *
+     * @param kept     The containers not to delete
+     * @param maxCount The number of containers to keep at most
+     * @param maxBytes The size of the containers to keep at most
+     * @return The number of containers deleted
+     */
+    public static int prune(File directory, Set<File> kept, int maxCount, long maxBytes) {
+        File[] files = directory.listFiles();
+        if (null == files) {
+            return 0;
+        }
+        Arrays.sort(files, NEWEST_FIRST);
+        int count = 0;
+        long bytes = 0;
+        int deleted = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            long length = file.length();
+            if (kept.contains(file) || (count < maxCount && bytes + length <= maxBytes)) {
+                count++;
+                bytes += length;
+            } else if (file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * The metadata stored with every frame.
+     */
+    public static final class FrameInfo {
+
+        /**
+         * The value of {@code SENSOR_TIMESTAMP}.
+         */
+        public final long timestamp;
+
+        /**
+         * The value of {@code SENSOR_EXPOSURE_TIME}, or 0 if unknown.
+         */
+        public final long exposureTime;
+
+        /**
+         * The value of {@code SENSOR_SENSITIVITY}, or 0 if unknown.
+         */
+        public final int iso;
+
+        /**
+         * The sharpness score of the frame, or {@link Float#NaN} if unknown.
+         */
+        public final float score;
+
+        /**
+         * The length of the JPEG, in bytes. Set when the frame is written.
+         */
+        public final int length;
+
+        public FrameInfo(long timestamp, long exposureTime, int iso, float score) {
+            this(timestamp, exposureTime, iso, score, 0);
+        }
+
+        FrameInfo(long timestamp, long exposureTime, int iso, float score, int length) {
+            this.timestamp = timestamp;
+            this.exposureTime = exposureTime;
+            this.iso = iso;
+            this.score = score;
+            this.length = length;
+        }
+
+        FrameInfo withLength(int length) {
+            return new FrameInfo(timestamp, exposureTime, iso, score, length);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.putLong(timestamp);
+            buffer.putLong(exposureTime);
+            buffer.putInt(iso);
+            buffer.putFloat(score);
+            buffer.putInt(length);
+            buffer.putInt(0);
+        }
+
+        static FrameInfo read(ByteBuffer buffer) {
+            long timestamp = buffer.getLong();
+            long exposureTime = buffer.getLong();
+            int iso = buffer.getInt();
+            float score = buffer.getFloat();
+            int length = buffer.getInt();
+            buffer.getInt();
+            return new FrameInfo(timestamp, exposureTime, iso, score, length);
+        }
+
+        @Override
+        public String toString() {
+            return "Frame at " + timestamp + ": " + exposureTime + " ns, ISO " + iso + ", score "
+                    + score + ", " + length + " bytes";
+        }
+
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a {@link BurstContainer} file by mapping it in memory.
+ * <p/>
+ * The JPEGs are returned as slices of the mapping: they are paged in when read, and never copied.
+ * A file that was not finished is scanned for its complete frames.
+ */
+public class BurstContainerReader implements Closeable {
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final List<Long> mOffsets = new ArrayList<Long>();
+    private final List<BurstContainer.FrameInfo> mInfos
+            = new ArrayList<BurstContainer.FrameInfo>();
+    private int mSelected = -1;
+    private boolean mRecovered = false;
+
+    private BurstContainerReader(RandomAccessFile file, MappedByteBuffer map) {
+        mFile = file;
+        mMap = map;
+    }
+
+    /**
+     * Opens a container.
+     *
+     * @throws IOException If the file can't be read or is not a container
+     */
+    public static BurstContainerReader open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            BurstContainerReader reader = new BurstContainerReader(randomAccessFile, map);
+            reader.readHeader();
+            if (!reader.readIndex()) {
+                reader.scanFrames();
+            }
+            return reader;
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    public int getFrameCount() {
+        return mInfos.size();
+    }
+
+    public BurstContainer.FrameInfo getInfo(int index) {
+        return mInfos.get(index);
+    }
+
+    /**
+     * @return The JPEG of a frame, as a read-only slice of the mapped file
+     */
+    public ByteBuffer getJpeg(int index) {
+        ByteBuffer jpeg = mMap.duplicate();
+        int start = (int) (mOffsets.get(index) + BurstContainer.FRAME_HEADER_SIZE);
+        jpeg.position(start);
+        jpeg.limit(start + mInfos.get(index).length);
+        return jpeg.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The index of the frame selected when the burst was written, or -1
+     */
+    public int getSelectedIndex() {
+        return mSelected;
+    }
+
+    /**
+     * @return Whether the container was not finished and its frames were recovered by scanning it
+     */
+    public boolean isRecovered() {
+        return mRecovered;
+    }
+
+    /**
+     * Writes the JPEG of a frame to a file of its own.
+     */
+    public void exportJpeg(int index, File target) throws IOException {
+        ByteBuffer jpeg = getJpeg(index);
+        FileOutputStream output = new FileOutputStream(target);
+        try {
+            FileChannel channel = output.getChannel();
+            while (jpeg.hasRemaining()) {
+                channel.write(jpeg);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Writes the JPEG of a frame to a file of its own, with its metadata spliced in.
+     */
+    public void exportJpeg(int index, File target, JpegMetadataWriter metadataWriter)
+            throws IOException {
+        FileOutputStream output = new FileOutputStream(target);
+        try {
+            metadataWriter.write(getJpeg(index), output.getChannel(), mInfos.get(index), index,
+                    mInfos.size());
+        } finally {
+            output.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private void readHeader() throws IOException {
+        if (mMap.limit() < BurstContainer.HEADER_SIZE
+                || mMap.getInt(0) != BurstContainer.HEADER_MAGIC) {
+            throw new IOException("Not a burst container");
+        }
+        if (mMap.getInt(4) != BurstContainer.VERSION) {
+            throw new IOException("Unsupported burst container version " + mMap.getInt(4));
+        }
+    }
+
+    /**
+     * @return Whether the file has a valid index
+     */
+    private boolean readIndex() {
+        int size = mMap.limit();
+        if (size < BurstContainer.HEADER_SIZE + BurstContainer.INDEX_HEADER_SIZE
+                + BurstContainer.TRAILER_SIZE
+                || mMap.getInt(size - 8) != BurstContainer.TRAILER_MAGIC) {
+            return false;
+        }
+        long footer = mMap.getLong(size - BurstContainer.TRAILER_SIZE);
+        if (footer < BurstContainer.HEADER_SIZE
+                || footer > size - BurstContainer.INDEX_HEADER_SIZE - BurstContainer.TRAILER_SIZE
+                || mMap.getInt((int) footer) != BurstContainer.INDEX_MAGIC) {
+            return false;
+        }
+        int count = mMap.getInt((int) footer + 4);
+        if (count < 0 || footer + BurstContainer.INDEX_HEADER_SIZE
+                + (long) count * BurstContainer.INDEX_ENTRY_SIZE
+                != size - BurstContainer.TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer index = mMap.duplicate();
+        index.position((int) footer + BurstContainer.INDEX_HEADER_SIZE);
+        List<Long> offsets = new ArrayList<Long>();
+        List<BurstContainer.FrameInfo> infos = new ArrayList<BurstContainer.FrameInfo>();
+        for (int i = 0; i < count; i++) {
+            long offset = index.getLong();
+            BurstContainer.FrameInfo info = BurstContainer.FrameInfo.read(index);
+            if (!isCompleteFrame(offset, info.length, footer)) {
+                return false;
+            }
+            offsets.add(offset);
+            infos.add(info);
+        }
+        mOffsets.addAll(offsets);
+        mInfos.addAll(infos);
+        int selected = mMap.getInt((int) footer + 8);
+        mSelected = selected >= 0 && selected < count ? selected : -1;
+        return true;
+    }
+
+    /**
+     * Finds the complete frames of a file that has no index.
+     */
+    private void scanFrames() {
+        mRecovered = true;
+        long end = mMap.limit();
+        long offset = BurstContainer.HEADER_SIZE;
+        while (offset + BurstContainer.FRAME_HEADER_SIZE <= end
+                && mMap.getInt((int) offset) == BurstContainer.FRAME_MAGIC) {
+            ByteBuffer header = mMap.duplicate();
+            header.position((int) offset + 4);
+            BurstContainer.FrameInfo info = BurstContainer.FrameInfo.read(header);
+            if (!isCompleteFrame(offset, info.length, end)) {
+                break;
+            }
+            mOffsets.add(offset);
+            mInfos.add(info);
+            offset += BurstContainer.FRAME_HEADER_SIZE + info.length
+                    + BurstContainer.FRAME_TRAILER_SIZE;
+        }
+    }
+
+    /**
+     * @return Whether a frame record is entirely before {@code end} and ends with its trailer
+     */
+    private boolean isCompleteFrame(long offset, int length, long end) {
+        if (offset < BurstContainer.HEADER_SIZE || length < 0) {
+            return false;
+        }
+        long trailer = offset + BurstContainer.FRAME_HEADER_SIZE + length;
+        return trailer + BurstContainer.FRAME_TRAILER_SIZE <= end
+                && mMap.getInt((int) offset) == BurstContainer.FRAME_MAGIC
+                && mMap.getInt((int) trailer) == BurstContainer.FRAME_END_MAGIC
+                && mMap.getInt((int) trailer + 4) == length;
+    }
+
+}
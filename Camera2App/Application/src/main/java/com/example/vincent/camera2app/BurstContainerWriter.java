@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a {@link BurstContainer} file, frame by frame.
+ * <p/>
+ * The JPEGs are written straight from their buffers, without being copied. Nothing already
+ * written is ever rewritten, so that a crash loses at most the frame being written.
+ */
+public class BurstContainerWriter implements Closeable {
+
+    private final File mFile;
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+
+    private final ByteBuffer mFrameHeader
+            = ByteBuffer.allocate(BurstContainer.FRAME_HEADER_SIZE);
+    private final ByteBuffer mFrameTrailer
+            = ByteBuffer.allocate(BurstContainer.FRAME_TRAILER_SIZE);
+
+    private final List<Long> mOffsets = new ArrayList<Long>();
+    private final List<BurstContainer.FrameInfo> mInfos
+            = new ArrayList<BurstContainer.FrameInfo>();
+
+    private long mPosition = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Creates the file and writes its header.
+     */
+    public BurstContainerWriter(File file) throws IOException {
+        mFile = file;
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(BurstContainer.HEADER_SIZE);
+        header.putInt(BurstContainer.HEADER_MAGIC);
+        header.putInt(BurstContainer.VERSION);
+        header.putLong(0);
+        header.flip();
+        try {
+            writeFully(header);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Appends a frame.
+     *
+     * @param info The metadata of the frame
+     * @param jpeg The JPEG, from its position to its limit. Its position is left unchanged.
+     * @return The index of the frame in the container
+     */
+    public synchronized int append(BurstContainer.FrameInfo info, ByteBuffer jpeg)
+            throws IOException {
+        if (mClosed) {
+            throw new IOException("Container already closed: " + mFile);
+        }
+        ByteBuffer data = jpeg.duplicate();
+        int length = data.remaining();
+        info = info.withLength(length);
+
+        mFrameHeader.clear();
+        mFrameHeader.putInt(BurstContainer.FRAME_MAGIC);
+        info.write(mFrameHeader);
+        mFrameHeader.flip();
+        mFrameTrailer.clear();
+        mFrameTrailer.putInt(BurstContainer.FRAME_END_MAGIC);
+        mFrameTrailer.putInt(length);
+        mFrameTrailer.flip();
+
+        long offset = mPosition;
+        writeFully(mFrameHeader);
+        writeFully(data);
+        writeFully(mFrameTrailer);
+        mOffsets.add(offset);
+        mInfos.add(info);
+        return mInfos.size() - 1;
+    }
+
+    /**
+     * Replaces the metadata of a frame in the index written by {@link #finish}, for what was not
+     * known when the frame was appended. The record of the frame itself keeps the old one.
+     */
+    public synchronized void updateInfo(int index, BurstContainer.FrameInfo info) {
+        mInfos.set(index, info.withLength(mInfos.get(index).length));
+    }
+
+    /**
+     * @return The index of the frame with this timestamp, or -1
+     */
+    public synchronized int indexOf(long timestamp) {
+        for (int i = 0; i < mInfos.size(); i++) {
+            if (mInfos.get(i).timestamp == timestamp) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized BurstContainer.FrameInfo getInfo(int index) {
+        return mInfos.get(index);
+    }
+
+    public synchronized int getFrameCount() {
+        return mInfos.size();
+    }
+
+    /**
+     * Writes the index, flushes the file to the storage and closes it.
+     *
+     * @param selected The index of the selected frame, or -1
+     */
+    public synchronized void finish(int selected) throws IOException {
+        if (mClosed) {
+            throw new IOException("Container already closed: " + mFile);
+        }
+        try {
+            int count = mInfos.size();
+            ByteBuffer footer = ByteBuffer.allocate(BurstContainer.INDEX_HEADER_SIZE
+                    + count * BurstContainer.INDEX_ENTRY_SIZE + BurstContainer.TRAILER_SIZE);
+            long footerOffset = mPosition;
+            footer.putInt(BurstContainer.INDEX_MAGIC);
+            footer.putInt(count);
+            footer.putInt(selected);
+            footer.putInt(0);
+            for (int i = 0; i < count; i++) {
+                footer.putLong(mOffsets.get(i));
+                mInfos.get(i).write(footer);
+            }
+            footer.putLong(footerOffset);
+            footer.putInt(BurstContainer.TRAILER_MAGIC);
+            footer.putInt(0);
+            footer.flip();
+            writeFully(footer);
+            mChannel.force(false);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the file without writing the index. It can still be read, as after a crash.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            mStream.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mPosition += mChannel.write(buffer);
+        }
+    }
+
+}
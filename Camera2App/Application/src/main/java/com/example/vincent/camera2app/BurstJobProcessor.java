@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Processes the {@link ProcessingJob}s of the bursts: exports the selected frame of the container
+ * as a JPEG, then restores it with {@link BlurRestorer} if it is blurred.
+ * <p/>
+ * Both steps overwrite their output, so that a job interrupted by the death of the process can
+ * simply be run again. The restoration runs on a {@link ProcessingScheduler}, as the current burst
+ * if no newer one was taken since, and is cancelled between its tiles when one is: the job goes
+ * back to the queue, which runs the newer one first.
+ */
+public class BurstJobProcessor implements ProcessingJobQueue.Processor {
+
+    private static final String TAG = "BurstJobProcessor";
+
+    private final ProcessingScheduler mScheduler;
+    private final BlurRestorer mBlurRestorer;
+
+    /**
+     * @param scheduler     The scheduler the restoration is queued on
+     * @param pool          The pool the tiles of the restoration run on
+     * @param noiseToSignal The noise to signal ratio of the restoration
+     * @param memory        The account the memory of the restoration is reserved on, or null
+     */
+    public BurstJobProcessor(ProcessingScheduler scheduler, ForkJoinPool pool,
+                             double noiseToSignal, MemoryGovernor.Account memory) {
+        mScheduler = scheduler;
+        mBlurRestorer = new BlurRestorer(pool, noiseToSignal, memory);
+    }
+
+    /**
+     * @throws CancellationException If a newer burst became current during the restoration
+     */
+    @Override
+    public void process(ProcessingJob job) throws IOException {
+        if (job.export) {
+            File directory = job.exported.getParentFile();
+            if (null != directory && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            BurstContainerReader reader = BurstContainerReader.open(job.container);
+            int selected;
+            int frameCount;
+            BurstContainer.FrameInfo info;
+            try {
+                selected = reader.getSelectedIndex();
+                frameCount = reader.getFrameCount();
+                reader.exportJpeg(selected, job.exported, new JpegMetadataWriter());
+                info = reader.getInfo(selected);
+            } finally {
+                reader.close();
+            }
+            if (null != job.kernel) {
+                restore(job, info, selected, frameCount);
+            }
+        }
+    }
+
+    /**
+     * @param info The metadata of the selected frame, that the restored picture is written with
+     */
+    private void restore(final ProcessingJob job, final BurstContainer.FrameInfo info,
+                         final int frameIndex, final int frameCount) throws IOException {
+        int priority = mScheduler.isCurrentBurst(job.id)
+                ? ProcessingScheduler.PRIORITY_CURRENT_BURST
+                : ProcessingScheduler.PRIORITY_ARCHIVAL;
+        final long submitted = SystemClock.elapsedRealtime();
+        ProcessingScheduler.Task<Boolean> task = mScheduler.submit(
+                new ProcessingScheduler.Work<Boolean>() {
+                    @Override
+                    public Boolean run(ProcessingScheduler.Task<Boolean> task)
+                            throws IOException {
+                        long start = SystemClock.elapsedRealtime();
+                        boolean restored = mBlurRestorer.restore(job.exported, job.restored,
+                                job.kernel, task, info, frameIndex, frameCount);
+                        if (restored) {
+                            Log.d(TAG, "Restored " + job.restored.getName() + " in "
+                                    + (SystemClock.elapsedRealtime() - start) + " ms, "
+                                    + (start - submitted) + " ms after it was queued");
+                        }
+                        return restored;
+                    }
+                }, priority, job.id);
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            // The queue is stopping: the job stays recorded.
+            task.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+}
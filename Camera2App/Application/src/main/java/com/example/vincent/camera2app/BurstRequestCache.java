@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import android.hardware.camera2.CaptureRequest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the burst {@link CaptureRequest}s already built for the last few capture settings, so that
+ * a shutter press doesn't have to build them between the focus lock and the first exposure.
+ * <p/>
+ * The requests target the surfaces of one capture session: the cache must be cleared whenever the
+ * session is recreated.
+ */
+public class BurstRequestCache {
+
+    /**
+     * Number of settings we keep requests for. Users usually toggle between a couple of values.
+     */
+    private static final int MAX_ENTRIES = 4;
+
+    /**
+     * The capture settings the burst requests were built with.
+     */
+    public static final class Key {
+
+        public final boolean manual;
+        public final long exposure;
+        public final int iso;
+        public final int orientation;
+        public final int burstSize;
+
+        public Key(boolean manual, long exposure, int iso, int orientation, int burstSize) {
+            this.manual = manual;
+            // Exposure and ISO are ignored by auto exposure.
+            this.exposure = manual ? exposure : 0;
+            this.iso = manual ? iso : 0;
+            this.orientation = orientation;
+            this.burstSize = burstSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return manual == other.manual && exposure == other.exposure && iso == other.iso
+                    && orientation == other.orientation && burstSize == other.burstSize;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = manual ? 1 : 0;
+            result = 31 * result + (int) (exposure ^ (exposure >>> 32));
+            result = 31 * result + iso;
+            result = 31 * result + orientation;
+            result = 31 * result + burstSize;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return (manual ? "manual " + exposure + " ns ISO " + iso : "auto")
+                    + ", orientation " + orientation + ", " + burstSize + " frames";
+        }
+
+    }
+
+    private final Map<Key, List<CaptureRequest>> mEntries
+            = new LinkedHashMap<Key, List<CaptureRequest>>(MAX_ENTRIES + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, List<CaptureRequest>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @return The requests built for {@code key}, or null if there are none
+     */
+    public synchronized List<CaptureRequest> get(Key key) {
+        return mEntries.get(key);
+    }
+
+    public synchronized boolean contains(Key key) {
+        return mEntries.containsKey(key);
+    }
+
+    public synchronized void put(Key key, List<CaptureRequest> requests) {
+        mEntries.put(key, requests);
+    }
+
+    /**
+     * Drops all the requests. Must be called when the capture session is recreated.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+}
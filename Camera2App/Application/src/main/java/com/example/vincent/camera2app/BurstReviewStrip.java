@@ -0,0 +1,558 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.widget.OverScroller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A horizontal strip of the frames of the last burst, sharpest first.
+ * <p/>
+ * The thumbnails are decoded lazily, only for the frames on screen and the next ones, on a
+ * {@link ProcessingScheduler} below the work of the current burst. They come from the thumbnail
+ * embedded in the JPEG when it is large enough, or from the JPEG decoded at the displayed size
+ * with {@code inSampleSize}, and are kept in a {@link ThumbnailCache} of a fixed size. Drawing
+ * never decodes or allocates, so that scrolling stays smooth whatever the size of the burst.
+ */
+public class BurstReviewStrip extends View {
+
+    /**
+     * Memory taken by the thumbnails: a 30 frame burst at the height of the strip, in RGB_565.
+     */
+    private static final int MAX_CACHE_BYTES = 6 * 1024 * 1024;
+
+    private static final int DECODE_THREADS = 2;
+
+    /**
+     * The thumbnails are the first memory given back: they are decoded again when needed.
+     */
+    private static final int MEMORY_ORDER = 0;
+
+    /**
+     * Number of frames decoded ahead on each side of the screen.
+     */
+    private static final int PREFETCH = 2;
+
+    private static final float FRAME_ASPECT_RATIO = 4f / 3;
+
+    private final ThumbnailCache mCache = new ThumbnailCache(MAX_CACHE_BYTES);
+
+    private MemoryGovernor mMemoryGovernor;
+
+    /**
+     * The keys of the thumbnails being decoded. Only used on the UI thread.
+     */
+    private final Set<String> mLoading = new HashSet<String>();
+
+    private ProcessingScheduler mDecoder;
+
+    /**
+     * Whether {@link #mDecoder} was created by the strip, rather than shared.
+     */
+    private boolean mOwnsDecoder = false;
+
+    private final OverScroller mScroller;
+    private VelocityTracker mVelocityTracker;
+    private float mLastTouchX;
+    private final int mMinFlingVelocity;
+    private final int mMaxFlingVelocity;
+
+    private final int mSpacing;
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mPlaceholderPaint = new Paint();
+    private final Paint mSelectedPaint = new Paint();
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect mDestination = new Rect();
+
+    private BurstContainerReader mReader;
+    private int mSelected;
+    private int mGeneration = 0;
+
+    /**
+     * For each position in the strip: the index of its frame in the container, the key of its
+     * thumbnail, its label and its EXIF orientation.
+     */
+    private int[] mFrames;
+    private String[] mKeys;
+    private String[] mLabels;
+    private int[] mOrientations;
+
+    /**
+     * The positions the decoder threads still need, read by them to skip the frames scrolled away.
+     */
+    private volatile int mFirstWanted;
+    private volatile int mLastWanted;
+
+    public BurstReviewStrip(Context context) {
+        this(context, null);
+    }
+
+    public BurstReviewStrip(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public BurstReviewStrip(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        mScroller = new OverScroller(context);
+        ViewConfiguration configuration = ViewConfiguration.get(context);
+        mMinFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+        mMaxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+        float density = context.getResources().getDisplayMetrics().density;
+        mSpacing = Math.round(4 * density);
+        mPlaceholderPaint.setColor(Color.DKGRAY);
+        mSelectedPaint.setColor(0xFF4285F4);
+        mSelectedPaint.setStyle(Paint.Style.STROKE);
+        mSelectedPaint.setStrokeWidth(3 * density);
+        mLabelPaint.setColor(Color.WHITE);
+        mLabelPaint.setTextSize(12 * density);
+        mLabelPaint.setShadowLayer(2 * density, 0, 0, Color.BLACK);
+    }
+
+    /**
+     * Decodes the thumbnails on a shared scheduler. Without one, the strip creates a scheduler of
+     * its own.
+     */
+    public void setScheduler(ProcessingScheduler scheduler) {
+        if (mOwnsDecoder) {
+            mDecoder.shutdown();
+        }
+        mDecoder = scheduler;
+        mOwnsDecoder = false;
+    }
+
+    /**
+     * Reports the memory of the thumbnails to a governor, and trims them when it asks.
+     */
+    public void setMemoryGovernor(MemoryGovernor governor) {
+        mMemoryGovernor = governor;
+        if (isAttachedToWindow()) {
+            registerMemory();
+        }
+    }
+
+    private void registerMemory() {
+        if (null == mMemoryGovernor) {
+            mCache.setAccount(null);
+            return;
+        }
+        mCache.setAccount(mMemoryGovernor.register("Review thumbnails", MEMORY_ORDER,
+                new MemoryGovernor.Reclaimer() {
+                    @Override
+                    public void reclaim(final long bytes) {
+                        // The bitmaps may be being drawn.
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mCache.trim(bytes);
+                            }
+                        });
+                    }
+                }));
+    }
+
+    /**
+     * Shows a burst. The strip closes the container when it is replaced or detached.
+     *
+     * @param reader The container of the burst
+     */
+    public void setBurst(BurstContainerReader reader) {
+        closeReader();
+        mCache.clear();
+        mLoading.clear();
+        mGeneration++;
+        cancelDecoding();
+        mReader = reader;
+        mSelected = reader.getSelectedIndex();
+
+        final int count = reader.getFrameCount();
+        Integer[] order = new Integer[count];
+        final float[] scores = new float[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            float score = reader.getInfo(i).score;
+            scores[i] = Float.isNaN(score) ? Float.NEGATIVE_INFINITY : score;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Float.compare(scores[rhs], scores[lhs]);
+            }
+        });
+        mFrames = new int[count];
+        mKeys = new String[count];
+        mLabels = new String[count];
+        mOrientations = new int[count];
+        for (int position = 0; position < count; position++) {
+            int frame = order[position];
+            mFrames[position] = frame;
+            mKeys[position] = mGeneration + "/" + frame;
+            float score = reader.getInfo(frame).score;
+            mLabels[position] = "#" + (frame + 1)
+                    + (Float.isNaN(score) ? "" : String.format("  %.1f", score));
+            mOrientations[position] = JpegMetadataWriter.ORIENTATION_NORMAL;
+        }
+        mScroller.forceFinished(true);
+        scrollTo(0, 0);
+        setVisibility(VISIBLE);
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        registerMemory();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mLoading.clear();
+        mGeneration++;
+        cancelDecoding();
+        if (mOwnsDecoder) {
+            mDecoder.shutdown();
+            mDecoder = null;
+            mOwnsDecoder = false;
+        }
+        mCache.clear();
+        mCache.setAccount(null);
+        closeReader();
+        mFrames = null;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (null == mFrames || mFrames.length == 0) {
+            return;
+        }
+        int cellHeight = getCellHeight();
+        int cellWidth = getCellWidth();
+        if (cellHeight <= 0) {
+            return;
+        }
+        int stride = cellWidth + mSpacing;
+        int scrollX = getScrollX();
+        int first = Math.max(0, (scrollX - mSpacing) / stride);
+        int last = Math.min(mFrames.length - 1, (scrollX + getWidth()) / stride);
+        mFirstWanted = Math.max(0, first - PREFETCH);
+        mLastWanted = Math.min(mFrames.length - 1, last + PREFETCH);
+        for (int position = mFirstWanted; position <= mLastWanted; position++) {
+            if (null == mCache.get(mKeys[position]) && !mLoading.contains(mKeys[position])) {
+                load(position, cellWidth, cellHeight);
+            }
+        }
+
+        // The canvas is already translated by the scroll.
+        for (int position = first; position <= last; position++) {
+            int left = mSpacing + position * stride;
+            int top = mSpacing;
+            Bitmap thumbnail = mCache.get(mKeys[position]);
+            if (null == thumbnail) {
+                canvas.drawRect(left, top, left + cellWidth, top + cellHeight, mPlaceholderPaint);
+            } else {
+                drawThumbnail(canvas, thumbnail, mOrientations[position], left, top, cellWidth,
+                        cellHeight);
+            }
+            if (mFrames[position] == mSelected) {
+                canvas.drawRect(left, top, left + cellWidth, top + cellHeight, mSelectedPaint);
+            }
+            canvas.drawText(mLabels[position], left + mSpacing,
+                    top + cellHeight - mSpacing, mLabelPaint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (null == mFrames) {
+            return super.onTouchEvent(event);
+        }
+        if (null == mVelocityTracker) {
+            mVelocityTracker = VelocityTracker.obtain();
+        }
+        mVelocityTracker.addMovement(event);
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN: {
+                mScroller.forceFinished(true);
+                mLastTouchX = event.getX();
+                return true;
+            }
+            case MotionEvent.ACTION_MOVE: {
+                int dx = (int) (mLastTouchX - event.getX());
+                if (dx != 0) {
+                    scrollTo(clampScroll(getScrollX() + dx), 0);
+                    mLastTouchX -= dx;
+                }
+                return true;
+            }
+            case MotionEvent.ACTION_UP: {
+                mVelocityTracker.computeCurrentVelocity(1000, mMaxFlingVelocity);
+                int velocity = (int) -mVelocityTracker.getXVelocity();
+                if (Math.abs(velocity) > mMinFlingVelocity) {
+                    mScroller.fling(getScrollX(), 0, velocity, 0, 0, getMaxScroll(), 0, 0);
+                    postInvalidateOnAnimation();
+                }
+                mVelocityTracker.recycle();
+                mVelocityTracker = null;
+                return true;
+            }
+            case MotionEvent.ACTION_CANCEL: {
+                mVelocityTracker.recycle();
+                mVelocityTracker = null;
+                return true;
+            }
+        }
+        return super.onTouchEvent(event);
+    }
+
+    @Override
+    public void computeScroll() {
+        if (mScroller.computeScrollOffset()) {
+            scrollTo(clampScroll(mScroller.getCurrX()), 0);
+            postInvalidateOnAnimation();
+        }
+    }
+
+    private int getCellHeight() {
+        return getHeight() - 2 * mSpacing;
+    }
+
+    private int getCellWidth() {
+        return Math.round(getCellHeight() * FRAME_ASPECT_RATIO);
+    }
+
+    private int getMaxScroll() {
+        if (null == mFrames) {
+            return 0;
+        }
+        int content = mSpacing + mFrames.length * (getCellWidth() + mSpacing);
+        return Math.max(0, content - getWidth());
+    }
+
+    private int clampScroll(int x) {
+        return Math.max(0, Math.min(getMaxScroll(), x));
+    }
+
+    /**
+     * Draws a thumbnail centered in its cell, upright.
+     */
+    private void drawThumbnail(Canvas canvas, Bitmap thumbnail, int orientation, int left,
+                               int top, int cellWidth, int cellHeight) {
+        int degrees;
+        switch (orientation) {
+            case 6:
+                degrees = 90;
+                break;
+            case 3:
+                degrees = 180;
+                break;
+            case 8:
+                degrees = 270;
+                break;
+            default:
+                degrees = 0;
+                break;
+        }
+        boolean swap = degrees % 180 != 0;
+        // The size of the thumbnail once rotated, fitted in the cell.
+        float width = swap ? thumbnail.getHeight() : thumbnail.getWidth();
+        float height = swap ? thumbnail.getWidth() : thumbnail.getHeight();
+        float scale = Math.min(cellWidth / width, cellHeight / height);
+        int drawnWidth = Math.round((swap ? height : width) * scale);
+        int drawnHeight = Math.round((swap ? width : height) * scale);
+        int centerX = left + cellWidth / 2;
+        int centerY = top + cellHeight / 2;
+        mDestination.set(centerX - drawnWidth / 2, centerY - drawnHeight / 2,
+                centerX + drawnWidth / 2, centerY + drawnHeight / 2);
+        canvas.save();
+        canvas.rotate(degrees, centerX, centerY);
+        canvas.drawBitmap(thumbnail, null, mDestination, mBitmapPaint);
+        canvas.restore();
+    }
+
+    /**
+     * Cancels the decoding of the thumbnails of the previous generations.
+     */
+    private void cancelDecoding() {
+        if (null != mDecoder) {
+            mDecoder.cancelOlder(ProcessingScheduler.PRIORITY_REVIEW, mGeneration);
+        }
+    }
+
+    private void load(final int position, final int width, final int height) {
+        if (null == mDecoder) {
+            mDecoder = new ProcessingScheduler(DECODE_THREADS);
+            mOwnsDecoder = true;
+        }
+        final String key = mKeys[position];
+        final int frame = mFrames[position];
+        final int generation = mGeneration;
+        final BurstContainerReader reader = mReader;
+        mLoading.add(key);
+        mDecoder.submit(new ProcessingScheduler.Work<Void>() {
+            @Override
+            public Void run(ProcessingScheduler.Task<Void> task) {
+                Bitmap thumbnail = null;
+                int orientation = JpegMetadataWriter.ORIENTATION_NORMAL;
+                // The frame may have been scrolled away since.
+                if (position >= mFirstWanted && position <= mLastWanted) {
+                    ByteBuffer jpeg = reader.getJpeg(frame);
+                    orientation = JpegThumbnail.readOrientation(jpeg);
+                    thumbnail = decodeThumbnail(jpeg, width, height);
+                }
+                final Bitmap decoded = thumbnail;
+                final int decodedOrientation = orientation;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLoading.remove(key);
+                        if (null == decoded) {
+                            return;
+                        }
+                        if (generation != mGeneration) {
+                            decoded.recycle();
+                            return;
+                        }
+                        mOrientations[position] = decodedOrientation;
+                        mCache.put(key, decoded);
+                        invalidate();
+                    }
+                });
+                return null;
+            }
+        }, ProcessingScheduler.PRIORITY_REVIEW, generation);
+    }
+
+    /**
+     * Decodes the thumbnail embedded in a JPEG if it is at least as large as the cell, or the
+     * JPEG itself subsampled to the size of the cell.
+     */
+    private Bitmap decodeThumbnail(ByteBuffer jpeg, int width, int height) {
+        // A rotated frame fills the cell with its other side.
+        int side = Math.max(width, height);
+        ByteBuffer embedded = JpegThumbnail.find(jpeg);
+        if (null != embedded) {
+            BitmapFactory.Options bounds = decodeBounds(embedded);
+            if (Math.min(bounds.outWidth, bounds.outHeight) >= Math.min(width, height)
+                    && Math.max(bounds.outWidth, bounds.outHeight) >= side) {
+                return decode(embedded, bounds, width, height);
+            }
+        }
+        return decode(jpeg, decodeBounds(jpeg), width, height);
+    }
+
+    private static BitmapFactory.Options decodeBounds(ByteBuffer jpeg) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg), null, options);
+        return options;
+    }
+
+    private Bitmap decode(ByteBuffer jpeg, BitmapFactory.Options options, int width,
+                          int height) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int small = Math.min(width, height);
+        int large = Math.max(width, height);
+        boolean landscape = options.outWidth >= options.outHeight;
+        options.inSampleSize = JpegThumbnail.computeSampleSize(options.outWidth,
+                options.outHeight, landscape ? large : small, landscape ? small : large);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        int decodedWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int decodedHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = mCache.takeReusable(decodedWidth * decodedHeight * 2);
+        try {
+            return BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg), null, options);
+        } catch (IllegalArgumentException e) {
+            // The reusable bitmap didn't fit after all.
+            options.inBitmap.recycle();
+            options.inBitmap = null;
+            return BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg), null, options);
+        }
+    }
+
+    private void closeReader() {
+        if (null != mReader) {
+            try {
+                // The decoder threads can still read the mapped file.
+                mReader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mReader = null;
+        }
+    }
+
+    /**
+     * Reads a buffer without copying it.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+    }
+
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the sharpest frame of a burst, looking at the faces when the camera detected some.
+ * <p/>
+ * The capture results and the scored images of a burst arrive in any order, on different threads.
+ * They are paired by their sensor timestamp. The frames of a result with faces are only scored
+ * inside the faces, so that a sharp background doesn't win over a sharp face; the other ones are
+ * scored inside {@link SharpnessRegion#center()}.
+ * <p/>
+ * When the gyroscope gave a {@link RowBlurMap} for the frames, the frames whose rows holding the
+ * faces (or the center) moved clearly more than in the steadiest frame are not considered: the
+ * JPEG score can be fooled by noise and compression, the gyroscope can't.
+ * <p/>
+ * A frame the camera failed to capture, or whose image couldn't be scored or saved, must be
+ * reported as failed, so that the burst is still selected from the other frames.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class BurstSelector {
+
+    /**
+     * A frame is not selected if its motion blur in the regions of interest is more than the
+     * smallest one times this ratio, plus {@link #MOTION_BLUR_MARGIN}.
+     */
+    private static final float MOTION_BLUR_RATIO = 1.5f;
+
+    /**
+     * See {@link #MOTION_BLUR_RATIO}, in pixels.
+     */
+    private static final float MOTION_BLUR_MARGIN = 1;
+
+    /**
+     * The frame picked for a burst.
+     */
+    public static final class Selection {
+
+        public final String name;
+        public final long timestamp;
+        public final double score;
+
+        /**
+         * Whether the frames were compared inside the detected faces.
+         */
+        public final boolean faceWeighted;
+
+        /**
+         * The motion blur of the frame in the regions of interest in pixels, or
+         * {@link Float#NaN} if unknown.
+         */
+        public final float motionBlur;
+
+        Selection(String name, long timestamp, double score, boolean faceWeighted,
+                  float motionBlur) {
+            this.name = name;
+            this.timestamp = timestamp;
+            this.score = score;
+            this.faceWeighted = faceWeighted;
+            this.motionBlur = motionBlur;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + score + (faceWeighted ? ", inside faces" : "")
+                    + (Float.isNaN(motionBlur) ? "" : ", " + motionBlur + " px of motion") + ")";
+        }
+
+    }
+
+    /**
+     * Notified when the frame of a burst is selected.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the thread that delivered the last piece of the burst, outside of any lock.
+         *
+         * @param selection The selected frame, or null if every frame of the burst failed
+         */
+        void onFrameSelected(Selection selection);
+
+    }
+
+    /**
+     * What we know about one frame of the burst so far.
+     */
+    private static final class Frame {
+
+        boolean hasResult;
+        FaceRegionMapper.Face[] faces;
+        int cropLeft;
+        int cropTop;
+        int cropRight;
+        int cropBottom;
+
+        String name;
+        JpegSharpnessEstimator.Result sharpness;
+
+        RowBlurMap motion;
+        float motionBlur = Float.NaN;
+
+        /**
+         * Whether the image of the frame couldn't be scored or saved.
+         */
+        boolean failed;
+
+    }
+
+    private final Map<Long, Frame> mFrames = new HashMap<Long, Frame>();
+
+    private final Callback mCallback;
+
+    private int mFrameCount;
+
+    /**
+     * The number of frames whose capture failed after their image was captured: their image
+     * comes without a result.
+     */
+    private int mLostResults;
+    private int mOutputWidth;
+    private int mOutputHeight;
+    private int mOrientation;
+    private boolean mDone = true;
+
+    public BurstSelector() {
+        this(null);
+    }
+
+    /**
+     * @param callback Notified of every selection, or null
+     */
+    public BurstSelector(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Starts a new burst, forgetting the frames of the previous one.
+     *
+     * @param frameCount   The number of frames of the burst
+     * @param outputWidth  The width of the still capture stream
+     * @param outputHeight The height of the still capture stream
+     * @param orientation  The value of {@code JPEG_ORIENTATION} of the burst requests
+     */
+    public synchronized void begin(int frameCount, int outputWidth, int outputHeight,
+                                   int orientation) {
+        mFrames.clear();
+        mFrameCount = frameCount;
+        mLostResults = 0;
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+        mOrientation = orientation;
+        mDone = false;
+    }
+
+    /**
+     * Must be called with the capture result of every frame of the burst.
+     *
+     * @param timestamp The value of {@code SENSOR_TIMESTAMP}
+     * @param faces     The faces of {@code STATISTICS_FACES}, or null
+     * @return The selected frame if this was the last missing piece of the burst, or null
+     */
+    public Selection onResult(long timestamp, FaceRegionMapper.Face[] faces, int cropLeft,
+                              int cropTop, int cropRight, int cropBottom) {
+        Selection selection;
+        boolean done;
+        synchronized (this) {
+            if (mDone) {
+                return null;
+            }
+            Frame frame = getFrame(timestamp);
+            frame.hasResult = true;
+            frame.faces = faces;
+            frame.cropLeft = cropLeft;
+            frame.cropTop = cropTop;
+            frame.cropRight = cropRight;
+            frame.cropBottom = cropBottom;
+            selection = selectIfComplete();
+            done = mDone;
+        }
+        notifySelection(done, selection);
+        return selection;
+    }
+
+    /**
+     * Gives the motion blur of a frame of the burst. Optional, but must be called before the
+     * frame is complete to be taken into account.
+     *
+     * @param timestamp The value of {@code SENSOR_TIMESTAMP}
+     * @param motion    The blur map of the frame, which must not be reused until the burst is
+     *                  selected
+     */
+    public synchronized void onMotion(long timestamp, RowBlurMap motion) {
+        if (!mDone && motion.isValid()) {
+            getFrame(timestamp).motion = motion;
+        }
+    }
+
+    /**
+     * Must be called with the sharpness of every image of the burst.
+     *
+     * @param timestamp The timestamp of the image
+     * @param name      The name the image is saved under
+     * @param sharpness The sharpness of the image
+     * @return The selected frame if this was the last missing piece of the burst, or null
+     */
+    public Selection onScored(long timestamp, String name,
+                              JpegSharpnessEstimator.Result sharpness) {
+        Selection selection;
+        boolean done;
+        synchronized (this) {
+            if (mDone) {
+                return null;
+            }
+            Frame frame = getFrame(timestamp);
+            frame.name = name;
+            frame.sharpness = sharpness;
+            selection = selectIfComplete();
+            done = mDone;
+        }
+        notifySelection(done, selection);
+        return selection;
+    }
+
+    /**
+     * Must be called instead of {@link #onScored} for an image of the burst that couldn't be
+     * scored or saved. The frame is not selected, whether its capture result comes or not.
+     *
+     * @param timestamp The timestamp of the image
+     * @return The selected frame if this was the last missing piece of the burst, or null
+     */
+    public Selection onFrameFailed(long timestamp) {
+        Selection selection;
+        boolean done;
+        synchronized (this) {
+            if (mDone) {
+                return null;
+            }
+            getFrame(timestamp).failed = true;
+            selection = selectIfComplete();
+            done = mDone;
+        }
+        notifySelection(done, selection);
+        return selection;
+    }
+
+    /**
+     * Must be called instead of {@link #onResult} for a frame of the burst the camera failed to
+     * capture.
+     *
+     * @param imageCaptured Whether the image of the frame was captured all the same, in which case
+     *                      it must still be scored or reported failed. It is compared inside the
+     *                      center, as its faces are unknown.
+     * @return The selected frame if this was the last missing piece of the burst, or null
+     */
+    public Selection onCaptureFailed(boolean imageCaptured) {
+        Selection selection;
+        boolean done;
+        synchronized (this) {
+            if (mDone) {
+                return null;
+            }
+            if (imageCaptured) {
+                mLostResults++;
+            } else {
+                mFrameCount--;
+            }
+            selection = selectIfComplete();
+            done = mDone;
+        }
+        notifySelection(done, selection);
+        return selection;
+    }
+
+    private void notifySelection(boolean done, Selection selection) {
+        if (done && null != mCallback) {
+            mCallback.onFrameSelected(selection);
+        }
+    }
+
+    private Frame getFrame(long timestamp) {
+        Frame frame = mFrames.get(timestamp);
+        if (null == frame) {
+            frame = new Frame();
+            mFrames.put(timestamp, frame);
+        }
+        return frame;
+    }
+
+    private Selection selectIfComplete() {
+        int complete = 0;
+        int withoutResult = 0;
+        boolean anyFaces = false;
+        for (Frame frame : mFrames.values()) {
+            if (frame.failed) {
+                complete++;
+            } else if (null != frame.sharpness && !frame.hasResult) {
+                withoutResult++;
+            } else if (null != frame.sharpness) {
+                complete++;
+                anyFaces |= null != frame.faces && frame.faces.length > 0;
+            }
+        }
+        // The scored images without a result are complete once as many results were lost.
+        complete += Math.min(withoutResult, mLostResults);
+        if (complete < mFrameCount) {
+            return null;
+        }
+
+        // The frames where the detection lost the faces are scored inside the faces of the frame
+        // that has the most, rather than inside the center as if nobody was there.
+        List<SharpnessRegion> fallback = Collections.singletonList(SharpnessRegion.center());
+        FaceRegionMapper.Face[] burstFaces = getFacesOfBurst();
+        float steadiest = Float.POSITIVE_INFINITY;
+        for (Frame frame : mFrames.values()) {
+            if (frame.hasResult && !frame.failed && null != frame.sharpness
+                    && null != frame.motion) {
+                // The rows of the blur map are the rows of the sensor: the regions must not be
+                // rotated.
+                List<SharpnessRegion> regions = anyFaces ? mapFaces(getFacesOfFrame(frame,
+                        burstFaces), frame, false) : fallback;
+                frame.motionBlur = frame.motion.getWeightedBlur(regions.isEmpty() ? fallback
+                        : regions);
+                steadiest = Math.min(steadiest, frame.motionBlur);
+            }
+        }
+        float maxMotionBlur = steadiest * MOTION_BLUR_RATIO + MOTION_BLUR_MARGIN;
+
+        Selection best = null;
+        for (Map.Entry<Long, Frame> entry : mFrames.entrySet()) {
+            Frame frame = entry.getValue();
+            if (frame.failed || null == frame.sharpness || (!frame.hasResult && 0 == mLostResults)
+                    || frame.motionBlur > maxMotionBlur) {
+                continue;
+            }
+            List<SharpnessRegion> regions = fallback;
+            if (anyFaces && frame.hasResult) {
+                regions = mapFaces(getFacesOfFrame(frame, burstFaces), frame, true);
+            }
+            if (regions.isEmpty()) {
+                regions = fallback;
+            }
+            double score = frame.sharpness.getWeightedScore(regions);
+            if (null == best || score > best.score) {
+                best = new Selection(frame.name, entry.getKey(), score, anyFaces,
+                        frame.motionBlur);
+            }
+        }
+        mDone = true;
+        return best;
+    }
+
+    private static FaceRegionMapper.Face[] getFacesOfFrame(Frame frame,
+                                                           FaceRegionMapper.Face[] burstFaces) {
+        return null != frame.faces && frame.faces.length > 0 ? frame.faces : burstFaces;
+    }
+
+    private FaceRegionMapper.Face[] getFacesOfBurst() {
+        FaceRegionMapper.Face[] faces = null;
+        for (Frame frame : mFrames.values()) {
+            if (null != frame.faces && (null == faces || frame.faces.length > faces.length)) {
+                faces = frame.faces;
+            }
+        }
+        return faces;
+    }
+
+    /**
+     * @param asEncoded Whether to map to the encoded image, which may be rotated, rather than to
+     *                  the image as read out
+     */
+    private List<SharpnessRegion> mapFaces(FaceRegionMapper.Face[] faces, Frame frame,
+                                           boolean asEncoded) {
+        // The HAL either rotates the pixels or only writes the orientation in the EXIF data. We
+        // can only tell the difference when the rotation swaps the dimensions.
+        boolean rotated = asEncoded && frame.sharpness.width == mOutputHeight
+                && frame.sharpness.height == mOutputWidth && mOutputWidth != mOutputHeight;
+        return FaceRegionMapper.map(faces, frame.cropLeft, frame.cropTop, frame.cropRight,
+                frame.cropBottom, mOutputWidth, mOutputHeight, rotated ? mOrientation : 0);
+    }
+
+}
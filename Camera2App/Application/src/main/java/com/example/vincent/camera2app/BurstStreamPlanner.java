@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.List;
+
+/**
+ * Picks the still capture stream that gives the highest sustained burst frame rate.
+ * <p/>
+ * The largest output size is often not the best choice for a burst: its minimum frame duration
+ * and its stall duration (see {@code StreamConfigurationMap#getOutputMinFrameDuration} and
+ * {@code StreamConfigurationMap#getOutputStallDuration}) can halve the frame rate. This class has
+ * no Android dependency so that it can be tested against recorded stream configurations.
+ */
+public final class BurstStreamPlanner {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private BurstStreamPlanner() {
+    }
+
+    /**
+     * One output format and size supported by the camera, with its durations in nanoseconds.
+     */
+    public static final class StreamOption {
+
+        public final int format;
+        public final int width;
+        public final int height;
+        public final long minFrameDuration;
+        public final long stallDuration;
+
+        public StreamOption(int format, int width, int height, long minFrameDuration,
+                            long stallDuration) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.minFrameDuration = minFrameDuration;
+            this.stallDuration = stallDuration;
+        }
+
+        public long getPixelCount() {
+            return (long) width * height;
+        }
+
+        /**
+         * @param burstLength The number of frames in the burst
+         * @return The time needed to capture the whole burst, in nanoseconds. Every request of
+         * the burst targets this stream, so each frame but the last one stalls the next.
+         */
+        public long getBurstDuration(int burstLength) {
+            return burstLength * minFrameDuration + (burstLength - 1) * stallDuration;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " (format " + format + ", " + minFrameDuration
+                    + " ns + " + stallDuration + " ns stall)";
+        }
+
+    }
+
+    /**
+     * The stream picked by {@link #plan} and the frame duration to set on the burst requests.
+     */
+    public static final class Plan {
+
+        public final StreamOption stream;
+
+        /**
+         * The value for {@code SENSOR_FRAME_DURATION}, in nanoseconds.
+         */
+        public final long frameDuration;
+
+        /**
+         * The expected time needed to capture the whole burst, in nanoseconds.
+         */
+        public final long burstDuration;
+
+        public final int burstLength;
+
+        Plan(StreamOption stream, int burstLength) {
+            this.stream = stream;
+            this.burstLength = burstLength;
+            this.frameDuration = stream.minFrameDuration;
+            this.burstDuration = stream.getBurstDuration(burstLength);
+        }
+
+        /**
+         * @return The sustained frame rate over the burst, or {@link Double#POSITIVE_INFINITY} if
+         * the camera doesn't report any duration for the stream
+         */
+        public double getFramesPerSecond() {
+            return framesPerSecond(stream, burstLength);
+        }
+
+        @Override
+        public String toString() {
+            return stream + ", " + burstLength + " frames at " + getFramesPerSecond() + " fps";
+        }
+
+    }
+
+    /**
+     * Picks the stream to use for a burst.
+     * <p/>
+     * Among the options of at least {@code minPixels}, we take the largest one that sustains
+     * {@code targetFps} over the burst. If none does, we take the fastest one, and the largest of
+     * those in case of a tie. If no option is large enough, we fall back to the largest option.
+     *
+     * @param options     The output formats and sizes we can capture
+     * @param burstLength The number of frames in the burst
+     * @param targetFps   The frame rate we want to sustain over the burst
+     * @param minPixels   The minimum resolution of the captured frames, in pixels
+     * @return The chosen plan, or null if {@code options} is empty
+     */
+    public static Plan plan(List<StreamOption> options, int burstLength, double targetFps,
+                            long minPixels) {
+        if (burstLength < 1) {
+            throw new IllegalArgumentException("Burst length must be at least 1: " + burstLength);
+        }
+        StreamOption bestFitting = null;
+        StreamOption fastest = null;
+        StreamOption largest = null;
+        for (StreamOption option : options) {
+            if (null == largest || option.getPixelCount() > largest.getPixelCount()) {
+                largest = option;
+            }
+            if (option.getPixelCount() < minPixels) {
+                continue;
+            }
+            double fps = framesPerSecond(option, burstLength);
+            if (fps >= targetFps && (null == bestFitting
+                    || option.getPixelCount() > bestFitting.getPixelCount())) {
+                bestFitting = option;
+            }
+            if (null == fastest) {
+                fastest = option;
+            } else {
+                double fastestFps = framesPerSecond(fastest, burstLength);
+                if (fps > fastestFps || (fps == fastestFps
+                        && option.getPixelCount() > fastest.getPixelCount())) {
+                    fastest = option;
+                }
+            }
+        }
+
+        if (null != bestFitting) {
+            return new Plan(bestFitting, burstLength);
+        } else if (null != fastest) {
+            return new Plan(fastest, burstLength);
+        } else if (null != largest) {
+            return new Plan(largest, burstLength);
+        }
+        return null;
+    }
+
+    private static double framesPerSecond(StreamOption option, int burstLength) {
+        long duration = option.getBurstDuration(burstLength);
+        if (duration <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (double) burstLength * NANOS_PER_SECOND / duration;
+    }
+
+}
@@ -17,6 +17,7 @@
 package com.example.vincent.camera2app;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
@@ -26,18 +27,25 @@ import android.content.DialogInterface;
 import android.content.res.Configuration;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
+import android.hardware.SensorManager;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.DngCreator;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.Face;
+import android.hardware.camera2.params.MeteringRectangle;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.ExifInterface;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
@@ -45,18 +53,22 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
+import android.util.SizeF;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
+import android.widget.ToggleButton;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -64,9 +76,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Camera2BasicFragment extends Fragment implements View.OnClickListener {
 
@@ -114,6 +131,173 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
      */
     private static final int STATE_WAITING_UPDATE_CAMERA_CHARACTERISTICS = 5;
 
+    /**
+     * Camera state: Focus is locked, waiting for the preview to run with the requested manual
+     * settings before taking the burst.
+     */
+    private static final int STATE_WAITING_MANUAL_SETTINGS = 6;
+
+    /**
+     * Frame rate we want to sustain during a burst.
+     */
+    private static final double TARGET_BURST_FPS = 10;
+
+    /**
+     * Smallest still capture resolution we accept to reach {@link #TARGET_BURST_FPS}.
+     */
+    private static final long MIN_CAPTURE_PIXELS = 5000000;
+
+    /**
+     * Length of the camera shake, in pixels, above which the selected frame of a burst is
+     * restored.
+     */
+    private static final float MIN_RESTORED_BLUR_LENGTH = 3;
+
+    /**
+     * Largest blur kernel we try to restore, in pixels of the captured images.
+     */
+    private static final int MAX_RESTORED_KERNEL_SIZE = 257;
+
+    /**
+     * Number of steps the exposure of a frame is split into to draw its blur kernel.
+     */
+    private static final int BLUR_KERNEL_STEPS = 64;
+
+    /**
+     * Number of bands of rows of the {@link RowBlurMap} of the burst frames.
+     */
+    private static final int ROW_BLUR_BANDS = 16;
+
+    /**
+     * Noise to signal ratio of the Wiener filter. High enough not to amplify the JPEG artifacts.
+     */
+    private static final double RESTORATION_NOISE_TO_SIGNAL = 0.005;
+
+    /**
+     * The directory of the burst containers, in the private files of the app.
+     */
+    private static final String BURST_DIRECTORY = "bursts";
+
+    /**
+     * The containers of the bursts already processed that are kept when the process starts: the
+     * newest ones, up to this number and this size.
+     */
+    private static final int MAX_KEPT_BURSTS = 8;
+    private static final long MAX_KEPT_BURST_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Number of JPEG buffers of the capture stream: more let the burst run ahead of the saving
+     * when the memory allows it.
+     */
+    private static final int MAX_CAPTURE_IMAGES = 4;
+    private static final int MIN_CAPTURE_IMAGES = 2;
+
+    private static final int ANALYSIS_IMAGES = 2;
+
+    /**
+     * Number of buffers of the RAW stream. The stream is left out when fewer fit in the memory:
+     * one is always left free for the next frame.
+     */
+    private static final int MAX_RAW_IMAGES = 3;
+    private static final int MIN_RAW_IMAGES = 2;
+
+    /**
+     * How long closing the camera waits for the DNGs being written, in milliseconds.
+     */
+    private static final long RAW_CLOSE_TIMEOUT = 2000;
+
+    /**
+     * Duration of the windows of a continuous capture, of which only the sharpest frame is kept.
+     */
+    private static final long CONTINUOUS_WINDOW_DURATION = 500000000L;
+
+    /**
+     * Interval of the throughput reports of a continuous capture.
+     */
+    private static final long CONTINUOUS_STATS_INTERVAL = 1000000000L;
+
+    /**
+     * Tags the requests of the continuous capture that target the JPEG stream.
+     */
+    private static final String CONTINUOUS_JPEG_TAG = "continuous JPEG";
+
+    /**
+     * The most frames a split exposure takes.
+     */
+    private static final int MAX_SPLIT_FRAMES = 16;
+
+    /**
+     * The window the speed of the camera shake is measured over before a split exposure. It ends
+     * a little before the capture, for the gyroscope samples to cover it.
+     */
+    private static final long SHAKE_WINDOW = 500000000L;
+    private static final long SHAKE_WINDOW_LATENCY = 50000000L;
+
+    /**
+     * The speed of the shake of a handheld camera, in radians per second, assumed when the
+     * gyroscope has no samples.
+     */
+    private static final float HANDHELD_ANGULAR_SPEED = 0.02f;
+
+    /**
+     * The order the governed memory is given back in. The thumbnails of the review strip come
+     * first, the buffers of the camera streams can't be given back.
+     */
+    private static final int MEMORY_ORDER_RESTORATION = 1;
+    private static final int MEMORY_ORDER_STREAMS = 2;
+
+    /**
+     * Size of the region map computed by {@link JpegSharpnessEstimator}.
+     */
+    private static final int SHARPNESS_GRID_COLUMNS = 16;
+    private static final int SHARPNESS_GRID_ROWS = 12;
+
+    /**
+     * Number of capture results buffered by the {@link CaptureLog} between two writes, about half
+     * a minute of preview.
+     */
+    private static final int CAPTURE_LOG_BUFFER_RECORDS = 1024;
+
+    /**
+     * Size of a capture log file, and number of files kept.
+     */
+    private static final long CAPTURE_LOG_MAX_FILE_SIZE = 4 * 1024 * 1024;
+    private static final int CAPTURE_LOG_MAX_FILES = 4;
+
+    /**
+     * The number of saved frames whose hashes are kept, and the number of differing hash bits
+     * under which a selected frame is a duplicate of one of them and isn't exported.
+     */
+    private static final int DUPLICATE_INDEX_CAPACITY = 256;
+    private static final int DUPLICATE_MAX_DISTANCE = 6;
+
+    /**
+     * The diameter of the circle of confusion, relative to the sensor diagonal, used to compute
+     * the hyperfocal distance when the camera doesn't report it.
+     */
+    private static final float CIRCLE_OF_CONFUSION_RATIO = 1 / 1500f;
+
+    /**
+     * Smallest size of the YUV stream the software auto exposure meters, and the subsampling of
+     * its histogram.
+     */
+    private static final int ANALYSIS_WIDTH = 320;
+    private static final int ANALYSIS_HEIGHT = 240;
+    private static final int ANALYSIS_HISTOGRAM_STEP = 2;
+
+    /**
+     * The parameters of the {@link SharpnessCascade} run on the analysis frames of a burst. These
+     * frames are already small: the coarse level is only a quarter of their size.
+     */
+    private static final int CASCADE_FACTOR = 4;
+    private static final int CASCADE_MAX_REFINED = 2;
+    private static final double CASCADE_REJECT_RATIO = 0.85;
+
+    /**
+     * Shortest time between two updates of the repeating request by the software auto exposure.
+     */
+    private static final long SOFTWARE_AE_INTERVAL = 200000000L;
+
 
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
@@ -124,21 +308,41 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
 
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
-            openCamera(width, height);
+            onPreviewSurfaceAvailable(width, height);
         }
 
         @Override
         public void onSurfaceTextureSizeChanged(SurfaceTexture texture, int width, int height) {
             configureTransform(width, height);
+            // The display rotation, and so the JPEG orientation, may have changed.
+            prewarmBurstRequests();
         }
 
         @Override
         public boolean onSurfaceTextureDestroyed(SurfaceTexture texture) {
+            Activity activity = getActivity();
+            if (null != activity && activity.isChangingConfigurations()
+                    && null != mCameraDevice) {
+                // The capture session keeps rendering into this texture while the activity is
+                // recreated. We hand it over to the next TextureView in onViewCreated().
+                mRetainedSurfaceTexture = texture;
+                return false;
+            }
             return true;
         }
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture texture) {
+            long now = SystemClock.elapsedRealtime();
+            if (0 != mLastPreviewFrameTimestamp) {
+                mLongestPreviewGap = Math.max(mLongestPreviewGap, now - mLastPreviewFrameTimestamp);
+            }
+            mLastPreviewFrameTimestamp = now;
+            if (mWaitingForFirstPreviewFrame) {
+                mWaitingForFirstPreviewFrame = false;
+                Log.i(TAG, "Launch to first preview frame: "
+                        + (SystemClock.elapsedRealtime() - mLaunchTimestamp) + " ms");
+            }
         }
 
     };
@@ -153,6 +357,11 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
      */
     private AutoFitTextureView mTextureView;
 
+    /**
+     * Shows the frames of the last burst.
+     */
+    private BurstReviewStrip mReviewStrip;
+
     /**
      * A {@link CameraCaptureSession } for camera preview.
      */
@@ -164,11 +373,74 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
 
     private CameraDevice mCameraDevice;
     /**
-     * The {@link android.util.Size} of camera preview.
+     * The {@link android.util.Size} of camera preview. Only used on the UI thread, the background
+     * thread has its own copy in {@link #mSessionPreviewSize}.
      */
 
     private Size mPreviewSize;
 
+    /**
+     * The {@link android.util.Size} of still image capture.
+     */
+    private Size mCaptureSize;
+
+    /**
+     * The frame duration (in ns) planned by {@link BurstStreamPlanner} for {@link #mCaptureSize}.
+     */
+    private long mBurstFrameDuration = 0;
+
+    /**
+     * The {@link StreamConfigurationMap} of the camera we opened, kept around so that the preview
+     * size can be picked once the {@link TextureView} has been laid out.
+     */
+    private StreamConfigurationMap mStreamConfigurationMap;
+
+    /**
+     * Whether the preview session has already been created for the opened {@link CameraDevice}.
+     * Only written while holding {@link #mCameraOpenCloseLock}, and read without it by
+     * {@link #onResume()}.
+     */
+    private volatile boolean mPreviewSessionRequested = false;
+
+    /**
+     * The {@link SurfaceTexture} of {@link #mTextureView}, handed over to the background thread
+     * by {@link #onPreviewSurfaceAvailable(int, int)}. Only used on the background thread.
+     */
+    private SurfaceTexture mSessionTexture;
+
+    /**
+     * The preview size {@link #mSessionTexture} was set up for. Only used on the background thread.
+     */
+    private Size mSessionPreviewSize;
+
+    /**
+     * Time (in {@link SystemClock#elapsedRealtime()} ms) at which the fragment started opening the
+     * camera. Used to report the launch to first preview frame time.
+     */
+    private long mLaunchTimestamp;
+
+    /**
+     * Whether we still have to report the launch to first preview frame time.
+     */
+    private volatile boolean mWaitingForFirstPreviewFrame = false;
+
+    /**
+     * The {@link SurfaceTexture} the capture session renders into, kept while the activity goes
+     * through a configuration change so that the camera doesn't have to be closed and reopened.
+     */
+    private SurfaceTexture mRetainedSurfaceTexture;
+
+    /**
+     * Time (in {@link SystemClock#elapsedRealtime()} ms) of the last preview frame drawn, or 0 if
+     * the preview is stopped.
+     */
+    private volatile long mLastPreviewFrameTimestamp = 0;
+
+    /**
+     * Longest time between two preview frames since {@link #resetPreviewGapStats()}.
+     */
+    private volatile long mLongestPreviewGap = 0;
+
     private boolean mInManualMode = false;
     //    private Range<Integer> mISORange;
     private int mCurrentISO = 0;
@@ -199,10 +471,13 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
 
         @Override
         public void onOpened(CameraDevice cameraDevice) {
-            // This method is called when the camera is opened.  We start camera preview here.
+            // This method is called when the camera is opened. The preview starts here if the
+            // TextureView is already available, otherwise once its surface is ready.
             mCameraOpenCloseLock.release();
             mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
+            Log.d(TAG, "Camera opened after "
+                    + (SystemClock.elapsedRealtime() - mLaunchTimestamp) + " ms");
+            createCameraPreviewSessionIfReady();
 //            manualUpdateCameraPreviewSession();
         }
 
@@ -242,150 +517,542 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
     private ImageReader mImageReader;
 
     /**
-     * This is the output file for our picture.
+     * Small YUV stream metered by the software auto exposure, or null if the camera has none.
      */
-    private File mFile;
+    private ImageReader mAnalysisReader;
 
     /**
-     * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
-     * still image is ready to be saved.
+     * The RAW stream of the manual bursts, or null if the camera has none, the memory is short or
+     * the camera can't configure it with the other streams.
      */
-    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
-            = new ImageReader.OnImageAvailableListener() {
-
-        @Override
-        public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
-        }
+    private ImageReader mRawReader;
 
-    };
+    /**
+     * Holds the RAW images of the current burst until one is picked, and writes it as a DNG.
+     */
+    private RawFrameStore<Image, TotalCaptureResult> mRawStore;
 
     /**
-     * {@link CaptureRequest.Builder} for the camera preview
+     * The histogram of the last analysis frame. Only used from the background thread.
      */
-    private CaptureRequest.Builder mPreviewRequestBuilder;
+    private final LumaHistogram mLumaHistogram = new LumaHistogram();
 
     /**
-     * {@link CaptureRequest} generated by {@link #mPreviewRequestBuilder}
+     * Whether the analysis frames are those of a burst, kept for {@link #mBurstLumaPlanes}.
      */
-    private CaptureRequest mPreviewRequest;
+    private volatile boolean mCollectingBurstLuma = false;
 
     /**
-     * The current state of camera state for taking pictures.
-     *
-     * @see #mCaptureCallback
+     * The luma planes of the analysis frames of the current burst, by sensor timestamp.
      */
-    private int mState = STATE_PREVIEW;
+    private final Map<Long, SharpnessCascade.LumaPlane> mBurstLumaPlanes
+            = Collections.synchronizedMap(new TreeMap<Long, SharpnessCascade.LumaPlane>());
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * The AF regions of the current burst in the analysis frames, or null to use
+     * {@link SharpnessRegion#center()}.
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private volatile List<SharpnessRegion> mBurstAfRegions;
 
     /**
-     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     * Adapts the manual settings to the light, or null if the sensor ranges are unknown.
      */
-    private CameraCaptureSession.CaptureCallback mCaptureCallback
-            = new CameraCaptureSession.CaptureCallback() {
+    private SoftwareAutoExposure mSoftwareAutoExposure;
 
-        private void process(CaptureResult result) {
-            switch (mState) {
-                case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    break;
-                }
-                case STATE_WAITING_LOCK: {
-                    int afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
+    /**
+     * Whether {@link #mSoftwareAutoExposure} drives the manual settings: the exposure buttons set
+     * its maximum exposure time, and the ISO buttons take the sensitivity back.
+     */
+    private volatile boolean mSoftwareAeEnabled = false;
 
-                        //Here in this IF statement, focus has been locked
-                        //Vincent:
-                        if(mInManualMode){
-                            //no need for precapture sequence in manual mode
-                            mState = STATE_PICTURE_TAKEN;
-                            captureBurst();
-                            break;
-                        }
+    /**
+     * The directory the pictures are exported into.
+     */
+    private File mPictureDirectory;
 
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        //adapted by Vincent
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
+    /**
+     * The app-private directory the burst containers are written into.
+     */
+    private File mBurstDirectory;
 
-                            mState = STATE_WAITING_NON_PRECAPTURE;
-                            //TODO understand why this transition is made! It sometimes make two bursts to be taken.
-                            //unlockfocus will set the sate to STATE_PREVIEW anyway...
-//                            captureStillPicture();
-                            captureBurst();
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                    }
-                    break;
-                }
-                case STATE_WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null ||
-                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-                        //the precapture sequence has been launched
-                        mState = STATE_WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case STATE_WAITING_NON_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                        //precapture sequence has ended!
-                        mState = STATE_PICTURE_TAKEN;
-//                        captureStillPicture();
-                        captureBurst();
-                    }
-                    break;
-                }
-                case STATE_WAITING_UPDATE_CAMERA_CHARACTERISTICS: {
-                    // added by Vincent
+    /**
+     * Exports and restores the selected frames of the bursts. Shared by the instances of the
+     * fragment, it keeps working while the camera is closed, and resumes the jobs of a previous
+     * process when it is created.
+     */
+    private static ProcessingJobQueue sJobQueue;
 
-                    Integer temp1 = result.get(CaptureResult.SENSOR_SENSITIVITY);
-                    if(temp1!=null){
-                        mCurrentISO = temp1.intValue();
-                    }
-                    Long temp2 = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-                    if(temp2!=null){
-                        mCurrentExposure = temp2.longValue();
-                    }
+    /**
+     * Runs the analysis and encoding work of the bursts and the thumbnails of the review strip,
+     * the work of the last burst first.
+     */
+    private static ProcessingScheduler sScheduler;
 
-                   if(mCurrentISO != 0 && mCurrentExposure != 0) {
+    /**
+     * Keeps the memory of the frame buffers and of the processing under the budget of the app.
+     */
+    private static MemoryGovernor sMemoryGovernor;
 
-                       //finish manual change of settings
-                       mState = STATE_PREVIEW;
-                       finishManualSettingChange();
-                   }
-                    break;
-                }
-            }
-        }
+    /**
+     * Merges the frames of the split exposures. Shared like {@link #sJobQueue}, so that a merge
+     * finishes while the camera is closed.
+     */
+    private static SplitExposureMerger sSplitMerger;
 
-        @Override
-        public void onCaptureProgressed(CameraCaptureSession session, CaptureRequest request,
-                                        CaptureResult partialResult) {
-            process(partialResult);
-        }
+    /**
+     * The buffers of the image readers of the camera streams.
+     */
+    private MemoryGovernor.Account mStreamMemory;
 
-        @Override
-        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
-                                       TotalCaptureResult result) {
-            process(result);
-        }
+    /**
+     * The container the frames of the current burst are written to. Only used on the background
+     * thread.
+     */
+    private BurstContainerWriter mBurstWriter;
 
-    };
+    /**
+     * Sorts the frames of the continuous capture, while the shutter button is held.
+     */
+    private ContinuousCaptureController mContinuousCapture;
 
     /**
-     * A {@link Handler} for showing {@link Toast}s.
+     * Whether a continuous capture is running. Only changed on the background thread, so that
+     * the frames are never handed to both the burst and the continuous capture.
+     */
+    private volatile boolean mContinuousRunning;
+
+    /**
+     * The JPEGs of the continuous capture waiting for the analysis or the storage.
+     */
+    private final AtomicInteger mContinuousBacklog = new AtomicInteger();
+
+    /**
+     * The settings the requests of the continuous capture were built with.
+     */
+    private BurstRequestCache.Key mContinuousKey;
+
+    private long mContinuousStatsTime;
+
+    /**
+     * Scores the captured JPEGs. Only used from the background thread.
+     */
+    private final JpegSharpnessEstimator mSharpnessEstimator
+            = new JpegSharpnessEstimator(SHARPNESS_GRID_COLUMNS, SHARPNESS_GRID_ROWS);
+
+    /**
+     * Hashes the captured JPEGs after they are scored. Only used from the background thread.
+     */
+    private final PerceptualHash mPerceptualHash = new PerceptualHash();
+
+    /**
+     * The perceptual hashes of the frames of the current burst, by sensor timestamp.
+     */
+    private final Map<Long, Long> mBurstHashes
+            = Collections.synchronizedMap(new HashMap<Long, Long>());
+
+    /**
+     * The EXIF orientations of the JPEGs of the current burst, by sensor timestamp.
+     */
+    private final Map<Long, Integer> mBurstOrientations
+            = Collections.synchronizedMap(new HashMap<Long, Integer>());
+
+    /**
+     * The {@code JPEG_ORIENTATION} of the requests of the current burst, in degrees.
+     */
+    private volatile int mBurstJpegOrientation = 0;
+
+    /**
+     * The hashes of the frames exported recently, to skip the near duplicates.
+     */
+    private final PerceptualHashIndex mSavedFrames
+            = new PerceptualHashIndex(DUPLICATE_INDEX_CAPACITY, DUPLICATE_MAX_DISTANCE);
+
+    /**
+     * Picks the sharpest frame of each burst, inside the detected faces if any.
+     */
+    private final BurstSelector mBurstSelector = new BurstSelector(
+            new BurstSelector.Callback() {
+                @Override
+                public void onFrameSelected(BurstSelector.Selection selection) {
+                    Log.d(TAG, "Sharpest frame of the burst: " + selection);
+                    onBurstSelected(selection);
+                }
+            });
+
+    /**
+     * The metadata of the capture results of the current burst, by sensor timestamp.
+     */
+    private final Map<Long, BurstContainer.FrameInfo> mBurstResultInfos
+            = Collections.synchronizedMap(new HashMap<Long, BurstContainer.FrameInfo>());
+
+    /**
+     * Records the camera shake, to know the blur of the selected frames.
+     */
+    private final GyroRecorder mGyroRecorder = new GyroRecorder();
+
+    /**
+     * The focal length of the lens in pixels of the captured images, or 0 if unknown.
+     */
+    private float mFocalLengthPixels = 0;
+
+    /**
+     * The value of {@link CameraCharacteristics#SENSOR_ORIENTATION}.
+     */
+    private int mSensorOrientation = 0;
+
+    /**
+     * The value of {@link CameraCharacteristics#SENSOR_INFO_ACTIVE_ARRAY_SIZE}.
+     */
+    private Rect mActiveArraySize;
+
+    /**
+     * The motion blur of every frame of the current burst. Reused from burst to burst.
+     */
+    private RowBlurMap[] mRowBlurMaps;
+
+    /**
+     * The face detection mode of the preview and burst requests, or
+     * {@link CameraMetadata#STATISTICS_FACE_DETECT_MODE_OFF} if the camera can't detect faces.
+     */
+    private int mFaceDetectMode = CameraMetadata.STATISTICS_FACE_DETECT_MODE_OFF;
+
+    /**
+     * The size of the thumbnail embedded in the burst JPEGs, or null to let the camera choose.
+     */
+    private Size mThumbnailSize;
+
+    /**
+     * Whether a shutter press sweeps the focus through the burst instead of waiting for the
+     * autofocus to lock.
+     */
+    private boolean mFocusSweepEnabled = false;
+
+    /**
+     * The closest focus distance and the hyperfocal distance of the lens, in diopters. The minimum
+     * focus distance is 0 if the focus can't be controlled manually.
+     */
+    private float mMinimumFocusDistance = 0;
+    private float mHyperfocalDistance = 0;
+
+    /**
+     * The focus distance of the last preview frame, in diopters, or NaN if unknown.
+     */
+    private volatile float mLastFocusDistance = Float.NaN;
+
+    /**
+     * The focus distances of the next burst, or null to keep the autofocus.
+     */
+    private float[] mFocusSweepDistances;
+
+    /**
+     * Whether a manual exposure longer than the camera shake allows is split into a burst of
+     * short ones, merged into one picture.
+     */
+    private volatile boolean mExposureSplitEnabled = false;
+
+    /**
+     * Plans the split exposures, or null if the sensor ranges are unknown.
+     */
+    private ExposureSplitPlanner mExposureSplitPlanner;
+
+    /**
+     * The JPEGs of the current split exposure still to come, for {@link #sSplitMerger}.
+     */
+    private final AtomicInteger mSplitFramesPending = new AtomicInteger();
+
+    /**
+     * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
+     * still image is ready to be saved.
+     */
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            if (mContinuousRunning) {
+                onContinuousImage(reader.acquireNextImage());
+                return;
+            }
+            if (mSplitFramesPending.get() > 0) {
+                onSplitImage(reader.acquireNextImage());
+                return;
+            }
+            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mBurstWriter,
+                    mSharpnessEstimator, mPerceptualHash, mBurstSelector, mBurstResultInfos,
+                    mBurstHashes, mBurstOrientations, mRawStore));
+        }
+
+    };
+
+    /**
+     * Hands the RAW images to {@link #mRawStore}, on the background thread.
+     */
+    private final ImageReader.OnImageAvailableListener mOnRawImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            RawFrameStore<Image, TotalCaptureResult> store = mRawStore;
+            if (null == store) {
+                image.close();
+            } else {
+                store.addImage(image.getTimestamp(), image);
+            }
+        }
+
+    };
+
+    /**
+     * Counts the frames of the continuous capture, and keeps their metadata until their JPEG
+     * is analyzed.
+     */
+    private final CameraCaptureSession.CaptureCallback mContinuousCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                       TotalCaptureResult result) {
+            if (!CONTINUOUS_JPEG_TAG.equals(request.getTag())) {
+                return;
+            }
+            logCaptureResult(result, CaptureLog.FLAG_BURST);
+            mContinuousCapture.onCaptured();
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            if (null != timestamp) {
+                mBurstResultInfos.put(timestamp, new BurstContainer.FrameInfo(timestamp,
+                        null == exposureTime ? 0 : exposureTime,
+                        null == sensitivity ? 0 : sensitivity, Float.NaN));
+            }
+        }
+
+    };
+
+    /**
+     * Meters the analysis frames, on the background thread.
+     */
+    private final ImageReader.OnImageAvailableListener mOnAnalysisImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            if (mCollectingBurstLuma) {
+                // Every frame of the burst counts.
+                collectBurstLuma(reader.acquireNextImage());
+                return;
+            }
+            Image image = reader.acquireLatestImage();
+            if (null == image) {
+                return;
+            }
+            try {
+                Image.Plane luma = image.getPlanes()[0];
+                mLumaHistogram.compute(luma.getBuffer(), image.getWidth(), image.getHeight(),
+                        luma.getRowStride(), luma.getPixelStride(), ANALYSIS_HISTOGRAM_STEP);
+            } finally {
+                image.close();
+            }
+            runSoftwareAutoExposure();
+        }
+
+    };
+
+    /**
+     * {@link CaptureRequest.Builder} for the camera preview
+     */
+    private CaptureRequest.Builder mPreviewRequestBuilder;
+
+    /**
+     * {@link CaptureRequest} generated by {@link #mPreviewRequestBuilder}
+     */
+    private CaptureRequest mPreviewRequest;
+
+    /**
+     * The output {@link Surface} of the preview, also targeted by the continuous capture.
+     */
+    private Surface mPreviewSurface;
+
+    /**
+     * The current state of camera state for taking pictures.
+     *
+     * @see #mCaptureCallback
+     */
+    private int mState = STATE_PREVIEW;
+
+    /**
+     * Coalesces manual setting changes and tells when the preview runs with them.
+     */
+    private ManualSettingsController mManualSettingsController
+            = new ManualSettingsController(ManualSettingsController.LATENCY_UNKNOWN);
+
+    /**
+     * Burst requests already built for the current capture session.
+     */
+    private final BurstRequestCache mBurstRequestCache = new BurstRequestCache();
+
+    /**
+     * Time (in {@link SystemClock#elapsedRealtimeNanos()}) at which the focus got locked for the
+     * current capture.
+     */
+    private long mFocusLockedTimestamp;
+
+    /**
+     * Records every capture result while the camera runs, or null if there is no external storage.
+     */
+    private CaptureLog mCaptureLog;
+
+    /**
+     * The record of {@link #mCaptureLog}, reused for every result on the background thread.
+     */
+    private final CaptureLog.Record mCaptureLogRecord = new CaptureLog.Record();
+
+    /**
+     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     */
+    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     */
+    private CameraCaptureSession.CaptureCallback mCaptureCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        private void process(CaptureResult result) {
+            switch (mState) {
+                case STATE_PREVIEW: {
+                    // We have nothing to do when the camera preview is working normally.
+                    break;
+                }
+                case STATE_WAITING_LOCK: {
+                    int afState = result.get(CaptureResult.CONTROL_AF_STATE);
+                    if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
+                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
+
+                        //Here in this IF statement, focus has been locked
+                        mFocusLockedTimestamp = SystemClock.elapsedRealtimeNanos();
+                        //Vincent:
+                        if(mInManualMode){
+                            //no need for precapture sequence in manual mode
+                            if (mManualSettingsController.isSettled()) {
+                                mState = STATE_PICTURE_TAKEN;
+                                captureBurst();
+                            } else {
+                                mState = STATE_WAITING_MANUAL_SETTINGS;
+                            }
+                            break;
+                        }
+
+                        // CONTROL_AE_STATE can be null on some devices
+                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                        //adapted by Vincent
+                        if (aeState == null ||
+                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
+
+                            mState = STATE_WAITING_NON_PRECAPTURE;
+                            //TODO understand why this transition is made! It sometimes make two bursts to be taken.
+                            //unlockfocus will set the sate to STATE_PREVIEW anyway...
+//                            captureStillPicture();
+                            captureBurst();
+                        } else {
+                            runPrecaptureSequence();
+                        }
+                    }
+                    break;
+                }
+                case STATE_WAITING_PRECAPTURE: {
+                    // CONTROL_AE_STATE can be null on some devices
+                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                    if (aeState == null ||
+                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
+                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
+                        //the precapture sequence has been launched
+                        mState = STATE_WAITING_NON_PRECAPTURE;
+                    }
+                    break;
+                }
+                case STATE_WAITING_NON_PRECAPTURE: {
+                    // CONTROL_AE_STATE can be null on some devices
+                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
+                        //precapture sequence has ended!
+                        mState = STATE_PICTURE_TAKEN;
+//                        captureStillPicture();
+                        captureBurst();
+                    }
+                    break;
+                }
+                case STATE_WAITING_MANUAL_SETTINGS: {
+                    if (mManualSettingsController.isSettled()) {
+                        mState = STATE_PICTURE_TAKEN;
+                        captureBurst();
+                    }
+                    break;
+                }
+                case STATE_WAITING_UPDATE_CAMERA_CHARACTERISTICS: {
+                    // added by Vincent
+
+                    Integer temp1 = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                    if(temp1!=null){
+                        mCurrentISO = temp1.intValue();
+                    }
+                    Long temp2 = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                    if(temp2!=null){
+                        mCurrentExposure = temp2.longValue();
+                    }
+
+                   if(mCurrentISO != 0 && mCurrentExposure != 0) {
+
+                       //finish manual change of settings
+                       mState = STATE_PREVIEW;
+                       finishManualSettingChange();
+                   }
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void onCaptureProgressed(CameraCaptureSession session, CaptureRequest request,
+                                        CaptureResult partialResult) {
+            logCaptureResult(partialResult, CaptureLog.FLAG_PARTIAL);
+            process(partialResult);
+        }
+
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                       TotalCaptureResult result) {
+            logCaptureResult(result, 0);
+            trackManualSettings(request, result);
+            Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+            if (null != focusDistance) {
+                mLastFocusDistance = focusDistance;
+            }
+            process(result);
+        }
+
+        private void trackManualSettings(CaptureRequest request, TotalCaptureResult result) {
+            boolean wasSettled = mManualSettingsController.isSettled();
+            ManualSettingsController.Submission next = mManualSettingsController.onResult(
+                    request.getTag(), result.getFrameNumber(),
+                    result.get(CaptureResult.SENSOR_EXPOSURE_TIME),
+                    result.get(CaptureResult.SENSOR_SENSITIVITY),
+                    SystemClock.elapsedRealtimeNanos());
+            if (null != next) {
+                submitManualSettings(next);
+            } else if (!wasSettled && mManualSettingsController.isSettled()) {
+                Log.d(TAG, "Manual settings applied after "
+                        + mManualSettingsController.getLastLatency() / 1000000 + " ms ("
+                        + mManualSettingsController.getLastLatencyFrames() + " frames), average "
+                        + mManualSettingsController.getAverageLatency() / 1000000 + " ms");
+            }
+        }
+
+    };
+
+    /**
+     * A {@link Handler} for showing {@link Toast}s.
      */
     private Handler mMessageHandler = new Handler() {
         @Override
@@ -448,6 +1115,16 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
         return fragment;
     }
 
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        startProcessing(getActivity().getApplicationContext());
+        mStreamMemory = sMemoryGovernor.register("Camera streams", MEMORY_ORDER_STREAMS, null);
+        // Opening the camera takes a few hundred milliseconds, so we start it right away instead
+        // of waiting for the layout to be inflated and the SurfaceTexture to be created.
+        startCamera();
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -456,52 +1133,231 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
 
     @Override
     public void onViewCreated(final View view, Bundle savedInstanceState) {
-        view.findViewById(R.id.picture).setOnClickListener(this);
+        View picture = view.findViewById(R.id.picture);
+        picture.setOnClickListener(this);
+        // Holding the button shoots until it is released.
+        picture.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                startContinuousCapture();
+                return true;
+            }
+        });
+        picture.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                int action = event.getActionMasked();
+                if (MotionEvent.ACTION_UP == action || MotionEvent.ACTION_CANCEL == action) {
+                    stopContinuousCapture();
+                }
+                return false;
+            }
+        });
         view.findViewById(R.id.exposure_minus).setOnClickListener(this);
         view.findViewById(R.id.exposure_plus).setOnClickListener(this);
         view.findViewById(R.id.iso_minus).setOnClickListener(this);
         view.findViewById(R.id.iso_plus).setOnClickListener(this);
+        view.findViewById(R.id.focus_sweep).setOnClickListener(this);
+        view.findViewById(R.id.night_split).setOnClickListener(this);
         mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
+        mReviewStrip = (BurstReviewStrip) view.findViewById(R.id.review_strip);
+        mReviewStrip.setScheduler(sScheduler);
+        mReviewStrip.setMemoryGovernor(sMemoryGovernor);
+        if (null != mRetainedSurfaceTexture) {
+            // The camera survived a configuration change: we only re-attach the preview and fix
+            // up the aspect ratio here, the transform follows in onSurfaceTextureSizeChanged().
+            mTextureView.setSurfaceTexture(mRetainedSurfaceTexture);
+            mRetainedSurfaceTexture = null;
+            fitTextureViewToPreviewSize();
+        }
     }
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
 //        mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
-        mFile = new File(new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_PICTURES), "MyCoolCameraApp"), "pic.jpg");
+        mPictureDirectory = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_PICTURES), "MyCoolCameraApp");
+        mBurstDirectory = new File(getActivity().getFilesDir(), BURST_DIRECTORY);
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        startBackgroundThread();
+        // Back in the foreground: the memory given back while in the background can be used again.
+        sMemoryGovernor.onTrimMemory(0);
+        // The camera is already being opened if we come from onCreate().
+        if (null == mBackgroundThread) {
+            startCamera();
+        }
 
         // When the screen is turned off and turned back on, the SurfaceTexture is already
-        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
-        // a camera and start preview from here (otherwise, we wait until the surface is ready in
-        // the SurfaceTextureListener).
-        if (mTextureView.isAvailable()) {
-            openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-        } else {
-            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can
+        // start preview from here (otherwise, we wait until the surface is ready in the
+        // SurfaceTextureListener). After a configuration change the session is still running
+        // and there is nothing to start.
+        mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        if (mTextureView.isAvailable() && !mPreviewSessionRequested) {
+            onPreviewSurfaceAvailable(mTextureView.getWidth(), mTextureView.getHeight());
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        sMemoryGovernor.onTrimMemory(level);
+        Log.d(TAG, "Trim memory level " + level + ": " + sMemoryGovernor);
+    }
+
     @Override
     public void onPause() {
-        closeCamera();
-        stopBackgroundThread();
+        Activity activity = getActivity();
+        if (null == activity || !activity.isChangingConfigurations()) {
+            mGyroRecorder.stop();
+            closeCamera();
+            stopBackgroundThread();
+            // The background thread is stopped: the texture will be handed over again on resume.
+            mSessionTexture = null;
+            mSessionPreviewSize = null;
+            if (null != mCaptureLog) {
+                mCaptureLog.close();
+                mCaptureLog = null;
+            }
+            mLastPreviewFrameTimestamp = 0;
+        }
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        mStreamMemory.unregister();
+        if (null != mRetainedSurfaceTexture) {
+            mRetainedSurfaceTexture.release();
+            mRetainedSurfaceTexture = null;
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * @return The activity of the processing of the bursts. Used by the tests.
+     */
+    public static ProcessingJobQueue.Metrics getProcessingMetrics() {
+        synchronized (Camera2BasicFragment.class) {
+            return null == sJobQueue ? null : sJobQueue.getMetrics();
+        }
+    }
+
+    /**
+     * @return The memory governor of the process. Used by the tests.
+     */
+    public static synchronized MemoryGovernor getMemoryGovernor() {
+        return sMemoryGovernor;
+    }
+
+    /**
+     * Starts the memory governor, the scheduler and the queue of the processing jobs once per
+     * process, and deletes the oldest containers of the bursts it has processed.
+     */
+    private static synchronized void startProcessing(Context context) {
+        if (null != sJobQueue) {
+            return;
+        }
+        ActivityManager activityManager
+                = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        sMemoryGovernor = new MemoryGovernor(
+                MemoryGovernor.getBudget(activityManager.getMemoryClass()));
+        // The cores left to the camera threads.
+        sScheduler = new ProcessingScheduler();
+        ForkJoinPool pool = new ForkJoinPool(sScheduler.getThreadCount());
+        sJobQueue = new ProcessingJobQueue(new File(context.getFilesDir(), "jobs"),
+                new BurstJobProcessor(sScheduler, pool, RESTORATION_NOISE_TO_SIGNAL,
+                        sMemoryGovernor.register("Restoration", MEMORY_ORDER_RESTORATION,
+                                null)));
+        sJobQueue.start();
+        int deleted = BurstContainer.prune(new File(context.getFilesDir(), BURST_DIRECTORY),
+                sJobQueue.getPendingContainers(), MAX_KEPT_BURSTS, MAX_KEPT_BURST_BYTES);
+        if (deleted > 0) {
+            Log.d(TAG, "Deleted " + deleted + " old burst containers");
+        }
+        sSplitMerger = new SplitExposureMerger(pool, sMemoryGovernor.register("Split exposure",
+                MEMORY_ORDER_RESTORATION, null));
+    }
+
+    /**
+     * Resets the preview gap measured by {@link #getLongestPreviewGap()}. Used by the tests.
+     */
+    public void resetPreviewGapStats() {
+        mLongestPreviewGap = 0;
+    }
+
+    /**
+     * @return The longest time in ms between two preview frames since the last call to
+     * {@link #resetPreviewGapStats()}
+     */
+    public long getLongestPreviewGap() {
+        return mLongestPreviewGap;
+    }
+
     /**
-     * Sets up member variables related to camera.
+     * @return The time in {@link SystemClock#elapsedRealtime()} ms of the last preview frame, or 0
+     * if the preview is stopped
+     */
+    public long getLastPreviewFrameTimestamp() {
+        return mLastPreviewFrameTimestamp;
+    }
+
+    /**
+     * Starts the background thread and opens the camera, without waiting for the preview surface.
+     */
+    private void startCamera() {
+        mLaunchTimestamp = SystemClock.elapsedRealtime();
+        mWaitingForFirstPreviewFrame = true;
+        startBackgroundThread();
+        openCamera();
+        SensorManager sensorManager
+                = (SensorManager) getActivity().getSystemService(Context.SENSOR_SERVICE);
+        if (!mGyroRecorder.start(sensorManager, mBackgroundHandler)) {
+            Log.w(TAG, "No gyroscope: blurred frames won't be restored");
+        }
+        File logDirectory = getActivity().getExternalFilesDir("capture_log");
+        if (null != logDirectory) {
+            mCaptureLog = new CaptureLog(logDirectory, CAPTURE_LOG_BUFFER_RECORDS,
+                    CAPTURE_LOG_MAX_FILE_SIZE, CAPTURE_LOG_MAX_FILES);
+        }
+    }
+
+    /**
+     * Called once the {@link TextureView} has a {@link SurfaceTexture}. Picks the preview size and
+     * starts the preview session if the camera is already opened.
      *
      * @param width  The width of available size for camera preview
      * @param height The height of available size for camera preview
      */
-    private void setUpCameraOutputs(int width, int height) {
+    private void onPreviewSurfaceAvailable(int width, int height) {
+        if (null == mStreamConfigurationMap) {
+            return;
+        }
+        setUpPreviewSize(width, height);
+        configureTransform(width, height);
+        // The view must not be touched from the background thread.
+        final SurfaceTexture texture = mTextureView.getSurfaceTexture();
+        final Size previewSize = mPreviewSize;
+        // Both this and onOpened() end up on the background thread, so whichever comes last
+        // creates the session.
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSessionTexture = texture;
+                mSessionPreviewSize = previewSize;
+                createCameraPreviewSessionIfReady();
+            }
+        });
+    }
+
+    /**
+     * Sets up member variables related to camera that do not depend on the preview surface.
+     */
+    private void setUpCameraOutputs() {
         Activity activity = getActivity();
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
         try {
@@ -518,31 +1374,100 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
                 StreamConfigurationMap map = characteristics.get(
                         CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
 
-                // For still image captures, we use the largest available size.
-                Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new CompareSizesByArea());
-                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                        ImageFormat.JPEG, /*maxImages*/2);
+                // For still image captures, we use the largest size that keeps up with the burst.
+                List<BurstStreamPlanner.StreamOption> options
+                        = new ArrayList<BurstStreamPlanner.StreamOption>();
+                for (Size size : map.getOutputSizes(ImageFormat.JPEG)) {
+                    options.add(new BurstStreamPlanner.StreamOption(ImageFormat.JPEG,
+                            size.getWidth(), size.getHeight(),
+                            map.getOutputMinFrameDuration(ImageFormat.JPEG, size),
+                            map.getOutputStallDuration(ImageFormat.JPEG, size)));
+                }
+                BurstStreamPlanner.Plan plan = BurstStreamPlanner.plan(options, mBurstSize,
+                        TARGET_BURST_FPS, MIN_CAPTURE_PIXELS);
+                Log.d(TAG, "Burst plan: " + plan);
+                Size captureSize = new Size(plan.stream.width, plan.stream.height);
+                // The buffers of a previous configuration are gone.
+                mStreamMemory.set(0);
+                long frameBytes = getFrameBytes(captureSize);
+                int maxImages = sMemoryGovernor.fitCount(MAX_CAPTURE_IMAGES, frameBytes,
+                        MIN_CAPTURE_IMAGES);
+                mImageReader = ImageReader.newInstance(captureSize.getWidth(),
+                        captureSize.getHeight(), ImageFormat.JPEG, maxImages);
+                long streamBytes = maxImages * frameBytes;
                 mImageReader.setOnImageAvailableListener(
                         mOnImageAvailableListener, mBackgroundHandler);
 
-                // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
-                // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-                // garbage capture data.
-                mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                        width, height, largest);
-
-                // We fit the aspect ratio of TextureView to the size of preview we picked.
-                int orientation = getResources().getConfiguration().orientation;
-                if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getWidth(), mPreviewSize.getHeight());
-                } else {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getHeight(), mPreviewSize.getWidth());
+                Size analysisSize = chooseAnalysisSize(
+                        map.getOutputSizes(ImageFormat.YUV_420_888), captureSize);
+                if (null != analysisSize) {
+                    mAnalysisReader = ImageReader.newInstance(analysisSize.getWidth(),
+                            analysisSize.getHeight(), ImageFormat.YUV_420_888, ANALYSIS_IMAGES);
+                    streamBytes += ANALYSIS_IMAGES * getFrameBytes(analysisSize);
+                    mAnalysisReader.setOnImageAvailableListener(
+                            mOnAnalysisImageAvailableListener, mBackgroundHandler);
+                }
+                Size rawSize = chooseRawSize(characteristics, map);
+                if (null != rawSize) {
+                    long rawBytes = getRawFrameBytes(rawSize);
+                    int rawImages = sMemoryGovernor.fitCount(MAX_RAW_IMAGES, rawBytes, 0);
+                    if (rawImages >= MIN_RAW_IMAGES) {
+                        mRawReader = ImageReader.newInstance(rawSize.getWidth(),
+                                rawSize.getHeight(), ImageFormat.RAW_SENSOR, rawImages);
+                        streamBytes += rawImages * rawBytes;
+                        mRawReader.setOnImageAvailableListener(mOnRawImageAvailableListener,
+                                mBackgroundHandler);
+                        mRawStore = new RawFrameStore<Image, TotalCaptureResult>(
+                                rawImages - 1, new DngSink(characteristics));
+                    } else {
+                        Log.d(TAG, "Not enough memory for the RAW stream");
+                    }
                 }
-
+                mStreamMemory.set(streamBytes);
+                // The reader must always have a buffer left for the next frame.
+                mContinuousCapture = new ContinuousCaptureController(CONTINUOUS_WINDOW_DURATION,
+                        maxImages - 1);
+                Log.d(TAG, maxImages + " capture buffers, memory " + sMemoryGovernor);
+                Range<Long> exposureRange = characteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+                Range<Integer> isoRange = characteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+                mSoftwareAutoExposure = null == exposureRange || null == isoRange ? null
+                        : new SoftwareAutoExposure(exposureRange.getLower(),
+                        exposureRange.getUpper(), isoRange.getLower(), isoRange.getUpper(),
+                        SOFTWARE_AE_INTERVAL);
+                mSoftwareAeEnabled = false;
+                mExposureSplitPlanner = null == exposureRange || null == isoRange ? null
+                        : new ExposureSplitPlanner(exposureRange.getLower(),
+                        exposureRange.getUpper(), isoRange.getLower(), isoRange.getUpper(),
+                        MAX_SPLIT_FRAMES);
+
+                mStreamConfigurationMap = map;
+                mCaptureSize = captureSize;
+                mBurstFrameDuration = plan.frameDuration;
+                Integer maxLatency = characteristics.get(CameraCharacteristics.SYNC_MAX_LATENCY);
+                mManualSettingsController = new ManualSettingsController(null == maxLatency
+                        ? ManualSettingsController.LATENCY_UNKNOWN : maxLatency);
+                mFaceDetectMode = getFaceDetectMode(characteristics);
+                mThumbnailSize = chooseThumbnailSize(characteristics.get(
+                        CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES), captureSize);
+                float[] focalLengths = characteristics.get(
+                        CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+                SizeF physicalSize
+                        = characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+                mFocalLengthPixels = null == focalLengths || focalLengths.length == 0
+                        || null == physicalSize ? 0
+                        : focalLengths[0] / physicalSize.getWidth() * captureSize.getWidth();
+                Integer sensorOrientation
+                        = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                mSensorOrientation = null == sensorOrientation ? 0 : sensorOrientation;
+                mActiveArraySize
+                        = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+                mRowBlurMaps = new RowBlurMap[mBurstSize];
+                for (int i = 0; i < mRowBlurMaps.length; i++) {
+                    mRowBlurMaps[i] = new RowBlurMap(ROW_BLUR_BANDS);
+                }
+                setUpFocusSweep(characteristics, focalLengths, physicalSize);
                 mCameraId = cameraId;
                 return;
             }
@@ -556,11 +1481,45 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
     }
 
     /**
-     * Opens the camera specified by {@link Camera2BasicFragment#mCameraId}.
+     * Picks the preview size for the given {@link TextureView} size and fits the aspect ratio of
+     * the {@link TextureView} to it.
+     *
+     * @param width  The width of available size for camera preview
+     * @param height The height of available size for camera preview
      */
-    private void openCamera(int width, int height) {
-        setUpCameraOutputs(width, height);
-        configureTransform(width, height);
+    private void setUpPreviewSize(int width, int height) {
+        // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+        // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+        // garbage capture data.
+        mPreviewSize = chooseOptimalSize(
+                mStreamConfigurationMap.getOutputSizes(SurfaceTexture.class),
+                width, height, mCaptureSize);
+        fitTextureViewToPreviewSize();
+    }
+
+    /**
+     * We fit the aspect ratio of TextureView to the size of preview we picked.
+     */
+    private void fitTextureViewToPreviewSize() {
+        int orientation = getResources().getConfiguration().orientation;
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } else {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        }
+    }
+
+    /**
+     * Opens the camera specified by {@link Camera2BasicFragment#mCameraId}. The preview session is
+     * created later, once both the {@link CameraDevice} and the {@link SurfaceTexture} are ready.
+     */
+    private void openCamera() {
+        setUpCameraOutputs();
+        if (null == mCameraId) {
+            return;
+        }
         Activity activity = getActivity();
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
         try {
@@ -581,6 +1540,12 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
     private void closeCamera() {
         try {
             mCameraOpenCloseLock.acquire();
+            mPreviewSessionRequested = false;
+            mBurstRequestCache.clear();
+            mCollectingBurstLuma = false;
+            mBurstLumaPlanes.clear();
+            mContinuousRunning = false;
+            mManualSettingsController.reset();
             if (null != mCaptureSession) {
                 mCaptureSession.close();
                 mCaptureSession = null;
@@ -593,6 +1558,12 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
                 mImageReader.close();
                 mImageReader = null;
             }
+            if (null != mAnalysisReader) {
+                mAnalysisReader.close();
+                mAnalysisReader = null;
+            }
+            closeRawStream(RAW_CLOSE_TIMEOUT);
+            mStreamMemory.set(0);
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -600,6 +1571,56 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
         }
     }
 
+    /**
+     * Closes {@link #mRawReader} and {@link #mRawStore}, once the DNGs being written are done.
+     *
+     * @param timeout How long (in ms) to wait for the DNGs being written
+     */
+    private void closeRawStream(long timeout) throws InterruptedException {
+        if (null != mRawStore) {
+            // The images being written belong to the reader.
+            if (!mRawStore.close(timeout)) {
+                Log.w(TAG, "Gave up waiting for the DNGs to be written");
+            }
+            Log.d(TAG, "RAW frames: " + mRawStore.getStats());
+            mRawStore = null;
+        }
+        if (null != mRawReader) {
+            mRawReader.close();
+            mRawReader = null;
+        }
+    }
+
+    /**
+     * Drops the RAW stream and creates the preview session again, after the camera refused to
+     * configure it with the other streams. Must be called on the background thread.
+     */
+    private void retryWithoutRawStream() {
+        // closeCamera() may be tearing everything down on the UI thread: let it finish.
+        if (!mCameraOpenCloseLock.tryAcquire()) {
+            return;
+        }
+        try {
+            ImageReader rawReader = mRawReader;
+            if (null == mCameraDevice || null == rawReader || null == mSessionTexture) {
+                return;
+            }
+            // Four outputs are not a combination every camera supports, unlike the preview, the
+            // JPEG and the analysis streams.
+            Log.w(TAG, "Could not configure the session with the RAW stream, retrying without it");
+            long rawBytes = rawReader.getMaxImages()
+                    * getRawFrameBytes(new Size(rawReader.getWidth(), rawReader.getHeight()));
+            // Nothing was captured through the failed session: there is no DNG to wait for.
+            closeRawStream(0);
+            mStreamMemory.release(rawBytes);
+            createCameraPreviewSession();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
+    }
+
     /**
      * Starts a background thread and its {@link Handler}.
      */
@@ -623,16 +1644,37 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
         }
     }
 
+    /**
+     * Creates the preview session if both the {@link CameraDevice} and the preview
+     * {@link SurfaceTexture} are ready, and if it hasn't been created yet. Must be called on the
+     * background thread.
+     */
+    private void createCameraPreviewSessionIfReady() {
+        // closeCamera() may be tearing everything down on the UI thread: let it finish.
+        if (!mCameraOpenCloseLock.tryAcquire()) {
+            return;
+        }
+        try {
+            if (mPreviewSessionRequested || null == mCameraDevice || null == mSessionTexture) {
+                return;
+            }
+            mPreviewSessionRequested = true;
+            createCameraPreviewSession();
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
+    }
+
     /**
      * Creates a new {@link CameraCaptureSession} for camera preview.
      */
     private void createCameraPreviewSession() {
         try {
-            SurfaceTexture texture = mTextureView.getSurfaceTexture();
-            assert texture != null;
+            SurfaceTexture texture = mSessionTexture;
 
             // We configure the size of default buffer to be the size of camera preview we want.
-            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            texture.setDefaultBufferSize(
+                    mSessionPreviewSize.getWidth(), mSessionPreviewSize.getHeight());
 
             // This is the output Surface we need to start preview.
             Surface surface = new Surface(texture);
@@ -641,9 +1683,21 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
+            mPreviewSurface = surface;
+
+            List<Surface> outputs = new ArrayList<Surface>();
+            outputs.add(surface);
+            outputs.add(mImageReader.getSurface());
+            // The preview only targets the analysis stream while the software AE runs.
+            if (null != mAnalysisReader) {
+                outputs.add(mAnalysisReader.getSurface());
+            }
+            if (null != mRawReader) {
+                outputs.add(mRawReader.getSurface());
+            }
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -655,6 +1709,8 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
 
                             // When the session is ready, we start displaying the preview.
                             mCaptureSession = cameraCaptureSession;
+                            // Requests built for a previous session target stale surfaces.
+                            mBurstRequestCache.clear();
                             try {
                                 // Auto focus should be continuous for camera preview.
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
@@ -664,6 +1720,11 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
                                 //(which makes sense). When in manual mode, we call manualUpdate(...)
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
                                         CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                                // Faces are tracked during the preview so that they are already
+                                // found when the burst starts.
+                                mPreviewRequestBuilder.set(
+                                        CaptureRequest.STATISTICS_FACE_DETECT_MODE,
+                                        mFaceDetectMode);
 
                                 // Finally, we start displaying the camera preview.
                                 mPreviewRequest = mPreviewRequestBuilder.build();
@@ -672,10 +1733,15 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
                             } catch (CameraAccessException e) {
                                 e.printStackTrace();
                             }
+                            prewarmBurstRequests();
                         }
 
                         @Override
                         public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
+                            if (null != mRawReader) {
+                                retryWithoutRawStream();
+                                return;
+                            }
                             showToast("Failed");
                         }
                     }, null
@@ -720,7 +1786,68 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
      * Initiate a still image capture.
      */
     private void takePicture() {
-        lockFocus();
+        if (mContinuousRunning) {
+            return;
+        }
+        mFocusSweepDistances = mFocusSweepEnabled ? FocusSweepPlanner.plan(mLastFocusDistance,
+                mBurstSize, mMinimumFocusDistance, mHyperfocalDistance) : null;
+        if (null == mFocusSweepDistances) {
+            lockFocus();
+        } else {
+            startFocusSweep();
+        }
+    }
+
+    /**
+     * Captures a burst through {@link #mFocusSweepDistances} right away: the sharpest frame is
+     * the focused one, so there is no autofocus lock to wait for.
+     */
+    private void startFocusSweep() {
+        mFocusLockedTimestamp = SystemClock.elapsedRealtimeNanos();
+        if (mInManualMode && !mManualSettingsController.isSettled()) {
+            mState = STATE_WAITING_MANUAL_SETTINGS;
+            return;
+        }
+        mState = STATE_PICTURE_TAKEN;
+        captureBurst();
+    }
+
+    /**
+     * Reads the focus range of the lens for {@link FocusSweepPlanner}.
+     */
+    private void setUpFocusSweep(CameraCharacteristics characteristics, float[] focalLengths,
+                                 SizeF physicalSize) {
+        mMinimumFocusDistance = 0;
+        mHyperfocalDistance = 0;
+        int[] capabilities
+                = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean manualFocus = false;
+        if (null != capabilities) {
+            for (int capability : capabilities) {
+                manualFocus |= capability
+                        == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR;
+            }
+        }
+        Float minimumFocusDistance
+                = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        if (!manualFocus || null == minimumFocusDistance) {
+            return;
+        }
+        mMinimumFocusDistance = minimumFocusDistance;
+        Float hyperfocalDistance
+                = characteristics.get(CameraCharacteristics.LENS_INFO_HYPERFOCAL_DISTANCE);
+        float[] apertures
+                = characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_APERTURES);
+        if (null != hyperfocalDistance && hyperfocalDistance > 0) {
+            mHyperfocalDistance = hyperfocalDistance;
+        } else if (null != focalLengths && focalLengths.length > 0 && null != apertures
+                && apertures.length > 0 && null != physicalSize) {
+            double diagonal = Math.hypot(physicalSize.getWidth(), physicalSize.getHeight());
+            mHyperfocalDistance = FocusSweepPlanner.hyperfocalDistance(focalLengths[0],
+                    apertures[0], (float) diagonal * CIRCLE_OF_CONFUSION_RATIO);
+        }
+        Log.d(TAG, "Focus sweep range: " + mHyperfocalDistance + " to " + mMinimumFocusDistance
+                + " diopters");
     }
 
     /**
@@ -868,11 +1995,19 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
                 increaseISO();
                 break;
             }
+            case R.id.focus_sweep: {
+                mFocusSweepEnabled = ((ToggleButton) view).isChecked();
+                break;
+            }
+            case R.id.night_split: {
+                mExposureSplitEnabled = ((ToggleButton) view).isChecked();
+                break;
+            }
         }
     }
 
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * Scores a JPEG {@link Image} and saves it into the specified {@link File}.
      */
     private static class ImageSaver implements Runnable {
 
@@ -881,38 +2016,163 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
          */
         private final Image mImage;
         /**
-         * The file we save the image into.
+         * The container of the burst we save the image into.
          */
-        private final File mFile;
-
-        public ImageSaver(Image image, File file) {
+        private final BurstContainerWriter mWriter;
+        /**
+         * Scores the image before it is saved.
+         */
+        private final JpegSharpnessEstimator mEstimator;
+        /**
+         * Hashes the image once it is scored.
+         */
+        private final PerceptualHash mHash;
+        /**
+         * Gets the score of the image.
+         */
+        private final BurstSelector mSelector;
+        /**
+         * The metadata of the capture results received so far, by timestamp.
+         */
+        private final Map<Long, BurstContainer.FrameInfo> mResultInfos;
+        /**
+         * Receives the hash of the image.
+         */
+        private final Map<Long, Long> mHashes;
+        /**
+         * Receives the EXIF orientation of the image.
+         */
+        private final Map<Long, Integer> mOrientations;
+        /**
+         * Gets the score of the image for the RAW image of the frame, or null.
+         */
+        private final RawFrameStore<?, ?> mRawStore;
+
+        public ImageSaver(Image image, BurstContainerWriter writer,
+                          JpegSharpnessEstimator estimator, PerceptualHash hash,
+                          BurstSelector selector,
+                          Map<Long, BurstContainer.FrameInfo> resultInfos,
+                          Map<Long, Long> hashes, Map<Long, Integer> orientations,
+                          RawFrameStore<?, ?> rawStore) {
             mImage = image;
-            mFile = file;
+            mWriter = writer;
+            mEstimator = estimator;
+            mHash = hash;
+            mSelector = selector;
+            mResultInfos = resultInfos;
+            mHashes = hashes;
+            mOrientations = orientations;
+            mRawStore = rawStore;
         }
 
         @Override
         public void run() {
             ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
+            long timestamp = mImage.getTimestamp();
+            // Cleared once the frame is saved and scored, or the selector goes on without it.
+            boolean failed = true;
             try {
-                output = new FileOutputStream(mFile);
-                output.write(bytes);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+                if (null == mWriter) {
+                    Log.w(TAG, "Image received outside of a burst");
+                    return;
+                }
+                mOrientations.put(timestamp, JpegThumbnail.readOrientation(buffer));
+                long start = SystemClock.elapsedRealtime();
+                JpegSharpnessEstimator.Result sharpness = null;
+                try {
+                    sharpness = mEstimator.estimate(buffer);
+                    mHashes.put(timestamp, mHash.compute(mEstimator));
+                    Log.d(TAG, "Sharpness of frame " + mWriter.getFrameCount() + ": "
+                            + sharpness.score + " (" + (SystemClock.elapsedRealtime() - start)
+                            + " ms)");
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Could not score frame " + mWriter.getFrameCount(), e);
+                }
+
+                // The capture result usually comes before the JPEG; otherwise the index gets its
+                // metadata when it comes.
+                BurstContainer.FrameInfo result = mResultInfos.get(timestamp);
+                float score = null == sharpness ? Float.NaN : (float) sharpness.score;
+                int index = mWriter.append(new BurstContainer.FrameInfo(timestamp,
+                        null == result ? 0 : result.exposureTime, null == result ? 0 : result.iso,
+                        score), buffer);
+                if (null != sharpness && null != mRawStore) {
+                    mRawStore.setScore(timestamp, score);
+                }
+                if (null != sharpness) {
+                    failed = false;
+                    mSelector.onScored(timestamp, mWriter.getFile().getName() + "#" + index,
+                            sharpness);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
                 mImage.close();
+                if (failed) {
+                    mSelector.onFrameFailed(timestamp);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Writes the RAW images picked by {@link #mRawStore} as DNGs, on its writer thread.
+     */
+    private static class DngSink implements RawFrameStore.Sink<Image, TotalCaptureResult> {
+
+        private final CameraCharacteristics mCharacteristics;
+
+        public DngSink(CameraCharacteristics characteristics) {
+            mCharacteristics = characteristics;
+        }
+
+        @Override
+        public long write(Image image, TotalCaptureResult result, File file) throws IOException {
+            File directory = file.getParentFile();
+            if (null != directory && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            long start = SystemClock.elapsedRealtime();
+            DngCreator creator = new DngCreator(mCharacteristics, result);
+            FileOutputStream output = null;
+            try {
+                Integer orientation = result.get(CaptureResult.JPEG_ORIENTATION);
+                creator.setOrientation(getExifOrientation(null == orientation ? 0 : orientation));
+                output = new FileOutputStream(file);
+                creator.writeImage(output, image);
+            } finally {
+                creator.close();
                 if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                    output.close();
                 }
             }
+            long time = Math.max(1, SystemClock.elapsedRealtime() - start);
+            Log.d(TAG, "Wrote " + file.getName() + ": " + file.length() / 1024 + " kB in " + time
+                    + " ms (" + file.length() / 1024 / time + " MB/s)");
+            return file.length();
+        }
+
+        @Override
+        public void release(Image image) {
+            image.close();
+        }
+
+        /**
+         * @param degrees A clockwise rotation, as in {@code JPEG_ORIENTATION}
+         * @return The EXIF orientation of the rotation
+         */
+        private static int getExifOrientation(int degrees) {
+            switch ((degrees % 360 + 360) % 360) {
+                case 90:
+                    return ExifInterface.ORIENTATION_ROTATE_90;
+                case 180:
+                    return ExifInterface.ORIENTATION_ROTATE_180;
+                case 270:
+                    return ExifInterface.ORIENTATION_ROTATE_270;
+                default:
+                    return ExifInterface.ORIENTATION_NORMAL;
+            }
         }
 
     }
@@ -1132,6 +2392,12 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
     }
 
     private void finishManualSettingChange(){
+        boolean exposureAction = mSettingActionIntent == SETTING_ACTION_INTENT.DECREASE_EXP
+                || mSettingActionIntent == SETTING_ACTION_INTENT.INCREASE_EXP;
+        if (exposureAction && mSoftwareAeEnabled) {
+            // The buttons step the maximum exposure time, not the one the light calls for.
+            mCurrentExposure = mSoftwareAutoExposure.getMaxExposure();
+        }
         switch (mSettingActionIntent){
             case DECREASE_EXP: {
 
@@ -1218,79 +2484,751 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
                     return;
                 }
 
-                mCurrentISO = mPossibleISOs[index + 1];
-                break;
+                mCurrentISO = mPossibleISOs[index + 1];
+                break;
+            }
+        }
+
+        if (null != mSoftwareAutoExposure) {
+            if (exposureAction) {
+                mSoftwareAutoExposure.setMaxExposure(mCurrentExposure);
+            }
+            mSoftwareAeEnabled = exposureAction;
+        }
+
+        manualUpdateCameraPreviewSession();
+        prewarmBurstRequests();
+    }
+
+    /**
+     * Lets {@link #mSoftwareAutoExposure} adapt the manual settings to the last analysis frame.
+     * Called on the background thread.
+     */
+    private void runSoftwareAutoExposure() {
+        // Settings in flight aren't reflected in the frame yet.
+        if (!mSoftwareAeEnabled || null == mSoftwareAutoExposure || mState != STATE_PREVIEW
+                || !mManualSettingsController.isSettled()) {
+            return;
+        }
+        SoftwareAutoExposure.Settings settings = mSoftwareAutoExposure.update(mLumaHistogram,
+                mCurrentExposure, mCurrentISO, SystemClock.elapsedRealtimeNanos());
+        if (null == settings) {
+            return;
+        }
+        Log.d(TAG, "Software auto exposure: " + settings + " (mean luma "
+                + (int) mLumaHistogram.getMean() + ")");
+        mCurrentExposure = settings.exposure;
+        mCurrentISO = settings.iso;
+        manualUpdateCameraPreviewSession();
+    }
+
+    private void manualUpdateCameraPreviewSession() {
+
+        if (!mInManualMode) {
+            Log.e(TAG, "asked for a manual preview while not in manual mode");
+        }
+
+        //manual control:
+
+       if(mCurrentExposure == 0 || mCurrentISO == 0){
+           Log.e(TAG, "Something went wrong while trying to set the exposure and ISO settings!");
+           return;
+       }
+
+        // Rapid taps are coalesced: only the latest settings get submitted once the camera
+        // applied the ones in flight (see mCaptureCallback).
+        ManualSettingsController.Submission submission = mManualSettingsController.request(
+                mCurrentExposure, mCurrentISO, SystemClock.elapsedRealtimeNanos());
+        if (null != submission) {
+            submitManualSettings(submission);
+        }
+    }
+
+    /**
+     * Sets manual settings on the repeating preview request, on the background thread.
+     *
+     * @param submission The settings from {@link #mManualSettingsController}
+     */
+    private void submitManualSettings(final ManualSettingsController.Submission submission) {
+        if (null == mBackgroundHandler) {
+            return;
+        }
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (null == mCaptureSession) {
+                    return;
+                }
+                try {
+                    // Auto focus should be continuous for camera preview.
+                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                            CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+
+                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                            CaptureRequest.CONTROL_AE_MODE_OFF);
+                    mPreviewRequestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME,
+                            submission.exposure);
+                    mPreviewRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, submission.iso);
+                    mPreviewRequestBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION,
+                            getManualFrameDuration(submission.exposure));
+                    mPreviewRequestBuilder.setTag(submission.generation);
+                    if (null != mAnalysisReader) {
+                        if (mSoftwareAeEnabled) {
+                            mPreviewRequestBuilder.addTarget(mAnalysisReader.getSurface());
+                        } else {
+                            mPreviewRequestBuilder.removeTarget(mAnalysisReader.getSurface());
+                        }
+                    }
+
+                    // Finally, we start displaying the camera preview.
+                    mPreviewRequest = mPreviewRequestBuilder.build();
+                    mCaptureSession.setRepeatingRequest(mPreviewRequest,
+                            mCaptureCallback, mBackgroundHandler);
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param exposure The manual exposure time in ns
+     * @return The frame duration to use with manual exposure: the one planned for the burst, or
+     * longer if the exposure doesn't fit in it
+     */
+    private long getManualFrameDuration(long exposure) {
+        return Math.max(mBurstFrameDuration, exposure);
+    }
+
+    /**
+     * @return The memory of one buffer of an image reader of this size. The camera sizes the
+     * JPEG buffers for the worst case, close to the size of a YUV frame.
+     */
+    private static long getFrameBytes(Size size) {
+        return (long) size.getWidth() * size.getHeight() * 3 / 2;
+    }
+
+    /**
+     * @return The size of a RAW_SENSOR buffer, of 16 bits per pixel
+     */
+    private static long getRawFrameBytes(Size size) {
+        return (long) size.getWidth() * size.getHeight() * 2;
+    }
+
+    /**
+     * @return The largest RAW_SENSOR size, or null if the camera can't capture RAW
+     */
+    private static Size chooseRawSize(CameraCharacteristics characteristics,
+                                      StreamConfigurationMap map) {
+        int[] capabilities
+                = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean raw = false;
+        if (null != capabilities) {
+            for (int capability : capabilities) {
+                raw |= capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_RAW;
+            }
+        }
+        Size[] sizes = raw ? map.getOutputSizes(ImageFormat.RAW_SENSOR) : null;
+        if (null == sizes || sizes.length == 0) {
+            return null;
+        }
+        return Collections.max(Arrays.asList(sizes), new CompareSizesByArea());
+    }
+
+    /**
+     * @return A new container file, named after the first number that neither a container nor an
+     * exported picture uses yet
+     */
+    private File selectBurstFile() {
+        for (int seqNbr = 0; seqNbr < 10000; seqNbr++) {
+            String name = "burst_" + seqNbr;
+            File file = new File(mBurstDirectory, name + BurstContainer.EXTENSION);
+            if (!file.exists() && !new File(mPictureDirectory, name + ".jpg").exists()) {
+                return file;
+            }
+        }
+        return new File(mBurstDirectory, "burst_" + System.currentTimeMillis()
+                + BurstContainer.EXTENSION);
+    }
+
+    private List<CaptureRequest> getBurstRequestsList(CaptureRequest.Builder builder) {
+        List<CaptureRequest> list = new ArrayList<CaptureRequest>();
+
+        for (int i = 0; i < mBurstSize; i++) {
+            list.add(builder.build());
+        }
+
+        return list;
+    }
+
+    /**
+     * @return The key of the burst requests matching the current capture settings, or null if the
+     * fragment is detached
+     */
+    private BurstRequestCache.Key getCurrentBurstRequestKey() {
+        Activity activity = getActivity();
+        if (null == activity) {
+            return null;
+        }
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        return new BurstRequestCache.Key(mInManualMode, mCurrentExposure, mCurrentISO,
+                ORIENTATIONS.get(rotation), mBurstSize);
+    }
+
+    /**
+     * Builds the burst requests for the current settings in the background, so that the next
+     * {@link #captureBurst()} finds them in {@link #mBurstRequestCache}.
+     */
+    private void prewarmBurstRequests() {
+        if (null == mBackgroundHandler) {
+            return;
+        }
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                BurstRequestCache.Key key = getCurrentBurstRequestKey();
+                if (null == key || null == mCameraDevice || null == mCaptureSession
+                        || mBurstRequestCache.contains(key)) {
+                    return;
+                }
+                try {
+                    mBurstRequestCache.put(key, buildBurstRequests(key, null));
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the requests of a burst.
+     *
+     * @param key            The capture settings of the burst
+     * @param focusDistances The focus distance of each frame, or null to keep the autofocus
+     * @return The list of requests to pass to {@link CameraCaptureSession#captureBurst}
+     */
+    private List<CaptureRequest> buildBurstRequests(BurstRequestCache.Key key,
+                                                    float[] focusDistances)
+            throws CameraAccessException {
+        // This is the CaptureRequest.Builder that we use to take a picture.
+        final CaptureRequest.Builder captureBuilder =
+                mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        captureBuilder.addTarget(mImageReader.getSurface());
+        // The manual bursts are the ones worth developing from RAW.
+        if (key.manual && null != mRawReader) {
+            captureBuilder.addTarget(mRawReader.getSurface());
+        }
+        // A small copy of every frame for the SharpnessCascade, see selectFromBurstLuma().
+        if (null != mAnalysisReader) {
+            captureBuilder.addTarget(mAnalysisReader.getSurface());
+        }
+
+        // Use the same AE and AF modes as the preview.
+        //Adapted by vincent
+        captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        if (!key.manual) {
+            captureBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                    CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+        } else {
+            captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+            captureBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, key.exposure);
+            captureBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, key.iso);
+            captureBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION,
+                    getManualFrameDuration(key.exposure));
+        }
+
+        // Orientation
+        captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, key.orientation);
+        captureBuilder.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE, mFaceDetectMode);
+        // The review strip decodes the embedded thumbnails instead of the whole frames.
+        if (null != mThumbnailSize) {
+            captureBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, mThumbnailSize);
+        }
+
+        if (null != focusDistances) {
+            captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
+            List<CaptureRequest> list = new ArrayList<CaptureRequest>();
+            for (float focusDistance : focusDistances) {
+                captureBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, focusDistance);
+                list.add(captureBuilder.build());
+            }
+            return list;
+        }
+        return getBurstRequestsList(captureBuilder);
+    }
+
+    /**
+     * @return The largest JPEG thumbnail size with the aspect ratio of the captured images, or
+     * null if there is none
+     */
+    private static Size chooseThumbnailSize(Size[] sizes, Size captureSize) {
+        Size best = null;
+        if (null == sizes) {
+            return null;
+        }
+        for (Size size : sizes) {
+            if (size.getWidth() * captureSize.getHeight()
+                    == size.getHeight() * captureSize.getWidth()
+                    && (null == best || size.getWidth() > best.getWidth())) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The smallest YUV size at least {@link #ANALYSIS_WIDTH} by {@link #ANALYSIS_HEIGHT},
+     * preferably with the aspect ratio of the captured images, or null if there is none
+     */
+    private static Size chooseAnalysisSize(Size[] sizes, Size captureSize) {
+        if (null == sizes) {
+            return null;
+        }
+        Size best = null;
+        boolean bestMatchesAspect = false;
+        for (Size size : sizes) {
+            if (size.getWidth() < ANALYSIS_WIDTH || size.getHeight() < ANALYSIS_HEIGHT) {
+                continue;
+            }
+            boolean matchesAspect = size.getWidth() * captureSize.getHeight()
+                    == size.getHeight() * captureSize.getWidth();
+            if (null == best || (matchesAspect && !bestMatchesAspect)
+                    || (matchesAspect == bestMatchesAspect
+                    && size.getWidth() * size.getHeight() < best.getWidth() * best.getHeight())) {
+                best = size;
+                bestMatchesAspect = matchesAspect;
             }
         }
+        return best;
+    }
 
-        manualUpdateCameraPreviewSession();
+    /**
+     * @return The face detection mode to use: we only need the face rectangles, which SIMPLE
+     * reports at a lower cost than FULL
+     */
+    private static int getFaceDetectMode(CameraCharacteristics characteristics) {
+        int best = CameraMetadata.STATISTICS_FACE_DETECT_MODE_OFF;
+        int[] modes = characteristics.get(
+                CameraCharacteristics.STATISTICS_INFO_AVAILABLE_FACE_DETECT_MODES);
+        if (null != modes) {
+            for (int mode : modes) {
+                if (mode == CameraMetadata.STATISTICS_FACE_DETECT_MODE_SIMPLE
+                        || (mode == CameraMetadata.STATISTICS_FACE_DETECT_MODE_FULL
+                        && best == CameraMetadata.STATISTICS_FACE_DETECT_MODE_OFF)) {
+                    best = mode;
+                }
+            }
+        }
+        return best;
     }
 
-    private void manualUpdateCameraPreviewSession() {
+    /**
+     * Appends a capture result to {@link #mCaptureLog}. Called on the background thread.
+     *
+     * @param flags The {@link CaptureLog} flags of the result, other than the manual mode
+     */
+    private void logCaptureResult(CaptureResult result, int flags) {
+        CaptureLog log = mCaptureLog;
+        if (null == log) {
+            return;
+        }
+        CaptureLog.Record record = mCaptureLogRecord;
+        record.clear();
+        record.frameNumber = result.getFrameNumber();
+        record.arrivalTime = SystemClock.elapsedRealtimeNanos();
+        Long value = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (null != value) {
+            record.sensorTimestamp = value;
+        }
+        value = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (null != value) {
+            record.exposureTime = value;
+        }
+        value = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+        if (null != value) {
+            record.frameDuration = value;
+        }
+        value = result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
+        if (null != value) {
+            record.rollingShutterSkew = value;
+        }
+        Integer state = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (null != state) {
+            record.iso = state;
+        }
+        Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        if (null != focusDistance) {
+            record.focusDistance = focusDistance;
+        }
+        state = result.get(CaptureResult.CONTROL_AF_STATE);
+        if (null != state) {
+            record.afState = state;
+        }
+        state = result.get(CaptureResult.CONTROL_AE_STATE);
+        if (null != state) {
+            record.aeState = state;
+        }
+        state = result.get(CaptureResult.CONTROL_AWB_STATE);
+        if (null != state) {
+            record.awbState = state;
+        }
+        state = result.get(CaptureResult.LENS_STATE);
+        if (null != state) {
+            record.lensState = state;
+        }
+        record.appState = mState;
+        record.flags = flags | (mInManualMode ? CaptureLog.FLAG_MANUAL : 0);
+        log.append(record);
+    }
 
-        if (!mInManualMode) {
-            Log.e(TAG, "asked for a manual preview while not in manual mode");
+    /**
+     * Hands the faces of a burst frame to {@link #mBurstSelector}.
+     */
+    private void onBurstResult(TotalCaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        Rect crop = result.get(CaptureResult.SCALER_CROP_REGION);
+        if (null == timestamp || null == crop) {
+            return;
+        }
+        Face[] faces = result.get(CaptureResult.STATISTICS_FACES);
+        FaceRegionMapper.Face[] mapped
+                = new FaceRegionMapper.Face[null == faces ? 0 : faces.length];
+        for (int i = 0; i < mapped.length; i++) {
+            Rect bounds = faces[i].getBounds();
+            mapped[i] = new FaceRegionMapper.Face(bounds.left, bounds.top, bounds.right,
+                    bounds.bottom, faces[i].getScore());
+        }
+        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        BurstContainer.FrameInfo info = new BurstContainer.FrameInfo(timestamp,
+                null == exposureTime ? 0 : exposureTime, null == sensitivity ? 0 : sensitivity,
+                Float.NaN);
+        mBurstResultInfos.put(timestamp, info);
+        if (null != mRawStore) {
+            mRawStore.addResult(timestamp, result);
+        }
+        ImageReader analysisReader = mAnalysisReader;
+        MeteringRectangle[] afRegions = result.get(CaptureResult.CONTROL_AF_REGIONS);
+        if (null != analysisReader && null != afRegions) {
+            mBurstAfRegions = mapAfRegions(afRegions, crop, analysisReader.getWidth(),
+                    analysisReader.getHeight());
+        }
+        // If the JPEG came first, it was written without this metadata.
+        int index = null == mBurstWriter ? -1 : mBurstWriter.indexOf(timestamp);
+        if (index >= 0) {
+            mBurstWriter.updateInfo(index, new BurstContainer.FrameInfo(timestamp,
+                    info.exposureTime, info.iso, mBurstWriter.getInfo(index).score));
+        }
+        if (null != exposureTime) {
+            computeRowBlur(result, timestamp, exposureTime, crop);
         }
+        mBurstSelector.onResult(timestamp, mapped, crop.left, crop.top, crop.right, crop.bottom);
+    }
 
-        try {
-            // Auto focus should be continuous for camera preview.
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-
-            //manual control:
-            //TODO: set frame duration?
-
-           if(mCurrentExposure == 0 || mCurrentISO == 0){
-               Log.e(TAG, "Something went wrong while trying to set the exposure and ISO settings!");
-               return;
-           }
-
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
-            mPreviewRequestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mCurrentExposure);
-            mPreviewRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, mCurrentISO);
-
-            // Finally, we start displaying the camera preview.
-            mPreviewRequest = mPreviewRequestBuilder.build();
-            mCaptureSession.setRepeatingRequest(mPreviewRequest,
-                    mCaptureCallback, mBackgroundHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
+    /**
+     * Measures the motion blur of each band of rows of a burst frame and hands it to
+     * {@link #mBurstSelector}.
+     */
+    private void computeRowBlur(TotalCaptureResult result, long timestamp, long exposureTime,
+                                Rect crop) {
+        if (null == mRowBlurMaps || null == mActiveArraySize || mFocalLengthPixels <= 0) {
+            return;
+        }
+        // Not reported by LEGACY devices: we then assume all the rows are exposed together.
+        Long skew = result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
+        // The rows of the readout the captured image covers.
+        float visibleHeight = Math.min(crop.height(),
+                (float) crop.width() * mCaptureSize.getHeight() / mCaptureSize.getWidth());
+        float visibleTop = crop.top + (crop.height() - visibleHeight) / 2;
+        RowBlurMap motion = mRowBlurMaps[mNbrPicturesTaken % mRowBlurMaps.length];
+        if (motion.compute(mGyroRecorder.getTrace(), timestamp, exposureTime,
+                null == skew ? 0 : skew, mFocalLengthPixels,
+                visibleTop / mActiveArraySize.height(),
+                (visibleTop + visibleHeight) / mActiveArraySize.height())) {
+            mBurstSelector.onMotion(timestamp, motion);
         }
     }
 
-    private File selectFile() {
-//TODO optimize this method
-        File file = null;
-        String filename = "pic_";
-        String fileExt = ".jpg";
-        int seqNbr = 0;
-        boolean stop = false;
+    /**
+     * Maps AF regions to regions of an output stream that isn't rotated.
+     *
+     * @return The regions weighted by their metering weight, or null if the camera didn't set
+     * any
+     */
+    private static List<SharpnessRegion> mapAfRegions(MeteringRectangle[] afRegions, Rect crop,
+                                                      int outputWidth, int outputHeight) {
+        List<FaceRegionMapper.Face> weighted = new ArrayList<FaceRegionMapper.Face>();
+        for (MeteringRectangle afRegion : afRegions) {
+            // A weight of 0 means the camera picks the region itself.
+            if (afRegion.getMeteringWeight() <= MeteringRectangle.METERING_WEIGHT_DONT_CARE) {
+                continue;
+            }
+            Rect rect = afRegion.getRect();
+            // From the metering weights, 0 to 1000, to the face scores, 1 to 100.
+            weighted.add(new FaceRegionMapper.Face(rect.left, rect.top, rect.right, rect.bottom,
+                    Math.max(1, afRegion.getMeteringWeight() / 10)));
+        }
+        List<SharpnessRegion> regions = FaceRegionMapper.map(
+                weighted.toArray(new FaceRegionMapper.Face[weighted.size()]), crop.left, crop.top,
+                crop.right, crop.bottom, outputWidth, outputHeight, 0);
+        return regions.isEmpty() ? null : regions;
+    }
 
-        while (!stop && seqNbr < 10000) {
-            file = new File(new File(Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_PICTURES), "MyCoolCameraApp"), filename + seqNbr + fileExt);
+    /**
+     * Copies the luma plane of an analysis frame of the burst into {@link #mBurstLumaPlanes}.
+     */
+    private void collectBurstLuma(Image image) {
+        if (null == image) {
+            return;
+        }
+        try {
+            Image.Plane luma = image.getPlanes()[0];
+            ByteBuffer buffer = luma.getBuffer();
+            int width = image.getWidth();
+            int height = image.getHeight();
+            byte[] data = new byte[width * height];
+            // The luma samples are always packed: only the rows may be padded.
+            for (int y = 0; y < height; y++) {
+                buffer.position(y * luma.getRowStride());
+                buffer.get(data, y * width, width);
+            }
+            mBurstLumaPlanes.put(image.getTimestamp(),
+                    new SharpnessCascade.LumaPlane(data, 0, width, height, width));
+        } finally {
+            image.close();
+        }
+    }
 
-            if (!file.exists()) {
-                stop = true;
+    /**
+     * Runs a {@link SharpnessCascade} on the analysis frames of the burst, inside its AF regions.
+     *
+     * @return The timestamp of the sharpest analysis frame, or -1 if there was none
+     */
+    private long selectFromBurstLuma() {
+        mCollectingBurstLuma = false;
+        long[] timestamps;
+        SharpnessCascade.LumaPlane[] frames;
+        synchronized (mBurstLumaPlanes) {
+            // The preview may already be running again: its frames have no burst result.
+            mBurstLumaPlanes.keySet().retainAll(mBurstResultInfos.keySet());
+            timestamps = new long[mBurstLumaPlanes.size()];
+            frames = new SharpnessCascade.LumaPlane[timestamps.length];
+            int i = 0;
+            for (Map.Entry<Long, SharpnessCascade.LumaPlane> entry : mBurstLumaPlanes.entrySet()) {
+                timestamps[i] = entry.getKey();
+                frames[i++] = entry.getValue();
             }
-            seqNbr++;
+            mBurstLumaPlanes.clear();
+        }
+        if (0 == frames.length) {
+            return -1;
         }
+        long start = SystemClock.elapsedRealtime();
+        SharpnessCascade.Decision decision = new SharpnessCascade(CASCADE_FACTOR,
+                CASCADE_MAX_REFINED, CASCADE_REJECT_RATIO).select(frames, mBurstAfRegions);
+        Log.d(TAG, "Sharpest analysis frame: " + decision.selected + " of " + frames.length
+                + ", " + decision.refinedCount + " refined, " + decision.pixelsTouched
+                + " pixels (" + (SystemClock.elapsedRealtime() - start) + " ms)");
+        return timestamps[decision.selected];
+    }
 
-        return file;
+    /**
+     * Finishes the container of the burst, shows it for review and queues the job that exports
+     * the selected frame as a JPEG and restores it if the gyroscope shows that it is blurred too.
+     * Only the index of the container and the job record are written here: the capture never
+     * waits for the processing.
+     */
+    private void onBurstSelected(BurstSelector.Selection selection) {
+        // All the frames are written: they are appended before they are scored.
+        BurstContainerWriter writer = mBurstWriter;
+        long cascadeTimestamp = selectFromBurstLuma();
+        if (null == writer) {
+            return;
+        }
+        long timestamp;
+        String name;
+        if (null != selection) {
+            timestamp = selection.timestamp;
+            name = selection.name;
+            if (cascadeTimestamp >= 0 && cascadeTimestamp != timestamp) {
+                Log.d(TAG, "The analysis frames disagree with the JPEG scores");
+            }
+        } else if (cascadeTimestamp >= 0 && writer.indexOf(cascadeTimestamp) >= 0) {
+            // None could be scored: the analysis frames still tell the sharpest one.
+            timestamp = cascadeTimestamp;
+            name = writer.getFile().getName() + "#" + writer.indexOf(cascadeTimestamp);
+            Log.w(TAG, "No frame of the burst could be scored, exporting " + name
+                    + " from the analysis frames");
+        } else if (writer.getFrameCount() > 0) {
+            // None could be scored: the first frame written is still worth exporting.
+            timestamp = writer.getInfo(0).timestamp;
+            name = writer.getFile().getName() + "#0";
+            Log.w(TAG, "No frame of the burst could be scored, exporting " + name);
+        } else {
+            Log.w(TAG, "No frame of the burst could be saved");
+            mBurstWriter = null;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!writer.getFile().delete()) {
+                Log.w(TAG, "Could not delete " + writer.getFile());
+            }
+            if (null != mRawStore) {
+                mRawStore.endBurst();
+            }
+            return;
+        }
+        BurstContainer.FrameInfo info = mBurstResultInfos.get(timestamp);
+        MotionBlurKernel kernel = getRestorationKernel(timestamp,
+                null == info ? 0 : info.exposureTime, name);
+        queueBurstJob(writer, timestamp, kernel, mBurstHashes.get(timestamp));
+        if (null != mRawStore) {
+            // Written after the burst, on the writer thread of the store.
+            mRawStore.keep(timestamp, new File(mPictureDirectory, getBurstName(writer) + ".dng"));
+            mRawStore.endBurst();
+            Log.d(TAG, "RAW frames: " + mRawStore.getStats());
+        }
     }
 
-    private void updatemFile() {
-        mFile = selectFile();
+    /**
+     * @return The name of the files of a burst, from the name of its container
+     */
+    private static String getBurstName(BurstContainerWriter writer) {
+        String container = writer.getFile().getName();
+        return container.substring(0, container.length() - BurstContainer.EXTENSION.length());
     }
 
-    private List<CaptureRequest> getBurstRequestsList(CaptureRequest.Builder builder) {
-        List<CaptureRequest> list = new ArrayList<CaptureRequest>();
+    /**
+     * Finishes a container, shows it for review and queues the job of its selected frame.
+     *
+     * @param selected The timestamp of the selected frame
+     * @param kernel   The blur kernel to restore it with, or null
+     * @param hash     Its perceptual hash, or null to export it whatever the frames exported
+     *                 before
+     */
+    private void queueBurstJob(BurstContainerWriter writer, long selected,
+                               MotionBlurKernel kernel, Long hash) {
+        if (null == sJobQueue) {
+            return;
+        }
+        String name = getBurstName(writer);
+        File exported = new File(mPictureDirectory, name + ".jpg");
+        File restored = new File(mPictureDirectory, name + "_restored.jpg");
+        String duplicate = null == hash ? null : mSavedFrames.findMatch(hash);
+        boolean export = null == duplicate;
+        if (export) {
+            if (null != hash) {
+                mSavedFrames.add(hash, exported.getName());
+            }
+        } else {
+            Log.d(TAG, "Not exporting " + exported.getName() + ": same as " + duplicate);
+        }
+        try {
+            writer.finish(writer.indexOf(selected));
+            ProcessingJob job = new ProcessingJob(sJobQueue.newJobId(), writer.getFile(),
+                    exported, restored, export, kernel);
+            sJobQueue.submit(job);
+            // The work left on the previous bursts can wait.
+            sScheduler.setCurrentBurst(job.id);
+            Log.d(TAG, "Queued " + job + ": " + sJobQueue.getMetrics());
+            BurstContainerReader reader = BurstContainerReader.open(writer.getFile());
+            if (!showBurstReview(reader)) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        for (int i = 0; i < mBurstSize; i++) {
-            list.add(builder.build());
+    /**
+     * Shows a burst in {@link #mReviewStrip}, which then owns its container.
+     *
+     * @return Whether the container was handed over
+     */
+    private boolean showBurstReview(final BurstContainerReader reader) {
+        Activity activity = getActivity();
+        if (null == activity) {
+            return false;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mReviewStrip) {
+                    mReviewStrip.setBurst(reader);
+                    return;
+                }
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @param exposureTime The exposure time of the frame, or 0 if unknown
+     * @param name         The name of the frame, for the logs
+     * @return The blur kernel to restore the selected frame of a burst with, or null if the
+     * gyroscope shows it is sharp enough or too blurred to be restored
+     */
+    private MotionBlurKernel getRestorationKernel(long timestamp, long exposureTime,
+                                                  String name) {
+        if (exposureTime <= 0 || mFocalLengthPixels <= 0) {
+            return null;
         }
+        float[] angles = mGyroRecorder.getTrace().integrate(timestamp, timestamp + exposureTime,
+                BLUR_KERNEL_STEPS);
+        if (null == angles) {
+            Log.d(TAG, "No gyroscope samples during " + name);
+            return null;
+        }
+        MotionBlurKernel kernel = MotionBlurKernel.fromRotation(angles, mFocalLengthPixels,
+                mSensorOrientation, MAX_RESTORED_KERNEL_SIZE);
+        Integer orientation = mBurstOrientations.get(timestamp);
+        int degrees = mBurstJpegOrientation;
+        if (null != kernel && degrees % 360 != 0 && null != orientation
+                && JpegMetadataWriter.ORIENTATION_NORMAL == orientation) {
+            // The HAL rotated the pixels rather than tagging the JPEG: the blur turned with them.
+            kernel = kernel.rotate(degrees, MAX_RESTORED_KERNEL_SIZE);
+        }
+        if (null == kernel) {
+            Log.d(TAG, name + " is too blurred to be restored");
+            return null;
+        }
+        Log.d(TAG, "Camera shake during " + name + ": " + kernel);
+        return kernel.length < MIN_RESTORED_BLUR_LENGTH ? null : kernel;
+    }
 
-        return list;
+    /**
+     * Creates the container of a new burst, closing the previous one if it was never finished.
+     */
+    private void startBurstContainer() {
+        if (null != mBurstWriter) {
+            try {
+                // Its complete frames can still be read.
+                mBurstWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mBurstWriter = null;
+        }
+        if (null == mBurstDirectory) {
+            return;
+        }
+        if (!mBurstDirectory.isDirectory() && !mBurstDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + mBurstDirectory);
+            return;
+        }
+        try {
+            mBurstWriter = new BurstContainerWriter(selectBurstFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -1301,40 +3239,54 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
     private void captureBurst() {
         Log.d(TAG,"going to take a burst of pictures");
         try {
-            final Activity activity = getActivity();
-            if (null == activity || null == mCameraDevice) {
+            BurstRequestCache.Key key = getCurrentBurstRequestKey();
+            if (null == key || null == mCameraDevice) {
                 return;
             }
-            // This is the CaptureRequest.Builder that we use to take a picture.
-            final CaptureRequest.Builder captureBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(mImageReader.getSurface());
-
-            // Use the same AE and AF modes as the preview.
-            //Adapted by vincent
-            captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            if (!mInManualMode) {
-                captureBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+            float[] focusDistances = mFocusSweepDistances;
+            mFocusSweepDistances = null;
+            // The sweep needs a frame per focus distance: it isn't split.
+            ExposureSplitPlanner.Plan split = null == focusDistances ? planExposureSplit(key)
+                    : null;
+            if (null != split) {
+                captureSplitExposure(key, split);
+                return;
+            }
+            List<CaptureRequest> requests;
+            boolean cacheHit = false;
+            if (null != focusDistances) {
+                // The sweep moves with the last focus distance: its requests aren't cached.
+                requests = buildBurstRequests(key, focusDistances);
+                Log.d(TAG, "Focus sweep: " + Arrays.toString(focusDistances));
             } else {
-//                beginUpdateLastUsedCameraCharacteristics();
-                captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
-                captureBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mCurrentExposure);
-                captureBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, mCurrentISO);
-
+                requests = mBurstRequestCache.get(key);
+                cacheHit = null != requests;
+                if (!cacheHit) {
+                    requests = buildBurstRequests(key, null);
+                    mBurstRequestCache.put(key, requests);
+                }
             }
 
-            // Orientation
-            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, ORIENTATIONS.get(rotation));
-
             CameraCaptureSession.CaptureCallback captureCallback
                     = new CameraCaptureSession.CaptureCallback() {
 
                 @Override
                 public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
                                                TotalCaptureResult result) {
+                    logCaptureResult(result, CaptureLog.FLAG_BURST);
+                    onBurstResult(result);
+                    onFrameCaptured();
+                }
+
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                                            CaptureFailure failure) {
+                    Log.w(TAG, "Frame " + failure.getFrameNumber() + " of the burst failed");
+                    mBurstSelector.onCaptureFailed(failure.wasImageCaptured());
+                    onFrameCaptured();
+                }
+
+                private void onFrameCaptured() {
                     mNbrPicturesTaken++;
                     if(mNbrPicturesTaken >= mBurstSize) {
                         mBurstCompleted = true;
@@ -1343,7 +3295,6 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
                         showToast("Capture completed");
                     }
 
-                    updatemFile();
 //                    showToast("Saved: " + mFile);
 
                     if(mBurstCompleted) {
@@ -1355,11 +3306,358 @@ public class Camera2BasicFragment extends Fragment implements View.OnClickListen
             mCaptureSession.stopRepeating();
 //            mCaptureSession.capture(captureBuilder.build(), captureCallback, null);
             mBurstCompleted = false;
-            mCaptureSession.captureBurst(getBurstRequestsList(captureBuilder), captureCallback, null);
+            mBurstResultInfos.clear();
+            mBurstHashes.clear();
+            mBurstOrientations.clear();
+            mBurstJpegOrientation = key.orientation;
+            mBurstLumaPlanes.clear();
+            mBurstAfRegions = null;
+            mCollectingBurstLuma = null != mAnalysisReader;
+            mBurstSelector.begin(requests.size(), mCaptureSize.getWidth(),
+                    mCaptureSize.getHeight(), key.orientation);
+            mCaptureSession.captureBurst(requests, captureCallback, null);
+            Log.d(TAG, "Focus lock to burst submission: "
+                    + (SystemClock.elapsedRealtimeNanos() - mFocusLockedTimestamp) / 1000
+                    + " us (" + (cacheHit ? "prebuilt requests" : "requests built on demand")
+                    + ")");
+            // The first JPEG comes well after the submission: the file is created meanwhile.
+            startBurstContainer();
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
 
+    /**
+     * @return The frames to take instead of the manual exposure of a burst, or null if the split
+     * isn't enabled or the exposure is short enough for the camera shake
+     */
+    private ExposureSplitPlanner.Plan planExposureSplit(BurstRequestCache.Key key) {
+        if (!mExposureSplitEnabled || !key.manual || null == mExposureSplitPlanner
+                || null == sSplitMerger) {
+            return null;
+        }
+        long end = SystemClock.elapsedRealtimeNanos() - SHAKE_WINDOW_LATENCY;
+        float angle = mGyroRecorder.getTrace().pathLength(end - SHAKE_WINDOW, end);
+        float speed = Float.isNaN(angle) ? HANDHELD_ANGULAR_SPEED : angle * 1e9f / SHAKE_WINDOW;
+        long budget = ExposureSplitPlanner.getBlurBudget(speed, mFocalLengthPixels,
+                MIN_RESTORED_BLUR_LENGTH);
+        ExposureSplitPlanner.Plan plan = mExposureSplitPlanner.plan(key.exposure, key.iso,
+                budget);
+        Log.d(TAG, "Shake of " + speed + " rad/s, blur budget " + budget / 1000 + " us: "
+                + (null == plan ? "no split" : plan));
+        return plan;
+    }
+
+    /**
+     * Captures a split exposure in place of a burst. {@link #sSplitMerger} merges its JPEGs as
+     * they arrive, so that none of them is kept.
+     */
+    private void captureSplitExposure(BurstRequestCache.Key key,
+                                      final ExposureSplitPlanner.Plan plan)
+            throws CameraAccessException {
+        final CaptureRequest.Builder captureBuilder =
+                mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        captureBuilder.addTarget(mImageReader.getSurface());
+        captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+        captureBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, plan.exposure);
+        captureBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, plan.iso);
+        captureBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION,
+                getManualFrameDuration(plan.exposure));
+        captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, key.orientation);
+        List<CaptureRequest> requests = new ArrayList<CaptureRequest>();
+        for (int i = 0; i < plan.frames; i++) {
+            requests.add(captureBuilder.build());
+        }
+
+        CameraCaptureSession.CaptureCallback captureCallback
+                = new CameraCaptureSession.CaptureCallback() {
+
+            private int mCaptured = 0;
+
+            @Override
+            public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                           TotalCaptureResult result) {
+                logCaptureResult(result, CaptureLog.FLAG_BURST);
+                onFrameCaptured();
+            }
+
+            @Override
+            public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                                        CaptureFailure failure) {
+                if (!failure.wasImageCaptured()) {
+                    mSplitFramesPending.decrementAndGet();
+                    sSplitMerger.skipFrame();
+                }
+                onFrameCaptured();
+            }
+
+            private void onFrameCaptured() {
+                mCaptured++;
+                if (mCaptured == plan.frames) {
+                    Log.d(TAG, "All the frames of the split exposure were taken");
+                    unlockFocus();
+                }
+            }
+        };
+
+        File file = selectSplitFile();
+        // The merge stands for the long exposure.
+        BurstContainer.FrameInfo info = new BurstContainer.FrameInfo(
+                SystemClock.elapsedRealtimeNanos(), key.exposure, key.iso, Float.NaN);
+        sSplitMerger.begin(plan, info, file, new SplitExposureMerger.Callback() {
+            @Override
+            public void onMerged(File file, int frames) {
+                if (null == file) {
+                    showToast("Split exposure failed");
+                } else {
+                    showToast("Saved: " + file.getName() + " (" + frames + " frames)");
+                }
+            }
+        });
+        mSplitFramesPending.set(plan.frames);
+        mCaptureSession.stopRepeating();
+        mCaptureSession.captureBurst(requests, captureCallback, null);
+        showToast("Split exposure: " + plan);
+    }
+
+    /**
+     * @return The file of the next merged split exposure, named after the first free number
+     */
+    private File selectSplitFile() {
+        if (!mPictureDirectory.isDirectory() && !mPictureDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + mPictureDirectory);
+        }
+        for (int seqNbr = 0; seqNbr < 10000; seqNbr++) {
+            File file = new File(mPictureDirectory, "night_" + seqNbr + ".jpg");
+            if (!file.exists()) {
+                return file;
+            }
+        }
+        return new File(mPictureDirectory, "night_" + System.currentTimeMillis() + ".jpg");
+    }
+
+    /**
+     * Hands a JPEG of the split exposure to {@link #sSplitMerger}. The bytes are copied, so that
+     * the buffer goes back to the camera before the frame is merged.
+     */
+    private void onSplitImage(Image image) {
+        mSplitFramesPending.decrementAndGet();
+        try {
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            byte[] jpeg = new byte[buffer.remaining()];
+            buffer.get(jpeg);
+            sSplitMerger.addFrame(jpeg);
+        } finally {
+            image.close();
+        }
+    }
+
+    /**
+     * Starts shooting until {@link #stopContinuousCapture()}: the preview keeps running, and the
+     * JPEG stream gets frames at the highest rate its configuration allows. Only the sharpest
+     * frame of each window is written to the container.
+     */
+    private void startContinuousCapture() {
+        final BurstRequestCache.Key key = getCurrentBurstRequestKey();
+        if (null == key || null == mBackgroundHandler) {
+            return;
+        }
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mContinuousRunning || STATE_PREVIEW != mState || null == mCaptureSession
+                        || null == mContinuousCapture || null == mPreviewSurface) {
+                    return;
+                }
+                startBurstContainer();
+                if (null == mBurstWriter) {
+                    return;
+                }
+                mContinuousKey = key;
+                mContinuousBacklog.set(0);
+                mBurstResultInfos.clear();
+                mBurstOrientations.clear();
+                mBurstJpegOrientation = key.orientation;
+                mContinuousStatsTime = SystemClock.elapsedRealtimeNanos();
+                mContinuousCapture.start(mContinuousStatsTime);
+                try {
+                    mCaptureSession.setRepeatingBurst(buildContinuousRequests(key, 1),
+                            mContinuousCallback, mBackgroundHandler);
+                    mContinuousRunning = true;
+                    showToast("Continuous capture");
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the continuous capture, and queues the job of its sharpest frame.
+     */
+    private void stopContinuousCapture() {
+        if (null == mBackgroundHandler) {
+            return;
+        }
+        // After the frames already queued for the analysis.
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mContinuousRunning) {
+                    return;
+                }
+                mContinuousRunning = false;
+                try {
+                    if (null != mCaptureSession) {
+                        mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                                mBackgroundHandler);
+                    }
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+                writeKeptFrame(mContinuousCapture.finish());
+                Log.d(TAG, "Continuous capture: " + mContinuousCapture.takeStats(
+                        SystemClock.elapsedRealtimeNanos()));
+                BurstContainerWriter writer = mBurstWriter;
+                // The frames still in flight don't belong to any burst.
+                mBurstWriter = null;
+                BurstContainer.FrameInfo sharpest = mContinuousCapture.getSharpestKept();
+                if (null == writer) {
+                    return;
+                }
+                if (null == sharpest) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    if (!writer.getFile().delete()) {
+                        Log.w(TAG, "Could not delete " + writer.getFile());
+                    }
+                    return;
+                }
+                String name = writer.getFile().getName() + "#" + writer.indexOf(sharpest.timestamp);
+                queueBurstJob(writer, sharpest.timestamp, getRestorationKernel(sharpest.timestamp,
+                        sharpest.exposureTime, name), null);
+                showToast(writer.getFrameCount() + " frames kept");
+            }
+        });
+    }
+
+    /**
+     * Builds the requests of the continuous capture, to repeat as a burst: the first one targets
+     * the preview and the JPEG stream, the others only the preview.
+     *
+     * @param key           The capture settings
+     * @param captureStride The number of frames per frame sent to the JPEG stream
+     */
+    private List<CaptureRequest> buildContinuousRequests(BurstRequestCache.Key key,
+                                                         int captureStride)
+            throws CameraAccessException {
+        // Meant not to slow the repeating stream down, unlike the still capture template.
+        CaptureRequest.Builder builder
+                = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+        builder.addTarget(mPreviewSurface);
+        builder.set(CaptureRequest.CONTROL_AF_MODE,
+                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        if (!key.manual) {
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+        } else {
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+            builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, key.exposure);
+            builder.set(CaptureRequest.SENSOR_SENSITIVITY, key.iso);
+            builder.set(CaptureRequest.SENSOR_FRAME_DURATION,
+                    getManualFrameDuration(key.exposure));
+        }
+        builder.set(CaptureRequest.JPEG_ORIENTATION, key.orientation);
+
+        List<CaptureRequest> requests = new ArrayList<CaptureRequest>();
+        builder.addTarget(mImageReader.getSurface());
+        builder.setTag(CONTINUOUS_JPEG_TAG);
+        requests.add(builder.build());
+        builder.removeTarget(mImageReader.getSurface());
+        builder.setTag(null);
+        for (int i = 1; i < captureStride; i++) {
+            requests.add(builder.build());
+        }
+        return requests;
+    }
+
+    /**
+     * Hands a JPEG of the continuous capture to the analysis, or drops it. Called on the
+     * background thread.
+     */
+    private void onContinuousImage(final Image image) {
+        if (!mContinuousCapture.onImage(mContinuousBacklog.get())) {
+            mBurstResultInfos.remove(image.getTimestamp());
+            image.close();
+        } else {
+            mContinuousBacklog.incrementAndGet();
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        analyzeContinuousFrame(image);
+                    } finally {
+                        image.close();
+                        mContinuousBacklog.decrementAndGet();
+                    }
+                }
+            });
+        }
+
+        if (mContinuousCapture.takeCaptureStrideChange()) {
+            int captureStride = mContinuousCapture.getCaptureStride();
+            Log.d(TAG, "Continuous capture of 1 frame out of " + captureStride);
+            try {
+                mCaptureSession.setRepeatingBurst(buildContinuousRequests(mContinuousKey,
+                        captureStride), mContinuousCallback, mBackgroundHandler);
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+            }
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (now - mContinuousStatsTime >= CONTINUOUS_STATS_INTERVAL) {
+            Log.d(TAG, "Continuous capture: " + mContinuousCapture.takeStats(now));
+            mContinuousStatsTime = now;
+        }
+    }
+
+    /**
+     * Scores a JPEG of the continuous capture, and writes the frame kept from the previous
+     * window if it starts a new one.
+     */
+    private void analyzeContinuousFrame(Image image) {
+        if (!mContinuousRunning) {
+            return;
+        }
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+        long timestamp = image.getTimestamp();
+        float score = Float.NaN;
+        try {
+            score = (float) mSharpnessEstimator.estimate(buffer).score;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Could not score frame " + timestamp, e);
+        }
+        BurstContainer.FrameInfo result = mBurstResultInfos.remove(timestamp);
+        writeKeptFrame(mContinuousCapture.onAnalyzed(new BurstContainer.FrameInfo(timestamp,
+                null == result ? 0 : result.exposureTime, null == result ? 0 : result.iso,
+                score), buffer));
+    }
+
+    private void writeKeptFrame(ContinuousCaptureController.KeptFrame kept) {
+        if (null == kept || null == mBurstWriter) {
+            return;
+        }
+        mBurstOrientations.put(kept.info.timestamp, JpegThumbnail.readOrientation(kept.jpeg));
+        try {
+            mBurstWriter.append(kept.info, kept.jpeg);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Records one fixed-width binary record per capture result, for offline analysis with
+ * {@link CaptureLogReader}.
+ * <p/>
+ * The records are appended to a buffer allocated once, which is written to the current log file
+ * when it is full, in one sequential write. A log file holds at most {@code maxFileSize} bytes,
+ * after which a new one is started, and only the {@code maxFiles} most recent files are kept.
+ * Appending a record doesn't allocate.
+ * <p/>
+ * Every file starts with a 16 byte header, followed by the records:
+ * <pre>
+ *   long  frame number
+ *   long  sensor timestamp in ns
+ *   long  arrival time of the result, in SystemClock.elapsedRealtimeNanos()
+ *   long  exposure time in ns
+ *   long  frame duration in ns
+ *   long  rolling shutter skew in ns
+ *   int   ISO
+ *   float focus distance in diopters
+ *   byte  AF state
+ *   byte  AE state
+ *   byte  AWB state
+ *   byte  lens state
+ *   byte  state of the app
+ *   byte  flags
+ *   short 0
+ * </pre>
+ * Unknown values are -1, or NaN for the focus distance. All values are big endian.
+ */
+public class CaptureLog {
+
+    static final int HEADER_MAGIC = 0x434C4F47; // CLOG
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 64;
+
+    public static final String PREFIX = "capture_";
+    public static final String EXTENSION = ".log";
+
+    /**
+     * The result is a partial one.
+     */
+    public static final int FLAG_PARTIAL = 1;
+
+    /**
+     * The result is one of a burst.
+     */
+    public static final int FLAG_BURST = 1 << 1;
+
+    /**
+     * The exposure was set manually.
+     */
+    public static final int FLAG_MANUAL = 1 << 2;
+
+    /**
+     * The content of a record. Its fields are set by the caller, and the instance reused.
+     */
+    public static final class Record {
+
+        public long frameNumber;
+        public long sensorTimestamp;
+        public long arrivalTime;
+        public long exposureTime;
+        public long frameDuration;
+        public long rollingShutterSkew;
+        public int iso;
+        public float focusDistance;
+        public int afState;
+        public int aeState;
+        public int awbState;
+        public int lensState;
+        public int appState;
+        public int flags;
+
+        /**
+         * Sets every value to unknown.
+         */
+        public void clear() {
+            frameNumber = -1;
+            sensorTimestamp = -1;
+            arrivalTime = -1;
+            exposureTime = -1;
+            frameDuration = -1;
+            rollingShutterSkew = -1;
+            iso = -1;
+            focusDistance = Float.NaN;
+            afState = -1;
+            aeState = -1;
+            awbState = -1;
+            lensState = -1;
+            appState = -1;
+            flags = 0;
+        }
+
+    }
+
+    private final File mDirectory;
+    private final long mMaxFileSize;
+    private final int mMaxFiles;
+    private final ByteBuffer mBuffer;
+
+    private int mSequence;
+    private FileOutputStream mStream;
+    private long mFileSize;
+    private boolean mClosed = false;
+
+    /**
+     * @param directory     The directory of the log files, created if needed
+     * @param bufferRecords The number of records buffered between two writes
+     * @param maxFileSize   The size in bytes after which a new file is started
+     * @param maxFiles      The number of files kept
+     */
+    public CaptureLog(File directory, int bufferRecords, long maxFileSize, int maxFiles) {
+        if (bufferRecords < 1 || maxFileSize < HEADER_SIZE + RECORD_SIZE || maxFiles < 1) {
+            throw new IllegalArgumentException("Bad capture log parameters");
+        }
+        mDirectory = directory;
+        mMaxFileSize = maxFileSize;
+        mMaxFiles = maxFiles;
+        mBuffer = ByteBuffer.allocateDirect(bufferRecords * RECORD_SIZE);
+        List<File> files = listFiles(directory);
+        // Every log starts a new file.
+        mSequence = files.isEmpty() ? 0 : getSequence(files.get(files.size() - 1)) + 1;
+    }
+
+    /**
+     * Appends a record, and writes the buffer if it is full.
+     */
+    public synchronized void append(Record record) {
+        if (mClosed) {
+            return;
+        }
+        mBuffer.putLong(record.frameNumber);
+        mBuffer.putLong(record.sensorTimestamp);
+        mBuffer.putLong(record.arrivalTime);
+        mBuffer.putLong(record.exposureTime);
+        mBuffer.putLong(record.frameDuration);
+        mBuffer.putLong(record.rollingShutterSkew);
+        mBuffer.putInt(record.iso);
+        mBuffer.putFloat(record.focusDistance);
+        mBuffer.put((byte) record.afState);
+        mBuffer.put((byte) record.aeState);
+        mBuffer.put((byte) record.awbState);
+        mBuffer.put((byte) record.lensState);
+        mBuffer.put((byte) record.appState);
+        mBuffer.put((byte) record.flags);
+        mBuffer.putShort((short) 0);
+        if (mBuffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered records to the current file.
+     */
+    public synchronized void flush() {
+        if (mClosed || mBuffer.position() == 0) {
+            return;
+        }
+        mBuffer.flip();
+        try {
+            if (null != mStream && mFileSize + mBuffer.remaining() > mMaxFileSize) {
+                mStream.close();
+                mStream = null;
+            }
+            if (null == mStream) {
+                openNextFile();
+            }
+            FileChannel channel = mStream.getChannel();
+            while (mBuffer.hasRemaining()) {
+                mFileSize += channel.write(mBuffer);
+            }
+        } catch (IOException e) {
+            // The buffered records are lost, the next ones go to a new file.
+            e.printStackTrace();
+            closeQuietly();
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Writes the buffered records and closes the current file.
+     */
+    public synchronized void close() {
+        flush();
+        closeQuietly();
+        mClosed = true;
+    }
+
+    /**
+     * @return The log files of a directory, oldest first
+     */
+    public static List<File> listFiles(File directory) {
+        List<File> logs = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (null == files) {
+            return logs;
+        }
+        for (File file : files) {
+            if (getSequence(file) >= 0) {
+                logs.add(file);
+            }
+        }
+        File[] sorted = logs.toArray(new File[logs.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                int l = getSequence(lhs);
+                int r = getSequence(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return Arrays.asList(sorted);
+    }
+
+    private void openNextFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        List<File> files = listFiles(mDirectory);
+        for (int i = 0; i <= files.size() - mMaxFiles; i++) {
+            files.get(i).delete();
+        }
+        mStream = new FileOutputStream(new File(mDirectory, PREFIX + mSequence++ + EXTENSION));
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(HEADER_MAGIC);
+        header.putInt(VERSION);
+        header.putInt(RECORD_SIZE);
+        header.putInt(0);
+        header.flip();
+        FileChannel channel = mStream.getChannel();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        mFileSize = HEADER_SIZE;
+    }
+
+    private void closeQuietly() {
+        if (null != mStream) {
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mStream = null;
+        }
+    }
+
+    /**
+     * @return The sequence number of a log file, or -1 if it isn't one
+     */
+    private static int getSequence(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(EXTENSION)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(),
+                    name.length() - EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
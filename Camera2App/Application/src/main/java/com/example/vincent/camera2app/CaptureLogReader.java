@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Loads {@link CaptureLog} files into one array per field, for analysis on a computer.
+ * <p/>
+ * This class has no Android dependency.
+ */
+public class CaptureLogReader {
+
+    /**
+     * Values of {@code CaptureResult.CONTROL_AF_STATE}.
+     */
+    public static final int AF_STATE_ACTIVE_SCAN = 3;
+    public static final int AF_STATE_FOCUSED_LOCKED = 4;
+    public static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+
+    public final int size;
+
+    public final long[] frameNumber;
+    public final long[] sensorTimestamp;
+    public final long[] arrivalTime;
+    public final long[] exposureTime;
+    public final long[] frameDuration;
+    public final long[] rollingShutterSkew;
+    public final int[] iso;
+    public final float[] focusDistance;
+    public final byte[] afState;
+    public final byte[] aeState;
+    public final byte[] awbState;
+    public final byte[] lensState;
+    public final byte[] appState;
+    public final byte[] flags;
+
+    private CaptureLogReader(int size) {
+        this.size = size;
+        frameNumber = new long[size];
+        sensorTimestamp = new long[size];
+        arrivalTime = new long[size];
+        exposureTime = new long[size];
+        frameDuration = new long[size];
+        rollingShutterSkew = new long[size];
+        iso = new int[size];
+        focusDistance = new float[size];
+        afState = new byte[size];
+        aeState = new byte[size];
+        awbState = new byte[size];
+        lensState = new byte[size];
+        appState = new byte[size];
+        flags = new byte[size];
+    }
+
+    /**
+     * Loads log files, in order. A record cut by the end of a file is ignored.
+     *
+     * @throws IOException If a file can't be read or is not a capture log
+     */
+    public static CaptureLogReader read(List<File> files) throws IOException {
+        ByteBuffer[] contents = new ByteBuffer[files.size()];
+        int size = 0;
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = load(files.get(i));
+            size += contents[i].remaining() / CaptureLog.RECORD_SIZE;
+        }
+        CaptureLogReader reader = new CaptureLogReader(size);
+        int index = 0;
+        for (ByteBuffer content : contents) {
+            while (content.remaining() >= CaptureLog.RECORD_SIZE) {
+                reader.frameNumber[index] = content.getLong();
+                reader.sensorTimestamp[index] = content.getLong();
+                reader.arrivalTime[index] = content.getLong();
+                reader.exposureTime[index] = content.getLong();
+                reader.frameDuration[index] = content.getLong();
+                reader.rollingShutterSkew[index] = content.getLong();
+                reader.iso[index] = content.getInt();
+                reader.focusDistance[index] = content.getFloat();
+                reader.afState[index] = content.get();
+                reader.aeState[index] = content.get();
+                reader.awbState[index] = content.get();
+                reader.lensState[index] = content.get();
+                reader.appState[index] = content.get();
+                reader.flags[index] = content.get();
+                content.getShort();
+                index++;
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Loads the log files of a directory, oldest first.
+     */
+    public static CaptureLogReader read(File directory) throws IOException {
+        return read(CaptureLog.listFiles(directory));
+    }
+
+    /**
+     * Measures how long the autofocus took to lock: from the first complete result of an active
+     * scan to the first one that is locked.
+     *
+     * @return The lock times in ns, by arrival time of the results
+     */
+    public long[] getFocusLockTimes() {
+        long[] times = new long[size];
+        int count = 0;
+        long scanStart = -1;
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & CaptureLog.FLAG_PARTIAL) != 0) {
+                continue;
+            }
+            if (afState[i] == AF_STATE_ACTIVE_SCAN) {
+                if (scanStart < 0) {
+                    scanStart = arrivalTime[i];
+                }
+            } else if (scanStart >= 0 && (afState[i] == AF_STATE_FOCUSED_LOCKED
+                    || afState[i] == AF_STATE_NOT_FOCUSED_LOCKED)) {
+                times[count++] = arrivalTime[i] - scanStart;
+                scanStart = -1;
+            } else {
+                scanStart = -1;
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(times, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @return The records of a file, after its header
+     */
+    private static ByteBuffer load(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // Read it all.
+            }
+            content.flip();
+            if (content.remaining() < CaptureLog.HEADER_SIZE
+                    || content.getInt() != CaptureLog.HEADER_MAGIC) {
+                throw new IOException("Not a capture log: " + file);
+            }
+            int version = content.getInt();
+            int recordSize = content.getInt();
+            content.getInt();
+            if (version != CaptureLog.VERSION || recordSize != CaptureLog.RECORD_SIZE) {
+                throw new IOException("Unsupported capture log version " + version + ": " + file);
+            }
+            return content;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides what happens to the frames of a continuous capture: which are analyzed, which are kept
+ * and which are dropped, and how fast the camera should deliver them.
+ * <p/>
+ * The time is cut in windows, and only the sharpest analyzed frame of each window is kept. A frame
+ * is dropped without being analyzed when the pipeline can't take it, or when the analysis is
+ * thinned out. When the frames keep piling up behind the analysis and the storage, the analysis
+ * rate goes down first, by analyzing one frame out of {@link #getAnalysisStride()}; then the
+ * capture rate, by sending one frame out of {@link #getCaptureStride()} to the JPEG stream. When
+ * the pipeline is idle again, the rates go back up in the opposite order.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class ContinuousCaptureController {
+
+    public static final int MAX_ANALYSIS_STRIDE = 4;
+    public static final int MAX_CAPTURE_STRIDE = 4;
+
+    /**
+     * Number of frames in a row that have to find the pipeline busy to lower a rate.
+     */
+    public static final int DEGRADE_FRAMES = 4;
+
+    /**
+     * Number of frames in a row that have to find the pipeline idle to raise a rate.
+     */
+    public static final int RECOVER_FRAMES = 30;
+
+    /**
+     * The sharpest frame of a window.
+     */
+    public static final class KeptFrame {
+
+        public final BurstContainer.FrameInfo info;
+
+        /**
+         * The JPEG, only valid until the next frame is kept.
+         */
+        public final ByteBuffer jpeg;
+
+        private KeptFrame(BurstContainer.FrameInfo info, ByteBuffer jpeg) {
+            this.info = info;
+            this.jpeg = jpeg;
+        }
+
+    }
+
+    /**
+     * The rates of the frames since the previous {@link #takeStats(long)}.
+     */
+    public static final class Stats {
+
+        /**
+         * Frames per second.
+         */
+        public final double captured;
+        public final double analyzed;
+        public final double kept;
+        public final double dropped;
+
+        public final int analysisStride;
+        public final int captureStride;
+
+        private Stats(double captured, double analyzed, double kept, double dropped,
+                      int analysisStride, int captureStride) {
+            this.captured = captured;
+            this.analyzed = analyzed;
+            this.kept = kept;
+            this.dropped = dropped;
+            this.analysisStride = analysisStride;
+            this.captureStride = captureStride;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f captured, %.1f analyzed, %.1f kept, %.1f dropped per"
+                    + " second (analysis 1/%d, capture 1/%d)", captured, analyzed, kept,
+                    dropped, analysisStride, captureStride);
+        }
+
+    }
+
+    private final long mWindowDuration;
+    private final int mMaxBacklog;
+
+    private int mAnalysisStride;
+    private int mCaptureStride;
+    private boolean mCaptureStrideChanged;
+    private int mBusyFrames;
+    private int mIdleFrames;
+    private long mFrameCount;
+
+    private long mCaptured;
+    private long mAnalyzed;
+    private long mKept;
+    private long mDropped;
+    private long mStatsTime;
+
+    /**
+     * The window of the best frame, or -1 if there is none yet.
+     */
+    private long mWindow;
+    private BurstContainer.FrameInfo mBest;
+    private ByteBuffer mBestJpeg;
+    /**
+     * The buffer of the last kept frame, reused for the next best one.
+     */
+    private ByteBuffer mSpareJpeg;
+    private BurstContainer.FrameInfo mSharpestKept;
+
+    /**
+     * @param windowDuration The duration of the windows a frame is kept from, in nanoseconds
+     * @param maxBacklog     The number of frames waiting for the analysis from which the next
+     *                       ones are dropped, such as the number of images the capture stream
+     *                       can hold, minus one
+     */
+    public ContinuousCaptureController(long windowDuration, int maxBacklog) {
+        if (windowDuration <= 0 || maxBacklog < 1) {
+            throw new IllegalArgumentException("Window " + windowDuration + " ns, backlog "
+                    + maxBacklog);
+        }
+        mWindowDuration = windowDuration;
+        mMaxBacklog = maxBacklog;
+        start(0);
+    }
+
+    /**
+     * Starts a new capture, at the full rates.
+     *
+     * @param now The current time, in nanoseconds
+     */
+    public synchronized void start(long now) {
+        mAnalysisStride = 1;
+        mCaptureStride = 1;
+        mCaptureStrideChanged = false;
+        mBusyFrames = 0;
+        mIdleFrames = 0;
+        mFrameCount = 0;
+        mCaptured = 0;
+        mAnalyzed = 0;
+        mKept = 0;
+        mDropped = 0;
+        mStatsTime = now;
+        mWindow = -1;
+        mBest = null;
+        mSharpestKept = null;
+    }
+
+    /**
+     * Called with the capture result of every frame sent to the JPEG stream.
+     */
+    public synchronized void onCaptured() {
+        mCaptured++;
+    }
+
+    /**
+     * Called when the JPEG of a frame comes, to decide whether to analyze it. Adapts the rates to
+     * the backlog.
+     *
+     * @param backlog The number of frames waiting for the analysis or the storage
+     * @return Whether to analyze the frame, or to drop it right away
+     */
+    public synchronized boolean onImage(int backlog) {
+        if (backlog > 0) {
+            mIdleFrames = 0;
+            if (++mBusyFrames >= DEGRADE_FRAMES) {
+                mBusyFrames = 0;
+                degrade();
+            }
+        } else {
+            mBusyFrames = 0;
+            if (++mIdleFrames >= RECOVER_FRAMES) {
+                mIdleFrames = 0;
+                recover();
+            }
+        }
+        if (backlog >= mMaxBacklog || mFrameCount++ % mAnalysisStride != 0) {
+            mDropped++;
+            return false;
+        }
+        return true;
+    }
+
+    private void degrade() {
+        if (mAnalysisStride < MAX_ANALYSIS_STRIDE) {
+            mAnalysisStride++;
+        } else if (mCaptureStride < MAX_CAPTURE_STRIDE) {
+            mCaptureStride++;
+            mCaptureStrideChanged = true;
+        }
+    }
+
+    private void recover() {
+        if (mCaptureStride > 1) {
+            mCaptureStride--;
+            mCaptureStrideChanged = true;
+        } else if (mAnalysisStride > 1) {
+            mAnalysisStride--;
+        }
+    }
+
+    /**
+     * Called with every analyzed frame, in the order of their timestamps. The JPEG is copied if
+     * the frame is the sharpest of its window so far.
+     *
+     * @param info The metadata of the frame, with its score, or {@link Float#NaN} if it could not
+     *             be scored
+     * @return The frame kept from the previous window if this frame starts a new one, or null
+     */
+    public synchronized KeptFrame onAnalyzed(BurstContainer.FrameInfo info, ByteBuffer jpeg) {
+        mAnalyzed++;
+        long window = info.timestamp / mWindowDuration;
+        KeptFrame kept = null;
+        if (window != mWindow) {
+            kept = keep();
+            mWindow = window;
+        }
+        if (!Float.isNaN(info.score) && (null == mBest || info.score > mBest.score)) {
+            mBest = info;
+            mBestJpeg = copy(jpeg, mBestJpeg);
+        }
+        return kept;
+    }
+
+    /**
+     * Ends the capture.
+     *
+     * @return The frame kept from the last window, or null
+     */
+    public synchronized KeptFrame finish() {
+        KeptFrame kept = keep();
+        mWindow = -1;
+        return kept;
+    }
+
+    /**
+     * @return The best frame of the current window, and forgets it
+     */
+    private KeptFrame keep() {
+        if (null == mBest) {
+            return null;
+        }
+        KeptFrame kept = new KeptFrame(mBest, mBestJpeg);
+        if (null == mSharpestKept || mBest.score > mSharpestKept.score) {
+            mSharpestKept = mBest;
+        }
+        mKept++;
+        mBest = null;
+        // The next best frame goes to the other buffer, while this one is written.
+        mBestJpeg = mSpareJpeg;
+        mSpareJpeg = kept.jpeg;
+        return kept;
+    }
+
+    private static ByteBuffer copy(ByteBuffer source, ByteBuffer target) {
+        ByteBuffer data = source.duplicate();
+        if (null == target || target.capacity() < data.remaining()) {
+            target = ByteBuffer.allocate(data.remaining());
+        }
+        target.clear();
+        target.put(data);
+        target.flip();
+        return target;
+    }
+
+    /**
+     * @return The sharpest of the frames kept so far, or null
+     */
+    public synchronized BurstContainer.FrameInfo getSharpestKept() {
+        return mSharpestKept;
+    }
+
+    public synchronized int getAnalysisStride() {
+        return mAnalysisStride;
+    }
+
+    public synchronized int getCaptureStride() {
+        return mCaptureStride;
+    }
+
+    /**
+     * @return Whether the capture stride changed since the last call, and the requests have to
+     * be sent again
+     */
+    public synchronized boolean takeCaptureStrideChange() {
+        boolean changed = mCaptureStrideChanged;
+        mCaptureStrideChanged = false;
+        return changed;
+    }
+
+    /**
+     * @param now The current time, in nanoseconds
+     * @return The rates since the previous call, or since the start
+     */
+    public synchronized Stats takeStats(long now) {
+        double seconds = Math.max(1, now - mStatsTime) / 1e9;
+        Stats stats = new Stats(mCaptured / seconds, mAnalyzed / seconds, mKept / seconds,
+                mDropped / seconds, mAnalysisStride, mCaptureStride);
+        mCaptured = 0;
+        mAnalyzed = 0;
+        mKept = 0;
+        mDropped = 0;
+        mStatsTime = now;
+        return stats;
+    }
+
+}
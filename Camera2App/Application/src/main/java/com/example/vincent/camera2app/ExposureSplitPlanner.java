@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+/**
+ * Splits a long manual exposure into a burst of short ones, each short enough for the camera
+ * shake to stay under a blur budget, to be merged by {@link AlignedAccumulator}.
+ * <p/>
+ * The frames share the exposure time equally, and their sensitivity goes up by as much as their
+ * exposure time goes down, so that each frame alone is as bright as the long exposure: their
+ * average is as bright too, with the noise averaged out. When the sensitivity of the sensor runs
+ * out, the rest of the brightness is left to a digital gain of the merge, rather than making the
+ * frames longer than the budget. Past the largest number of frames, each frame takes the whole
+ * budget and the sensitivity makes up for the exposure time left out.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class ExposureSplitPlanner {
+
+    /**
+     * The settings of the frames of a split exposure.
+     */
+    public static final class Plan {
+
+        public final int frames;
+
+        /**
+         * The exposure time of each frame in ns.
+         */
+        public final long exposure;
+        public final int iso;
+
+        /**
+         * The gain the merge applies to the average of the frames, in linear light, to reach the
+         * brightness of the long exposure. 1 if the sensitivity was enough.
+         */
+        public final double gain;
+
+        public Plan(int frames, long exposure, int iso, double gain) {
+            this.frames = frames;
+            this.exposure = exposure;
+            this.iso = iso;
+            this.gain = gain;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d x %.1f ms at ISO %d, gain %.2f", frames, exposure / 1e6, iso,
+                    gain);
+        }
+
+    }
+
+    private final long mMinExposure;
+    private final long mMaxExposure;
+    private final int mMinIso;
+    private final int mMaxIso;
+    private final int mMaxFrames;
+
+    /**
+     * @param minExposure The shortest exposure time of the sensor in ns
+     * @param maxExposure The longest exposure time of the sensor in ns
+     * @param minIso      The lowest sensitivity of the sensor
+     * @param maxIso      The highest sensitivity of the sensor
+     * @param maxFrames   The most frames a split exposure takes
+     */
+    public ExposureSplitPlanner(long minExposure, long maxExposure, int minIso, int maxIso,
+                                int maxFrames) {
+        if (maxFrames < 2) {
+            throw new IllegalArgumentException("Max frames " + maxFrames);
+        }
+        mMinExposure = minExposure;
+        mMaxExposure = maxExposure;
+        mMinIso = minIso;
+        mMaxIso = maxIso;
+        mMaxFrames = maxFrames;
+    }
+
+    /**
+     * @param angularSpeed      The speed of the rotation of the device in radians per second
+     * @param focalLengthPixels The focal length of the lens in pixels of the captured images
+     * @param maxBlurLength     The longest camera shake that looks sharp, in pixels
+     * @return The longest exposure time that keeps the camera shake under the blur length, in
+     * ns, or {@link Long#MAX_VALUE} if the device doesn't move
+     */
+    public static long getBlurBudget(float angularSpeed, float focalLengthPixels,
+                                     float maxBlurLength) {
+        // The image moves by the angle times the focal length.
+        double pixelsPerSecond = (double) angularSpeed * focalLengthPixels;
+        if (!(pixelsPerSecond > 0)) {
+            return Long.MAX_VALUE;
+        }
+        return (long) Math.min(Long.MAX_VALUE, maxBlurLength / pixelsPerSecond * 1e9);
+    }
+
+    /**
+     * @param exposure   The exposure time asked for, in ns
+     * @param iso        The sensitivity asked for
+     * @param blurBudget The longest exposure time of a frame, from
+     *                   {@link #getBlurBudget(float, float, float)}
+     * @return The frames to take instead of the exposure, or null if it is within the budget
+     */
+    public Plan plan(long exposure, int iso, long blurBudget) {
+        long budget = Math.max(mMinExposure, Math.min(mMaxExposure, blurBudget));
+        if (exposure <= budget || iso <= 0) {
+            return null;
+        }
+        // The fewest frames within the budget: the shortest ones need the highest sensitivity.
+        long frames = (exposure + budget - 1) / budget;
+        long frameExposure;
+        if (frames > mMaxFrames) {
+            frames = mMaxFrames;
+            frameExposure = budget;
+        } else {
+            frameExposure = Math.max(mMinExposure, exposure / frames);
+        }
+        double wantedIso = (double) iso * exposure / frameExposure;
+        int frameIso = (int) Math.max(mMinIso, Math.min(mMaxIso, Math.round(wantedIso)));
+        return new Plan((int) frames, frameExposure, frameIso, wantedIso / frameIso);
+    }
+
+}
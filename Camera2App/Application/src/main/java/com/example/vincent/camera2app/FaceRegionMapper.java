@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the faces reported in {@code CaptureResult.STATISTICS_FACES} to {@link SharpnessRegion}s of
+ * the captured image.
+ * <p/>
+ * Face rectangles and {@code SCALER_CROP_REGION} are both in the coordinates of the sensor active
+ * array. An output stream shows the largest centered part of the crop region that has its aspect
+ * ratio, scaled to its size. This class has no Android dependency so that it can be tested against
+ * recorded metadata.
+ */
+public final class FaceRegionMapper {
+
+    /**
+     * Highest face score reported by the camera.
+     */
+    private static final float MAX_FACE_SCORE = 100;
+
+    /**
+     * A detected face, in the coordinates of the sensor active array.
+     */
+    public static final class Face {
+
+        public final int left;
+        public final int top;
+        public final int right;
+        public final int bottom;
+
+        /**
+         * The confidence of the detection, from 1 to 100.
+         */
+        public final int score;
+
+        public Face(int left, int top, int right, int bottom, int score) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + left + ", " + top + " - " + right + ", " + bottom + "] score " + score;
+        }
+
+    }
+
+    private FaceRegionMapper() {
+    }
+
+    /**
+     * Maps faces to regions of an output image.
+     *
+     * @param faces        The detected faces
+     * @param cropLeft     The left edge of the crop region
+     * @param cropTop      The top edge of the crop region
+     * @param cropRight    The right edge of the crop region
+     * @param cropBottom   The bottom edge of the crop region
+     * @param outputWidth  The width of the output stream
+     * @param outputHeight The height of the output stream
+     * @param rotation     The clockwise rotation applied to the pixels of the image, in degrees. 0
+     *                     when the orientation is only written in the EXIF data.
+     * @return One region per face that is visible in the image, weighted by its score
+     */
+    public static List<SharpnessRegion> map(Face[] faces, int cropLeft, int cropTop,
+                                            int cropRight, int cropBottom, int outputWidth,
+                                            int outputHeight, int rotation) {
+        List<SharpnessRegion> regions = new ArrayList<SharpnessRegion>();
+        if (null == faces || outputWidth <= 0 || outputHeight <= 0) {
+            return regions;
+        }
+
+        // The part of the crop region that the output stream actually shows.
+        float left = cropLeft;
+        float top = cropTop;
+        float width = cropRight - cropLeft;
+        float height = cropBottom - cropTop;
+        if (width <= 0 || height <= 0) {
+            return regions;
+        }
+        if (width * outputHeight > height * outputWidth) {
+            float visibleWidth = height * outputWidth / outputHeight;
+            left += (width - visibleWidth) / 2;
+            width = visibleWidth;
+        } else {
+            float visibleHeight = width * outputHeight / outputWidth;
+            top += (height - visibleHeight) / 2;
+            height = visibleHeight;
+        }
+
+        for (Face face : faces) {
+            float l = (face.left - left) / width;
+            float t = (face.top - top) / height;
+            float r = (face.right - left) / width;
+            float b = (face.bottom - top) / height;
+            if (r <= 0 || b <= 0 || l >= 1 || t >= 1 || face.score <= 0) {
+                continue;
+            }
+            float weight = Math.min(face.score, MAX_FACE_SCORE) / MAX_FACE_SCORE;
+            switch ((rotation % 360 + 360) % 360) {
+                case 90:
+                    regions.add(new SharpnessRegion(1 - b, l, 1 - t, r, weight));
+                    break;
+                case 180:
+                    regions.add(new SharpnessRegion(1 - r, 1 - b, 1 - l, 1 - t, weight));
+                    break;
+                case 270:
+                    regions.add(new SharpnessRegion(t, 1 - r, b, 1 - l, weight));
+                    break;
+                default:
+                    regions.add(new SharpnessRegion(l, t, r, b, weight));
+                    break;
+            }
+        }
+        return regions;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+/**
+ * In-place radix-2 fast Fourier transforms on separate real and imaginary arrays.
+ * <p/>
+ * The transforms are sequential: callers parallelize over independent blocks, see
+ * {@link WienerDeconvolver}. This class has no Android dependency.
+ */
+public final class Fft {
+
+    private Fft() {
+    }
+
+    /**
+     * @return Whether {@code n} is a power of two that can be transformed
+     */
+    public static boolean isPowerOfTwo(int n) {
+        return n > 0 && (n & (n - 1)) == 0;
+    }
+
+    /**
+     * @return The smallest power of two greater than or equal to {@code n}
+     */
+    public static int nextPowerOfTwo(int n) {
+        int result = 1;
+        while (result < n) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Transforms {@code n} complex values stored {@code stride} apart, starting at {@code offset}.
+     * The inverse transform is scaled by 1 / n, so that it undoes the forward one.
+     */
+    public static void transform(double[] re, double[] im, int offset, int stride, int n,
+                                 boolean inverse) {
+        if (!isPowerOfTwo(n)) {
+            throw new IllegalArgumentException("Size must be a power of two: " + n);
+        }
+
+        // Bit reversal permutation.
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j |= bit;
+            if (i < j) {
+                int a = offset + i * stride;
+                int b = offset + j * stride;
+                double t = re[a];
+                re[a] = re[b];
+                re[b] = t;
+                t = im[a];
+                im[a] = im[b];
+                im[b] = t;
+            }
+        }
+
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = (inverse ? 2 : -2) * Math.PI / length;
+            double stepRe = Math.cos(angle);
+            double stepIm = Math.sin(angle);
+            int half = length >> 1;
+            for (int start = 0; start < n; start += length) {
+                double wRe = 1;
+                double wIm = 0;
+                for (int k = 0; k < half; k++) {
+                    int a = offset + (start + k) * stride;
+                    int b = a + half * stride;
+                    double tRe = re[b] * wRe - im[b] * wIm;
+                    double tIm = re[b] * wIm + im[b] * wRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                    double nextRe = wRe * stepRe - wIm * stepIm;
+                    wIm = wRe * stepIm + wIm * stepRe;
+                    wRe = nextRe;
+                }
+            }
+        }
+
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[offset + i * stride] /= n;
+                im[offset + i * stride] /= n;
+            }
+        }
+    }
+
+    /**
+     * Transforms a square block of {@code size} x {@code size} complex values stored row by row.
+     */
+    public static void transform2d(double[] re, double[] im, int size, boolean inverse) {
+        for (int row = 0; row < size; row++) {
+            transform(re, im, row * size, 1, size, inverse);
+        }
+        for (int column = 0; column < size; column++) {
+            transform(re, im, column, size, size, inverse);
+        }
+    }
+
+}
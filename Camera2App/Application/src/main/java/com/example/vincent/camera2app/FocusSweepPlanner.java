@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+/**
+ * Plans the focus distances of a focus sweep burst: instead of waiting for the autofocus to lock,
+ * the burst steps the lens around the last known focus distance and the sharpest frame is kept.
+ * <p/>
+ * Distances are in diopters, as {@code LENS_FOCUS_DISTANCE}: 0 is infinity. A lens focused at
+ * the hyperfocal distance keeps everything from half of it to infinity acceptably sharp, and the
+ * depth of field has about the same width in diopters at any focus distance: twice the
+ * hyperfocal distance in diopters. The sweep never goes farther than the hyperfocal distance,
+ * nor closer than the minimum focus distance.
+ * <p/>
+ * This class has no Android dependency.
+ */
+public final class FocusSweepPlanner {
+
+    private FocusSweepPlanner() {
+    }
+
+    /**
+     * @param focalLength       The focal length of the lens in mm
+     * @param aperture          The f-number of the lens
+     * @param circleOfConfusion The largest blur circle that looks sharp, in mm on the sensor
+     * @return The hyperfocal distance in diopters
+     */
+    public static float hyperfocalDistance(float focalLength, float aperture,
+                                           float circleOfConfusion) {
+        // H = f^2 / (N c) + f, in mm
+        double hyperfocal = (double) focalLength * focalLength / (aperture * circleOfConfusion)
+                + focalLength;
+        return (float) (1000 / hyperfocal);
+    }
+
+    /**
+     * @param center               The focus distance to sweep around, or NaN if unknown
+     * @param frameCount           The number of frames of the burst
+     * @param minimumFocusDistance The closest focus distance of the lens, from
+     *                             {@code LENS_INFO_MINIMUM_FOCUS_DISTANCE}
+     * @param hyperfocalDistance   The hyperfocal distance of the lens
+     * @return The focus distance of each frame, from the farthest to the closest so that the lens
+     * moves one way, or null if the lens has a fixed focus
+     */
+    public static float[] plan(float center, int frameCount, float minimumFocusDistance,
+                               float hyperfocalDistance) {
+        float far = Math.max(0, hyperfocalDistance);
+        float near = minimumFocusDistance;
+        if (frameCount <= 0 || !(near > far)) {
+            return null;
+        }
+        if (Float.isNaN(center)) {
+            center = (far + near) / 2;
+        }
+        center = Math.max(far, Math.min(near, center));
+        float[] distances = new float[frameCount];
+        if (frameCount == 1) {
+            distances[0] = center;
+            return distances;
+        }
+        // Consecutive depths of field touch when the step is their width.
+        float step = 2 * far;
+        float span = step * (frameCount - 1);
+        float start;
+        if (step <= 0 || span >= near - far) {
+            // The burst covers the whole range.
+            step = (near - far) / (frameCount - 1);
+            start = far;
+        } else {
+            start = Math.max(far, Math.min(near - span, center - span / 2));
+        }
+        for (int i = 0; i < frameCount; i++) {
+            distances[i] = start + i * step;
+        }
+        distances[frameCount - 1] = Math.min(near, distances[frameCount - 1]);
+        return distances;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+/**
+ * Records the gyroscope into a {@link GyroTrace} while the camera runs.
+ * <p/>
+ * Sensor event timestamps and {@code CaptureResult.SENSOR_TIMESTAMP} are both taken from
+ * {@code SystemClock.elapsedRealtimeNanos()} on the devices we target, so that the trace can be
+ * queried with the exposure window of a frame.
+ */
+public class GyroRecorder implements SensorEventListener {
+
+    /**
+     * Number of samples kept: a few seconds at the fastest rate.
+     */
+    private static final int CAPACITY = 2048;
+
+    private final GyroTrace mTrace = new GyroTrace(CAPACITY);
+
+    private SensorManager mSensorManager;
+
+    /**
+     * Starts recording.
+     *
+     * @param sensorManager The sensor manager
+     * @param handler       The handler the samples are received on
+     * @return Whether the device has a gyroscope
+     */
+    public boolean start(SensorManager sensorManager, Handler handler) {
+        Sensor gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        if (null == gyroscope) {
+            return false;
+        }
+        mSensorManager = sensorManager;
+        mTrace.clear();
+        return sensorManager.registerListener(this, gyroscope, SensorManager.SENSOR_DELAY_FASTEST,
+                handler);
+    }
+
+    public void stop() {
+        if (null != mSensorManager) {
+            mSensorManager.unregisterListener(this);
+            mSensorManager = null;
+        }
+    }
+
+    public GyroTrace getTrace() {
+        return mTrace;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        mTrace.add(event.timestamp, event.values[0], event.values[1], event.values[2]);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+}
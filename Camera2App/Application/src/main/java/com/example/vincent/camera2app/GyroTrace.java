@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+/**
+ * The recent angular velocities measured by the gyroscope, kept in a ring buffer.
+ * <p/>
+ * This class has no Android dependency and is thread safe: the samples are added from the sensor
+ * thread and read when a frame is restored.
+ */
+public class GyroTrace {
+
+    private final long[] mTimestamps;
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+    private int mNext = 0;
+    private int mCount = 0;
+
+    /**
+     * @param capacity The number of samples kept
+     */
+    public GyroTrace(int capacity) {
+        mTimestamps = new long[capacity];
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mZ = new float[capacity];
+    }
+
+    /**
+     * Adds a sample. Samples must be added in timestamp order.
+     *
+     * @param timestamp The time of the sample in ns
+     * @param x         The angular velocity around the x axis of the device, in rad/s
+     * @param y         The angular velocity around the y axis of the device, in rad/s
+     * @param z         The angular velocity around the z axis of the device, in rad/s
+     */
+    public synchronized void add(long timestamp, float x, float y, float z) {
+        mTimestamps[mNext] = timestamp;
+        mX[mNext] = x;
+        mY[mNext] = y;
+        mZ[mNext] = z;
+        mNext = (mNext + 1) % mTimestamps.length;
+        mCount = Math.min(mCount + 1, mTimestamps.length);
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Integrates the rotation of the device around its x and y axes over a time window.
+     *
+     * @param start The start of the window in ns
+     * @param end   The end of the window in ns
+     * @param steps The number of intervals the window is split into
+     * @return The rotation angles at the {@code steps + 1} evenly spaced times of the window, in
+     * radians, as {x0, y0, x1, y1, ...}, relative to the start of the window; or null if the
+     * samples don't cover the window
+     */
+    public synchronized float[] integrate(long start, long end, int steps) {
+        if (mCount < 2 || end <= start || steps < 1) {
+            return null;
+        }
+        int first = (mNext - mCount + mTimestamps.length) % mTimestamps.length;
+        int last = (mNext - 1 + mTimestamps.length) % mTimestamps.length;
+        if (mTimestamps[first] > start || mTimestamps[last] < end) {
+            return null;
+        }
+
+        float[] angles = new float[2 * (steps + 1)];
+        double angleX = 0;
+        double angleY = 0;
+        // The sample that starts the interval containing the current time.
+        int sample = findSample(first, last, start);
+        long time = start;
+        for (int step = 1; step <= steps; step++) {
+            long target = start + (end - start) * step / steps;
+            while (time < target) {
+                int next = (sample + 1) % mTimestamps.length;
+                long intervalEnd = Math.min(target, mTimestamps[next]);
+                if (intervalEnd > time) {
+                    // Angular velocity held constant between samples.
+                    double seconds = (intervalEnd - time) / 1e9;
+                    angleX += mX[sample] * seconds;
+                    angleY += mY[sample] * seconds;
+                    time = intervalEnd;
+                }
+                if (time >= mTimestamps[next]) {
+                    sample = next;
+                }
+            }
+            angles[2 * step] = (float) angleX;
+            angles[2 * step + 1] = (float) angleY;
+        }
+        return angles;
+    }
+
+    /**
+     * Integrates the speed of the rotation of the device around its x and y axes over a time
+     * window, which is the length of the image motion divided by the focal length. Doesn't
+     * allocate.
+     *
+     * @param start The start of the window in ns
+     * @param end   The end of the window in ns
+     * @return The angle the device turned by, in radians, or {@link Float#NaN} if the samples
+     * don't cover the window
+     */
+    public synchronized float pathLength(long start, long end) {
+        if (mCount < 2 || end < start) {
+            return Float.NaN;
+        }
+        int first = (mNext - mCount + mTimestamps.length) % mTimestamps.length;
+        int last = (mNext - 1 + mTimestamps.length) % mTimestamps.length;
+        if (mTimestamps[first] > start || mTimestamps[last] < end) {
+            return Float.NaN;
+        }
+
+        double angle = 0;
+        int sample = findSample(first, last, start);
+        long time = start;
+        while (time < end) {
+            int next = (sample + 1) % mTimestamps.length;
+            long intervalEnd = Math.min(end, mTimestamps[next]);
+            if (intervalEnd > time) {
+                angle += Math.hypot(mX[sample], mY[sample]) * ((intervalEnd - time) / 1e9);
+                time = intervalEnd;
+            }
+            if (time >= mTimestamps[next]) {
+                sample = next;
+            }
+        }
+        return (float) angle;
+    }
+
+    /**
+     * @return The index of the last sample at or before {@code time}
+     */
+    private int findSample(int first, int last, long time) {
+        int sample = first;
+        while (sample != last && mTimestamps[(sample + 1) % mTimestamps.length] <= time) {
+            sample = (sample + 1) % mTimestamps.length;
+        }
+        return sample;
+    }
+
+}
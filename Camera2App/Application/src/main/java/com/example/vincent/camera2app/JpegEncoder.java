@@ -0,0 +1,570 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encodes YUV 4:2:0 frames as baseline JPEGs, on all the cores of a {@link ForkJoinPool}.
+ * <p/>
+ * Every row of 16x16 MCUs is an independent restart interval: its DC predictions start over and
+ * it ends on a byte boundary, so that the rows are entropy coded in parallel into buffers of
+ * their own, and simply concatenated with RST markers in between. The frame is rotated while its
+ * blocks are read, so that the JPEG is upright without an EXIF orientation. The standard tables
+ * of the JPEG specification (Annex K) are used.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class JpegEncoder {
+
+    /**
+     * Number of MCU rows a task encodes without splitting.
+     */
+    private static final int ROWS_PER_TASK = 4;
+
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_APP0 = 0xE0;
+
+    private static final int[] LUMA_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+
+    private static final int[] CHROMA_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    private static final int[] LUMA_DC_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] CHROMA_DC_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] LUMA_AC_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] LUMA_AC_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+
+    private static final int[] CHROMA_AC_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] CHROMA_AC_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+
+    private static final HuffmanCode LUMA_DC = new HuffmanCode(LUMA_DC_BITS, DC_VALUES);
+    private static final HuffmanCode LUMA_AC = new HuffmanCode(LUMA_AC_BITS, LUMA_AC_VALUES);
+    private static final HuffmanCode CHROMA_DC = new HuffmanCode(CHROMA_DC_BITS, DC_VALUES);
+    private static final HuffmanCode CHROMA_AC = new HuffmanCode(CHROMA_AC_BITS,
+            CHROMA_AC_VALUES);
+
+    /**
+     * {@code COSINES[u * 8 + x]} is the weight of the sample x in the frequency u of the DCT.
+     */
+    private static final float[] COSINES = new float[64];
+
+    static {
+        for (int u = 0; u < 8; u++) {
+            double scale = u == 0 ? Math.sqrt(0.125) : 0.5;
+            for (int x = 0; x < 8; x++) {
+                COSINES[u * 8 + x] = (float) (scale * Math.cos((2 * x + 1) * u * Math.PI / 16));
+            }
+        }
+    }
+
+    /**
+     * The codes of a Huffman table, by symbol.
+     */
+    private static final class HuffmanCode {
+
+        final int[] bits;
+        final int[] values;
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+
+        HuffmanCode(int[] bits, int[] values) {
+            this.bits = bits;
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code++;
+                    sizes[values[k]] = length;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+    }
+
+    /**
+     * The state of the encoding of a frame, shared by the tasks.
+     */
+    private static final class Encoding {
+
+        final YuvFrame frame;
+        final YuvKernels.Rotation rotation;
+        final int[] lumaQuant;
+        final int[] chromaQuant;
+        final int mcuColumns;
+        /**
+         * The entropy-coded data of every MCU row.
+         */
+        final byte[][] rows;
+        final int[] rowLengths;
+
+        Encoding(YuvFrame frame, YuvKernels.Rotation rotation, int[] lumaQuant,
+                 int[] chromaQuant) {
+            this.frame = frame;
+            this.rotation = rotation;
+            this.lumaQuant = lumaQuant;
+            this.chromaQuant = chromaQuant;
+            mcuColumns = (rotation.width + 15) / 16;
+            int mcuRows = (rotation.height + 15) / 16;
+            rows = new byte[mcuRows][];
+            rowLengths = new int[mcuRows];
+        }
+
+    }
+
+    private final ForkJoinPool mPool;
+    private final int mQuality;
+
+    /**
+     * The quantization tables, in natural order.
+     */
+    private final int[] mLumaQuant;
+    private final int[] mChromaQuant;
+
+    /**
+     * @param pool    The pool the rows are encoded on
+     * @param quality The quality, from 1 to 100, as in libjpeg
+     */
+    public JpegEncoder(ForkJoinPool pool, int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality " + quality);
+        }
+        mPool = pool;
+        mQuality = quality;
+        mLumaQuant = scaleQuant(LUMA_QUANT, quality);
+        mChromaQuant = scaleQuant(CHROMA_QUANT, quality);
+    }
+
+    private static int[] scaleQuant(int[] table, int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+        int[] scaled = new int[64];
+        for (int i = 0; i < 64; i++) {
+            scaled[i] = Math.max(1, Math.min(255, (table[i] * scale + 50) / 100));
+        }
+        return scaled;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Encodes a frame.
+     *
+     * @param orientation The clockwise rotation of the frame to encode upright, in degrees, as in
+     *                    {@code JPEG_ORIENTATION}
+     * @return The number of bytes written
+     */
+    public int encode(YuvFrame frame, int orientation, OutputStream output) throws IOException {
+        YuvKernels.Rotation rotation = new YuvKernels.Rotation(frame.width, frame.height,
+                orientation);
+        if (rotation.width > 0xFFFF || rotation.height > 0xFFFF) {
+            throw new IllegalArgumentException("Too large for a JPEG: " + rotation.width + "x"
+                    + rotation.height);
+        }
+        Encoding encoding = new Encoding(frame, rotation, mLumaQuant, mChromaQuant);
+        mPool.invoke(new RowTask(encoding, 0, encoding.rows.length));
+
+        byte[] headers = writeHeaders(encoding);
+        output.write(headers);
+        int length = headers.length;
+        for (int row = 0; row < encoding.rows.length; row++) {
+            if (row > 0) {
+                output.write(0xFF);
+                output.write(MARKER_RST0 + (row - 1) % 8);
+                length += 2;
+            }
+            output.write(encoding.rows[row], 0, encoding.rowLengths[row]);
+            length += encoding.rowLengths[row];
+        }
+        output.write(0xFF);
+        output.write(MARKER_EOI);
+        return length + 2;
+    }
+
+    private byte[] writeHeaders(Encoding encoding) {
+        SegmentWriter out = new SegmentWriter(1024);
+        out.marker(MARKER_SOI);
+
+        out.marker(MARKER_APP0);
+        out.short16(16);
+        out.bytes('J', 'F', 'I', 'F', 0);
+        // Version 1.01, no density.
+        out.bytes(1, 1, 0);
+        out.short16(1);
+        out.short16(1);
+        out.bytes(0, 0);
+
+        out.marker(MARKER_DQT);
+        out.short16(2 + 2 * 65);
+        out.bytes(0);
+        for (int k = 0; k < 64; k++) {
+            out.bytes(mLumaQuant[JpegSharpnessEstimator.ZIGZAG_TO_NATURAL[k]]);
+        }
+        out.bytes(1);
+        for (int k = 0; k < 64; k++) {
+            out.bytes(mChromaQuant[JpegSharpnessEstimator.ZIGZAG_TO_NATURAL[k]]);
+        }
+
+        out.marker(MARKER_SOF0);
+        out.short16(8 + 3 * 3);
+        out.bytes(8);
+        out.short16(encoding.rotation.height);
+        out.short16(encoding.rotation.width);
+        out.bytes(3);
+        // Y sampled 2x2, Cb and Cr 1x1, with their quantization tables.
+        out.bytes(1, 0x22, 0);
+        out.bytes(2, 0x11, 1);
+        out.bytes(3, 0x11, 1);
+
+        out.marker(MARKER_DHT);
+        out.short16(2 + huffmanLength(LUMA_DC) + huffmanLength(LUMA_AC)
+                + huffmanLength(CHROMA_DC) + huffmanLength(CHROMA_AC));
+        writeHuffman(out, 0x00, LUMA_DC);
+        writeHuffman(out, 0x10, LUMA_AC);
+        writeHuffman(out, 0x01, CHROMA_DC);
+        writeHuffman(out, 0x11, CHROMA_AC);
+
+        out.marker(MARKER_DRI);
+        out.short16(4);
+        out.short16(encoding.mcuColumns);
+
+        out.marker(MARKER_SOS);
+        out.short16(6 + 2 * 3);
+        out.bytes(3);
+        out.bytes(1, 0x00);
+        out.bytes(2, 0x11);
+        out.bytes(3, 0x11);
+        // Spectral selection 0 to 63, no successive approximation.
+        out.bytes(0, 63, 0);
+        return Arrays.copyOf(out.data, out.length);
+    }
+
+    private static int huffmanLength(HuffmanCode code) {
+        return 1 + 16 + code.values.length;
+    }
+
+    private static void writeHuffman(SegmentWriter out, int classAndId, HuffmanCode code) {
+        out.bytes(classAndId);
+        for (int count : code.bits) {
+            out.bytes(count);
+        }
+        for (int value : code.values) {
+            out.bytes(value);
+        }
+    }
+
+    /**
+     * Encodes a range of MCU rows, splitting it across the pool.
+     */
+    private static final class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Encoding mEncoding;
+        private final int mStart;
+        private final int mEnd;
+
+        RowTask(Encoding encoding, int start, int end) {
+            mEncoding = encoding;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > ROWS_PER_TASK) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new RowTask(mEncoding, mStart, middle),
+                        new RowTask(mEncoding, middle, mEnd));
+                return;
+            }
+            float[] block = new float[64];
+            int[] coefficients = new int[64];
+            // Enough for most rows: the writer grows otherwise.
+            SegmentWriter out = new SegmentWriter(mEncoding.mcuColumns * 256);
+            for (int row = mStart; row < mEnd; row++) {
+                out.length = 0;
+                encodeRow(mEncoding, row, out, block, coefficients);
+                mEncoding.rows[row] = out.data;
+                mEncoding.rowLengths[row] = out.length;
+                out.data = new byte[out.data.length];
+            }
+        }
+
+    }
+
+    /**
+     * Entropy codes a row of MCUs as one restart interval.
+     */
+    private static void encodeRow(Encoding encoding, int row, SegmentWriter out, float[] block,
+                                  int[] coefficients) {
+        YuvKernels.Rotation rotation = encoding.rotation;
+        YuvFrame frame = encoding.frame;
+        int[] predictions = new int[3];
+        int top = row * 16;
+        for (int column = 0; column < encoding.mcuColumns; column++) {
+            int left = column * 16;
+            for (int i = 0; i < 4; i++) {
+                readBlock(frame.y, frame.yRowStride, frame.yPixelStride, 1, rotation,
+                        left + (i % 2) * 8, top + (i / 2) * 8, block);
+                predictions[0] = encodeBlock(out, block, encoding.lumaQuant, predictions[0],
+                        LUMA_DC, LUMA_AC, coefficients);
+            }
+            readBlock(frame.u, frame.uvRowStride, frame.uvPixelStride, 2, rotation, left, top,
+                    block);
+            predictions[1] = encodeBlock(out, block, encoding.chromaQuant, predictions[1],
+                    CHROMA_DC, CHROMA_AC, coefficients);
+            readBlock(frame.v, frame.uvRowStride, frame.uvPixelStride, 2, rotation, left, top,
+                    block);
+            predictions[2] = encodeBlock(out, block, encoding.chromaQuant, predictions[2],
+                    CHROMA_DC, CHROMA_AC, coefficients);
+        }
+        out.flushBits();
+    }
+
+    /**
+     * Reads an 8x8 block of samples, centered on 0.
+     *
+     * @param subsampling The number of pixels of the image per sample, in both directions
+     * @param left        The left of the block in the rotated image, in pixels
+     * @param top         The top of the block in the rotated image, in pixels
+     */
+    private static void readBlock(ByteBuffer plane, int rowStride, int pixelStride,
+                                  int subsampling, YuvKernels.Rotation rotation, int left, int top,
+                                  float[] block) {
+        int maxX = rotation.width - 1;
+        int maxY = rotation.height - 1;
+        for (int y = 0; y < 8; y++) {
+            // The edge is repeated past the image.
+            int imageY = Math.min(top + y * subsampling, maxY);
+            for (int x = 0; x < 8; x++) {
+                int imageX = Math.min(left + x * subsampling, maxX);
+                int frameX = rotation.originX + imageX * rotation.xStepX
+                        + imageY * rotation.yStepX;
+                int frameY = rotation.originY + imageX * rotation.xStepY
+                        + imageY * rotation.yStepY;
+                int index = frameY / subsampling * rowStride + frameX / subsampling * pixelStride;
+                block[y * 8 + x] = (plane.get(index) & 0xFF) - 128;
+            }
+        }
+    }
+
+    /**
+     * Transforms, quantizes and codes a block.
+     *
+     * @param prediction The DC coefficient of the previous block of the component
+     * @return The DC coefficient of the block
+     */
+    private static int encodeBlock(SegmentWriter out, float[] block, int[] quant,
+                                   int prediction, HuffmanCode dcCode, HuffmanCode acCode,
+                                   int[] coefficients) {
+        forwardDct(block);
+        for (int i = 0; i < 64; i++) {
+            coefficients[i] = Math.round(block[i] / quant[i]);
+        }
+
+        int dc = coefficients[0];
+        int diff = dc - prediction;
+        int size = bitSize(diff);
+        out.bits(dcCode.codes[size], dcCode.sizes[size]);
+        if (size > 0) {
+            out.bits(diff < 0 ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = coefficients[JpegSharpnessEstimator.ZIGZAG_TO_NATURAL[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                out.bits(acCode.codes[0xF0], acCode.sizes[0xF0]);
+                run -= 16;
+            }
+            size = bitSize(value);
+            int symbol = (run << 4) | size;
+            out.bits(acCode.codes[symbol], acCode.sizes[symbol]);
+            out.bits(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0) {
+            out.bits(acCode.codes[0x00], acCode.sizes[0x00]);
+        }
+        return dc;
+    }
+
+    /**
+     * @return The number of bits of the magnitude of a value
+     */
+    private static int bitSize(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Replaces a block by its 2D DCT, rows then columns.
+     */
+    private static void forwardDct(float[] block) {
+        float[] line = new float[8];
+        for (int y = 0; y < 8; y++) {
+            for (int u = 0; u < 8; u++) {
+                float sum = 0;
+                for (int x = 0; x < 8; x++) {
+                    sum += COSINES[u * 8 + x] * block[y * 8 + x];
+                }
+                line[u] = sum;
+            }
+            System.arraycopy(line, 0, block, y * 8, 8);
+        }
+        for (int x = 0; x < 8; x++) {
+            for (int v = 0; v < 8; v++) {
+                float sum = 0;
+                for (int y = 0; y < 8; y++) {
+                    sum += COSINES[v * 8 + y] * block[y * 8 + x];
+                }
+                line[v] = sum;
+            }
+            for (int v = 0; v < 8; v++) {
+                block[v * 8 + x] = line[v];
+            }
+        }
+    }
+
+    /**
+     * A growable buffer of marker segments or entropy-coded data.
+     */
+    private static final class SegmentWriter {
+
+        byte[] data;
+        int length;
+        private int mBitBuffer;
+        private int mBitCount;
+
+        SegmentWriter(int capacity) {
+            data = new byte[capacity];
+        }
+
+        private void put(int value) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[length++] = (byte) value;
+        }
+
+        void marker(int marker) {
+            put(0xFF);
+            put(marker);
+        }
+
+        void short16(int value) {
+            put(value >> 8);
+            put(value);
+        }
+
+        void bytes(int... values) {
+            for (int value : values) {
+                put(value);
+            }
+        }
+
+        /**
+         * Appends the low bits of a value to the entropy-coded data, stuffing a 0 after every
+         * 0xFF byte.
+         */
+        void bits(int value, int count) {
+            mBitBuffer = (mBitBuffer << count) | (value & ((1 << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8) {
+                int b = (mBitBuffer >> (mBitCount - 8)) & 0xFF;
+                put(b);
+                if (b == 0xFF) {
+                    put(0);
+                }
+                mBitCount -= 8;
+            }
+        }
+
+        /**
+         * Pads the last byte with 1 bits.
+         */
+        void flushBits() {
+            if (mBitCount > 0) {
+                bits(0x7F, 8 - mBitCount);
+            }
+            mBitBuffer = 0;
+        }
+
+    }
+
+}
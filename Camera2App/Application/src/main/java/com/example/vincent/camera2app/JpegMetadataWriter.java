@@ -0,0 +1,590 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writes a JPEG with the capture metadata of its frame, without decoding it.
+ * <p/>
+ * The JPEG is streamed from its buffer to the channel in a single pass. The EXIF segment of the
+ * camera is kept with everything it holds, such as the date, the lens data and the thumbnail, and
+ * the exposure time, the ISO and the orientation are set in it: its TIFF structure is copied as
+ * is, so that all its offsets stay valid, followed by new first and EXIF IFDs holding the entries
+ * of the old ones and ours. An APP10 segment with the burst data follows it.
+ * <p/>
+ * When the JPEG has no EXIF segment, or one too malformed or too large to take the new IFDs, an
+ * EXIF segment with only our tags is spliced in right after the SOI marker, or after the JFIF
+ * segment if there is one, keeping the orientation of the camera. Any other EXIF or burst segment
+ * is dropped, so that there is only one of each.
+ * <p/>
+ * The segments are built in a buffer allocated once, and grown if an EXIF segment of the camera
+ * needs more. An instance is not thread safe.
+ */
+public class JpegMetadataWriter {
+
+    public static final int SOI = 0xFFD8;
+    public static final int APP0 = 0xFFE0;
+    public static final int APP1 = 0xFFE1;
+    public static final int COM = 0xFFFE;
+
+    /**
+     * The marker of the burst segment.
+     */
+    public static final int BURST_SEGMENT_MARKER = 0xFFEA; // APP10
+
+    /**
+     * The identifier starting the payload of the burst segment, followed by:
+     * <pre>
+     *   int   BURST_SEGMENT_VERSION
+     *   int   index of the frame in the burst
+     *   int   number of frames in the burst
+     *   long  sensor timestamp
+     *   long  exposure time in ns
+     *   int   ISO
+     *   float sharpness score
+     * </pre>
+     * All values are big endian.
+     */
+    public static final byte[] BURST_SEGMENT_ID = {
+            'B', 'l', 'u', 'r', 'l', 'e', 's', 's', 'B', 'u', 'r', 's', 't', 0};
+    public static final int BURST_SEGMENT_VERSION = 1;
+    private static final int BURST_PAYLOAD_SIZE = 36;
+
+    public static final byte[] EXIF_ID = {'E', 'x', 'i', 'f', 0, 0};
+
+    public static final int TAG_ORIENTATION = 0x0112;
+    public static final int TAG_EXIF_IFD = 0x8769;
+    public static final int TAG_EXPOSURE_TIME = 0x829A;
+    public static final int TAG_ISO = 0x8827;
+    public static final int TAG_EXIF_VERSION = 0x9000;
+
+    public static final int TYPE_SHORT = 3;
+    public static final int TYPE_LONG = 4;
+    public static final int TYPE_RATIONAL = 5;
+    public static final int TYPE_UNDEFINED = 7;
+
+    public static final int ORIENTATION_NORMAL = 1;
+
+    private static final int EXIF_VERSION = 0x30323330; // "0230"
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    /**
+     * Enough for both segments, whatever the metadata.
+     */
+    private static final int MAX_SEGMENTS_SIZE = 256;
+
+    /**
+     * Largest payload of a JPEG segment, its length field included.
+     */
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    private static final int BURST_SEGMENT_SIZE = 4 + 14 + BURST_PAYLOAD_SIZE;
+
+    /**
+     * Sorts IFD entries by tag.
+     */
+    private static final class TagOrder implements Comparator<byte[]> {
+
+        private final ByteOrder mOrder;
+
+        TagOrder(ByteOrder order) {
+            mOrder = order;
+        }
+
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return getTag(a, mOrder) - getTag(b, mOrder);
+        }
+
+    }
+
+    private static final TagOrder BIG_ENDIAN_TAGS = new TagOrder(ByteOrder.BIG_ENDIAN);
+    private static final TagOrder LITTLE_ENDIAN_TAGS = new TagOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private ByteBuffer mSegments = ByteBuffer.allocate(MAX_SEGMENTS_SIZE);
+
+    /**
+     * The start of the kept EXIF segment, up to the offset of its first IFD.
+     */
+    private final ByteBuffer mExifHead = ByteBuffer.allocate(4 + 6 + 8);
+
+    /**
+     * Writes a JPEG with its metadata.
+     *
+     * @param jpeg       The JPEG, from its position to its limit. Its position is left unchanged.
+     * @param channel    The channel to write to
+     * @param info       The metadata of the frame. An unknown exposure time or ISO is 0.
+     * @param frameIndex The index of the frame in its burst
+     * @param frameCount The number of frames in the burst
+     * @return The number of bytes written
+     * @throws IOException If the JPEG is malformed or the channel can't be written to
+     */
+    public long write(ByteBuffer jpeg, WritableByteChannel channel, BurstContainer.FrameInfo info,
+                      int frameIndex, int frameCount) throws IOException {
+        return write(jpeg, channel, info, frameIndex, frameCount, ORIENTATION_NORMAL);
+    }
+
+    /**
+     * Writes a JPEG with its metadata, giving it an orientation if it has none, like a JPEG
+     * encoded from a bitmap decoded from a camera JPEG.
+     *
+     * @param orientation The EXIF orientation written if the JPEG has none, from 1 to 8
+     * @see #write(ByteBuffer, WritableByteChannel, BurstContainer.FrameInfo, int, int)
+     */
+    public long write(ByteBuffer jpeg, WritableByteChannel channel, BurstContainer.FrameInfo info,
+                      int frameIndex, int frameCount, int orientation) throws IOException {
+        ByteBuffer data = jpeg.duplicate();
+        data.order(ByteOrder.BIG_ENDIAN);
+        int start = data.position();
+        int end = data.limit();
+        if (end - start < 4 || (data.getShort(start) & 0xFFFF) != SOI) {
+            throw new IOException("Not a JPEG");
+        }
+
+        // Find where the metadata segments end, where ours go and the EXIF segment to keep.
+        int insertAt = start + 2;
+        int exif = -1;
+        int offset = start + 2;
+        while (offset + 4 <= end && isMetadataMarker(data.getShort(offset) & 0xFFFF)) {
+            int marker = data.getShort(offset) & 0xFFFF;
+            int length = segmentLength(data, offset, end);
+            if (marker == APP0 && offset == start + 2) {
+                insertAt = offset + 2 + length;
+            } else if (exif < 0 && hasId(data, offset, length, APP1, EXIF_ID)) {
+                exif = offset;
+            }
+            offset += 2 + length;
+        }
+        int metadataEnd = offset;
+
+        int tiff = exif + 4 + EXIF_ID.length;
+        int tiffSize = exif < 0 ? 0 : segmentLength(data, exif, end) - 2 - EXIF_ID.length;
+        boolean keepExif = exif >= 0 && buildExifTail(data, tiff, tiffSize, info, orientation,
+                frameIndex, frameCount);
+        // The ranges are written from a second view, so that the segments can still be read.
+        ByteBuffer ranges = jpeg.duplicate();
+        long written = 0;
+        int runStart = start;
+        if (!keepExif) {
+            if (exif >= 0) {
+                orientation = readOrientation(data, tiff, tiffSize, orientation);
+            }
+            buildSegments(info, orientation, frameIndex, frameCount);
+            written += writeRange(channel, ranges, start, insertAt);
+            written += writeFully(channel, mSegments);
+            runStart = insertAt;
+        }
+        offset = insertAt;
+        while (offset < metadataEnd) {
+            int length = segmentLength(data, offset, end);
+            if (hasId(data, offset, length, APP1, EXIF_ID)
+                    || hasId(data, offset, length, BURST_SEGMENT_MARKER, BURST_SEGMENT_ID)) {
+                written += writeRange(channel, ranges, runStart, offset);
+                runStart = offset + 2 + length;
+                if (keepExif && offset == exif) {
+                    written += writeFully(channel, mExifHead);
+                    written += writeRange(channel, ranges, tiff + 8, tiff + tiffSize);
+                    written += writeFully(channel, mSegments);
+                }
+            }
+            offset += 2 + length;
+        }
+        written += writeRange(channel, ranges, runStart, end);
+        return written;
+    }
+
+    /**
+     * Reads the orientation tag of the first IFD of a TIFF structure, as found in an EXIF segment.
+     *
+     * @param data     The buffer holding the structure
+     * @param tiff     The offset of the TIFF header in the buffer
+     * @param size     The size of the structure
+     * @param fallback The value returned if there is no valid orientation tag
+     * @return The orientation, from 1 to 8
+     */
+    public static int readOrientation(ByteBuffer data, int tiff, int size, int fallback) {
+        if (size < 8) {
+            return fallback;
+        }
+        ByteOrder order = data.order();
+        int byteOrder = data.getShort(tiff) & 0xFFFF;
+        if (byteOrder == 0x4949) {
+            data.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder == 0x4D4D) {
+            data.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return fallback;
+        }
+        try {
+            if (data.getShort(tiff + 2) != 42) {
+                return fallback;
+            }
+            long ifd = data.getInt(tiff + 4) & 0xFFFFFFFFL;
+            if (ifd + 2 > size) {
+                return fallback;
+            }
+            int count = data.getShort(tiff + (int) ifd) & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                long entry = ifd + 2 + (long) i * IFD_ENTRY_SIZE;
+                if (entry + IFD_ENTRY_SIZE > size) {
+                    break;
+                }
+                int position = tiff + (int) entry;
+                if ((data.getShort(position) & 0xFFFF) == TAG_ORIENTATION
+                        && data.getShort(position + 2) == TYPE_SHORT) {
+                    int value = data.getShort(position + 8) & 0xFFFF;
+                    return value >= 1 && value <= 8 ? value : fallback;
+                }
+            }
+            return fallback;
+        } finally {
+            data.order(order);
+        }
+    }
+
+    private void buildSegments(BurstContainer.FrameInfo info, int orientation, int frameIndex,
+                               int frameCount) {
+        mSegments.clear();
+
+        int app1 = mSegments.position();
+        mSegments.putShort((short) APP1);
+        mSegments.putShort((short) 0); // Patched below
+        mSegments.put(EXIF_ID);
+        // Offsets are relative to the TIFF header.
+        mSegments.putShort((short) 0x4D4D);
+        mSegments.putShort((short) 42);
+        mSegments.putInt(8);
+
+        boolean hasExposure = info.exposureTime > 0;
+        boolean hasIso = info.iso > 0;
+        int exifEntries = 1 + (hasExposure ? 1 : 0) + (hasIso ? 1 : 0);
+        int exifIfd = 8 + 2 + 2 * IFD_ENTRY_SIZE + 4;
+        int values = exifIfd + 2 + exifEntries * IFD_ENTRY_SIZE + 4;
+
+        mSegments.putShort((short) 2);
+        putEntry(TAG_ORIENTATION, TYPE_SHORT, 1, orientation << 16);
+        putEntry(TAG_EXIF_IFD, TYPE_LONG, 1, exifIfd);
+        mSegments.putInt(0);
+
+        // The entries of an IFD are sorted by tag.
+        mSegments.putShort((short) exifEntries);
+        if (hasExposure) {
+            putEntry(TAG_EXPOSURE_TIME, TYPE_RATIONAL, 1, values);
+        }
+        if (hasIso) {
+            putEntry(TAG_ISO, TYPE_SHORT, 1, Math.min(info.iso, 0xFFFF) << 16);
+        }
+        putEntry(TAG_EXIF_VERSION, TYPE_UNDEFINED, 4, EXIF_VERSION);
+        mSegments.putInt(0);
+        if (hasExposure) {
+            putExposureTime(info.exposureTime);
+        }
+        mSegments.putShort(app1 + 2, (short) (mSegments.position() - app1 - 2));
+
+        putBurstSegment(info, frameIndex, frameCount);
+        mSegments.flip();
+    }
+
+    private void putBurstSegment(BurstContainer.FrameInfo info, int frameIndex, int frameCount) {
+        mSegments.putShort((short) BURST_SEGMENT_MARKER);
+        mSegments.putShort((short) (2 + BURST_SEGMENT_ID.length + BURST_PAYLOAD_SIZE));
+        mSegments.put(BURST_SEGMENT_ID);
+        mSegments.putInt(BURST_SEGMENT_VERSION);
+        mSegments.putInt(frameIndex);
+        mSegments.putInt(frameCount);
+        mSegments.putLong(info.timestamp);
+        mSegments.putLong(info.exposureTime);
+        mSegments.putInt(info.iso);
+        mSegments.putFloat(info.score);
+    }
+
+    /**
+     * Builds the head of the kept EXIF segment in {@link #mExifHead}, and what follows its TIFF
+     * structure in {@link #mSegments}: the new IFDs, the exposure time and the burst segment.
+     *
+     * @param tiff The offset of the TIFF structure of the EXIF segment
+     * @param size The size of the TIFF structure
+     * @return Whether the segment can be kept, or is malformed or too large
+     */
+    private boolean buildExifTail(ByteBuffer data, int tiff, int size,
+                                  BurstContainer.FrameInfo info, int orientation, int frameIndex,
+                                  int frameCount) {
+        if (size < 8) {
+            return false;
+        }
+        ByteOrder order;
+        int byteOrder = data.getShort(tiff) & 0xFFFF;
+        if (byteOrder == 0x4949) {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if (byteOrder == 0x4D4D) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else {
+            return false;
+        }
+        ByteBuffer structure = data.duplicate();
+        structure.order(order);
+        if (structure.getShort(tiff + 2) != 42) {
+            return false;
+        }
+        long ifd0 = structure.getInt(tiff + 4) & 0xFFFFFFFFL;
+        List<byte[]> entries0 = readIfd(structure, tiff, size, ifd0);
+        if (null == entries0) {
+            return false;
+        }
+        int nextIfd = structure.getInt(tiff + (int) ifd0 + 2 + entries0.size() * IFD_ENTRY_SIZE);
+
+        // The entries of the camera win, but for the exposure time and the ISO.
+        long exifIfd = -1;
+        boolean hasOrientation = false;
+        for (int i = entries0.size() - 1; i >= 0; i--) {
+            ByteBuffer entry = ByteBuffer.wrap(entries0.get(i)).order(order);
+            int tag = getTag(entries0.get(i), order);
+            if (tag == TAG_EXIF_IFD) {
+                if (entry.getShort(2) == TYPE_LONG && entry.getInt(4) == 1) {
+                    exifIfd = entry.getInt(8) & 0xFFFFFFFFL;
+                }
+                entries0.remove(i);
+            } else if (tag == TAG_ORIENTATION) {
+                hasOrientation = true;
+            }
+        }
+        List<byte[]> exifEntries = exifIfd < 0 ? new ArrayList<byte[]>()
+                : readIfd(structure, tiff, size, exifIfd);
+        if (null == exifEntries) {
+            return false;
+        }
+        boolean hasExposure = info.exposureTime > 0;
+        boolean hasIso = info.iso > 0;
+        boolean hasVersion = false;
+        for (int i = exifEntries.size() - 1; i >= 0; i--) {
+            int tag = getTag(exifEntries.get(i), order);
+            if ((hasExposure && tag == TAG_EXPOSURE_TIME) || (hasIso && tag == TAG_ISO)) {
+                exifEntries.remove(i);
+            } else if (tag == TAG_EXIF_VERSION) {
+                hasVersion = true;
+            }
+        }
+
+        // The new IFDs follow the structure, on a word boundary.
+        int newIfd0 = size + (size & 1);
+        int newExifIfd = newIfd0 + 2 + (entries0.size() + (hasOrientation ? 1 : 2))
+                * IFD_ENTRY_SIZE + 4;
+        int exifCount = exifEntries.size() + (hasExposure ? 1 : 0) + (hasIso ? 1 : 0)
+                + (hasVersion ? 0 : 1);
+        int values = newExifIfd + 2 + exifCount * IFD_ENTRY_SIZE + 4;
+        int tiffEnd = values + (hasExposure ? 8 : 0);
+        if (2 + EXIF_ID.length + tiffEnd > MAX_SEGMENT_LENGTH) {
+            return false;
+        }
+        if (!hasOrientation) {
+            entries0.add(createEntry(order, TAG_ORIENTATION, TYPE_SHORT, 1, orientation << 16));
+        }
+        entries0.add(createEntry(order, TAG_EXIF_IFD, TYPE_LONG, 1, newExifIfd));
+        if (hasExposure) {
+            exifEntries.add(createEntry(order, TAG_EXPOSURE_TIME, TYPE_RATIONAL, 1, values));
+        }
+        if (hasIso) {
+            exifEntries.add(createEntry(order, TAG_ISO, TYPE_SHORT, 1,
+                    Math.min(info.iso, 0xFFFF) << 16));
+        }
+        if (!hasVersion) {
+            byte[] version = createEntry(order, TAG_EXIF_VERSION, TYPE_UNDEFINED, 4, 0);
+            // Bytes, whatever the byte order.
+            ByteBuffer.wrap(version).putInt(8, EXIF_VERSION);
+            exifEntries.add(version);
+        }
+        // The entries of an IFD are sorted by tag.
+        TagOrder tagOrder = order == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN_TAGS : LITTLE_ENDIAN_TAGS;
+        Collections.sort(entries0, tagOrder);
+        Collections.sort(exifEntries, tagOrder);
+
+        int tailSize = tiffEnd - size + BURST_SEGMENT_SIZE;
+        if (mSegments.capacity() < tailSize) {
+            mSegments = ByteBuffer.allocate(tailSize);
+        }
+        mSegments.clear();
+        mSegments.order(order);
+        if (newIfd0 > size) {
+            mSegments.put((byte) 0);
+        }
+        mSegments.putShort((short) entries0.size());
+        for (byte[] entry : entries0) {
+            mSegments.put(entry);
+        }
+        mSegments.putInt(nextIfd);
+        mSegments.putShort((short) exifEntries.size());
+        for (byte[] entry : exifEntries) {
+            mSegments.put(entry);
+        }
+        mSegments.putInt(0);
+        if (hasExposure) {
+            putExposureTime(info.exposureTime);
+        }
+        mSegments.order(ByteOrder.BIG_ENDIAN);
+        putBurstSegment(info, frameIndex, frameCount);
+        mSegments.flip();
+
+        mExifHead.clear();
+        mExifHead.order(ByteOrder.BIG_ENDIAN);
+        mExifHead.putShort((short) APP1);
+        mExifHead.putShort((short) (2 + EXIF_ID.length + tiffEnd));
+        mExifHead.put(EXIF_ID);
+        mExifHead.order(order);
+        mExifHead.putShort((short) byteOrder);
+        mExifHead.putShort((short) 42);
+        mExifHead.putInt(newIfd0);
+        mExifHead.flip();
+        return true;
+    }
+
+    /**
+     * @param ifd The offset of the IFD in the TIFF structure
+     * @return The entries of the IFD, or null if it doesn't fit in the structure
+     */
+    private static List<byte[]> readIfd(ByteBuffer structure, int tiff, int size, long ifd) {
+        if (ifd < 8 || ifd + 2 > size) {
+            return null;
+        }
+        int count = structure.getShort(tiff + (int) ifd) & 0xFFFF;
+        if (ifd + 2 + (long) count * IFD_ENTRY_SIZE + 4 > size) {
+            return null;
+        }
+        List<byte[]> entries = new ArrayList<byte[]>(count + 3);
+        ByteBuffer view = structure.duplicate();
+        view.position(tiff + (int) ifd + 2);
+        for (int i = 0; i < count; i++) {
+            byte[] entry = new byte[IFD_ENTRY_SIZE];
+            view.get(entry);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * @param value The value itself if it fits in 4 bytes, left-justified, or its offset
+     */
+    private static byte[] createEntry(ByteOrder order, int tag, int type, int count, int value) {
+        ByteBuffer entry = ByteBuffer.allocate(IFD_ENTRY_SIZE).order(order);
+        entry.putShort((short) tag);
+        entry.putShort((short) type);
+        entry.putInt(count);
+        if (type == TYPE_SHORT) {
+            // Left-justified in the byte order of the structure.
+            entry.putShort((short) (value >>> 16));
+            entry.putShort((short) 0);
+        } else {
+            entry.putInt(value);
+        }
+        return entry.array();
+    }
+
+    private static int getTag(byte[] entry, ByteOrder order) {
+        return order == ByteOrder.BIG_ENDIAN ? (entry[0] & 0xFF) << 8 | entry[1] & 0xFF
+                : (entry[1] & 0xFF) << 8 | entry[0] & 0xFF;
+    }
+
+    /**
+     * @param value The value itself if it fits in 4 bytes, left-justified, or its offset
+     */
+    private void putEntry(int tag, int type, int count, int value) {
+        mSegments.putShort((short) tag);
+        mSegments.putShort((short) type);
+        mSegments.putInt(count);
+        mSegments.putInt(value);
+    }
+
+    /**
+     * Writes an exposure time in ns as an unsigned rational number of seconds.
+     */
+    private void putExposureTime(long exposureTime) {
+        long numerator = exposureTime;
+        long denominator = 1000000000L;
+        long a = numerator;
+        long b = denominator;
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        numerator /= a;
+        denominator /= a;
+        while (numerator > 0xFFFFFFFFL) {
+            numerator >>= 1;
+            denominator = Math.max(1, denominator >> 1);
+        }
+        mSegments.putInt((int) numerator);
+        mSegments.putInt((int) denominator);
+    }
+
+    /**
+     * @return Whether a segment has this marker and its payload starts with this identifier
+     */
+    private static boolean hasId(ByteBuffer data, int offset, int length, int marker, byte[] id) {
+        if ((data.getShort(offset) & 0xFFFF) != marker || length - 2 < id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (data.get(offset + 4 + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The APPn and COM markers, that can come before the frame header
+     */
+    private static boolean isMetadataMarker(int marker) {
+        return (marker >= APP0 && marker <= 0xFFEF) || marker == COM;
+    }
+
+    /**
+     * @return The length of a segment, which counts its length field but not its marker
+     */
+    private static int segmentLength(ByteBuffer data, int offset, int end) throws IOException {
+        int length = data.getShort(offset + 2) & 0xFFFF;
+        if (length < 2 || offset + 2 + length > end) {
+            throw new IOException("Truncated JPEG segment at " + offset);
+        }
+        return length;
+    }
+
+    private static long writeRange(WritableByteChannel channel, ByteBuffer data, int from, int to)
+            throws IOException {
+        data.limit(to);
+        data.position(from);
+        return writeFully(channel, data);
+    }
+
+    private static long writeFully(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+}
@@ -0,0 +1,693 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Scores the sharpness of a baseline JPEG without decoding it to pixels.
+ * <p/>
+ * The entropy-coded data is Huffman decoded, and the dequantized high-frequency AC coefficients of
+ * every luma block are accumulated. No inverse DCT is run and no bitmap is allocated, so a burst
+ * can be ranked directly from the buffers of the {@link android.media.Image}s. The score is the
+ * RMS high-frequency energy per 8x8 block, which is only meaningful to compare frames of the same
+ * scene, such as the frames of a burst.
+ * <p/>
+ * The DC coefficients of the luma blocks are kept too, downsampled to a
+ * {@link PerceptualHash#SIZE} square plane, so that the frame can be hashed without decoding it
+ * again.
+ * <p/>
+ * An instance keeps its tables and scratch state between calls and is not thread safe.
+ */
+public class JpegSharpnessEstimator {
+
+    /**
+     * Coefficients whose horizontal plus vertical frequency is at least this count as high
+     * frequency. Blur removes them first.
+     */
+    private static final int HIGH_FREQUENCY_CUTOFF = 4;
+
+    /**
+     * Zigzag index to natural (row-major) index of the coefficients of a block.
+     */
+    static final int[] ZIGZAG_TO_NATURAL = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63};
+
+    /**
+     * Whether the coefficient at each zigzag index is a high-frequency one.
+     */
+    private static final boolean[] HIGH_FREQUENCY = new boolean[64];
+
+    static {
+        for (int k = 0; k < 64; k++) {
+            int natural = ZIGZAG_TO_NATURAL[k];
+            HIGH_FREQUENCY[k] = (natural / 8) + (natural % 8) >= HIGH_FREQUENCY_CUTOFF;
+        }
+    }
+
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_SOF1 = 0xC1;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_RST7 = 0xD7;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DRI = 0xDD;
+
+    /**
+     * The sharpness of one frame.
+     */
+    public static final class Result {
+
+        public final int width;
+        public final int height;
+
+        /**
+         * RMS high-frequency energy per luma block over the whole frame.
+         */
+        public final double score;
+
+        public final int gridColumns;
+        public final int gridRows;
+
+        /**
+         * RMS high-frequency energy per luma block of each region, row by row.
+         */
+        public final float[] regionScores;
+
+        /**
+         * Public so that recorded scores can be replayed.
+         */
+        public Result(int width, int height, double score, int gridColumns, int gridRows,
+                      float[] regionScores) {
+            this.width = width;
+            this.height = height;
+            this.score = score;
+            this.gridColumns = gridColumns;
+            this.gridRows = gridRows;
+            this.regionScores = regionScores;
+        }
+
+        public float getRegionScore(int column, int row) {
+            return regionScores[row * gridColumns + column];
+        }
+
+        /**
+         * @param regions The regions of interest
+         * @return The average of the region scores, weighted by their overlap with the regions of
+         * interest, or {@link #score} if they don't overlap the frame
+         */
+        public double getWeightedScore(Iterable<SharpnessRegion> regions) {
+            double weightedSum = 0;
+            double totalWeight = 0;
+            for (int row = 0; row < gridRows; row++) {
+                float top = (float) row / gridRows;
+                float bottom = (float) (row + 1) / gridRows;
+                for (int column = 0; column < gridColumns; column++) {
+                    float left = (float) column / gridColumns;
+                    float right = (float) (column + 1) / gridColumns;
+                    for (SharpnessRegion region : regions) {
+                        double weight = region.weight
+                                * region.intersectionArea(left, top, right, bottom);
+                        weightedSum += weight * getRegionScore(column, row);
+                        totalWeight += weight;
+                    }
+                }
+            }
+            return totalWeight > 0 ? weightedSum / totalWeight : score;
+        }
+
+    }
+
+    /**
+     * A Huffman table, with a lookup table for the short codes.
+     */
+    private static final class HuffmanTable {
+
+        static final int LOOKAHEAD_BITS = 9;
+
+        final int[] lookahead = new int[1 << LOOKAHEAD_BITS];
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[18];
+        final int[] values = new int[256];
+        boolean defined = false;
+
+        /**
+         * @param counts The number of codes of each length, from 1 to 16 bits (index 1 to 16)
+         */
+        void build(int[] counts) {
+            int code = 0;
+            int k = 0;
+            java.util.Arrays.fill(lookahead, 0);
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k - code;
+                for (int i = 0; i < counts[length]; i++) {
+                    if (length <= LOOKAHEAD_BITS) {
+                        // Each entry holds the code length in the high bits and the value below.
+                        int shift = LOOKAHEAD_BITS - length;
+                        int first = code << shift;
+                        for (int j = 0; j < (1 << shift); j++) {
+                            lookahead[first + j] = (length << 8) | values[k];
+                        }
+                    }
+                    k++;
+                    code++;
+                }
+                maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+            defined = true;
+        }
+
+    }
+
+    private final int mGridColumns;
+    private final int mGridRows;
+    private final double[] mCellEnergy;
+    private final int[] mCellBlocks;
+
+    /**
+     * The sum and count of the luma DC coefficients of each cell of the hash plane.
+     */
+    private final float[] mDcSums = new float[PerceptualHash.SIZE * PerceptualHash.SIZE];
+    private final int[] mDcBlocks = new int[PerceptualHash.SIZE * PerceptualHash.SIZE];
+    private int mLumaBlocksX;
+    private int mLumaBlocksY;
+
+    private final int[][] mQuantTables = new int[4][64];
+    private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+    private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+    private final int[] mCounts = new int[17];
+
+    private int mWidth;
+    private int mHeight;
+    private int mComponentCount;
+    private final int[] mComponentIds = new int[4];
+    private final int[] mHorizontalSampling = new int[4];
+    private final int[] mVerticalSampling = new int[4];
+    private final int[] mQuantTableIndex = new int[4];
+    private int mMaxHorizontalSampling;
+    private int mMaxVerticalSampling;
+    private int mRestartInterval;
+
+    private final int[] mScanComponents = new int[4];
+    private final int[] mScanDcTables = new int[4];
+    private final int[] mScanAcTables = new int[4];
+    private final int[] mDcPredictors = new int[4];
+
+    private ByteBuffer mData;
+    private int mPosition;
+    private int mLimit;
+    private long mBitBuffer;
+    private int mBitCount;
+    private boolean mHitMarker;
+
+    /**
+     * @param gridColumns The number of columns of the region map
+     * @param gridRows    The number of rows of the region map
+     */
+    public JpegSharpnessEstimator(int gridColumns, int gridRows) {
+        mGridColumns = gridColumns;
+        mGridRows = gridRows;
+        mCellEnergy = new double[gridColumns * gridRows];
+        mCellBlocks = new int[gridColumns * gridRows];
+        for (int i = 0; i < 4; i++) {
+            mDcTables[i] = new HuffmanTable();
+            mAcTables[i] = new HuffmanTable();
+        }
+    }
+
+    /**
+     * Scores a JPEG.
+     *
+     * @param jpeg The JPEG data, from its position to its limit. The buffer is not modified.
+     * @return The sharpness of the frame
+     * @throws IllegalArgumentException If the data isn't a baseline JPEG or is corrupted
+     */
+    public Result estimate(ByteBuffer jpeg) {
+        mData = jpeg;
+        mPosition = jpeg.position();
+        mLimit = jpeg.limit();
+        mRestartInterval = 0;
+        mComponentCount = 0;
+        for (int i = 0; i < 4; i++) {
+            mDcTables[i].defined = false;
+            mAcTables[i].defined = false;
+        }
+        try {
+            if (readMarker() != MARKER_SOI) {
+                throw new IllegalArgumentException("Not a JPEG");
+            }
+            while (true) {
+                int marker = readMarker();
+                if (marker == MARKER_SOS) {
+                    if (readScanHeader()) {
+                        return decodeScan();
+                    }
+                    skipEntropyCodedData();
+                } else if (marker == MARKER_EOI) {
+                    throw new IllegalArgumentException("No luma scan in the JPEG");
+                } else {
+                    int length = readUnsignedShort();
+                    int end = mPosition + length - 2;
+                    switch (marker) {
+                        case MARKER_DQT:
+                            readQuantTables(end);
+                            break;
+                        case MARKER_DHT:
+                            readHuffmanTables(end);
+                            break;
+                        case MARKER_SOF0:
+                        case MARKER_SOF1:
+                            readFrameHeader();
+                            break;
+                        case MARKER_DRI:
+                            mRestartInterval = readUnsignedShort();
+                            break;
+                        default:
+                            if (marker >= 0xC2 && marker <= 0xCF && marker != MARKER_DHT
+                                    && marker != 0xC8 && marker != 0xCC) {
+                                throw new IllegalArgumentException(
+                                        "Unsupported JPEG process: SOF" + (marker - 0xC0));
+                            }
+                            // APPn, COM and other segments are skipped.
+                            break;
+                    }
+                    mPosition = end;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated JPEG", e);
+        } finally {
+            mData = null;
+        }
+    }
+
+    private int readMarker() {
+        if (readUnsignedByte() != 0xFF) {
+            throw new IllegalArgumentException("Marker expected at " + (mPosition - 1));
+        }
+        int marker = readUnsignedByte();
+        while (marker == 0xFF) {
+            // Fill bytes
+            marker = readUnsignedByte();
+        }
+        return marker;
+    }
+
+    private int readUnsignedByte() {
+        if (mPosition >= mLimit) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mData.get(mPosition++) & 0xFF;
+    }
+
+    private int readUnsignedShort() {
+        return (readUnsignedByte() << 8) | readUnsignedByte();
+    }
+
+    private void readQuantTables(int end) {
+        while (mPosition < end) {
+            int info = readUnsignedByte();
+            int[] table = mQuantTables[info & 3];
+            boolean sixteenBits = (info >> 4) != 0;
+            for (int k = 0; k < 64; k++) {
+                table[k] = sixteenBits ? readUnsignedShort() : readUnsignedByte();
+            }
+        }
+    }
+
+    private void readHuffmanTables(int end) {
+        while (mPosition < end) {
+            int info = readUnsignedByte();
+            HuffmanTable table = (info >> 4) == 0 ? mDcTables[info & 3] : mAcTables[info & 3];
+            int total = 0;
+            for (int length = 1; length <= 16; length++) {
+                mCounts[length] = readUnsignedByte();
+                total += mCounts[length];
+            }
+            if (total > 256) {
+                throw new IllegalArgumentException("Bad Huffman table");
+            }
+            for (int i = 0; i < total; i++) {
+                table.values[i] = readUnsignedByte();
+            }
+            table.build(mCounts);
+        }
+    }
+
+    private void readFrameHeader() {
+        if (readUnsignedByte() != 8) {
+            throw new IllegalArgumentException("Only 8 bit JPEGs are supported");
+        }
+        mHeight = readUnsignedShort();
+        mWidth = readUnsignedShort();
+        mComponentCount = readUnsignedByte();
+        if (mHeight == 0 || mWidth == 0 || mComponentCount < 1 || mComponentCount > 4) {
+            throw new IllegalArgumentException("Bad frame header");
+        }
+        mMaxHorizontalSampling = 1;
+        mMaxVerticalSampling = 1;
+        for (int i = 0; i < mComponentCount; i++) {
+            mComponentIds[i] = readUnsignedByte();
+            int sampling = readUnsignedByte();
+            mHorizontalSampling[i] = Math.max(1, sampling >> 4);
+            mVerticalSampling[i] = Math.max(1, sampling & 15);
+            mQuantTableIndex[i] = readUnsignedByte() & 3;
+            mMaxHorizontalSampling = Math.max(mMaxHorizontalSampling, mHorizontalSampling[i]);
+            mMaxVerticalSampling = Math.max(mMaxVerticalSampling, mVerticalSampling[i]);
+        }
+    }
+
+    /**
+     * Reads the header of a scan.
+     *
+     * @return Whether the scan contains the luma component
+     */
+    private boolean readScanHeader() {
+        if (mComponentCount == 0) {
+            throw new IllegalArgumentException("Scan before frame header");
+        }
+        int length = readUnsignedShort();
+        int end = mPosition + length - 2;
+        int count = readUnsignedByte();
+        if (count < 1 || count > mComponentCount) {
+            throw new IllegalArgumentException("Bad scan header");
+        }
+        boolean hasLuma = false;
+        for (int i = 0; i < count; i++) {
+            int id = readUnsignedByte();
+            int tables = readUnsignedByte();
+            int component = -1;
+            for (int c = 0; c < mComponentCount; c++) {
+                if (mComponentIds[c] == id) {
+                    component = c;
+                }
+            }
+            if (component < 0) {
+                throw new IllegalArgumentException("Unknown component in scan: " + id);
+            }
+            hasLuma |= component == 0;
+            mScanComponents[i] = component;
+            mScanDcTables[i] = (tables >> 4) & 3;
+            mScanAcTables[i] = tables & 3;
+        }
+        for (int i = count; i < 4; i++) {
+            mScanComponents[i] = -1;
+        }
+        mPosition = end;
+        return hasLuma;
+    }
+
+    private int getScanComponentCount() {
+        int count = 0;
+        while (count < 4 && mScanComponents[count] >= 0) {
+            count++;
+        }
+        return count;
+    }
+
+    private Result decodeScan() {
+        int scanComponents = getScanComponentCount();
+        for (int i = 0; i < scanComponents; i++) {
+            if (!mDcTables[mScanDcTables[i]].defined || !mAcTables[mScanAcTables[i]].defined) {
+                throw new IllegalArgumentException("Missing Huffman table");
+            }
+        }
+        java.util.Arrays.fill(mCellEnergy, 0);
+        java.util.Arrays.fill(mCellBlocks, 0);
+        java.util.Arrays.fill(mDcSums, 0);
+        java.util.Arrays.fill(mDcBlocks, 0);
+        java.util.Arrays.fill(mDcPredictors, 0);
+        mBitBuffer = 0;
+        mBitCount = 0;
+        mHitMarker = false;
+
+        // Size of the luma plane in blocks
+        int lumaBlocksX = (mWidth * mHorizontalSampling[0] + 8 * mMaxHorizontalSampling - 1)
+                / (8 * mMaxHorizontalSampling);
+        int lumaBlocksY = (mHeight * mVerticalSampling[0] + 8 * mMaxVerticalSampling - 1)
+                / (8 * mMaxVerticalSampling);
+        mLumaBlocksX = lumaBlocksX;
+        mLumaBlocksY = lumaBlocksY;
+        int hashSize = PerceptualHash.SIZE;
+
+        int mcusX;
+        int mcusY;
+        if (scanComponents == 1) {
+            // Non-interleaved scan: one block per MCU.
+            mcusX = lumaBlocksX;
+            mcusY = lumaBlocksY;
+        } else {
+            mcusX = (mWidth + 8 * mMaxHorizontalSampling - 1) / (8 * mMaxHorizontalSampling);
+            mcusY = (mHeight + 8 * mMaxVerticalSampling - 1) / (8 * mMaxVerticalSampling);
+        }
+
+        int[] lumaQuant = mQuantTables[mQuantTableIndex[0]];
+        int mcusToRestart = mRestartInterval;
+        for (int mcuY = 0; mcuY < mcusY; mcuY++) {
+            for (int mcuX = 0; mcuX < mcusX; mcuX++) {
+                if (mRestartInterval > 0) {
+                    if (mcusToRestart == 0) {
+                        processRestart();
+                        mcusToRestart = mRestartInterval;
+                    }
+                    mcusToRestart--;
+                }
+                for (int i = 0; i < scanComponents; i++) {
+                    int component = mScanComponents[i];
+                    HuffmanTable dc = mDcTables[mScanDcTables[i]];
+                    HuffmanTable ac = mAcTables[mScanAcTables[i]];
+                    int blocksH = scanComponents == 1 ? 1 : mHorizontalSampling[component];
+                    int blocksV = scanComponents == 1 ? 1 : mVerticalSampling[component];
+                    for (int v = 0; v < blocksV; v++) {
+                        for (int h = 0; h < blocksH; h++) {
+                            mDcPredictors[i] += decodeDc(dc);
+                            if (component != 0) {
+                                decodeAc(ac, null);
+                                continue;
+                            }
+                            double energy = decodeAc(ac, lumaQuant);
+                            int blockX = mcuX * blocksH + h;
+                            int blockY = mcuY * blocksV + v;
+                            if (blockX < lumaBlocksX && blockY < lumaBlocksY) {
+                                int cell = (blockY * mGridRows / lumaBlocksY) * mGridColumns
+                                        + blockX * mGridColumns / lumaBlocksX;
+                                mCellEnergy[cell] += energy;
+                                mCellBlocks[cell]++;
+                                int dcCell = (blockY * hashSize / lumaBlocksY) * hashSize
+                                        + blockX * hashSize / lumaBlocksX;
+                                mDcSums[dcCell] += mDcPredictors[i];
+                                mDcBlocks[dcCell]++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        double totalEnergy = 0;
+        int totalBlocks = 0;
+        float[] regionScores = new float[mCellEnergy.length];
+        for (int cell = 0; cell < mCellEnergy.length; cell++) {
+            totalEnergy += mCellEnergy[cell];
+            totalBlocks += mCellBlocks[cell];
+            regionScores[cell] = mCellBlocks[cell] == 0
+                    ? 0 : (float) Math.sqrt(mCellEnergy[cell] / mCellBlocks[cell]);
+        }
+        return new Result(mWidth, mHeight, Math.sqrt(totalEnergy / Math.max(1, totalBlocks)),
+                mGridColumns, mGridRows, regionScores);
+    }
+
+    /**
+     * Gets the luma of the last frame scored, from the DC coefficients of its blocks. The values
+     * are proportional to the mean luma of the areas, up to an offset.
+     *
+     * @param plane Receives the {@link PerceptualHash#SIZE} square plane, row by row
+     */
+    public void getLumaPlane(float[] plane) {
+        int size = PerceptualHash.SIZE;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int cell = y * size + x;
+                if (mDcBlocks[cell] == 0 && mLumaBlocksX > 0 && mLumaBlocksY > 0) {
+                    // Fewer blocks than cells: the cell of the nearest block is used.
+                    int blockX = x * mLumaBlocksX / size;
+                    int blockY = y * mLumaBlocksY / size;
+                    cell = (blockY * size / mLumaBlocksY) * size + blockX * size / mLumaBlocksX;
+                }
+                plane[y * size + x] = mDcBlocks[cell] == 0 ? 0 : mDcSums[cell] / mDcBlocks[cell];
+            }
+        }
+    }
+
+    private int decodeDc(HuffmanTable table) {
+        int size = decodeHuffman(table);
+        return size == 0 ? 0 : receiveExtend(size);
+    }
+
+    /**
+     * Decodes the AC coefficients of a block.
+     *
+     * @param quant The quantization table of the block, or null if we only need to skip it
+     * @return The dequantized high-frequency energy of the block
+     */
+    private double decodeAc(HuffmanTable table, int[] quant) {
+        double energy = 0;
+        int k = 1;
+        while (k < 64) {
+            int runSize = decodeHuffman(table);
+            int run = runSize >> 4;
+            int size = runSize & 15;
+            if (size == 0) {
+                if (run != 15) {
+                    // End of block
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+            k += run;
+            if (k > 63) {
+                throw new IllegalArgumentException("Corrupted JPEG data");
+            }
+            int value = receiveExtend(size);
+            if (null != quant && HIGH_FREQUENCY[k]) {
+                double coefficient = value * quant[k];
+                energy += coefficient * coefficient;
+            }
+            k++;
+        }
+        return energy;
+    }
+
+    private int decodeHuffman(HuffmanTable table) {
+        if (mBitCount < 16) {
+            fillBits();
+        }
+        int peek = (int) (mBitBuffer >>> (mBitCount - HuffmanTable.LOOKAHEAD_BITS))
+                & ((1 << HuffmanTable.LOOKAHEAD_BITS) - 1);
+        int entry = table.lookahead[peek];
+        if (entry != 0) {
+            mBitCount -= entry >> 8;
+            return entry & 0xFF;
+        }
+        for (int length = HuffmanTable.LOOKAHEAD_BITS + 1; length <= 16; length++) {
+            int code = (int) (mBitBuffer >>> (mBitCount - length)) & ((1 << length) - 1);
+            if (code <= table.maxCode[length]) {
+                mBitCount -= length;
+                return table.values[code + table.valueOffset[length]];
+            }
+        }
+        throw new IllegalArgumentException("Corrupted JPEG data: bad Huffman code");
+    }
+
+    private int receiveExtend(int size) {
+        if (mBitCount < size) {
+            fillBits();
+        }
+        mBitCount -= size;
+        int value = (int) (mBitBuffer >>> mBitCount) & ((1 << size) - 1);
+        if (value < (1 << (size - 1))) {
+            value += (-1 << size) + 1;
+        }
+        return value;
+    }
+
+    /**
+     * Fills the bit buffer with entropy-coded bytes, removing the stuffed zero bytes. Once a
+     * marker is reached, zero bits are fed instead.
+     */
+    private void fillBits() {
+        while (mBitCount <= 56) {
+            int b = 0;
+            if (!mHitMarker) {
+                if (mPosition >= mLimit) {
+                    mHitMarker = true;
+                } else {
+                    b = mData.get(mPosition) & 0xFF;
+                    if (b == 0xFF) {
+                        int next = mPosition + 1 < mLimit ? mData.get(mPosition + 1) & 0xFF : -1;
+                        if (next == 0) {
+                            mPosition += 2;
+                        } else {
+                            mHitMarker = true;
+                            b = 0;
+                        }
+                    } else {
+                        mPosition++;
+                    }
+                }
+            }
+            mBitBuffer = (mBitBuffer << 8) | b;
+            mBitCount += 8;
+        }
+    }
+
+    /**
+     * Skips to the data following the next restart marker and resets the decoder state.
+     */
+    private void processRestart() {
+        mBitBuffer = 0;
+        mBitCount = 0;
+        mHitMarker = false;
+        java.util.Arrays.fill(mDcPredictors, 0);
+        while (mPosition + 1 < mLimit) {
+            if ((mData.get(mPosition) & 0xFF) == 0xFF) {
+                int marker = mData.get(mPosition + 1) & 0xFF;
+                if (marker >= MARKER_RST0 && marker <= MARKER_RST7) {
+                    mPosition += 2;
+                    return;
+                }
+                if (marker != 0 && marker != 0xFF) {
+                    // Another marker: the data is truncated, decoding goes on with zero bits.
+                    return;
+                }
+            }
+            mPosition++;
+        }
+    }
+
+    /**
+     * Skips the entropy-coded data of a scan we don't need, up to the next marker that isn't a
+     * restart marker.
+     */
+    private void skipEntropyCodedData() {
+        while (mPosition + 1 < mLimit) {
+            if ((mData.get(mPosition) & 0xFF) == 0xFF) {
+                int marker = mData.get(mPosition + 1) & 0xFF;
+                if (marker != 0 && marker != 0xFF
+                        && (marker < MARKER_RST0 || marker > MARKER_RST7)) {
+                    return;
+                }
+            }
+            mPosition++;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the thumbnail and the orientation in the EXIF segment of a JPEG, and picks how much to
+ * subsample the JPEG itself when there is no thumbnail.
+ * <p/>
+ * This class has no Android dependency.
+ */
+public final class JpegThumbnail {
+
+    public static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    public static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    private JpegThumbnail() {
+    }
+
+    /**
+     * @param jpeg The JPEG, from its position to its limit. Its position is left unchanged.
+     * @return The embedded thumbnail, as a slice of the JPEG buffer, or null if there is none
+     */
+    public static ByteBuffer find(ByteBuffer jpeg) {
+        ByteBuffer data = jpeg.duplicate();
+        data.order(ByteOrder.BIG_ENDIAN);
+        int segment = findExifSegment(data);
+        if (segment < 0) {
+            return null;
+        }
+        int length = data.getShort(segment + 2) & 0xFFFF;
+        return findInTiff(data, segment + 4 + JpegMetadataWriter.EXIF_ID.length,
+                length - 2 - JpegMetadataWriter.EXIF_ID.length);
+    }
+
+    /**
+     * @param jpeg The JPEG, from its position to its limit
+     * @return The EXIF orientation of the JPEG, {@link JpegMetadataWriter#ORIENTATION_NORMAL} if
+     * it has none
+     */
+    public static int readOrientation(ByteBuffer jpeg) {
+        ByteBuffer data = jpeg.duplicate();
+        data.order(ByteOrder.BIG_ENDIAN);
+        int segment = findExifSegment(data);
+        if (segment < 0) {
+            return JpegMetadataWriter.ORIENTATION_NORMAL;
+        }
+        int length = data.getShort(segment + 2) & 0xFFFF;
+        return JpegMetadataWriter.readOrientation(data,
+                segment + 4 + JpegMetadataWriter.EXIF_ID.length,
+                length - 2 - JpegMetadataWriter.EXIF_ID.length,
+                JpegMetadataWriter.ORIENTATION_NORMAL);
+    }
+
+    /**
+     * Picks the {@code BitmapFactory.Options.inSampleSize} to decode an image with: the largest
+     * power of 2 that keeps the decoded image at least as large as the target.
+     */
+    public static int computeSampleSize(int width, int height, int targetWidth,
+                                        int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return The offset of the EXIF segment of a JPEG, or -1 if it has none
+     */
+    private static int findExifSegment(ByteBuffer data) {
+        int start = data.position();
+        int end = data.limit();
+        if (end - start < 4 || (data.getShort(start) & 0xFFFF) != JpegMetadataWriter.SOI) {
+            return -1;
+        }
+        int offset = start + 2;
+        while (offset + 4 <= end) {
+            int marker = data.getShort(offset) & 0xFFFF;
+            if (marker < JpegMetadataWriter.APP0 || marker > 0xFFEF) {
+                // The EXIF segment comes before the frame.
+                return -1;
+            }
+            int length = data.getShort(offset + 2) & 0xFFFF;
+            if (length < 2 || offset + 2 + length > end) {
+                return -1;
+            }
+            if (marker == JpegMetadataWriter.APP1 && isExif(data, offset, length)) {
+                return offset;
+            }
+            offset += 2 + length;
+        }
+        return -1;
+    }
+
+    private static boolean isExif(ByteBuffer data, int offset, int length) {
+        byte[] id = JpegMetadataWriter.EXIF_ID;
+        if (length - 2 < id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (data.get(offset + 4 + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The thumbnail referenced by the second IFD of a TIFF structure, or null
+     */
+    private static ByteBuffer findInTiff(ByteBuffer data, int tiff, int size) {
+        if (size < 8) {
+            return null;
+        }
+        int byteOrder = data.getShort(tiff) & 0xFFFF;
+        if (byteOrder == 0x4949) {
+            data.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != 0x4D4D) {
+            return null;
+        }
+        if (data.getShort(tiff + 2) != 42) {
+            return null;
+        }
+        long ifd0 = data.getInt(tiff + 4) & 0xFFFFFFFFL;
+        if (ifd0 + 2 > size) {
+            return null;
+        }
+        long next = ifd0 + 2
+                + (data.getShort(tiff + (int) ifd0) & 0xFFFF) * (long) IFD_ENTRY_SIZE;
+        if (next + 4 > size) {
+            return null;
+        }
+        long ifd1 = data.getInt(tiff + (int) next) & 0xFFFFFFFFL;
+        if (ifd1 == 0 || ifd1 + 2 > size) {
+            return null;
+        }
+        int count = data.getShort(tiff + (int) ifd1) & 0xFFFF;
+        long thumbnailOffset = -1;
+        long thumbnailLength = -1;
+        for (int i = 0; i < count; i++) {
+            long entry = ifd1 + 2 + (long) i * IFD_ENTRY_SIZE;
+            if (entry + IFD_ENTRY_SIZE > size) {
+                return null;
+            }
+            int position = tiff + (int) entry;
+            int tag = data.getShort(position) & 0xFFFF;
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                thumbnailOffset = data.getInt(position + 8) & 0xFFFFFFFFL;
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                thumbnailLength = data.getInt(position + 8) & 0xFFFFFFFFL;
+            }
+        }
+        if (thumbnailOffset < 0 || thumbnailLength < 4
+                || thumbnailOffset + thumbnailLength > size) {
+            return null;
+        }
+        int thumbnailStart = tiff + (int) thumbnailOffset;
+        data.order(ByteOrder.BIG_ENDIAN);
+        if ((data.getShort(thumbnailStart) & 0xFFFF) != JpegMetadataWriter.SOI) {
+            return null;
+        }
+        data.limit(thumbnailStart + (int) thumbnailLength);
+        data.position(thumbnailStart);
+        return data.slice();
+    }
+
+}
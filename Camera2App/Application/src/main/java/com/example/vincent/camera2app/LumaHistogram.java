@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The histogram of the luma plane of a YUV frame.
+ * <p/>
+ * The rows are copied in bulk into a scratch array, which is only reallocated when a wider frame
+ * comes: computing the histogram of frames of the same size allocates nothing.
+ * <p/>
+ * This class has no Android dependency and is not thread safe.
+ */
+public class LumaHistogram {
+
+    public static final int BINS = 256;
+
+    private final int[] mBins = new int[BINS];
+    private int mCount = 0;
+
+    private byte[] mRow = new byte[0];
+
+    /**
+     * Computes the histogram of a luma plane, replacing the previous one.
+     *
+     * @param plane       The plane, from {@code Image.Plane.getBuffer()}. Its position is left
+     *                    unchanged.
+     * @param width       The width of the plane in pixels
+     * @param height      The height of the plane in pixels
+     * @param rowStride   The distance between two rows in bytes
+     * @param pixelStride The distance between two pixels of a row in bytes
+     * @param step        Only every {@code step}th pixel of every {@code step}th row is counted
+     */
+    public void compute(ByteBuffer plane, int width, int height, int rowStride, int pixelStride,
+                        int step) {
+        java.util.Arrays.fill(mBins, 0);
+        mCount = 0;
+        int rowLength = (width - 1) * pixelStride + 1;
+        if (mRow.length < rowLength) {
+            mRow = new byte[rowLength];
+        }
+        int start = plane.position();
+        int sampleStride = pixelStride * step;
+        try {
+            for (int y = 0; y < height; y += step) {
+                plane.position(start + y * rowStride);
+                plane.get(mRow, 0, rowLength);
+                for (int offset = 0; offset < rowLength; offset += sampleStride) {
+                    mBins[mRow[offset] & 0xFF]++;
+                }
+                mCount += (rowLength + sampleStride - 1) / sampleStride;
+            }
+        } finally {
+            plane.position(start);
+        }
+    }
+
+    /**
+     * @return The number of pixels counted
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getBin(int luma) {
+        return mBins[luma];
+    }
+
+    /**
+     * @return The mean luma, or 0 if no pixel was counted
+     */
+    public double getMean() {
+        if (mCount == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < BINS; i++) {
+            sum += (long) i * mBins[i];
+        }
+        return (double) sum / mCount;
+    }
+
+    /**
+     * @param fraction The fraction of the pixels, from 0 to 1
+     * @return The smallest luma that at least this fraction of the pixels don't exceed
+     */
+    public int getPercentile(double fraction) {
+        long threshold = (long) Math.ceil(fraction * mCount);
+        long cumulated = 0;
+        for (int i = 0; i < BINS; i++) {
+            cumulated += mBins[i];
+            if (cumulated >= threshold && cumulated > 0) {
+                return i;
+            }
+        }
+        return BINS - 1;
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+/**
+ * Coalesces manual exposure and ISO changes and tracks when they actually take effect.
+ * <p/>
+ * At most one change is in flight: while the camera hasn't applied it, newer requests replace each
+ * other and only the latest one is submitted afterwards. Every submitted repeating request is
+ * tagged with a generation number, so that its results can be recognized. A change is considered
+ * applied once a result of its request reports the requested values, or once
+ * {@code SYNC_MAX_LATENCY} frames went by since its first result.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class ManualSettingsController {
+
+    /**
+     * Value of {@code CameraCharacteristics.SYNC_MAX_LATENCY} when the latency is unknown.
+     */
+    public static final int LATENCY_UNKNOWN = -1;
+
+    /**
+     * Number of frames after which we assume settings are applied when the latency is unknown
+     * and the results never report the exact requested values.
+     */
+    static final int UNKNOWN_LATENCY_FRAMES = 8;
+
+    /**
+     * Relative difference under which a reported value matches the requested one. The HAL rounds
+     * exposure times to its line time.
+     */
+    private static final double VALUE_TOLERANCE = 0.02;
+
+    /**
+     * Manual exposure settings to submit on a repeating request.
+     */
+    public static final class Submission {
+
+        public final long exposure;
+        public final int iso;
+
+        /**
+         * The tag to set on the request, so that {@link #onResult} can recognize its results.
+         */
+        public final int generation;
+
+        Submission(long exposure, int iso, int generation) {
+            this.exposure = exposure;
+            this.iso = iso;
+            this.generation = generation;
+        }
+
+    }
+
+    private final int mMaxLatency;
+
+    private int mGeneration = 0;
+
+    private Submission mInFlight;
+    private long mInFlightSubmitTime;
+    private long mInFlightFirstFrame = -1;
+
+    private boolean mHasPending = false;
+    private long mPendingExposure;
+    private int mPendingIso;
+
+    private long mAppliedExposure = 0;
+    private int mAppliedIso = 0;
+
+    private long mLastLatency = 0;
+    private long mLastLatencyFrames = 0;
+    private long mTotalLatency = 0;
+    private int mAppliedCount = 0;
+
+    /**
+     * @param maxLatency The value of {@code CameraCharacteristics.SYNC_MAX_LATENCY}
+     */
+    public ManualSettingsController(int maxLatency) {
+        mMaxLatency = maxLatency;
+    }
+
+    /**
+     * Requests new settings.
+     *
+     * @param exposure The exposure time in ns
+     * @param iso      The sensitivity
+     * @param now      The current time in ns
+     * @return The settings to submit right away, or null if the request was coalesced with the
+     * one in flight or nothing changed
+     */
+    public synchronized Submission request(long exposure, int iso, long now) {
+        if (null != mInFlight) {
+            if (exposure == mInFlight.exposure && iso == mInFlight.iso) {
+                mHasPending = false;
+            } else {
+                mHasPending = true;
+                mPendingExposure = exposure;
+                mPendingIso = iso;
+            }
+            return null;
+        }
+        if (exposure == mAppliedExposure && iso == mAppliedIso) {
+            return null;
+        }
+        return submit(exposure, iso, now);
+    }
+
+    /**
+     * Must be called with every completed result of the repeating request.
+     *
+     * @param tag        The tag of the request of the result
+     * @param frameNumber The frame number of the result
+     * @param exposure   The reported exposure time, or null
+     * @param iso        The reported sensitivity, or null
+     * @param now        The current time in ns
+     * @return The pending settings to submit now that the in-flight ones got applied, or null
+     */
+    public synchronized Submission onResult(Object tag, long frameNumber, Long exposure,
+                                            Integer iso, long now) {
+        if (null == mInFlight || !(tag instanceof Integer)
+                || (Integer) tag != mInFlight.generation) {
+            return null;
+        }
+        if (mInFlightFirstFrame < 0) {
+            mInFlightFirstFrame = frameNumber;
+        }
+        long frames = frameNumber - mInFlightFirstFrame;
+        boolean valuesMatch = null != exposure && null != iso
+                && matches(exposure, mInFlight.exposure) && matches(iso, mInFlight.iso);
+        boolean latencyElapsed = mMaxLatency == LATENCY_UNKNOWN
+                ? frames >= UNKNOWN_LATENCY_FRAMES : frames >= mMaxLatency;
+        if (!valuesMatch && !latencyElapsed) {
+            return null;
+        }
+
+        mAppliedExposure = mInFlight.exposure;
+        mAppliedIso = mInFlight.iso;
+        mLastLatency = now - mInFlightSubmitTime;
+        mLastLatencyFrames = frames;
+        mTotalLatency += mLastLatency;
+        mAppliedCount++;
+        mInFlight = null;
+
+        if (mHasPending) {
+            mHasPending = false;
+            return submit(mPendingExposure, mPendingIso, now);
+        }
+        return null;
+    }
+
+    /**
+     * @return Whether the preview runs with the last requested settings, so that a burst can
+     * be taken with them
+     */
+    public synchronized boolean isSettled() {
+        return null == mInFlight && !mHasPending;
+    }
+
+    /**
+     * Forgets the in-flight and pending settings. Must be called when the capture session is
+     * closed.
+     */
+    public synchronized void reset() {
+        mInFlight = null;
+        mHasPending = false;
+        mAppliedExposure = 0;
+        mAppliedIso = 0;
+    }
+
+    /**
+     * @return The time in ns between the submission of the last applied settings and the result
+     * that showed them applied
+     */
+    public synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    /**
+     * @return The number of frames between the first result of the last applied settings and the
+     * result that showed them applied
+     */
+    public synchronized long getLastLatencyFrames() {
+        return mLastLatencyFrames;
+    }
+
+    /**
+     * @return The average settings-to-effect latency in ns, or 0 if nothing was applied yet
+     */
+    public synchronized long getAverageLatency() {
+        return mAppliedCount == 0 ? 0 : mTotalLatency / mAppliedCount;
+    }
+
+    private Submission submit(long exposure, int iso, long now) {
+        mInFlight = new Submission(exposure, iso, ++mGeneration);
+        mInFlightSubmitTime = now;
+        mInFlightFirstFrame = -1;
+        return mInFlight;
+    }
+
+    private static boolean matches(long reported, long requested) {
+        return Math.abs(reported - requested) <= requested * VALUE_TOLERANCE;
+    }
+
+}
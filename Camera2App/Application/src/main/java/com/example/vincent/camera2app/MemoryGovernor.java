@@ -0,0 +1,288 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the memory taken by the frame buffers, caches and processing buffers of the app under a
+ * budget.
+ * <p/>
+ * Every owner of large buffers registers an {@link Account} and reports the bytes it holds. When
+ * the total goes over the limit, the owners that can give memory back are asked to, in the order
+ * of their {@code order}: the caches first, the buffers that would have to be rebuilt last. The
+ * limit is the budget, lowered under memory pressure by {@link #onTrimMemory(int)}.
+ * <p/>
+ * The accounting is lock-free: reserving and releasing memory only update atomic counters, so
+ * that the camera threads never wait on it. This class has no Android dependency and is thread
+ * safe.
+ */
+public class MemoryGovernor {
+
+    /**
+     * The levels of {@code ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    /**
+     * Fraction of the memory class of the app given to the governed buffers. The rest is left to
+     * the views, the bitmaps of the UI and the camera framework.
+     */
+    public static final double BUDGET_FRACTION = 0.5;
+
+    /**
+     * Gives memory back when the governor asks.
+     */
+    public interface Reclaimer {
+
+        /**
+         * Called on the thread that went over the limit. The memory can be given back later on
+         * another thread, as long as the account is updated then.
+         *
+         * @param bytes The number of bytes to free
+         */
+        void reclaim(long bytes);
+
+    }
+
+    /**
+     * The memory held by one owner.
+     */
+    public final class Account {
+
+        public final String name;
+        private final int mOrder;
+        private final Reclaimer mReclaimer;
+        private final AtomicLong mBytes = new AtomicLong();
+
+        private Account(String name, int order, Reclaimer reclaimer) {
+            this.name = name;
+            mOrder = order;
+            mReclaimer = reclaimer;
+        }
+
+        /**
+         * Reserves memory only if it fits under the limit.
+         *
+         * @return Whether the memory was reserved
+         */
+        public boolean tryReserve(long bytes) {
+            while (true) {
+                long total = mTotal.get();
+                if (total + bytes > mLimit) {
+                    return false;
+                }
+                if (mTotal.compareAndSet(total, total + bytes)) {
+                    mBytes.addAndGet(bytes);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Reserves memory the owner can't do without, and makes the other owners give memory
+         * back if it doesn't fit.
+         */
+        public void reserve(long bytes) {
+            mBytes.addAndGet(bytes);
+            if (mTotal.addAndGet(bytes) > mLimit) {
+                enforce();
+            }
+        }
+
+        public void release(long bytes) {
+            mBytes.addAndGet(-bytes);
+            mTotal.addAndGet(-bytes);
+        }
+
+        /**
+         * Reports the memory held, for owners that track it themselves.
+         */
+        public void set(long bytes) {
+            long delta = bytes - mBytes.getAndSet(bytes);
+            if (mTotal.addAndGet(delta) > mLimit && delta > 0) {
+                enforce();
+            }
+        }
+
+        public long getBytes() {
+            return mBytes.get();
+        }
+
+        /**
+         * Releases the memory of the account and forgets it.
+         */
+        public void unregister() {
+            set(0);
+            synchronized (mAccountsLock) {
+                List<Account> accounts = new ArrayList<Account>(mAccounts);
+                accounts.remove(this);
+                mAccounts = accounts;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + mBytes.get() / 1024 + " kB";
+        }
+
+    }
+
+    private static final Comparator<Account> BY_ORDER = new Comparator<Account>() {
+        @Override
+        public int compare(Account lhs, Account rhs) {
+            return lhs.mOrder < rhs.mOrder ? -1 : lhs.mOrder > rhs.mOrder ? 1 : 0;
+        }
+    };
+
+    private final long mBudget;
+    private volatile long mLimit;
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicBoolean mEnforcing = new AtomicBoolean();
+
+    /**
+     * The accounts by order, replaced as a whole when one is added or removed, so that they can
+     * be read without a lock.
+     */
+    private volatile List<Account> mAccounts = Collections.emptyList();
+    private final Object mAccountsLock = new Object();
+
+    /**
+     * @param budget The memory the governed buffers can take without pressure, in bytes
+     */
+    public MemoryGovernor(long budget) {
+        mBudget = budget;
+        mLimit = budget;
+    }
+
+    /**
+     * @param memoryClass The memory class of the app, from
+     *                    {@code ActivityManager#getMemoryClass()}, in MB
+     * @return The budget of the governed buffers, in bytes
+     */
+    public static long getBudget(int memoryClass) {
+        return (long) (memoryClass * 1024L * 1024L * BUDGET_FRACTION);
+    }
+
+    /**
+     * @param order     The order the accounts give memory back in, lowest first
+     * @param reclaimer Gives memory back, or null if the owner can't
+     */
+    public Account register(String name, int order, Reclaimer reclaimer) {
+        Account account = new Account(name, order, reclaimer);
+        synchronized (mAccountsLock) {
+            List<Account> accounts = new ArrayList<Account>(mAccounts);
+            accounts.add(account);
+            Collections.sort(accounts, BY_ORDER);
+            mAccounts = accounts;
+        }
+        return account;
+    }
+
+    /**
+     * Lowers the limit for a level of memory pressure, and frees the memory over it.
+     *
+     * @param level A level of {@code ComponentCallbacks2#onTrimMemory(int)}, or 0 when the
+     *              pressure is over
+     */
+    public void onTrimMemory(int level) {
+        double fraction;
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // The process is next to be killed: keep nothing that can be given back.
+            fraction = 0;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Includes the levels where the UI is hidden: the caches aren't seen anyway.
+            fraction = 0.25;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            fraction = 0.5;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            fraction = 0.75;
+        } else {
+            fraction = 1;
+        }
+        mLimit = (long) (mBudget * fraction);
+        enforce();
+    }
+
+    /**
+     * @param count     The number of buffers wanted
+     * @param bytesEach The size of one buffer
+     * @param minCount  The number of buffers needed whatever the memory left
+     * @return The number of buffers, between the two counts, that fit in the memory left
+     */
+    public int fitCount(int count, long bytesEach, int minCount) {
+        long left = mLimit - mTotal.get();
+        long fitting = bytesEach <= 0 ? count : Math.max(0, left) / bytesEach;
+        return (int) Math.max(minCount, Math.min(count, fitting));
+    }
+
+    /**
+     * Asks the accounts to give memory back until the total is under the limit. Does nothing if
+     * another thread is already at it.
+     *
+     * @return Whether the total is under the limit
+     */
+    public boolean enforce() {
+        if (!mEnforcing.compareAndSet(false, true)) {
+            return mTotal.get() <= mLimit;
+        }
+        try {
+            for (Account account : mAccounts) {
+                long over = mTotal.get() - mLimit;
+                if (over <= 0) {
+                    break;
+                }
+                if (null != account.mReclaimer && account.getBytes() > 0) {
+                    account.mReclaimer.reclaim(Math.min(over, account.getBytes()));
+                }
+            }
+            return mTotal.get() <= mLimit;
+        } finally {
+            mEnforcing.set(false);
+        }
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    public long getLimit() {
+        return mLimit;
+    }
+
+    public long getBytesInUse() {
+        return mTotal.get();
+    }
+
+    @Override
+    public String toString() {
+        return mTotal.get() / 1024 + " of " + mLimit / 1024 + " kB (budget " + mBudget / 1024
+                + " kB): " + mAccounts;
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+/**
+ * The point spread function of the camera shake during one exposure.
+ * <p/>
+ * The kernel is the density of the image displacement over the exposure, centered on its mean so
+ * that deconvolving doesn't shift the image. This class has no Android dependency.
+ */
+public final class MotionBlurKernel {
+
+    /**
+     * The width and height of the kernel, always odd.
+     */
+    public final int size;
+
+    /**
+     * The weights of the kernel row by row, summing to 1. The center of the kernel is at
+     * ({@code size / 2}, {@code size / 2}).
+     */
+    public final float[] weights;
+
+    /**
+     * The length of the trajectory, in pixels.
+     */
+    public final float length;
+
+    private final float[] mXs;
+    private final float[] mYs;
+
+    private MotionBlurKernel(int size, float[] weights, float length, float[] xs, float[] ys) {
+        this.size = size;
+        this.weights = weights;
+        this.length = length;
+        mXs = xs;
+        mYs = ys;
+    }
+
+    /**
+     * Builds the kernel of a trajectory sampled at evenly spaced times.
+     *
+     * @param xs      The horizontal displacements, in pixels
+     * @param ys      The vertical displacements, in pixels
+     * @param maxSize The largest kernel we accept
+     * @return The kernel, or null if it would be larger than {@code maxSize}
+     */
+    public static MotionBlurKernel fromTrajectory(float[] xs, float[] ys, int maxSize) {
+        int count = Math.min(xs.length, ys.length);
+        if (count == 0) {
+            throw new IllegalArgumentException("Empty trajectory");
+        }
+        double centerX = 0;
+        double centerY = 0;
+        for (int i = 0; i < count; i++) {
+            centerX += xs[i];
+            centerY += ys[i];
+        }
+        centerX /= count;
+        centerY /= count;
+
+        float[] dxs = new float[count];
+        float[] dys = new float[count];
+        double extent = 0;
+        double length = 0;
+        for (int i = 0; i < count; i++) {
+            dxs[i] = (float) (xs[i] - centerX);
+            dys[i] = (float) (ys[i] - centerY);
+            extent = Math.max(extent, Math.max(Math.abs(dxs[i]), Math.abs(dys[i])));
+            if (i > 0) {
+                length += Math.hypot(dxs[i] - dxs[i - 1], dys[i] - dys[i - 1]);
+            }
+        }
+        int radius = (int) Math.ceil(extent) + 1;
+        int size = 2 * radius + 1;
+        if (size > maxSize) {
+            return null;
+        }
+
+        // Every sample spends the same time at its position: splat them bilinearly.
+        float[] weights = new float[size * size];
+        float sampleWeight = 1f / count;
+        for (int i = 0; i < count; i++) {
+            float x = radius + dxs[i];
+            float y = radius + dys[i];
+            int x0 = (int) Math.floor(x);
+            int y0 = (int) Math.floor(y);
+            float fx = x - x0;
+            float fy = y - y0;
+            weights[y0 * size + x0] += sampleWeight * (1 - fx) * (1 - fy);
+            weights[y0 * size + x0 + 1] += sampleWeight * fx * (1 - fy);
+            weights[(y0 + 1) * size + x0] += sampleWeight * (1 - fx) * fy;
+            weights[(y0 + 1) * size + x0 + 1] += sampleWeight * fx * fy;
+        }
+        return new MotionBlurKernel(size, weights, (float) length, dxs, dys);
+    }
+
+    /**
+     * Builds the kernel of a rotation of the device, as integrated by {@link GyroTrace}.
+     * <p/>
+     * Small rotations around the x and y axes of the device translate the image of the back
+     * camera; the rotation around the optical axis, which blurs the corners more than the center,
+     * is ignored.
+     *
+     * @param angles             The rotation angles around the x and y axes of the device, in
+     *                           radians, as {x0, y0, x1, y1, ...}
+     * @param focalLengthPixels  The focal length of the lens, in pixels of the image
+     * @param sensorOrientation  The value of {@code CameraCharacteristics.SENSOR_ORIENTATION}
+     * @param maxSize            The largest kernel we accept
+     * @return The kernel in image coordinates, or null if it would be larger than {@code maxSize}
+     */
+    public static MotionBlurKernel fromRotation(float[] angles, float focalLengthPixels,
+                                                int sensorOrientation, int maxSize) {
+        int count = angles.length / 2;
+        float[] xs = new float[count];
+        float[] ys = new float[count];
+        double radians = Math.toRadians(sensorOrientation);
+        double cos = Math.cos(radians);
+        double sin = Math.sin(radians);
+        for (int i = 0; i < count; i++) {
+            // Turning the device left (positive y) moves the scene right on the screen, tilting
+            // it up (positive x) moves the scene down.
+            double screenX = focalLengthPixels * angles[2 * i + 1];
+            double screenY = focalLengthPixels * angles[2 * i];
+            // The sensor image is rotated clockwise by the sensor orientation to be upright.
+            xs[i] = (float) (cos * screenX + sin * screenY);
+            ys[i] = (float) (-sin * screenX + cos * screenY);
+        }
+        return fromTrajectory(xs, ys, maxSize);
+    }
+
+    /**
+     * @return A straight motion blur, mostly useful to test the deconvolution
+     */
+    public static MotionBlurKernel linear(float length, float angleDegrees, int maxSize) {
+        int count = Math.max(2, (int) Math.ceil(length * 4));
+        float[] xs = new float[count];
+        float[] ys = new float[count];
+        double radians = Math.toRadians(angleDegrees);
+        for (int i = 0; i < count; i++) {
+            float distance = length * i / (count - 1);
+            xs[i] = (float) (distance * Math.cos(radians));
+            ys[i] = (float) (distance * Math.sin(radians));
+        }
+        return fromTrajectory(xs, ys, maxSize);
+    }
+
+    /**
+     * @return This kernel for an image scaled by {@code factor}, or null if it would be larger
+     * than {@code maxSize}
+     */
+    public MotionBlurKernel scale(float factor, int maxSize) {
+        float[] xs = new float[mXs.length];
+        float[] ys = new float[mYs.length];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = mXs[i] * factor;
+            ys[i] = mYs[i] * factor;
+        }
+        return fromTrajectory(xs, ys, maxSize);
+    }
+
+    /**
+     * @param degrees A clockwise rotation of the image, a multiple of 90 as in
+     *                {@code JPEG_ORIENTATION}
+     * @return This kernel for the rotated image, or null if it would be larger than
+     * {@code maxSize}
+     */
+    public MotionBlurKernel rotate(int degrees, int maxSize) {
+        int quarters = (degrees / 90 % 4 + 4) % 4;
+        float[] xs = new float[mXs.length];
+        float[] ys = new float[mYs.length];
+        for (int i = 0; i < xs.length; i++) {
+            // The image coordinates point right and down: a quarter turn moves right to down.
+            switch (quarters) {
+                case 1:
+                    xs[i] = -mYs[i];
+                    ys[i] = mXs[i];
+                    break;
+                case 2:
+                    xs[i] = -mXs[i];
+                    ys[i] = -mYs[i];
+                    break;
+                case 3:
+                    xs[i] = mYs[i];
+                    ys[i] = -mXs[i];
+                    break;
+                default:
+                    xs[i] = mXs[i];
+                    ys[i] = mYs[i];
+                    break;
+            }
+        }
+        return fromTrajectory(xs, ys, maxSize);
+    }
+
+    /**
+     * @return The horizontal displacements of the trajectory of the kernel, centered on their
+     * mean, to rebuild it with {@link #fromTrajectory}
+     */
+    public float[] getTrajectoryXs() {
+        return mXs.clone();
+    }
+
+    /**
+     * @return The vertical displacements of the trajectory of the kernel, centered on their mean
+     */
+    public float[] getTrajectoryYs() {
+        return mYs.clone();
+    }
+
+    /**
+     * @return The weight at the given offset from the center of the kernel
+     */
+    public float getWeight(int dx, int dy) {
+        int radius = size / 2;
+        return weights[(dy + radius) * size + dx + radius];
+    }
+
+    @Override
+    public String toString() {
+        return size + "x" + size + " kernel, " + length + " px long";
+    }
+
+}
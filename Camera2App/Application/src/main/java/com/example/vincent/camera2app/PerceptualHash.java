@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.Arrays;
+
+/**
+ * Computes the DCT perceptual hash of a frame: the 2D DCT of a {@link #SIZE}x{@link #SIZE} luma
+ * plane is taken, and each of its 8x8 lowest frequencies gives one bit of the hash, set when the
+ * coefficient is above the median. Frames of the same scene get hashes a few bits apart, whatever
+ * their exposure and compression.
+ * <p/>
+ * The DC coefficient is left out, so the hash bit 0 is always clear. Only the 8 lowest
+ * frequencies of each row are computed, and the scratch arrays are allocated once: computing a
+ * hash allocates nothing.
+ * <p/>
+ * An instance is not thread safe.
+ */
+public class PerceptualHash {
+
+    /**
+     * The width and height of the luma plane a hash is computed from.
+     */
+    public static final int SIZE = 32;
+
+    private static final int FREQUENCIES = 8;
+
+    /**
+     * The DCT-II basis, by frequency then sample. The normalization is left out: it doesn't change
+     * the order of the coefficients of a frequency band.
+     */
+    private static final float[] COSINES = new float[FREQUENCIES * SIZE];
+
+    static {
+        for (int u = 0; u < FREQUENCIES; u++) {
+            for (int x = 0; x < SIZE; x++) {
+                COSINES[u * SIZE + x] = (float) Math.cos((2 * x + 1) * u * Math.PI / (2 * SIZE));
+            }
+        }
+    }
+
+    private final float[] mPlane = new float[SIZE * SIZE];
+
+    /**
+     * The horizontal transform of each row, by row then frequency.
+     */
+    private final float[] mRows = new float[SIZE * FREQUENCIES];
+    private final float[] mCoefficients = new float[FREQUENCIES * FREQUENCIES];
+    private final float[] mSorted = new float[FREQUENCIES * FREQUENCIES - 1];
+
+    /**
+     * @param estimator The estimator that scored the frame last
+     * @return The hash of the frame, from its DC coefficients
+     */
+    public long compute(JpegSharpnessEstimator estimator) {
+        estimator.getLumaPlane(mPlane);
+        return compute(mPlane);
+    }
+
+    /**
+     * @param plane The luma plane, {@link #SIZE} by {@link #SIZE}, row by row
+     * @return The hash of the plane
+     */
+    public long compute(float[] plane) {
+        if (plane.length < SIZE * SIZE) {
+            throw new IllegalArgumentException("The plane must be " + SIZE + "x" + SIZE);
+        }
+        for (int y = 0; y < SIZE; y++) {
+            int row = y * SIZE;
+            for (int u = 0; u < FREQUENCIES; u++) {
+                int basis = u * SIZE;
+                float sum = 0;
+                for (int x = 0; x < SIZE; x++) {
+                    sum += plane[row + x] * COSINES[basis + x];
+                }
+                mRows[y * FREQUENCIES + u] = sum;
+            }
+        }
+        for (int v = 0; v < FREQUENCIES; v++) {
+            int basis = v * SIZE;
+            for (int u = 0; u < FREQUENCIES; u++) {
+                float sum = 0;
+                for (int y = 0; y < SIZE; y++) {
+                    sum += mRows[y * FREQUENCIES + u] * COSINES[basis + y];
+                }
+                mCoefficients[v * FREQUENCIES + u] = sum;
+            }
+        }
+
+        // The 63 AC coefficients are sorted in place: short primitive arrays are sorted without
+        // allocating.
+        System.arraycopy(mCoefficients, 1, mSorted, 0, mSorted.length);
+        Arrays.sort(mSorted);
+        float median = mSorted[mSorted.length / 2];
+        long hash = 0;
+        for (int i = 1; i < mCoefficients.length; i++) {
+            if (mCoefficients[i] > median) {
+                hash |= 1L << i;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return The number of bits that differ between two hashes
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link PerceptualHash}es of the frames saved recently, to find whether a new frame is a
+ * near duplicate of one of them.
+ * <p/>
+ * The index holds at most a given number of hashes, and forgets the least recently saved or
+ * matched one first. A query compares the hash to all of them: at a few hundred entries, this is
+ * a few hundred bit counts.
+ * <p/>
+ * This class is thread safe.
+ */
+public class PerceptualHashIndex {
+
+    private final int mMaxDistance;
+
+    /**
+     * The name of the frame of each hash, least recently used first.
+     */
+    private final LinkedHashMap<Long, String> mEntries;
+
+    /**
+     * @param capacity    The number of hashes to keep
+     * @param maxDistance The largest number of differing bits of two near duplicates
+     */
+    public PerceptualHashIndex(final int capacity, int maxDistance) {
+        mMaxDistance = maxDistance;
+        mEntries = new LinkedHashMap<Long, String>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Finds the frame closest to a hash. A match counts as a use of its entry.
+     *
+     * @return The name of the closest frame within the maximum distance, or null if there is none
+     */
+    public synchronized String findMatch(long hash) {
+        Long best = null;
+        int bestDistance = mMaxDistance + 1;
+        for (Long key : mEntries.keySet()) {
+            int distance = PerceptualHash.distance(hash, key);
+            if (distance < bestDistance) {
+                best = key;
+                bestDistance = distance;
+            }
+        }
+        return null == best ? null : mEntries.get(best);
+    }
+
+    /**
+     * Records a saved frame, evicting the least recently used one if the index is full.
+     */
+    public synchronized void add(long hash, String name) {
+        mEntries.put(hash, name);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The post-processing of a captured burst, as recorded by {@link ProcessingJobQueue}: export the
+ * selected frame of its container, then restore it if it is blurred.
+ * <p/>
+ * The record of a job is written as:
+ * <pre>
+ *   int   MAGIC
+ *   int   VERSION
+ *   long  id
+ *   int   attempts
+ *   UTF   container path
+ *   UTF   exported JPEG path
+ *   UTF   restored JPEG path, or an empty string
+ *   boolean whether to export the selected frame
+ *   int   kernel trajectory length, 0 without kernel
+ *   int   kernel size
+ *   the trajectory: floats xs, then floats ys
+ * </pre>
+ * This class has no Android dependency.
+ */
+public final class ProcessingJob {
+
+    static final int MAGIC = 0x504A4F42; // PJOB
+    static final int VERSION = 1;
+
+    /**
+     * Increases with the capture time: the newest jobs have the largest ids.
+     */
+    public final long id;
+
+    public final File container;
+    public final File exported;
+
+    /**
+     * The restored picture, or null if the picture is not to be restored.
+     */
+    public final File restored;
+
+    /**
+     * Whether the selected frame is exported, false for a near duplicate of a saved frame.
+     */
+    public final boolean export;
+
+    /**
+     * The blur of the selected frame, or null if it is not to be restored.
+     */
+    public final MotionBlurKernel kernel;
+
+    /**
+     * The number of times the processing of the job started.
+     */
+    int attempts;
+
+    public ProcessingJob(long id, File container, File exported, File restored, boolean export,
+                         MotionBlurKernel kernel) {
+        this.id = id;
+        this.container = container;
+        this.exported = exported;
+        this.restored = null == kernel ? null : restored;
+        this.export = export;
+        this.kernel = null == restored ? null : kernel;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    void write(DataOutputStream output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeLong(id);
+        output.writeInt(attempts);
+        output.writeUTF(container.getPath());
+        output.writeUTF(exported.getPath());
+        output.writeUTF(null == restored ? "" : restored.getPath());
+        output.writeBoolean(export);
+        float[] xs = null == kernel ? new float[0] : kernel.getTrajectoryXs();
+        float[] ys = null == kernel ? new float[0] : kernel.getTrajectoryYs();
+        output.writeInt(xs.length);
+        output.writeInt(null == kernel ? 0 : kernel.size);
+        for (float x : xs) {
+            output.writeFloat(x);
+        }
+        for (float y : ys) {
+            output.writeFloat(y);
+        }
+    }
+
+    /**
+     * @throws IOException If the record is truncated or not a job record
+     */
+    static ProcessingJob read(DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Not a job record");
+        }
+        long id = input.readLong();
+        int attempts = input.readInt();
+        File container = new File(input.readUTF());
+        File exported = new File(input.readUTF());
+        String restored = input.readUTF();
+        boolean export = input.readBoolean();
+        int count = input.readInt();
+        int kernelSize = input.readInt();
+        if (count < 0 || count > 1 << 16) {
+            throw new IOException("Invalid kernel trajectory length " + count);
+        }
+        MotionBlurKernel kernel = null;
+        if (count > 0) {
+            float[] xs = new float[count];
+            float[] ys = new float[count];
+            for (int i = 0; i < count; i++) {
+                xs[i] = input.readFloat();
+            }
+            for (int i = 0; i < count; i++) {
+                ys[i] = input.readFloat();
+            }
+            // The same trajectory gives the same kernel, give or take a rounding of its radius.
+            kernel = MotionBlurKernel.fromTrajectory(xs, ys, kernelSize + 2);
+        }
+        ProcessingJob job = new ProcessingJob(id, container, exported,
+                restored.isEmpty() ? null : new File(restored), export, kernel);
+        job.attempts = attempts;
+        return job;
+    }
+
+    @Override
+    public String toString() {
+        return "job " + id + " (" + container.getName() + ")";
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Runs the {@link ProcessingJob}s of the captured bursts on a worker thread of its own, which
+ * outlives the camera and its background thread.
+ * <p/>
+ * Every job is recorded in a file of the queue directory before it is queued, and the record is
+ * only deleted once the job is done, so that the jobs left by a killed process are resumed by the
+ * next {@link #start()}. The newest jobs are processed first: the user is more likely to look at
+ * the last picture. A job that fails, or whose processing was interrupted by the death of the
+ * process, is retried up to {@link #MAX_ATTEMPTS} times. A job whose processor throws a
+ * {@link CancellationException}, because it was superseded by a newer one, is put back in the
+ * queue without counting an attempt.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class ProcessingJobQueue {
+
+    public static final String EXTENSION = ".job";
+
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Processes the jobs, on the worker thread.
+     */
+    public interface Processor {
+
+        void process(ProcessingJob job) throws IOException;
+
+    }
+
+    /**
+     * A snapshot of the activity of the queue.
+     */
+    public static final class Metrics {
+
+        public final int submitted;
+        public final int completed;
+        public final int failed;
+
+        /**
+         * The number of jobs waiting or being processed.
+         */
+        public final int backlog;
+
+        /**
+         * The average processing time of a completed job, in ns.
+         */
+        public final long averageProcessingTime;
+
+        /**
+         * Completed jobs per minute of worker time, processing or waiting since the first job.
+         */
+        public final double throughput;
+
+        Metrics(int submitted, int completed, int failed, int backlog,
+                long averageProcessingTime, double throughput) {
+            this.submitted = submitted;
+            this.completed = completed;
+            this.failed = failed;
+            this.backlog = backlog;
+            this.averageProcessingTime = averageProcessingTime;
+            this.throughput = throughput;
+        }
+
+        @Override
+        public String toString() {
+            return completed + "/" + submitted + " jobs done, " + failed + " failed, "
+                    + backlog + " left, " + averageProcessingTime / 1000000 + " ms per job, "
+                    + String.format("%.1f", throughput) + " jobs/min";
+        }
+
+    }
+
+    private static final Comparator<ProcessingJob> NEWEST_FIRST
+            = new Comparator<ProcessingJob>() {
+        @Override
+        public int compare(ProcessingJob lhs, ProcessingJob rhs) {
+            return lhs.id < rhs.id ? 1 : lhs.id > rhs.id ? -1 : 0;
+        }
+    };
+
+    private final File mDirectory;
+    private final Processor mProcessor;
+    private final PriorityBlockingQueue<ProcessingJob> mJobs
+            = new PriorityBlockingQueue<ProcessingJob>(16, NEWEST_FIRST);
+
+    private Thread mWorker;
+    private long mLastId = 0;
+
+    /**
+     * The jobs submitted or loaded whose record is not deleted yet.
+     */
+    private final Set<ProcessingJob> mPending = new HashSet<ProcessingJob>();
+
+    private int mSubmitted = 0;
+    private int mCompleted = 0;
+    private int mFailed = 0;
+    private int mInProgress = 0;
+    private long mTotalProcessingTime = 0;
+    private long mFirstJobTime = -1;
+
+    /**
+     * @param directory The directory of the job records, created if needed
+     * @param processor Processes the jobs
+     */
+    public ProcessingJobQueue(File directory, Processor processor) {
+        mDirectory = directory;
+        mProcessor = processor;
+    }
+
+    /**
+     * Queues the jobs left in the directory that are not queued yet, and starts the worker thread.
+     */
+    public synchronized void start() {
+        if (null != mWorker) {
+            return;
+        }
+        Set<Long> queued = new HashSet<Long>();
+        for (ProcessingJob job : mJobs) {
+            queued.add(job.id);
+        }
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                if (!file.getName().endsWith(EXTENSION)) {
+                    continue;
+                }
+                try {
+                    ProcessingJob job = readRecord(file);
+                    if (queued.contains(job.id)) {
+                        continue;
+                    }
+                    mLastId = Math.max(mLastId, job.id);
+                    mPending.add(job);
+                    mJobs.add(job);
+                    mSubmitted++;
+                } catch (IOException e) {
+                    // A record that was being written when the process died.
+                    e.printStackTrace();
+                    file.delete();
+                }
+            }
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "ProcessingJobQueue");
+        mWorker.setPriority(Thread.MIN_PRIORITY);
+        mWorker.start();
+    }
+
+    /**
+     * Stops the worker thread once its current job is done. The queued jobs stay recorded.
+     */
+    public void stop() throws InterruptedException {
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+            mWorker = null;
+        }
+        if (null != worker) {
+            worker.interrupt();
+            worker.join();
+        }
+    }
+
+    /**
+     * @return An id larger than the ids of all the jobs so far, from the current time
+     */
+    public synchronized long newJobId() {
+        mLastId = Math.max(mLastId + 1, System.currentTimeMillis());
+        return mLastId;
+    }
+
+    /**
+     * Records a job and queues it. Only writes a small file: the caller doesn't wait for the
+     * processing.
+     */
+    public void submit(ProcessingJob job) throws IOException {
+        writeRecord(job);
+        synchronized (this) {
+            mLastId = Math.max(mLastId, job.id);
+            mPending.add(job);
+            mSubmitted++;
+        }
+        mJobs.add(job);
+    }
+
+    /**
+     * @return The containers of the jobs waiting or being processed
+     */
+    public synchronized Set<File> getPendingContainers() {
+        Set<File> containers = new HashSet<File>();
+        for (ProcessingJob job : mPending) {
+            containers.add(job.container);
+        }
+        return containers;
+    }
+
+    public synchronized Metrics getMetrics() {
+        long elapsed = mFirstJobTime < 0 ? 0 : System.nanoTime() - mFirstJobTime;
+        return new Metrics(mSubmitted, mCompleted, mFailed, mJobs.size() + mInProgress,
+                mCompleted == 0 ? 0 : mTotalProcessingTime / mCompleted,
+                elapsed <= 0 ? 0 : mCompleted * 60e9 / elapsed);
+    }
+
+    File getRecordFile(ProcessingJob job) {
+        return new File(mDirectory, "job_" + job.id + EXTENSION);
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            ProcessingJob job;
+            try {
+                job = mJobs.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = System.nanoTime();
+            synchronized (this) {
+                mInProgress++;
+                if (mFirstJobTime < 0) {
+                    mFirstJobTime = start;
+                }
+            }
+            boolean done = false;
+            boolean cancelled = false;
+            try {
+                // Counted before the processing, so that a job that kills the process isn't
+                // retried forever.
+                job.attempts++;
+                writeRecord(job);
+                mProcessor.process(job);
+                done = true;
+            } catch (CancellationException e) {
+                cancelled = true;
+                job.attempts--;
+                try {
+                    writeRecord(job);
+                } catch (IOException writeError) {
+                    writeError.printStackTrace();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            boolean retry = cancelled || (!done && job.attempts < MAX_ATTEMPTS);
+            if (!retry) {
+                getRecordFile(job).delete();
+            }
+            synchronized (this) {
+                if (!retry) {
+                    mPending.remove(job);
+                }
+                mInProgress--;
+                if (done) {
+                    mCompleted++;
+                    mTotalProcessingTime += System.nanoTime() - start;
+                } else if (!retry) {
+                    mFailed++;
+                }
+            }
+            if (retry) {
+                mJobs.add(job);
+            }
+        }
+    }
+
+    /**
+     * Writes the record of a job next to its file and renames it, so that a record is either
+     * complete or absent.
+     */
+    private void writeRecord(ProcessingJob job) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        File file = getRecordFile(job);
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            job.write(output);
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    private static ProcessingJob readRecord(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            return ProcessingJob.read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+}
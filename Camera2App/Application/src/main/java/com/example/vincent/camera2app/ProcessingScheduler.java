@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the analysis and encoding work of the bursts on a bounded pool, the work of the burst the
+ * user is looking at first.
+ * <p/>
+ * The tasks run by priority, {@link #PRIORITY_CURRENT_BURST} first, then the newest burst first,
+ * then in the order they were submitted. A task that is already running is not preempted, but long
+ * tasks check {@link Task#checkCancelled()} between their tiles: when a newer burst becomes
+ * current, the work left on the older ones is cancelled, archival work included, so that nothing
+ * waiting for it holds up the newer burst. It can be submitted again as archival work.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class ProcessingScheduler {
+
+    /**
+     * The work of the burst the user is looking at.
+     */
+    public static final int PRIORITY_CURRENT_BURST = 0;
+
+    /**
+     * The thumbnails of the review strip.
+     */
+    public static final int PRIORITY_REVIEW = 1;
+
+    /**
+     * The work of the older bursts, which nobody is waiting for.
+     */
+    public static final int PRIORITY_ARCHIVAL = 2;
+
+    /**
+     * Threads of the camera pipeline that the pool leaves their core to: the camera background
+     * thread and the thread of the camera service callbacks.
+     */
+    public static final int CAMERA_THREADS = 2;
+
+    /**
+     * Work that can be cancelled between its steps.
+     */
+    public interface Work<T> {
+
+        /**
+         * @param task The task running the work, to check for cancellation
+         */
+        T run(Task<T> task) throws Exception;
+
+    }
+
+    /**
+     * A submitted piece of work, and its result.
+     */
+    public final class Task<T> extends FutureTask<T> {
+
+        public final int priority;
+        public final long burstId;
+        private final long mSequence;
+
+        private Task(Runner<T> runner, int priority, long burstId) {
+            super(runner);
+            runner.mTask = this;
+            this.priority = priority;
+            this.burstId = burstId;
+            mSequence = mSequences.getAndIncrement();
+        }
+
+        /**
+         * To be called by the work between its steps.
+         *
+         * @throws CancellationException If the task was cancelled
+         */
+        public void checkCancelled() {
+            if (isCancelled()) {
+                throw new CancellationException(toString() + " cancelled");
+            }
+        }
+
+        @Override
+        protected void done() {
+            synchronized (mTasks) {
+                mTasks.remove(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "task " + mSequence + " (priority " + priority + ", burst " + burstId + ")";
+        }
+
+    }
+
+    /**
+     * Runs the work of a task, with the task.
+     */
+    private static final class Runner<T> implements Callable<T> {
+
+        private final Work<T> mWork;
+        private Task<T> mTask;
+
+        Runner(Work<T> work) {
+            mWork = work;
+        }
+
+        @Override
+        public T call() throws Exception {
+            return mWork.run(mTask);
+        }
+
+    }
+
+    private static final Comparator<Runnable> ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            Task<?> left = (Task<?>) lhs;
+            Task<?> right = (Task<?>) rhs;
+            if (left.priority != right.priority) {
+                return left.priority < right.priority ? -1 : 1;
+            }
+            if (left.burstId != right.burstId) {
+                return left.burstId > right.burstId ? -1 : 1;
+            }
+            return left.mSequence < right.mSequence ? -1 : 1;
+        }
+    };
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequences = new AtomicLong();
+
+    /**
+     * The tasks submitted and not done yet.
+     */
+    private final Set<Task<?>> mTasks = new HashSet<Task<?>>();
+
+    private long mCurrentBurst = Long.MIN_VALUE;
+
+    /**
+     * Creates a pool of one thread per core left by the camera threads.
+     */
+    public ProcessingScheduler() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - CAMERA_THREADS));
+    }
+
+    /**
+     * @param threads The number of worker threads
+     */
+    public ProcessingScheduler(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(16, ORDER), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Processing-" + count.incrementAndGet());
+                // Below the camera and UI threads.
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        // The first tasks would otherwise skip the queue, whatever their priority.
+        mExecutor.prestartAllCoreThreads();
+    }
+
+    public int getThreadCount() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Queues some work.
+     *
+     * @param priority One of the {@code PRIORITY_} constants
+     * @param burstId  Increases with the capture time of the burst the work is for
+     */
+    public <T> Task<T> submit(Work<T> work, int priority, long burstId) {
+        Task<T> task = new Task<T>(new Runner<T>(work), priority, burstId);
+        synchronized (mTasks) {
+            mTasks.add(task);
+        }
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Makes a burst the current one, and cancels the {@link #PRIORITY_CURRENT_BURST} and
+     * {@link #PRIORITY_ARCHIVAL} work of the older bursts.
+     */
+    public void setCurrentBurst(long burstId) {
+        synchronized (mTasks) {
+            mCurrentBurst = Math.max(mCurrentBurst, burstId);
+        }
+        cancelOlder(PRIORITY_CURRENT_BURST, burstId);
+        // A job queue waiting for an archival restoration would not get to the newer burst.
+        cancelOlder(PRIORITY_ARCHIVAL, burstId);
+    }
+
+    /**
+     * @return Whether no newer burst than this one was made current
+     */
+    public boolean isCurrentBurst(long burstId) {
+        synchronized (mTasks) {
+            return burstId >= mCurrentBurst;
+        }
+    }
+
+    /**
+     * Cancels the tasks of a priority that belong to bursts older than the given one. The
+     * running tasks stop at their next check.
+     *
+     * @return The number of tasks cancelled
+     */
+    public int cancelOlder(int priority, long burstId) {
+        List<Task<?>> cancelled = new ArrayList<Task<?>>();
+        synchronized (mTasks) {
+            for (Task<?> task : mTasks) {
+                if (task.priority == priority && task.burstId < burstId) {
+                    cancelled.add(task);
+                }
+            }
+        }
+        for (Task<?> task : cancelled) {
+            task.cancel(false);
+            mExecutor.remove(task);
+        }
+        return cancelled.size();
+    }
+
+    /**
+     * @return The number of tasks submitted and not done yet
+     */
+    public int getPendingCount() {
+        synchronized (mTasks) {
+            return mTasks.size();
+        }
+    }
+
+    /**
+     * Cancels all the tasks and stops the threads.
+     */
+    public void shutdown() {
+        List<Task<?>> tasks;
+        synchronized (mTasks) {
+            tasks = new ArrayList<Task<?>>(mTasks);
+        }
+        for (Task<?> task : tasks) {
+            task.cancel(false);
+        }
+        mExecutor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Holds the RAW images of a burst until the selector has picked its frame, and writes the picked
+ * ones on a writer thread of its own, once their capture result is there too.
+ * <p/>
+ * The images are held in the buffers of their stream: there can't be more of them than
+ * {@code capacity}, which leaves the stream a buffer for the next frame. When a new image
+ * doesn't fit, the held image with the lowest score is given back, or the oldest if none is
+ * scored yet, so that the capture never waits for the writing. The images that are being
+ * written count as held.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ *
+ * @param <I> The type of the images
+ * @param <R> The type of the capture results
+ */
+public class RawFrameStore<I, R> {
+
+    /**
+     * Writes the images and gives them back to their stream.
+     */
+    public interface Sink<I, R> {
+
+        /**
+         * Called on the writer thread.
+         *
+         * @return The number of bytes written
+         */
+        long write(I image, R result, File file) throws IOException;
+
+        /**
+         * Gives an image back to its stream, whether it was written or not.
+         */
+        void release(I image);
+
+    }
+
+    /**
+     * The frames written so far.
+     */
+    public static final class Stats {
+
+        public final int written;
+        public final int failed;
+        public final int dropped;
+        public final long bytes;
+
+        /**
+         * The time spent writing, in nanoseconds.
+         */
+        public final long writeTime;
+
+        private Stats(int written, int failed, int dropped, long bytes, long writeTime) {
+            this.written = written;
+            this.failed = failed;
+            this.dropped = dropped;
+            this.bytes = bytes;
+            this.writeTime = writeTime;
+        }
+
+        /**
+         * @return The write throughput, in bytes per second
+         */
+        public double getThroughput() {
+            return writeTime > 0 ? bytes * 1e9 / writeTime : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d written (%d kB, %.1f MB/s), %d failed, %d dropped", written,
+                    bytes / 1024, getThroughput() / (1024 * 1024), failed, dropped);
+        }
+
+    }
+
+    private static final class Frame<I, R> {
+
+        final long timestamp;
+        I image;
+        R result;
+        float score = Float.NaN;
+        File file;
+
+        Frame(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+    }
+
+    private final int mCapacity;
+    private final Sink<I, R> mSink;
+    private final ExecutorService mWriter;
+
+    /**
+     * The frames not queued for writing yet, oldest first.
+     */
+    private final Map<Long, Frame<I, R>> mFrames = new LinkedHashMap<Long, Frame<I, R>>();
+    private int mHeld;
+    private int mWriting;
+    private boolean mClosed;
+
+    private int mWritten;
+    private int mFailed;
+    private int mDropped;
+    private long mBytes;
+    private long mWriteTime;
+
+    /**
+     * @param capacity The number of images that can be held at once
+     */
+    public RawFrameStore(int capacity, Sink<I, R> sink) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity " + capacity);
+        }
+        mCapacity = capacity;
+        mSink = sink;
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RawWriter");
+                // Below the camera and processing threads.
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Holds the image of a frame, giving back another image if there isn't room for both.
+     *
+     * @return Whether the image is held, rather than given back right away
+     */
+    public synchronized boolean addImage(long timestamp, I image) {
+        if (mClosed) {
+            mSink.release(image);
+            return false;
+        }
+        Frame<I, R> frame = getFrame(timestamp);
+        if (null != frame.image) {
+            mSink.release(frame.image);
+            mHeld--;
+        }
+        frame.image = image;
+        mHeld++;
+        if (mHeld > mCapacity) {
+            Frame<I, R> victim = findVictim(frame);
+            mSink.release(victim.image);
+            victim.image = null;
+            mHeld--;
+            mDropped++;
+            if (victim == frame) {
+                return false;
+            }
+        }
+        queueIfComplete(frame);
+        return true;
+    }
+
+    /**
+     * @param added The frame whose image was just added
+     * @return The held frame not picked for writing with the lowest score, or the oldest one if
+     * none is scored
+     */
+    private Frame<I, R> findVictim(Frame<I, R> added) {
+        Frame<I, R> oldest = null;
+        Frame<I, R> lowest = null;
+        for (Frame<I, R> frame : mFrames.values()) {
+            if (null == frame.image || null != frame.file) {
+                continue;
+            }
+            if (null == oldest) {
+                oldest = frame;
+            }
+            if (!Float.isNaN(frame.score) && (null == lowest || frame.score < lowest.score)) {
+                lowest = frame;
+            }
+        }
+        if (null != lowest) {
+            return lowest;
+        }
+        if (null != oldest) {
+            return oldest;
+        }
+        // All the held frames were picked: the new one goes.
+        return added;
+    }
+
+    public synchronized void addResult(long timestamp, R result) {
+        if (mClosed) {
+            return;
+        }
+        Frame<I, R> frame = getFrame(timestamp);
+        frame.result = result;
+        queueIfComplete(frame);
+    }
+
+    /**
+     * Scores a frame, so that the lowest scored images are given back first.
+     */
+    public synchronized void setScore(long timestamp, float score) {
+        Frame<I, R> frame = mFrames.get(timestamp);
+        if (null != frame) {
+            frame.score = score;
+        }
+    }
+
+    /**
+     * Picks a frame for writing. It is written as soon as its image and its result are both
+     * there.
+     */
+    public synchronized void keep(long timestamp, File file) {
+        if (mClosed) {
+            return;
+        }
+        Frame<I, R> frame = getFrame(timestamp);
+        frame.file = file;
+        queueIfComplete(frame);
+    }
+
+    /**
+     * Gives back the images of the frames that were not picked, and forgets the picked frames
+     * whose image was given back.
+     *
+     * @return The number of frames picked that are still waiting for their result
+     */
+    public synchronized int endBurst() {
+        int missing = 0;
+        Iterator<Frame<I, R>> frames = mFrames.values().iterator();
+        while (frames.hasNext()) {
+            Frame<I, R> frame = frames.next();
+            if (null != frame.file && null != frame.image) {
+                missing++;
+                continue;
+            }
+            if (null != frame.image) {
+                mSink.release(frame.image);
+                mHeld--;
+            }
+            frames.remove();
+        }
+        return missing;
+    }
+
+    private Frame<I, R> getFrame(long timestamp) {
+        Frame<I, R> frame = mFrames.get(timestamp);
+        if (null == frame) {
+            frame = new Frame<I, R>(timestamp);
+            mFrames.put(timestamp, frame);
+        }
+        return frame;
+    }
+
+    private void queueIfComplete(final Frame<I, R> frame) {
+        if (null == frame.image || null == frame.result || null == frame.file) {
+            return;
+        }
+        mFrames.remove(frame.timestamp);
+        mWriting++;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(frame);
+            }
+        });
+    }
+
+    private void write(Frame<I, R> frame) {
+        long start = System.nanoTime();
+        long bytes = -1;
+        try {
+            bytes = mSink.write(frame.image, frame.result, frame.file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            mSink.release(frame.image);
+            long time = System.nanoTime() - start;
+            synchronized (this) {
+                if (bytes >= 0) {
+                    mWritten++;
+                    mBytes += bytes;
+                    mWriteTime += time;
+                } else {
+                    mFailed++;
+                }
+                mHeld--;
+                mWriting--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return The number of images held, including the ones being written
+     */
+    public synchronized int getHeldCount() {
+        return mHeld;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mWritten, mFailed, mDropped, mBytes, mWriteTime);
+    }
+
+    /**
+     * Waits for the frames picked so far to be written, then gives back the other images and
+     * stops the writer thread. To be called before the stream of the images is closed.
+     *
+     * @param timeout The longest time to wait for the writing, in milliseconds
+     * @return Whether all the picked frames were written in time
+     */
+    public boolean close(long timeout) throws InterruptedException {
+        List<I> images = new ArrayList<I>();
+        boolean done;
+        synchronized (this) {
+            mClosed = true;
+            long deadline = System.currentTimeMillis() + timeout;
+            long left = timeout;
+            while (mWriting > 0 && left > 0) {
+                wait(left);
+                left = deadline - System.currentTimeMillis();
+            }
+            done = 0 == mWriting;
+            for (Frame<I, R> frame : mFrames.values()) {
+                if (null != frame.image) {
+                    images.add(frame.image);
+                    mHeld--;
+                }
+            }
+            mFrames.clear();
+        }
+        for (I image : images) {
+            mSink.release(image);
+        }
+        mWriter.shutdown();
+        return done;
+    }
+
+}
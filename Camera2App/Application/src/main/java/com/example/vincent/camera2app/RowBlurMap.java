@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+/**
+ * The motion blur of a frame, band of rows by band of rows.
+ * <p/>
+ * A rolling shutter sensor starts exposing each row {@code SENSOR_ROLLING_SHUTTER_SKEW / rows}
+ * after the previous one, so a short shake can blur the top of a frame and leave its bottom
+ * sharp. Each band gets the length of the image motion during its own exposure window, measured
+ * with the gyroscope. Maps are meant to be reused from frame to frame: {@link #compute} doesn't
+ * allocate.
+ * <p/>
+ * This class has no Android dependency.
+ */
+public final class RowBlurMap {
+
+    private final float[] mBlur;
+    private long mTimestamp;
+    private boolean mValid = false;
+
+    /**
+     * @param bands The number of bands of rows
+     */
+    public RowBlurMap(int bands) {
+        if (bands < 1) {
+            throw new IllegalArgumentException("At least one band is needed: " + bands);
+        }
+        mBlur = new float[bands];
+    }
+
+    /**
+     * Computes the map of a frame.
+     *
+     * @param trace              The gyroscope samples
+     * @param timestamp          The value of {@code SENSOR_TIMESTAMP}: the start of the exposure
+     *                           of the first row read out
+     * @param exposureTime       The value of {@code SENSOR_EXPOSURE_TIME}
+     * @param rollingShutterSkew The value of {@code SENSOR_ROLLING_SHUTTER_SKEW}: the time between
+     *                           the start of the first and the last row, or 0 for a global shutter
+     * @param focalLengthPixels  The focal length of the lens, in pixels of the image
+     * @param readoutTop         Where the first row of the image is in the readout, from 0 to 1
+     * @param readoutBottom      Where the last row of the image is in the readout, from 0 to 1
+     * @return Whether the map could be computed. If not, the gyroscope doesn't cover the frame.
+     */
+    public boolean compute(GyroTrace trace, long timestamp, long exposureTime,
+                           long rollingShutterSkew, float focalLengthPixels, float readoutTop,
+                           float readoutBottom) {
+        mTimestamp = timestamp;
+        mValid = true;
+        int bands = mBlur.length;
+        for (int band = 0; band < bands; band++) {
+            // The exposure window of the middle row of the band.
+            float row = readoutTop + (readoutBottom - readoutTop) * (band + 0.5f) / bands;
+            long start = timestamp + (long) (rollingShutterSkew * (double) row);
+            float angle = trace.pathLength(start, start + exposureTime);
+            if (Float.isNaN(angle)) {
+                mValid = false;
+                return false;
+            }
+            mBlur[band] = angle * focalLengthPixels;
+        }
+        return true;
+    }
+
+    /**
+     * @return The timestamp given to the last {@link #compute}
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return Whether the last {@link #compute} succeeded
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public int getBandCount() {
+        return mBlur.length;
+    }
+
+    /**
+     * @return The length of the motion blur of a band, in pixels
+     */
+    public float getBlur(int band) {
+        return mBlur[band];
+    }
+
+    /**
+     * @return The largest blur of all the bands, in pixels
+     */
+    public float getMaxBlur() {
+        float max = 0;
+        for (float blur : mBlur) {
+            max = Math.max(max, blur);
+        }
+        return max;
+    }
+
+    /**
+     * @param regions The regions of interest, in coordinates normalized to the image as read out
+     *                (not rotated)
+     * @return The blur of the bands, weighted by how much of the regions of interest they hold,
+     * in pixels; or the largest blur if the regions are empty
+     */
+    public float getWeightedBlur(Iterable<SharpnessRegion> regions) {
+        double weightedSum = 0;
+        double totalWeight = 0;
+        int bands = mBlur.length;
+        for (SharpnessRegion region : regions) {
+            for (int band = 0; band < bands; band++) {
+                double weight = region.weight
+                        * region.intersectionArea(0, (float) band / bands, 1,
+                        (float) (band + 1) / bands);
+                weightedSum += weight * mBlur[band];
+                totalWeight += weight;
+            }
+        }
+        return totalWeight > 0 ? (float) (weightedSum / totalWeight) : getMaxBlur();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Row blur");
+        for (float blur : mBlur) {
+            builder.append(' ').append(Math.round(blur * 10) / 10f);
+        }
+        return builder.toString();
+    }
+
+}
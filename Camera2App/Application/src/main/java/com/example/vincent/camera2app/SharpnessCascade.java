@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the sharpest frame of a burst of luma planes, touching as few pixels as possible.
+ * <p/>
+ * All frames are first scored on a coarse pyramid level, each pixel of which is the mean of a
+ * {@code factor} x {@code factor} tile of the frame. Building the level takes a single addition per
+ * pixel, and the gradients are then taken on factor^2 times fewer pixels. The level filters out
+ * the finest details, so it only tells the blurred frames from the sharper ones: the frames clearly
+ * worse than the best one are dropped, and only the few remaining ones are refined at full
+ * resolution, inside the regions of interest only. The score is the mean squared gradient.
+ * <p/>
+ * An instance is not thread safe.
+ */
+public class SharpnessCascade {
+
+    /**
+     * A luma plane, with its row stride. Pixels are one byte apart.
+     */
+    public static final class LumaPlane {
+
+        public final byte[] data;
+        public final int offset;
+        public final int width;
+        public final int height;
+        public final int rowStride;
+
+        public LumaPlane(byte[] data, int offset, int width, int height, int rowStride) {
+            this.data = data;
+            this.offset = offset;
+            this.width = width;
+            this.height = height;
+            this.rowStride = rowStride;
+        }
+
+    }
+
+    /**
+     * The outcome of {@link #select}.
+     */
+    public static final class Decision {
+
+        /**
+         * Index of the sharpest frame.
+         */
+        public final int selected;
+
+        /**
+         * Score of every frame on the coarse level.
+         */
+        public final double[] coarseScores;
+
+        /**
+         * Full resolution score inside the regions of interest, or {@link Double#NaN} for the
+         * frames that were not refined.
+         */
+        public final double[] fineScores;
+
+        public final int refinedCount;
+
+        /**
+         * Number of pixels read to take the decision.
+         */
+        public final long pixelsTouched;
+
+        Decision(int selected, double[] coarseScores, double[] fineScores, int refinedCount,
+                 long pixelsTouched) {
+            this.selected = selected;
+            this.coarseScores = coarseScores;
+            this.fineScores = fineScores;
+            this.refinedCount = refinedCount;
+            this.pixelsTouched = pixelsTouched;
+        }
+
+    }
+
+    private final int mFactor;
+    private final int mMaxRefined;
+    private final double mRejectRatio;
+
+    private long mPixelsTouched;
+
+    /**
+     * The coarse level of the frame being scored, reused from frame to frame.
+     */
+    private int[] mLevel = new int[0];
+
+    /**
+     * @param factor      The size of the tiles of the coarse level
+     * @param maxRefined  The maximum number of frames refined at full resolution
+     * @param rejectRatio Frames whose coarse score is below this ratio of the best coarse score are
+     *                    dropped
+     */
+    public SharpnessCascade(int factor, int maxRefined, double rejectRatio) {
+        if (factor < 2 || maxRefined < 1) {
+            throw new IllegalArgumentException("Bad cascade parameters");
+        }
+        mFactor = factor;
+        mMaxRefined = maxRefined;
+        mRejectRatio = rejectRatio;
+    }
+
+    /**
+     * Picks the sharpest frame.
+     *
+     * @param frames  The frames of the burst, all of the same size
+     * @param regions The regions of interest, or null to use {@link SharpnessRegion#center()}
+     * @return The decision
+     */
+    public Decision select(LumaPlane[] frames, List<SharpnessRegion> regions) {
+        if (frames.length == 0) {
+            throw new IllegalArgumentException("No frame to select from");
+        }
+        if (null == regions || regions.isEmpty()) {
+            regions = Collections.singletonList(SharpnessRegion.center());
+        }
+        mPixelsTouched = 0;
+
+        double[] coarseScores = new double[frames.length];
+        double bestCoarse = 0;
+        for (int i = 0; i < frames.length; i++) {
+            coarseScores[i] = scoreCoarse(frames[i]);
+            bestCoarse = Math.max(bestCoarse, coarseScores[i]);
+        }
+
+        // Keep the best frames that are not clear losers.
+        Integer[] order = new Integer[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            order[i] = i;
+        }
+        final double[] scores = coarseScores;
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(scores[rhs], scores[lhs]);
+            }
+        });
+        int candidates = 1;
+        while (candidates < frames.length && candidates < mMaxRefined
+                && coarseScores[order[candidates]] >= mRejectRatio * bestCoarse) {
+            candidates++;
+        }
+
+        double[] fineScores = new double[frames.length];
+        Arrays.fill(fineScores, Double.NaN);
+        int selected = order[0];
+        if (candidates > 1) {
+            double bestFine = -1;
+            for (int c = 0; c < candidates; c++) {
+                int i = order[c];
+                fineScores[i] = scoreRegions(frames[i], regions);
+                if (fineScores[i] > bestFine) {
+                    bestFine = fineScores[i];
+                    selected = i;
+                }
+            }
+        }
+        return new Decision(selected, coarseScores, fineScores, candidates > 1 ? candidates : 0,
+                mPixelsTouched);
+    }
+
+    /**
+     * Scores a whole frame at full resolution. This is what the cascade avoids, kept as a
+     * reference.
+     *
+     * @return The mean squared gradient of the frame
+     */
+    public static double scoreFullFrame(LumaPlane plane) {
+        return gradientEnergy(plane, 0, 0, plane.width, plane.height);
+    }
+
+    private double scoreCoarse(LumaPlane plane) {
+        int levelWidth = plane.width / mFactor;
+        int levelHeight = plane.height / mFactor;
+        if (levelWidth < 2 || levelHeight < 2) {
+            return scoreFullFrame(plane);
+        }
+        if (mLevel.length < levelWidth * levelHeight) {
+            mLevel = new int[levelWidth * levelHeight];
+        }
+        // The level holds the sums of the tiles rather than their means, so that nothing is
+        // lost to rounding.
+        int[] level = mLevel;
+        Arrays.fill(level, 0, levelWidth * levelHeight, 0);
+        byte[] data = plane.data;
+        for (int y = 0; y < levelHeight * mFactor; y++) {
+            int index = plane.offset + y * plane.rowStride;
+            int levelIndex = (y / mFactor) * levelWidth;
+            for (int x = 0; x < levelWidth; x++, levelIndex++) {
+                int sum = 0;
+                for (int end = index + mFactor; index < end; index++) {
+                    sum += data[index] & 0xFF;
+                }
+                level[levelIndex] += sum;
+            }
+        }
+        mPixelsTouched += (long) levelWidth * levelHeight * mFactor * mFactor;
+
+        long energy = 0;
+        for (int y = 0; y < levelHeight - 1; y++) {
+            int index = y * levelWidth;
+            for (int x = 0; x < levelWidth - 1; x++, index++) {
+                long dx = level[index + 1] - level[index];
+                long dy = level[index + levelWidth] - level[index];
+                energy += dx * dx + dy * dy;
+            }
+        }
+        // Back to the units of the mean luma of the tiles.
+        double tilePixels = mFactor * mFactor;
+        return energy / (tilePixels * tilePixels)
+                / ((long) (levelWidth - 1) * (levelHeight - 1));
+    }
+
+    private double scoreRegions(LumaPlane plane, List<SharpnessRegion> regions) {
+        double weightedSum = 0;
+        double totalWeight = 0;
+        for (SharpnessRegion region : regions) {
+            int left = (int) (region.left * plane.width);
+            int top = (int) (region.top * plane.height);
+            int right = (int) Math.ceil(region.right * plane.width);
+            int bottom = (int) Math.ceil(region.bottom * plane.height);
+            if (right - left < 2 || bottom - top < 2) {
+                continue;
+            }
+            weightedSum += region.weight * gradientEnergy(plane, left, top, right, bottom);
+            totalWeight += region.weight;
+            mPixelsTouched += (long) (right - left) * (bottom - top);
+        }
+        return totalWeight > 0 ? weightedSum / totalWeight : 0;
+    }
+
+    private static double gradientEnergy(LumaPlane plane, int left, int top, int right,
+                                         int bottom) {
+        byte[] data = plane.data;
+        long sum = 0;
+        for (int y = top; y < bottom - 1; y++) {
+            int index = plane.offset + y * plane.rowStride + left;
+            for (int x = left; x < right - 1; x++, index++) {
+                int value = data[index] & 0xFF;
+                int dx = (data[index + 1] & 0xFF) - value;
+                int dy = (data[index + plane.rowStride] & 0xFF) - value;
+                sum += dx * dx + dy * dy;
+            }
+        }
+        return (double) sum / ((right - left - 1) * (bottom - top - 1));
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+/**
+ * A weighted region of interest for sharpness scoring, in coordinates normalized to the frame:
+ * (0, 0) is the top-left corner of the frame and (1, 1) the bottom-right one.
+ */
+public final class SharpnessRegion {
+
+    public final float left;
+    public final float top;
+    public final float right;
+    public final float bottom;
+    public final float weight;
+
+    public SharpnessRegion(float left, float top, float right, float bottom, float weight) {
+        this.left = clamp(Math.min(left, right));
+        this.top = clamp(Math.min(top, bottom));
+        this.right = clamp(Math.max(left, right));
+        this.bottom = clamp(Math.max(top, bottom));
+        this.weight = weight;
+    }
+
+    /**
+     * @return The central region covering half the width and half the height of the frame, which
+     * is where the continuous auto focus of the preview focuses
+     */
+    public static SharpnessRegion center() {
+        return new SharpnessRegion(0.25f, 0.25f, 0.75f, 0.75f, 1);
+    }
+
+    /**
+     * @return The area of the intersection of this region with the given rectangle, in
+     * normalized units
+     */
+    public float intersectionArea(float left, float top, float right, float bottom) {
+        float width = Math.min(this.right, right) - Math.max(this.left, left);
+        float height = Math.min(this.bottom, bottom) - Math.max(this.top, top);
+        return width > 0 && height > 0 ? width * height : 0;
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(1, value));
+    }
+
+    @Override
+    public String toString() {
+        return "[" + left + ", " + top + " - " + right + ", " + bottom + "] x" + weight;
+    }
+
+}
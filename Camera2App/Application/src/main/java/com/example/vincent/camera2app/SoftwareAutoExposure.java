@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+/**
+ * Keeps the exposure of the manual mode right as the light changes, from the
+ * {@link LumaHistogram} of the frames.
+ * <p/>
+ * Each update brings the mean luma closer to {@link #TARGET_LUMA}. The exposure time is kept as
+ * long as possible for the least noise, but never longer than the maximum the user set to avoid
+ * motion blur: beyond it, the sensitivity goes up instead. Small errors are ignored and updates
+ * are spaced out, so that the settings don't flicker and the repeating request isn't rebuilt at
+ * every frame.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class SoftwareAutoExposure {
+
+    /**
+     * The mean luma of a well exposed frame: middle gray after the sRGB transfer curve.
+     */
+    public static final int TARGET_LUMA = 118;
+
+    /**
+     * Luma errors under this many stops are ignored.
+     */
+    private static final double DEADBAND_STOPS = 0.2;
+
+    /**
+     * Fraction of the error corrected at each update, so that the loop doesn't oscillate over the
+     * frames the camera takes to apply new settings.
+     */
+    private static final double DAMPING = 0.6;
+
+    private static final double MAX_STEP_STOPS = 2;
+
+    /**
+     * Luma is roughly exposure to the power of 1 / GAMMA.
+     */
+    private static final double GAMMA = 2.2;
+
+    /**
+     * The brightest pixels that must not be clipped when the exposure goes up.
+     */
+    private static final double HIGHLIGHT_FRACTION = 0.99;
+    private static final int CLIPPED_LUMA = 250;
+
+    /**
+     * Settings to apply.
+     */
+    public static final class Settings {
+
+        public final long exposure;
+        public final int iso;
+
+        public Settings(long exposure, int iso) {
+            this.exposure = exposure;
+            this.iso = iso;
+        }
+
+        @Override
+        public String toString() {
+            return exposure + " ns, ISO " + iso;
+        }
+
+    }
+
+    private final long mMinExposure;
+    private final long mMaxExposure;
+    private final int mMinIso;
+    private final int mMaxIso;
+    private final long mMinInterval;
+
+    private long mUserMaxExposure;
+    private boolean mUpdated = false;
+    private long mLastUpdate;
+
+    /**
+     * @param minExposure The shortest exposure time of the sensor in ns
+     * @param maxExposure The longest exposure time of the sensor in ns
+     * @param minIso      The lowest sensitivity of the sensor
+     * @param maxIso      The highest sensitivity of the sensor
+     * @param minInterval The shortest time between two updates in ns
+     */
+    public SoftwareAutoExposure(long minExposure, long maxExposure, int minIso, int maxIso,
+                                long minInterval) {
+        mMinExposure = minExposure;
+        mMaxExposure = maxExposure;
+        mMinIso = minIso;
+        mMaxIso = maxIso;
+        mMinInterval = minInterval;
+        mUserMaxExposure = maxExposure;
+    }
+
+    /**
+     * @param maxExposure The longest exposure time to use in ns
+     */
+    public synchronized void setMaxExposure(long maxExposure) {
+        mUserMaxExposure = Math.max(mMinExposure, Math.min(mMaxExposure, maxExposure));
+    }
+
+    public synchronized long getMaxExposure() {
+        return mUserMaxExposure;
+    }
+
+    /**
+     * @param histogram The histogram of a frame taken with the current settings
+     * @param exposure  The current exposure time in ns
+     * @param iso       The current sensitivity
+     * @param now       The current time in ns
+     * @return The settings to apply, or null to keep the current ones
+     */
+    public synchronized Settings update(LumaHistogram histogram, long exposure, int iso,
+                                        long now) {
+        if (histogram.getCount() == 0 || exposure <= 0 || iso <= 0
+                || (mUpdated && now - mLastUpdate < mMinInterval)) {
+            return null;
+        }
+        double mean = Math.max(1, histogram.getMean());
+        double stops = GAMMA * Math.log(TARGET_LUMA / mean) / Math.log(2);
+        if (stops > 0 && histogram.getPercentile(HIGHLIGHT_FRACTION) >= CLIPPED_LUMA) {
+            // Brightening would only clip the highlights more.
+            stops = 0;
+        }
+        if (Math.abs(stops) < DEADBAND_STOPS) {
+            return null;
+        }
+        stops = Math.max(-MAX_STEP_STOPS, Math.min(MAX_STEP_STOPS, stops * DAMPING));
+
+        double product = (double) exposure * iso * Math.pow(2, stops);
+        long newExposure = (long) Math.max(mMinExposure,
+                Math.min(mUserMaxExposure, product / mMinIso));
+        int newIso = (int) Math.max(mMinIso, Math.min(mMaxIso,
+                Math.round(product / newExposure)));
+        if (newExposure == exposure && newIso == iso) {
+            return null;
+        }
+        mUpdated = true;
+        mLastUpdate = now;
+        return new Settings(newExposure, newIso);
+    }
+
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Merges the JPEGs of a split exposure, planned by {@link ExposureSplitPlanner}, into one
+ * picture as they arrive.
+ * <p/>
+ * Each JPEG is decoded into the bitmap of the previous one and added to an
+ * {@link AlignedAccumulator}, so that the memory used is that of one decoded frame and one sum,
+ * whatever the number of frames. Large pictures are downsampled first, and further if the
+ * {@link MemoryGovernor} has no room for them. The merged picture is written with the orientation
+ * of the frames and the exposure of the merge.
+ * <p/>
+ * The work runs on a thread of its own, in the order of the calls. The JPEGs waiting for it are
+ * reserved on the memory account too.
+ */
+public class SplitExposureMerger {
+
+    /**
+     * Called on the thread of the merger when a merge is over.
+     */
+    public interface Callback {
+
+        /**
+         * @param file   The merged picture, or null if there was nothing to merge
+         * @param frames The number of frames merged
+         */
+        void onMerged(File file, int frames);
+
+    }
+
+    private static final String TAG = "SplitExposureMerger";
+
+    /**
+     * Largest merged picture, in pixels. The merge needs the sum and the pyramids on top of the
+     * bitmap.
+     */
+    private static final int MAX_MERGED_PIXELS = 4000000;
+
+    /**
+     * Smallest merged picture under memory pressure, in pixels.
+     */
+    private static final int MIN_MERGED_PIXELS = 1000000;
+
+    /**
+     * Memory taken per pixel on top of the accumulator: the ARGB bitmap and its pixels.
+     */
+    private static final int BYTES_PER_PIXEL = 8;
+
+    /**
+     * The largest shift between two frames is the longer side of the picture divided by this.
+     */
+    private static final int MAX_SHIFT_DIVISOR = 32;
+
+    private static final int JPEG_QUALITY = 95;
+
+    /**
+     * The state of the merge in progress. Only used on the thread of the merger.
+     */
+    private static final class Merge {
+
+        final ExposureSplitPlanner.Plan plan;
+        final BurstContainer.FrameInfo info;
+        final File target;
+        final Callback callback;
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+
+        /**
+         * The frames added or skipped.
+         */
+        int received;
+        boolean failed;
+        int orientation = JpegMetadataWriter.ORIENTATION_NORMAL;
+        int sampleSize;
+        long reserved;
+        Bitmap bitmap;
+        int[] pixels;
+        AlignedAccumulator accumulator;
+
+        Merge(ExposureSplitPlanner.Plan plan, BurstContainer.FrameInfo info, File target,
+              Callback callback) {
+            this.plan = plan;
+            this.info = info;
+            this.target = target;
+            this.callback = callback;
+        }
+
+    }
+
+    private final ForkJoinPool mPool;
+    private final MemoryGovernor.Account mMemory;
+    private final ExecutorService mExecutor;
+    private final JpegMetadataWriter mMetadataWriter = new JpegMetadataWriter();
+
+    private Merge mMerge;
+
+    /**
+     * @param pool   The pool the alignment and the sums run on
+     * @param memory The account the memory of the merge is reserved on
+     */
+    public SplitExposureMerger(ForkJoinPool pool, MemoryGovernor.Account memory) {
+        mPool = pool;
+        mMemory = memory;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "SplitMerger");
+            }
+        });
+    }
+
+    /**
+     * Starts a merge, finishing the previous one with the frames it got if it is still running.
+     *
+     * @param plan   The frames of the split exposure
+     * @param info   The metadata of the merged picture: the exposure and sensitivity it stands for
+     * @param target The file the merged JPEG is written to
+     */
+    public void begin(final ExposureSplitPlanner.Plan plan, final BurstContainer.FrameInfo info,
+                      final File target, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mMerge) {
+                    Log.w(TAG, "Merge of " + mMerge.target.getName() + " cut short");
+                    finish(mMerge);
+                }
+                mMerge = new Merge(plan, info, target, callback);
+            }
+        });
+    }
+
+    /**
+     * Queues a frame of the current merge.
+     *
+     * @param jpeg The JPEG of the frame, not used by the caller anymore
+     */
+    public void addFrame(final byte[] jpeg) {
+        mMemory.reserve(jpeg.length);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Merge merge = mMerge;
+                    if (null == merge) {
+                        return;
+                    }
+                    if (!merge.failed) {
+                        add(merge, jpeg);
+                    }
+                    onFrameReceived(merge);
+                } finally {
+                    mMemory.release(jpeg.length);
+                }
+            }
+        });
+    }
+
+    /**
+     * Counts a frame of the current merge the camera failed to capture, so that the merge doesn't
+     * wait for it.
+     */
+    public void skipFrame() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mMerge) {
+                    onFrameReceived(mMerge);
+                }
+            }
+        });
+    }
+
+    private void onFrameReceived(Merge merge) {
+        merge.received++;
+        if (merge.received >= merge.plan.frames) {
+            finish(merge);
+        }
+    }
+
+    /**
+     * Sizes the merge after its first frame, and reserves its memory.
+     *
+     * @return Whether there is memory for the merge
+     */
+    private boolean setUp(Merge merge, byte[] jpeg) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        int sampleSize = 1;
+        while ((long) options.outWidth * options.outHeight / sampleSize / sampleSize
+                > MAX_MERGED_PIXELS) {
+            sampleSize *= 2;
+        }
+        while (true) {
+            int width = options.outWidth / sampleSize;
+            int height = options.outHeight / sampleSize;
+            int maxShift = Math.max(width, height) / MAX_SHIFT_DIVISOR;
+            long bytes = AlignedAccumulator.getBytes(width, height, maxShift)
+                    + (long) width * height * BYTES_PER_PIXEL;
+            if (mMemory.tryReserve(bytes)) {
+                merge.reserved = bytes;
+                merge.sampleSize = sampleSize;
+                merge.pixels = new int[width * height];
+                merge.accumulator = new AlignedAccumulator(mPool, width, height, maxShift);
+                break;
+            }
+            if ((long) width * height / 4 < MIN_MERGED_PIXELS) {
+                Log.w(TAG, "No memory to merge " + merge.target.getName());
+                return false;
+            }
+            sampleSize *= 2;
+        }
+        merge.orientation = JpegThumbnail.readOrientation(ByteBuffer.wrap(jpeg));
+        return true;
+    }
+
+    private void add(Merge merge, byte[] jpeg) {
+        if (null == merge.accumulator && !setUp(merge, jpeg)) {
+            merge.failed = true;
+            return;
+        }
+        AlignedAccumulator accumulator = merge.accumulator;
+        if (accumulator.getFrameCount() >= AlignedAccumulator.MAX_FRAMES) {
+            return;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = merge.sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // The frames are the same size: each one is decoded into the bitmap of the previous one.
+        options.inBitmap = merge.bitmap;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (null == bitmap) {
+            Log.w(TAG, "Could not decode a frame of " + merge.target.getName());
+            return;
+        }
+        merge.bitmap = bitmap;
+        int width = accumulator.getWidth();
+        int height = accumulator.getHeight();
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            Log.w(TAG, "Frame of " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                    + " in a merge of " + width + "x" + height);
+            return;
+        }
+        bitmap.getPixels(merge.pixels, 0, width, 0, 0, width, height);
+        long start = SystemClock.elapsedRealtimeNanos();
+        AlignedAccumulator.Alignment alignment = accumulator.add(merge.pixels);
+        Log.d(TAG, "Frame " + accumulator.getFrameCount() + " of " + merge.plan.frames + ": "
+                + alignment + " in " + (SystemClock.elapsedRealtimeNanos() - start) / 1000000
+                + " ms");
+    }
+
+    /**
+     * Writes the merged picture and releases the memory of the merge.
+     */
+    private void finish(Merge merge) {
+        if (merge == mMerge) {
+            mMerge = null;
+        }
+        File file = null;
+        int frames = null == merge.accumulator ? 0 : merge.accumulator.getFrameCount();
+        try {
+            if (frames > 0 && null != merge.bitmap) {
+                write(merge);
+                file = merge.target;
+                Log.d(TAG, "Merged " + frames + " frames of " + merge.plan + " into "
+                        + file.getName() + " in "
+                        + (SystemClock.elapsedRealtimeNanos() - merge.startTime) / 1000000 + " ms");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (null != merge.bitmap) {
+                merge.bitmap.recycle();
+                merge.bitmap = null;
+            }
+            merge.pixels = null;
+            merge.accumulator = null;
+            mMemory.release(merge.reserved);
+            merge.reserved = 0;
+        }
+        if (null != merge.callback) {
+            merge.callback.onMerged(file, frames);
+        }
+    }
+
+    private void write(Merge merge) throws IOException {
+        int width = merge.accumulator.getWidth();
+        int height = merge.accumulator.getHeight();
+        merge.accumulator.getResult(merge.pixels, merge.plan.gain);
+        merge.bitmap.setPixels(merge.pixels, 0, width, 0, 0, width, height);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        if (!merge.bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg)) {
+            throw new IOException("Could not encode " + merge.target.getName());
+        }
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(merge.target);
+            // The bitmap was decoded without the rotation: the picture keeps the frame's.
+            mMetadataWriter.write(ByteBuffer.wrap(jpeg.toByteArray()), output.getChannel(),
+                    merge.info, 0, merge.accumulator.getFrameCount(), merge.orientation);
+        } finally {
+            if (null != output) {
+                output.close();
+            }
+        }
+    }
+
+}
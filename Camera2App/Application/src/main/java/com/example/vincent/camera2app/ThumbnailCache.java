@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A least recently used cache of thumbnails, bounded in bytes.
+ * <p/>
+ * The evicted bitmaps are kept aside to be decoded into again with
+ * {@code BitmapFactory.Options.inBitmap}, instead of being left to the garbage collector. They
+ * count in the budget too: the oldest ones are recycled when the cache grows.
+ * <p/>
+ * The cache reports its size to a {@link MemoryGovernor} if it is given an account, and can give
+ * memory back: the reusable bitmaps first, then the least recently used thumbnails.
+ * <p/>
+ * This class is thread safe.
+ */
+public class ThumbnailCache {
+
+    private final int mMaxBytes;
+
+    private final LruCache<String, Bitmap> mCache;
+
+    /**
+     * The bitmaps that can be reused, oldest first.
+     */
+    private final ArrayDeque<Bitmap> mReusable = new ArrayDeque<Bitmap>();
+    private int mReusableBytes = 0;
+
+    private volatile MemoryGovernor.Account mAccount;
+
+    /**
+     * @param maxBytes The memory the cached and reusable bitmaps can take together
+     */
+    public ThumbnailCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                if (oldValue != newValue) {
+                    addReusable(oldValue);
+                }
+            }
+        };
+    }
+
+    public Bitmap get(String key) {
+        return mCache.get(key);
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        mCache.put(key, bitmap);
+        trimReusable();
+        updateAccount();
+    }
+
+    /**
+     * @param account The account the size of the cache is reported to, or null. The previous
+     *                account is unregistered.
+     */
+    public void setAccount(MemoryGovernor.Account account) {
+        MemoryGovernor.Account previous = mAccount;
+        mAccount = account;
+        if (null != previous && previous != account) {
+            previous.unregister();
+        }
+        updateAccount();
+    }
+
+    /**
+     * Frees memory, recycling the bitmaps. Only to be called on the thread that draws them.
+     *
+     * @param bytes The number of bytes to free
+     */
+    public void trim(long bytes) {
+        synchronized (this) {
+            while (bytes > 0 && !mReusable.isEmpty()) {
+                Bitmap bitmap = mReusable.removeFirst();
+                mReusableBytes -= bitmap.getAllocationByteCount();
+                bytes -= bitmap.getAllocationByteCount();
+                bitmap.recycle();
+            }
+        }
+        if (bytes > 0) {
+            // The evicted thumbnails would be kept as reusable: they are recycled right away.
+            mCache.trimToSize((int) Math.max(0, mCache.size() - bytes));
+            synchronized (this) {
+                for (Bitmap bitmap : mReusable) {
+                    bitmap.recycle();
+                }
+                mReusable.clear();
+                mReusableBytes = 0;
+            }
+        }
+        updateAccount();
+    }
+
+    /**
+     * Takes a bitmap out of the reusable ones, to decode an image into.
+     *
+     * @param byteCount The size of the decoded image
+     * @return The smallest reusable bitmap that is large enough, or null
+     */
+    public synchronized Bitmap takeReusable(int byteCount) {
+        Bitmap best = null;
+        for (Bitmap bitmap : mReusable) {
+            int size = bitmap.getAllocationByteCount();
+            if (size >= byteCount && (null == best || size < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (null != best) {
+            mReusable.remove(best);
+            mReusableBytes -= best.getAllocationByteCount();
+        }
+        return best;
+    }
+
+    /**
+     * Drops all the thumbnails, and recycles them.
+     */
+    public void clear() {
+        mCache.evictAll();
+        synchronized (this) {
+            for (Bitmap bitmap : mReusable) {
+                bitmap.recycle();
+            }
+            mReusable.clear();
+            mReusableBytes = 0;
+        }
+        updateAccount();
+    }
+
+    private void updateAccount() {
+        MemoryGovernor.Account account = mAccount;
+        if (null != account) {
+            int bytes;
+            synchronized (this) {
+                bytes = mReusableBytes;
+            }
+            account.set(mCache.size() + bytes);
+        }
+    }
+
+    private synchronized void addReusable(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        mReusable.addLast(bitmap);
+        mReusableBytes += bitmap.getAllocationByteCount();
+    }
+
+    private synchronized void trimReusable() {
+        Iterator<Bitmap> oldest = mReusable.iterator();
+        while (mCache.size() + mReusableBytes > mMaxBytes && oldest.hasNext()) {
+            Bitmap bitmap = oldest.next();
+            oldest.remove();
+            mReusableBytes -= bitmap.getAllocationByteCount();
+            bitmap.recycle();
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.vincent.camera2app;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Removes a known blur from an image with a Wiener filter.
+ * <p/>
+ * The image is split into overlapping square tiles that are deconvolved independently in the
+ * frequency domain, in parallel on a {@link ForkJoinPool}. Only the core of every tile is kept:
+ * its margin absorbs the ringing caused by the tile edges. The image is mirrored beyond its own
+ * edges. This class has no Android dependency.
+ */
+public class WienerDeconvolver {
+
+    /**
+     * Width of the margin around the core of a tile, in kernel sizes. The filter rings over a few
+     * kernel lengths away from the discontinuities at the tile edges.
+     */
+    private static final int RINGING_KERNEL_SIZES = 6;
+
+    /**
+     * Smallest margin around the core of a tile, in pixels.
+     */
+    private static final int MIN_MARGIN = 16;
+
+    /**
+     * Smallest tile size. Smaller tiles waste most of their work on the margin.
+     */
+    private static final int MIN_TILE_SIZE = 64;
+
+    /**
+     * Number of tiles below which a task doesn't split any more.
+     */
+    private static final int TILES_PER_TASK = 2;
+
+    private final ForkJoinPool mPool;
+    private final double mNoiseToSignal;
+
+    /**
+     * @param pool          The pool the tiles are deconvolved on
+     * @param noiseToSignal The noise to signal power ratio. Higher values leave more blur but
+     *                      amplify less noise.
+     */
+    public WienerDeconvolver(ForkJoinPool pool, double noiseToSignal) {
+        mPool = pool;
+        mNoiseToSignal = noiseToSignal;
+    }
+
+    /**
+     * Deconvolves a plane.
+     *
+     * @param plane  The blurred plane, row by row
+     * @param width  The width of the plane
+     * @param height The height of the plane
+     * @param kernel The blur of the plane
+     * @return The restored plane. Values are not clamped.
+     */
+    public float[] deconvolve(float[] plane, int width, int height, MotionBlurKernel kernel) {
+        return deconvolve(plane, width, height, kernel, null);
+    }
+
+    /**
+     * Deconvolves a plane, checking for the cancellation of a task between the tiles.
+     *
+     * @param task The task running the deconvolution, or null
+     * @throws java.util.concurrent.CancellationException If the task was cancelled
+     */
+    public float[] deconvolve(float[] plane, int width, int height, MotionBlurKernel kernel,
+                              ProcessingScheduler.Task<?> task) {
+        if (plane.length < width * height) {
+            throw new IllegalArgumentException("Plane too small for " + width + "x" + height);
+        }
+        float[] output = new float[width * height];
+        int margin = Math.max(MIN_MARGIN, RINGING_KERNEL_SIZES * kernel.size);
+        int tileSize = Fft.nextPowerOfTwo(Math.max(MIN_TILE_SIZE, 4 * margin));
+        int core = tileSize - 2 * margin;
+        int columns = (width + core - 1) / core;
+        int rows = (height + core - 1) / core;
+
+        Tiles tiles = new Tiles(plane, output, width, height, tileSize, margin, core, columns,
+                filter(kernel, tileSize), task);
+        mPool.invoke(new TileTask(tiles, 0, columns * rows));
+        return output;
+    }
+
+    /**
+     * @return The Wiener filter of the kernel for the tile size, as interleaved real and
+     * imaginary parts
+     */
+    private double[] filter(MotionBlurKernel kernel, int tileSize) {
+        double[] re = new double[tileSize * tileSize];
+        double[] im = new double[tileSize * tileSize];
+        // The center of the kernel goes to the origin, wrapping around, so that the filter
+        // doesn't shift the tiles.
+        int radius = kernel.size / 2;
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                int x = (dx + tileSize) % tileSize;
+                int y = (dy + tileSize) % tileSize;
+                re[y * tileSize + x] += kernel.getWeight(dx, dy);
+            }
+        }
+        Fft.transform2d(re, im, tileSize, false);
+
+        double[] filter = new double[2 * tileSize * tileSize];
+        for (int i = 0; i < re.length; i++) {
+            double power = re[i] * re[i] + im[i] * im[i];
+            filter[2 * i] = re[i] / (power + mNoiseToSignal);
+            filter[2 * i + 1] = -im[i] / (power + mNoiseToSignal);
+        }
+        return filter;
+    }
+
+    /**
+     * The state shared by all the tile tasks of a plane.
+     */
+    private static final class Tiles {
+
+        final float[] input;
+        final float[] output;
+        final int width;
+        final int height;
+        final int tileSize;
+        final int margin;
+        final int core;
+        final int columns;
+        final double[] filter;
+        final ProcessingScheduler.Task<?> task;
+
+        Tiles(float[] input, float[] output, int width, int height, int tileSize, int margin,
+              int core, int columns, double[] filter, ProcessingScheduler.Task<?> task) {
+            this.input = input;
+            this.output = output;
+            this.width = width;
+            this.height = height;
+            this.tileSize = tileSize;
+            this.margin = margin;
+            this.core = core;
+            this.columns = columns;
+            this.filter = filter;
+            this.task = task;
+        }
+
+    }
+
+    /**
+     * Deconvolves a range of tiles, splitting it across the pool.
+     */
+    private static final class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Tiles mTiles;
+        private final int mStart;
+        private final int mEnd;
+
+        TileTask(Tiles tiles, int start, int end) {
+            mTiles = tiles;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > TILES_PER_TASK) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new TileTask(mTiles, mStart, middle), new TileTask(mTiles, middle, mEnd));
+                return;
+            }
+            int size = mTiles.tileSize;
+            double[] re = new double[size * size];
+            double[] im = new double[size * size];
+            for (int tile = mStart; tile < mEnd; tile++) {
+                if (null != mTiles.task) {
+                    mTiles.task.checkCancelled();
+                }
+                deconvolveTile(mTiles, tile % mTiles.columns, tile / mTiles.columns, re, im);
+            }
+        }
+
+    }
+
+    private static void deconvolveTile(Tiles tiles, int column, int row, double[] re,
+                                       double[] im) {
+        int size = tiles.tileSize;
+        int left = column * tiles.core - tiles.margin;
+        int top = row * tiles.core - tiles.margin;
+        for (int y = 0; y < size; y++) {
+            int sourceRow = mirror(top + y, tiles.height) * tiles.width;
+            for (int x = 0; x < size; x++) {
+                re[y * size + x] = tiles.input[sourceRow + mirror(left + x, tiles.width)];
+                im[y * size + x] = 0;
+            }
+        }
+
+        Fft.transform2d(re, im, size, false);
+        double[] filter = tiles.filter;
+        for (int i = 0; i < re.length; i++) {
+            double r = re[i] * filter[2 * i] - im[i] * filter[2 * i + 1];
+            im[i] = re[i] * filter[2 * i + 1] + im[i] * filter[2 * i];
+            re[i] = r;
+        }
+        Fft.transform2d(re, im, size, true);
+
+        int coreLeft = column * tiles.core;
+        int coreTop = row * tiles.core;
+        int coreRight = Math.min(coreLeft + tiles.core, tiles.width);
+        int coreBottom = Math.min(coreTop + tiles.core, tiles.height);
+        for (int y = coreTop; y < coreBottom; y++) {
+            int tileRow = (y - top) * size - left;
+            for (int x = coreLeft; x < coreRight; x++) {
+                tiles.output[y * tiles.width + x] = (float) re[tileRow + x];
+            }
+        }
+    }
+
+    /**
+     * @return The index of the pixel mirrored back into [0, n)
+     */
+    private static int mirror(int i, int n) {
+        if (n == 1) {
+            return 0;
+        }
+        int period = 2 * n;
+        i %= period;
+        if (i < 0) {
+            i += period;
+        }
+        return i < n ? i : period - 1 - i;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame in YUV 4:2:0, such as the planes of a {@code YUV_420_888} image, with the row and
+ * pixel strides of its {@code Image.Plane}s. The chroma planes have half the width and height of
+ * the frame, rounded up.
+ * <p/>
+ * This class has no Android dependency. The buffers are read and written with absolute gets and
+ * puts only, so that a frame can be shared by threads.
+ */
+public final class YuvFrame {
+
+    public final int width;
+    public final int height;
+    final ByteBuffer y;
+    final ByteBuffer u;
+    final ByteBuffer v;
+    final int yRowStride;
+    final int yPixelStride;
+    final int uvRowStride;
+    final int uvPixelStride;
+
+    public YuvFrame(int width, int height, ByteBuffer y, int yRowStride, int yPixelStride,
+                    ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.u = u;
+        this.v = v;
+        this.yRowStride = yRowStride;
+        this.yPixelStride = yPixelStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+    }
+
+    /**
+     * @return The size of a packed I420 or NV21 frame, in bytes
+     */
+    public static int getPackedSize(int width, int height) {
+        return width * height + 2 * getChromaWidth(width) * getChromaHeight(height);
+    }
+
+    public static int getChromaWidth(int width) {
+        return (width + 1) / 2;
+    }
+
+    public static int getChromaHeight(int height) {
+        return (height + 1) / 2;
+    }
+
+    public int getChromaWidth() {
+        return getChromaWidth(width);
+    }
+
+    public int getChromaHeight() {
+        return getChromaHeight(height);
+    }
+
+    /**
+     * @param data At least {@link #getPackedSize(int, int)} bytes: the Y plane, then the U plane,
+     *             then the V plane
+     */
+    public static YuvFrame wrapI420(byte[] data, int width, int height) {
+        checkPackedSize(data, width, height);
+        int chromaWidth = getChromaWidth(width);
+        int chromaSize = chromaWidth * getChromaHeight(height);
+        int ySize = width * height;
+        return new YuvFrame(width, height, ByteBuffer.wrap(data, 0, ySize).slice(), width, 1,
+                ByteBuffer.wrap(data, ySize, chromaSize).slice(),
+                ByteBuffer.wrap(data, ySize + chromaSize, chromaSize).slice(), chromaWidth, 1);
+    }
+
+    /**
+     * @param data At least {@link #getPackedSize(int, int)} bytes: the Y plane, then the V and U
+     *             samples interleaved, V first
+     */
+    public static YuvFrame wrapNv21(byte[] data, int width, int height) {
+        checkPackedSize(data, width, height);
+        int chromaWidth = getChromaWidth(width);
+        int chromaSize = chromaWidth * getChromaHeight(height);
+        int ySize = width * height;
+        return new YuvFrame(width, height, ByteBuffer.wrap(data, 0, ySize).slice(), width, 1,
+                ByteBuffer.wrap(data, ySize + 1, 2 * chromaSize - 1).slice(),
+                ByteBuffer.wrap(data, ySize, 2 * chromaSize).slice(), 2 * chromaWidth, 2);
+    }
+
+    private static void checkPackedSize(byte[] data, int width, int height) {
+        if (data.length < getPackedSize(width, height)) {
+            throw new IllegalArgumentException(data.length + " bytes for a " + width + "x"
+                    + height + " frame");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " (" + yPixelStride + "/" + yRowStride + ", "
+                + uvPixelStride + "/" + uvRowStride + ")";
+    }
+
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vincent.camera2app;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Operations on the planes of {@link YuvFrame}s: luma extraction, rotation, crop, downscaling
+ * and repacking between layouts, such as from the {@code YUV_420_888} planes of an image to NV21
+ * or I420.
+ * <p/>
+ * Every operation writes into a frame or a buffer of the caller, with whatever strides it has,
+ * and allocates no pixel buffer. The rows of the output are split across a
+ * {@link ForkJoinPool}, two rows of luma and one of chroma at a time.
+ * <p/>
+ * A chroma sample of the output is the one under the top-left pixel of its 2x2 block, or the
+ * average of the samples of the area it covers when downscaling.
+ * <p/>
+ * This class has no Android dependency and is thread safe.
+ */
+public class YuvKernels {
+
+    /**
+     * Number of output pixels below which a range of rows isn't split any more.
+     */
+    private static final int PIXELS_PER_TASK = 1 << 16;
+
+    /**
+     * Maps the coordinates in a rotated image to the coordinates in the frame.
+     */
+    static final class Rotation {
+
+        final int width;
+        final int height;
+        final int originX;
+        final int originY;
+        final int xStepX;
+        final int xStepY;
+        final int yStepX;
+        final int yStepY;
+
+        /**
+         * @param degrees A clockwise rotation, a multiple of 90, as in {@code JPEG_ORIENTATION}
+         */
+        Rotation(int frameWidth, int frameHeight, int degrees) {
+            switch ((degrees % 360 + 360) % 360) {
+                case 0:
+                    width = frameWidth;
+                    height = frameHeight;
+                    originX = 0;
+                    originY = 0;
+                    xStepX = 1;
+                    xStepY = 0;
+                    yStepX = 0;
+                    yStepY = 1;
+                    break;
+                case 90:
+                    width = frameHeight;
+                    height = frameWidth;
+                    originX = 0;
+                    originY = frameHeight - 1;
+                    xStepX = 0;
+                    xStepY = -1;
+                    yStepX = 1;
+                    yStepY = 0;
+                    break;
+                case 180:
+                    width = frameWidth;
+                    height = frameHeight;
+                    originX = frameWidth - 1;
+                    originY = frameHeight - 1;
+                    xStepX = -1;
+                    xStepY = 0;
+                    yStepX = 0;
+                    yStepY = -1;
+                    break;
+                case 270:
+                    width = frameHeight;
+                    height = frameWidth;
+                    originX = frameWidth - 1;
+                    originY = 0;
+                    xStepX = 0;
+                    xStepY = 1;
+                    yStepX = -1;
+                    yStepY = 0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Orientation " + degrees);
+            }
+        }
+
+    }
+
+    /**
+     * Processes a range of rows of an output.
+     */
+    interface RowKernel {
+
+        void run(int start, int end);
+
+    }
+
+    /**
+     * Runs a kernel on a range of rows, splitting it across the pool.
+     */
+    static final class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RowKernel mKernel;
+        private final int mRowPixels;
+        private final int mStart;
+        private final int mEnd;
+
+        /**
+         * @param rowPixels The number of pixels of a row, to split the rows into tasks of about
+         *                  {@link #PIXELS_PER_TASK} pixels
+         */
+        RowTask(RowKernel kernel, int rowPixels, int start, int end) {
+            mKernel = kernel;
+            mRowPixels = rowPixels;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > 1 && (long) (mEnd - mStart) * mRowPixels > PIXELS_PER_TASK) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new RowTask(mKernel, mRowPixels, mStart, middle),
+                        new RowTask(mKernel, mRowPixels, middle, mEnd));
+                return;
+            }
+            mKernel.run(mStart, mEnd);
+        }
+
+    }
+
+    private final ForkJoinPool mPool;
+
+    /**
+     * @param pool The pool the rows are processed on
+     */
+    public YuvKernels(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Runs a kernel on the pairs of luma rows of an output frame, with their chroma row.
+     */
+    private void runOnFrame(YuvFrame output, RowKernel kernel) {
+        // A pair of luma rows and a chroma row, in pixels of the frame.
+        int rowPixels = 3 * output.width;
+        mPool.invoke(new RowTask(kernel, rowPixels, 0, output.getChromaHeight()));
+    }
+
+    /**
+     * Copies the luma plane of a frame into a packed buffer, for the analysis.
+     *
+     * @param rowStride The distance between the rows of the output, at least the frame width
+     */
+    public void extractLuma(final YuvFrame frame, final byte[] output, final int rowStride) {
+        if (rowStride < frame.width
+                || (long) rowStride * (frame.height - 1) + frame.width > output.length) {
+            throw new IllegalArgumentException("Luma of " + frame + " into " + output.length
+                    + " bytes, " + rowStride + " per row");
+        }
+        mPool.invoke(new RowTask(new RowKernel() {
+            @Override
+            public void run(int start, int end) {
+                extractLumaRows(frame, output, rowStride, start, end);
+            }
+        }, frame.width, 0, frame.height));
+    }
+
+    private static void extractLumaRows(YuvFrame frame, byte[] output, int rowStride, int start,
+                                        int end) {
+        ByteBuffer y = frame.y;
+        int pixelStride = frame.yPixelStride;
+        for (int row = start; row < end; row++) {
+            int in = row * frame.yRowStride;
+            int out = row * rowStride;
+            if (1 == pixelStride && y.hasArray()) {
+                System.arraycopy(y.array(), y.arrayOffset() + in, output, out, frame.width);
+                continue;
+            }
+            for (int x = 0; x < frame.width; x++) {
+                output[out + x] = y.get(in + x * pixelStride);
+            }
+        }
+    }
+
+    /**
+     * Copies a frame into a frame of the same size with another layout, such as the planes of
+     * a {@code YUV_420_888} image into an NV21 or I420 buffer.
+     */
+    public void copy(YuvFrame source, YuvFrame output) {
+        if (output.width != source.width || output.height != source.height) {
+            throw new IllegalArgumentException("Copying " + source + " into " + output);
+        }
+        cropAndRotate(source, 0, 0, 0, output);
+    }
+
+    /**
+     * Copies the area of a frame under the output, whose size is the size of the area.
+     *
+     * @param left An even number of pixels
+     * @param top  An even number of pixels
+     */
+    public void crop(YuvFrame source, int left, int top, YuvFrame output) {
+        cropAndRotate(source, left, top, 0, output);
+    }
+
+    /**
+     * Rotates a frame into an output of the rotated size.
+     *
+     * @param degrees A clockwise rotation, a multiple of 90, as in {@code JPEG_ORIENTATION}
+     */
+    public void rotate(YuvFrame source, int degrees, YuvFrame output) {
+        Rotation rotation = new Rotation(source.width, source.height, degrees);
+        if (output.width != rotation.width || output.height != rotation.height) {
+            throw new IllegalArgumentException("Rotating " + source + " by " + degrees
+                    + " into " + output);
+        }
+        cropAndRotate(source, 0, 0, degrees, output);
+    }
+
+    /**
+     * Crops a frame, then rotates the area into the output, in one pass.
+     *
+     * @param left    The left of the area in the frame, an even number of pixels
+     * @param top     The top of the area in the frame, an even number of pixels
+     * @param degrees A clockwise rotation, a multiple of 90, as in {@code JPEG_ORIENTATION}
+     */
+    public void cropAndRotate(final YuvFrame source, final int left, final int top, int degrees,
+                              final YuvFrame output) {
+        boolean sideways = (degrees % 180 + 180) % 180 != 0;
+        int areaWidth = sideways ? output.height : output.width;
+        int areaHeight = sideways ? output.width : output.height;
+        if (left < 0 || top < 0 || left % 2 != 0 || top % 2 != 0
+                || left + areaWidth > source.width || top + areaHeight > source.height) {
+            throw new IllegalArgumentException("Area of " + areaWidth + "x" + areaHeight + " at "
+                    + left + "," + top + " in " + source);
+        }
+        final Rotation rotation = new Rotation(areaWidth, areaHeight, degrees);
+        runOnFrame(output, new RowKernel() {
+            @Override
+            public void run(int start, int end) {
+                cropAndRotateRows(source, left, top, rotation, output, start, end);
+            }
+        });
+    }
+
+    /**
+     * @param start The first chroma row of the output
+     * @param end   The chroma row after the last
+     */
+    private static void cropAndRotateRows(YuvFrame source, int left, int top, Rotation rotation,
+                                          YuvFrame output, int start, int end) {
+        int lumaStep = rotation.xStepX * source.yPixelStride + rotation.xStepY * source.yRowStride;
+        boolean contiguous = 1 == lumaStep && 1 == output.yPixelStride
+                && source.y.hasArray() && output.y.hasArray();
+        int lumaEnd = Math.min(2 * end, output.height);
+        for (int y = 2 * start; y < lumaEnd; y++) {
+            int frameX = left + rotation.originX + y * rotation.yStepX;
+            int frameY = top + rotation.originY + y * rotation.yStepY;
+            int in = frameY * source.yRowStride + frameX * source.yPixelStride;
+            int out = y * output.yRowStride;
+            if (contiguous) {
+                System.arraycopy(source.y.array(), source.y.arrayOffset() + in,
+                        output.y.array(), output.y.arrayOffset() + out, output.width);
+                continue;
+            }
+            for (int x = 0; x < output.width; x++) {
+                output.y.put(out + x * output.yPixelStride, source.y.get(in + x * lumaStep));
+            }
+        }
+
+        int chromaWidth = output.getChromaWidth();
+        for (int chromaY = start; chromaY < end; chromaY++) {
+            int y = 2 * chromaY;
+            int out = chromaY * output.uvRowStride;
+            for (int chromaX = 0; chromaX < chromaWidth; chromaX++) {
+                int x = 2 * chromaX;
+                int frameX = left + rotation.originX + x * rotation.xStepX + y * rotation.yStepX;
+                int frameY = top + rotation.originY + x * rotation.xStepY + y * rotation.yStepY;
+                int in = frameY / 2 * source.uvRowStride + frameX / 2 * source.uvPixelStride;
+                output.u.put(out, source.u.get(in));
+                output.v.put(out, source.v.get(in));
+                out += output.uvPixelStride;
+            }
+        }
+    }
+
+    /**
+     * Downscales a frame by an integer factor, each output sample being the average of a square
+     * of samples. The output is the size of the frame divided by the factor, rounded down.
+     */
+    public void downscaleBox(final YuvFrame source, final int factor, final YuvFrame output) {
+        if (factor < 1 || output.width != source.width / factor
+                || output.height != source.height / factor) {
+            throw new IllegalArgumentException("Downscaling " + source + " by " + factor
+                    + " into " + output);
+        }
+        runOnFrame(output, new RowKernel() {
+            @Override
+            public void run(int start, int end) {
+                int lumaEnd = Math.min(2 * end, output.height);
+                downscaleBoxRows(source.y, source.yRowStride, source.yPixelStride, source.width,
+                        source.height, factor, output.y, output.yRowStride, output.yPixelStride,
+                        output.width, 2 * start, lumaEnd);
+                int chromaWidth = source.getChromaWidth();
+                int chromaHeight = source.getChromaHeight();
+                downscaleBoxRows(source.u, source.uvRowStride, source.uvPixelStride, chromaWidth,
+                        chromaHeight, factor, output.u, output.uvRowStride,
+                        output.uvPixelStride, output.getChromaWidth(), start, end);
+                downscaleBoxRows(source.v, source.uvRowStride, source.uvPixelStride, chromaWidth,
+                        chromaHeight, factor, output.v, output.uvRowStride,
+                        output.uvPixelStride, output.getChromaWidth(), start, end);
+            }
+        });
+    }
+
+    /**
+     * Averages the squares of a plane under a range of output rows. The squares are cut at the
+     * edges of the plane.
+     */
+    private static void downscaleBoxRows(ByteBuffer in, int inRowStride, int inPixelStride,
+                                         int inWidth, int inHeight, int factor, ByteBuffer out,
+                                         int outRowStride, int outPixelStride, int outWidth,
+                                         int start, int end) {
+        for (int y = start; y < end; y++) {
+            int top = y * factor;
+            int bottom = Math.min(top + factor, inHeight);
+            for (int x = 0; x < outWidth; x++) {
+                int left = x * factor;
+                int right = Math.min(left + factor, inWidth);
+                int sum = 0;
+                for (int row = top; row < bottom; row++) {
+                    int index = row * inRowStride + left * inPixelStride;
+                    for (int column = left; column < right; column++) {
+                        sum += in.get(index) & 0xFF;
+                        index += inPixelStride;
+                    }
+                }
+                int count = (bottom - top) * (right - left);
+                out.put(y * outRowStride + x * outPixelStride, (byte) ((sum + count / 2) / count));
+            }
+        }
+    }
+
+    /**
+     * Downscales a frame to the size of the output, by any ratio, each output sample being the
+     * average of the samples it covers, weighted by the area covered.
+     */
+    public void downscaleArea(final YuvFrame source, final YuvFrame output) {
+        if (output.width > source.width || output.height > source.height) {
+            throw new IllegalArgumentException("Downscaling " + source + " into " + output);
+        }
+        runOnFrame(output, new RowKernel() {
+            @Override
+            public void run(int start, int end) {
+                int lumaEnd = Math.min(2 * end, output.height);
+                downscaleAreaRows(source.y, source.yRowStride, source.yPixelStride, source.width,
+                        source.height, output.y, output.yRowStride, output.yPixelStride,
+                        output.width, output.height, 2 * start, lumaEnd);
+                int chromaWidth = source.getChromaWidth();
+                int chromaHeight = source.getChromaHeight();
+                downscaleAreaRows(source.u, source.uvRowStride, source.uvPixelStride, chromaWidth,
+                        chromaHeight, output.u, output.uvRowStride, output.uvPixelStride,
+                        output.getChromaWidth(), output.getChromaHeight(), start, end);
+                downscaleAreaRows(source.v, source.uvRowStride, source.uvPixelStride, chromaWidth,
+                        chromaHeight, output.v, output.uvRowStride, output.uvPixelStride,
+                        output.getChromaWidth(), output.getChromaHeight(), start, end);
+            }
+        });
+    }
+
+    /**
+     * Downscales a range of output rows of a plane. In units of 1 / (inWidth * outWidth) of the
+     * plane width, an input sample spans outWidth and an output sample inWidth, so that the
+     * weights are exact integers, and the same for the height.
+     */
+    private static void downscaleAreaRows(ByteBuffer in, int inRowStride, int inPixelStride,
+                                          int inWidth, int inHeight, ByteBuffer out,
+                                          int outRowStride, int outPixelStride, int outWidth,
+                                          int outHeight, int start, int end) {
+        long total = (long) inWidth * inHeight;
+        for (int y = start; y < end; y++) {
+            int top = y * inHeight;
+            int bottom = top + inHeight;
+            int firstRow = top / outHeight;
+            int lastRow = (bottom - 1) / outHeight;
+            for (int x = 0; x < outWidth; x++) {
+                int left = x * inWidth;
+                int right = left + inWidth;
+                int firstColumn = left / outWidth;
+                int lastColumn = (right - 1) / outWidth;
+                long sum = 0;
+                for (int row = firstRow; row <= lastRow; row++) {
+                    int rowWeight = Math.min((row + 1) * outHeight, bottom)
+                            - Math.max(row * outHeight, top);
+                    int index = row * inRowStride + firstColumn * inPixelStride;
+                    int rowSum = 0;
+                    for (int column = firstColumn; column <= lastColumn; column++) {
+                        int weight = Math.min((column + 1) * outWidth, right)
+                                - Math.max(column * outWidth, left);
+                        rowSum += weight * (in.get(index) & 0xFF);
+                        index += inPixelStride;
+                    }
+                    sum += (long) rowWeight * rowSum;
+                }
+                out.put(y * outRowStride + x * outPixelStride,
+                        (byte) ((sum + total / 2) / total));
+            }
+        }
+    }
+
+}
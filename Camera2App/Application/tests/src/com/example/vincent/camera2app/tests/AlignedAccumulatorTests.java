@@ -0,0 +1,272 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+* Tests and benchmark of {@link AlignedAccumulator}, on noisy frames cut out of a scene at known
+* offsets.
+*/
+public class AlignedAccumulatorTests extends TestCase {
+
+    private static final String TAG = "AlignedAccumulatorTests";
+
+    /**
+    * The largest offset of the frames, and of the search.
+    */
+    private static final int MARGIN = 24;
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() {
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() {
+        mPool.shutdown();
+    }
+
+    /**
+    * @return A gray scene of blurred random texture, dark enough for a night shot
+    */
+    private static float[] createScene(int width, int height, Random random) {
+        float[] noise = new float[width * height];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextFloat();
+        }
+        // Blobs of a few pixels, for the alignment to lock onto.
+        int radius = 3;
+        float[] scene = new float[noise.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                int count = 0;
+                for (int j = Math.max(0, y - radius); j <= Math.min(height - 1, y + radius); j++) {
+                    for (int i = Math.max(0, x - radius); i <= Math.min(width - 1, x + radius);
+                         i++) {
+                        sum += noise[j * width + i];
+                        count++;
+                    }
+                }
+                scene[y * width + x] = 20 + 600 * (sum / count - 0.5f) + 60 * x / width;
+            }
+        }
+        return scene;
+    }
+
+    /**
+    * @param noise The standard deviation of the noise added to every channel
+    * @return The ARGB pixels of the part of the scene at an offset
+    */
+    private static int[] cutFrame(float[] scene, int sceneWidth, int offsetX, int offsetY,
+                                  int width, int height, float noise, Random random) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float value = scene[(y + offsetY) * sceneWidth + x + offsetX];
+                int red = clamp(value + 10 + noise * (float) random.nextGaussian());
+                int green = clamp(value + noise * (float) random.nextGaussian());
+                int blue = clamp(value - 5 + noise * (float) random.nextGaussian());
+                pixels[y * width + x] = 0xFF000000 | red << 16 | green << 8 | blue;
+            }
+        }
+        return pixels;
+    }
+
+    private static int clamp(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    /**
+    * @return The root mean square difference of the green channels away from the edges
+    */
+    private static double getError(int[] pixels, float[] scene, int sceneWidth, int offsetX,
+                                   int offsetY, int width, int height) {
+        double sum = 0;
+        int count = 0;
+        for (int y = MARGIN; y < height - MARGIN; y++) {
+            for (int x = MARGIN; x < width - MARGIN; x++) {
+                double error = ((pixels[y * width + x] >> 8) & 0xFF)
+                    - clamp(scene[(y + offsetY) * sceneWidth + x + offsetX]);
+                sum += error * error;
+                count++;
+            }
+        }
+        return Math.sqrt(sum / count);
+    }
+
+    public void testFindsTheShiftOfEveryFrame() {
+        int width = 320;
+        int height = 240;
+        Random random = new Random(1);
+        int sceneWidth = width + 2 * MARGIN;
+        float[] scene = createScene(sceneWidth, height + 2 * MARGIN, random);
+        AlignedAccumulator accumulator = new AlignedAccumulator(mPool, width, height, MARGIN);
+        int[][] offsets = {{MARGIN, MARGIN}, {MARGIN + 3, MARGIN - 2}, {0, 2 * MARGIN},
+            {2 * MARGIN, 5}, {MARGIN - 17, MARGIN + 11}, {MARGIN + 1, MARGIN}};
+        for (int[] offset : offsets) {
+            AlignedAccumulator.Alignment alignment = accumulator.add(cutFrame(scene, sceneWidth,
+                offset[0], offset[1], width, height, 4, random));
+            // The frame content at x + dx is the first frame content at x.
+            assertEquals(Arrays.toString(offset), offsets[0][0] - offset[0], alignment.dx);
+            assertEquals(Arrays.toString(offset), offsets[0][1] - offset[1], alignment.dy);
+        }
+        assertEquals(offsets.length, accumulator.getFrameCount());
+    }
+
+    /**
+    * Shaken frames merge into a sharp picture of the first one, with the noise averaged out.
+    */
+    public void testAveragesOutTheNoise() {
+        int width = 256;
+        int height = 192;
+        Random random = new Random(2);
+        int sceneWidth = width + 2 * MARGIN;
+        float[] scene = createScene(sceneWidth, height + 2 * MARGIN, random);
+        AlignedAccumulator accumulator = new AlignedAccumulator(mPool, width, height, MARGIN);
+        int frames = 16;
+        int[] first = null;
+        for (int i = 0; i < frames; i++) {
+            int offsetX = 0 == i ? MARGIN : MARGIN + random.nextInt(13) - 6;
+            int offsetY = 0 == i ? MARGIN : MARGIN + random.nextInt(13) - 6;
+            int[] frame = cutFrame(scene, sceneWidth, offsetX, offsetY, width, height, 12,
+                random);
+            if (null == first) {
+                first = frame;
+            }
+            accumulator.add(frame);
+        }
+        int[] merged = new int[width * height];
+        accumulator.getResult(merged, 1);
+        double single = getError(first, scene, sceneWidth, MARGIN, MARGIN, width, height);
+        double average = getError(merged, scene, sceneWidth, MARGIN, MARGIN, width, height);
+        Log.i(TAG, "Error of one frame " + single + ", of " + frames + " frames " + average);
+        // 1 / sqrt(16), and the rounding.
+        assertTrue(single + " to " + average, average < single / 3);
+        assertEquals(0xFF, merged[0] >>> 24);
+    }
+
+    private static int[] uniform(int width, int height, int value) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, 0xFF000000 | value << 16 | value << 8 | value);
+        return pixels;
+    }
+
+    public void testAverageAndGain() {
+        AlignedAccumulator accumulator = new AlignedAccumulator(mPool, 40, 30, 4);
+        accumulator.add(uniform(40, 30, 10));
+        accumulator.add(uniform(40, 30, 13));
+        int[] merged = new int[40 * 30];
+        accumulator.getResult(merged, 1);
+        // 11.5 rounds up.
+        assertEquals(0xFF0C0C0C, merged[0]);
+        assertEquals(0xFF0C0C0C, merged[merged.length - 1]);
+
+        // Twice the light is 2^(1 / 2.2) times the value.
+        accumulator.getResult(merged, 2);
+        assertEquals((int) Math.round(11.5 * Math.pow(2, 1 / 2.2)), merged[0] & 0xFF);
+        // Clipped to white.
+        accumulator.getResult(merged, 1e6);
+        assertEquals(0xFFFFFFFF, merged[0]);
+
+        accumulator.reset();
+        assertEquals(0, accumulator.getFrameCount());
+        accumulator.add(uniform(40, 30, 200));
+        accumulator.getResult(merged, 1);
+        assertEquals(0xFFC8C8C8, merged[0]);
+    }
+
+    public void testFrameLimit() {
+        AlignedAccumulator accumulator = new AlignedAccumulator(mPool, 8, 8, 2);
+        int[] white = uniform(8, 8, 255);
+        for (int i = 0; i < AlignedAccumulator.MAX_FRAMES; i++) {
+            accumulator.add(white);
+        }
+        int[] merged = new int[64];
+        accumulator.getResult(merged, 1);
+        // No overflow of the sums.
+        assertEquals(0xFFFFFFFF, merged[63]);
+        try {
+            accumulator.add(white);
+            fail("Too many frames");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            new AlignedAccumulator(mPool, 8, 8, 2).getResult(merged, 1);
+            fail("No frame");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    /**
+    * The time to add a 4 MP frame, and to get the result, on 1 to 8 threads.
+    */
+    public void testAccumulateBenchmark() {
+        int width = 2304;
+        int height = 1728;
+        int maxShift = width / 32;
+        Random random = new Random(3);
+        int sceneWidth = width + 2 * maxShift;
+        float[] scene = createScene(sceneWidth, height + 2 * maxShift, random);
+        int[][] frames = new int[4][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = cutFrame(scene, sceneWidth, maxShift + 5 * i, maxShift - 3 * i, width,
+                height, 8, random);
+        }
+        int[] merged = new int[width * height];
+        StringBuilder results = new StringBuilder();
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                AlignedAccumulator accumulator
+                    = new AlignedAccumulator(pool, width, height, maxShift);
+                // Warm up, and the reference.
+                accumulator.add(frames[0]);
+                long start = System.nanoTime();
+                for (int i = 1; i < frames.length; i++) {
+                    AlignedAccumulator.Alignment alignment = accumulator.add(frames[i]);
+                    assertEquals(-5 * i, alignment.dx);
+                    assertEquals(3 * i, alignment.dy);
+                }
+                long addTime = (System.nanoTime() - start) / (frames.length - 1);
+                start = System.nanoTime();
+                accumulator.getResult(merged, 1.5);
+                long resultTime = System.nanoTime() - start;
+                results.append(", ").append(threads).append(" threads: ")
+                    .append(addTime / 1000000).append(" ms per frame, ")
+                    .append(resultTime / 1000000).append(" ms for the result");
+            } finally {
+                pool.shutdown();
+            }
+        }
+        Log.i(TAG, "4 MP, " + AlignedAccumulator.getBytes(width, height, maxShift) / 1024 / 1024
+            + " MB" + results);
+    }
+
+}
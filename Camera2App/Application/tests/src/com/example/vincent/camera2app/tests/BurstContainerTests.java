@@ -0,0 +1,232 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+* Tests for {@link BurstContainerWriter} and {@link BurstContainerReader}.
+*/
+public class BurstContainerTests extends TestCase {
+
+    private static final int FRAME_COUNT = 5;
+
+    private File mFile;
+    private byte[][] mJpegs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("burst_", BurstContainer.EXTENSION);
+        Random random = new Random(11);
+        mJpegs = new byte[FRAME_COUNT][];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mJpegs[i] = new byte[1000 + random.nextInt(5000)];
+            random.nextBytes(mJpegs[i]);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static BurstContainer.FrameInfo info(int i) {
+        return new BurstContainer.FrameInfo(1000000L * (i + 1), 20000000L, 100 + i, i * 0.5f);
+    }
+
+    private BurstContainerWriter writeFrames() throws IOException {
+        BurstContainerWriter writer = new BurstContainerWriter(mFile);
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            // The JPEG does not start at the beginning of its buffer, like in an Image plane.
+            ByteBuffer buffer = ByteBuffer.allocateDirect(mJpegs[i].length + 7);
+            buffer.position(7);
+            buffer.put(mJpegs[i]);
+            buffer.position(7);
+            assertEquals(i, writer.append(info(i), buffer));
+            assertEquals(7, buffer.position());
+        }
+        return writer;
+    }
+
+    private void assertFrame(BurstContainerReader reader, int i) {
+        ByteBuffer jpeg = reader.getJpeg(i);
+        byte[] bytes = new byte[jpeg.remaining()];
+        jpeg.get(bytes);
+        assertTrue(Arrays.equals(mJpegs[i], bytes));
+        assertEquals(info(i).timestamp, reader.getInfo(i).timestamp);
+        assertEquals(mJpegs[i].length, reader.getInfo(i).length);
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        BurstContainerWriter writer = writeFrames();
+        writer.updateInfo(3, new BurstContainer.FrameInfo(info(3).timestamp, 30000000L, 400, 9f));
+        assertEquals(3, writer.indexOf(info(3).timestamp));
+        writer.finish(3);
+
+        BurstContainerReader reader = BurstContainerReader.open(mFile);
+        try {
+            assertFalse(reader.isRecovered());
+            assertEquals(FRAME_COUNT, reader.getFrameCount());
+            assertEquals(3, reader.getSelectedIndex());
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                assertFrame(reader, i);
+            }
+            BurstContainer.FrameInfo updated = reader.getInfo(3);
+            assertEquals(30000000L, updated.exposureTime);
+            assertEquals(400, updated.iso);
+            assertEquals(9f, updated.score);
+            assertEquals(101, reader.getInfo(1).iso);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testUnfinishedContainerIsRecovered() throws IOException {
+        writeFrames().close();
+        // Cut the last frame in the middle of its JPEG, as if the app died while writing it.
+        truncate(mFile.length() - mJpegs[FRAME_COUNT - 1].length / 2);
+
+        BurstContainerReader reader = BurstContainerReader.open(mFile);
+        try {
+            assertTrue(reader.isRecovered());
+            assertEquals(FRAME_COUNT - 1, reader.getFrameCount());
+            assertEquals(-1, reader.getSelectedIndex());
+            for (int i = 0; i < FRAME_COUNT - 1; i++) {
+                assertFrame(reader, i);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testTruncatedIndexIsIgnored() throws IOException {
+        writeFrames().finish(2);
+        truncate(mFile.length() - 4);
+
+        BurstContainerReader reader = BurstContainerReader.open(mFile);
+        try {
+            assertTrue(reader.isRecovered());
+            assertEquals(FRAME_COUNT, reader.getFrameCount());
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                assertFrame(reader, i);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testExportJpeg() throws IOException {
+        writeFrames().finish(1);
+        File exported = File.createTempFile("burst_", ".jpg");
+        try {
+            BurstContainerReader reader = BurstContainerReader.open(mFile);
+            try {
+                reader.exportJpeg(reader.getSelectedIndex(), exported);
+            } finally {
+                reader.close();
+            }
+            byte[] bytes = new byte[(int) exported.length()];
+            FileInputStream input = new FileInputStream(exported);
+            try {
+                int read = 0;
+                while (read < bytes.length) {
+                    read += input.read(bytes, read, bytes.length - read);
+                }
+            } finally {
+                input.close();
+            }
+            assertTrue(Arrays.equals(mJpegs[1], bytes));
+        } finally {
+            exported.delete();
+        }
+    }
+
+    /**
+    * The oldest containers go first, but for those still needed.
+    */
+    public void testPrune() throws IOException {
+        File directory = File.createTempFile("bursts", "");
+        directory.delete();
+        assertTrue(directory.mkdirs());
+        try {
+            File[] files = new File[5];
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new File(directory, "burst_" + i + BurstContainer.EXTENSION);
+                RandomAccessFile file = new RandomAccessFile(files[i], "rw");
+                file.setLength(100);
+                file.close();
+                assertTrue(files[i].setLastModified(now - (files.length - i) * 60000L));
+            }
+            File other = new File(directory, "other.txt");
+            assertTrue(other.createNewFile());
+
+            // Two containers fit in 250 bytes, with the oldest one still needed.
+            assertEquals(2, BurstContainer.prune(directory, Collections.singleton(files[0]), 3,
+                250));
+            assertTrue(files[0].exists());
+            assertFalse(files[1].exists());
+            assertFalse(files[2].exists());
+            assertTrue(files[3].exists());
+            assertTrue(files[4].exists());
+            assertTrue(other.exists());
+
+            assertEquals(2, BurstContainer.prune(directory, Collections.<File>emptySet(), 1,
+                Long.MAX_VALUE));
+            assertTrue(files[4].exists());
+            assertEquals(0, BurstContainer.prune(new File(directory, "missing"),
+                Collections.<File>emptySet(), 0, 0));
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void testNotAContainer() throws IOException {
+        truncate(64);
+        try {
+            BurstContainerReader.open(mFile);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+* Tests for {@link FaceRegionMapper} and {@link BurstSelector}, with metadata recorded on a Nexus 5
+* (active array 3264x2448).
+*/
+public class BurstSelectorTests extends TestCase {
+
+    private static final int ACTIVE_WIDTH = 3264;
+    private static final int ACTIVE_HEIGHT = 2448;
+
+    private static final int COLUMNS = 16;
+    private static final int ROWS = 12;
+
+    /**
+    * A face in the upper left part of the frame, as reported with the full crop region.
+    */
+    private static final FaceRegionMapper.Face FACE =
+        new FaceRegionMapper.Face(612, 408, 1020, 1020, 100);
+
+    public void testFullCropMapsToNormalizedCoordinates() {
+        List<SharpnessRegion> regions = FaceRegionMapper.map(
+            new FaceRegionMapper.Face[]{FACE}, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT,
+            ACTIVE_WIDTH, ACTIVE_HEIGHT, 0);
+        assertEquals(1, regions.size());
+        SharpnessRegion region = regions.get(0);
+        assertEquals(0.1875f, region.left, 1e-4f);
+        assertEquals(1 / 6f, region.top, 1e-4f);
+        assertEquals(0.3125f, region.right, 1e-4f);
+        assertEquals(5 / 12f, region.bottom, 1e-4f);
+        assertEquals(1f, region.weight, 1e-4f);
+    }
+
+    public void testWideOutputCropsTopAndBottom() {
+        // A 1920x1080 stream only shows the central 3264x1836 of the active array.
+        FaceRegionMapper.Face face = new FaceRegionMapper.Face(1632, 306, 2448, 1224, 50);
+        List<SharpnessRegion> regions = FaceRegionMapper.map(
+            new FaceRegionMapper.Face[]{face}, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT, 1920, 1080, 0);
+        SharpnessRegion region = regions.get(0);
+        assertEquals(0.5f, region.left, 1e-4f);
+        assertEquals(0f, region.top, 1e-4f);
+        assertEquals(0.75f, region.right, 1e-4f);
+        assertEquals(0.5f, region.bottom, 1e-4f);
+        assertEquals(0.5f, region.weight, 1e-4f);
+    }
+
+    public void testZoomedCropAndRotation() {
+        // 2x digital zoom: the crop region is the central quarter of the active array.
+        FaceRegionMapper.Face face = new FaceRegionMapper.Face(816, 612, 1632, 1224, 100);
+        FaceRegionMapper.Face[] faces = {face};
+        SharpnessRegion region = FaceRegionMapper.map(faces, 816, 612, 2448, 1836,
+            ACTIVE_WIDTH, ACTIVE_HEIGHT, 0).get(0);
+        assertEquals(0f, region.left, 1e-4f);
+        assertEquals(0f, region.top, 1e-4f);
+        assertEquals(0.5f, region.right, 1e-4f);
+        assertEquals(0.5f, region.bottom, 1e-4f);
+
+        // Rotated clockwise, the top left quarter becomes the top right one.
+        region = FaceRegionMapper.map(faces, 816, 612, 2448, 1836, ACTIVE_WIDTH, ACTIVE_HEIGHT,
+            90).get(0);
+        assertEquals(0.5f, region.left, 1e-4f);
+        assertEquals(0f, region.top, 1e-4f);
+        assertEquals(1f, region.right, 1e-4f);
+        assertEquals(0.5f, region.bottom, 1e-4f);
+    }
+
+    public void testFacesOutsideTheOutputAreDropped() {
+        FaceRegionMapper.Face face = new FaceRegionMapper.Face(0, 0, 300, 300, 100);
+        assertTrue(FaceRegionMapper.map(new FaceRegionMapper.Face[]{face}, 0, 0, ACTIVE_WIDTH,
+            ACTIVE_HEIGHT, 1920, 1080, 0).isEmpty());
+    }
+
+    public void testSharpFaceWinsOverSharpBackground() {
+        // Frame 1 has a sharp background and a blurred face, frame 2 the opposite.
+        JpegSharpnessEstimator.Result sharpBackground = makeResult(40, 5);
+        JpegSharpnessEstimator.Result sharpFace = makeResult(20, 30);
+        FaceRegionMapper.Face[] faces = {FACE};
+
+        BurstSelector selector = new BurstSelector();
+        selector.begin(2, ACTIVE_WIDTH, ACTIVE_HEIGHT, 90);
+        // Images and results come in any order.
+        assertNull(selector.onScored(2000, "frame2.jpg", sharpFace));
+        assertNull(selector.onResult(1000, faces, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT));
+        assertNull(selector.onScored(1000, "frame1.jpg", sharpBackground));
+        BurstSelector.Selection selection =
+            selector.onResult(2000, faces, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT);
+        assertNotNull(selection);
+        assertEquals("frame2.jpg", selection.name);
+        assertEquals(2000, selection.timestamp);
+        assertTrue(selection.faceWeighted);
+        assertEquals(30, selection.score, 1e-6);
+
+        // Without faces, the frames are compared in the center, where the background is sharp.
+        FaceRegionMapper.Face[] none = {};
+        selector.begin(2, ACTIVE_WIDTH, ACTIVE_HEIGHT, 90);
+        selector.onScored(2000, "frame2.jpg", sharpFace);
+        selector.onResult(1000, none, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT);
+        selector.onScored(1000, "frame1.jpg", sharpBackground);
+        selection = selector.onResult(2000, none, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT);
+        assertEquals("frame1.jpg", selection.name);
+        assertFalse(selection.faceWeighted);
+    }
+
+    public void testLostFacesUseTheFacesOfTheBurst() {
+        BurstSelector selector = new BurstSelector();
+        selector.begin(2, ACTIVE_WIDTH, ACTIVE_HEIGHT, 0);
+        selector.onScored(1000, "frame1.jpg", makeResult(40, 5));
+        selector.onScored(2000, "frame2.jpg", makeResult(20, 30));
+        // The detection lost the face in the second frame.
+        selector.onResult(1000, new FaceRegionMapper.Face[]{FACE}, 0, 0, ACTIVE_WIDTH,
+            ACTIVE_HEIGHT);
+        BurstSelector.Selection selection =
+            selector.onResult(2000, null, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT);
+        assertEquals("frame2.jpg", selection.name);
+    }
+
+    /**
+    * A frame that fails to capture or to be scored is left out instead of stalling the burst.
+    */
+    public void testFailedFramesAreLeftOut() {
+        FaceRegionMapper.Face[] none = {};
+        BurstSelector selector = new BurstSelector();
+        selector.begin(4, ACTIVE_WIDTH, ACTIVE_HEIGHT, 0);
+        selector.onResult(1000, none, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT);
+        selector.onScored(1000, "frame1.jpg", makeResult(20, 20));
+        // The sharpest image couldn't be saved.
+        selector.onScored(2000, "frame2.jpg", makeResult(50, 50));
+        assertNull(selector.onFrameFailed(2000));
+        assertNull(selector.onResult(2000, none, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT));
+        // The third frame was never captured.
+        assertNull(selector.onCaptureFailed(false));
+        // The fourth one lost its result only.
+        assertNull(selector.onCaptureFailed(true));
+        BurstSelector.Selection selection = selector.onScored(4000, "frame4.jpg",
+            makeResult(30, 30));
+        assertNotNull(selection);
+        assertEquals("frame4.jpg", selection.name);
+    }
+
+    public void testEveryFrameFailed() {
+        final BurstSelector.Selection[] selected = new BurstSelector.Selection[1];
+        final int[] calls = new int[1];
+        BurstSelector selector = new BurstSelector(new BurstSelector.Callback() {
+            @Override
+            public void onFrameSelected(BurstSelector.Selection selection) {
+                selected[0] = selection;
+                calls[0]++;
+            }
+        });
+        selector.begin(2, ACTIVE_WIDTH, ACTIVE_HEIGHT, 0);
+        selector.onCaptureFailed(false);
+        assertEquals(0, calls[0]);
+        selector.onFrameFailed(2000);
+        // The burst is over, with nothing to select.
+        assertEquals(1, calls[0]);
+        assertNull(selected[0]);
+        selector.onResult(2000, null, 0, 0, ACTIVE_WIDTH, ACTIVE_HEIGHT);
+        assertEquals(1, calls[0]);
+    }
+
+    /**
+    * @return The scores of a frame where the cells covered by {@link #FACE} score
+    * {@code faceScore} and the other ones {@code backgroundScore}
+    */
+    private static JpegSharpnessEstimator.Result makeResult(float backgroundScore,
+                                                            float faceScore) {
+        float[] scores = new float[COLUMNS * ROWS];
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                // FACE covers columns 3 to 4 and rows 2 to 4.
+                boolean inFace = column >= 3 && column < 5 && row >= 2 && row < 5;
+                scores[row * COLUMNS + column] = inFace ? faceScore : backgroundScore;
+            }
+        }
+        return new JpegSharpnessEstimator.Result(ACTIVE_WIDTH, ACTIVE_HEIGHT, backgroundScore,
+            COLUMNS, ROWS, scores);
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.graphics.ImageFormat;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* Tests for {@link BurstStreamPlanner}, against stream configuration dumps.
+*/
+public class BurstStreamPlannerTests extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    /**
+    * JPEG stream configuration of an 8 MP sensor where the full resolution output stalls: format,
+    * width, height, min frame duration, stall duration.
+    */
+    private static final long[][] STALLING_8MP_DUMP = {
+        {ImageFormat.JPEG, 3264, 2448, 50 * MS, 150 * MS},
+        {ImageFormat.JPEG, 3264, 1836, 50 * MS, 110 * MS},
+        {ImageFormat.JPEG, 2592, 1944, 33 * MS, 60 * MS},
+        {ImageFormat.JPEG, 2048, 1536, 33 * MS, 40 * MS},
+        {ImageFormat.JPEG, 1920, 1080, 33 * MS, 25 * MS},
+        {ImageFormat.JPEG, 1280, 960, 33 * MS, 15 * MS},
+        {ImageFormat.JPEG, 640, 480, 33 * MS, 5 * MS},
+    };
+
+    /**
+    * JPEG stream configuration of a sensor without stall durations (full resolution at 30 fps).
+    */
+    private static final long[][] NON_STALLING_12MP_DUMP = {
+        {ImageFormat.JPEG, 4000, 3000, 33 * MS, 0},
+        {ImageFormat.JPEG, 1920, 1080, 33 * MS, 0},
+        {ImageFormat.JPEG, 640, 480, 33 * MS, 0},
+    };
+
+    /**
+    * Stream configuration of a LEGACY device, which doesn't report durations.
+    */
+    private static final long[][] LEGACY_DUMP = {
+        {ImageFormat.JPEG, 640, 480, 0, 0},
+        {ImageFormat.JPEG, 2592, 1944, 0, 0},
+        {ImageFormat.JPEG, 1920, 1080, 0, 0},
+    };
+
+    private static List<BurstStreamPlanner.StreamOption> load(long[][] dump) {
+        List<BurstStreamPlanner.StreamOption> options =
+            new ArrayList<BurstStreamPlanner.StreamOption>();
+        for (long[] line : dump) {
+            options.add(new BurstStreamPlanner.StreamOption((int) line[0], (int) line[1],
+                (int) line[2], line[3], line[4]));
+        }
+        return options;
+    }
+
+    public void testStallingSensorTradesResolutionForRate() {
+        BurstStreamPlanner.Plan plan =
+            BurstStreamPlanner.plan(load(STALLING_8MP_DUMP), 5, 10, 5000000);
+        assertEquals(2592, plan.stream.width);
+        assertEquals(1944, plan.stream.height);
+        assertEquals(33 * MS, plan.frameDuration);
+        assertEquals(5 * 33 * MS + 4 * 60 * MS, plan.burstDuration);
+        assertTrue(plan.getFramesPerSecond() >= 10);
+    }
+
+    public void testFallsBackToFastestWhenTargetIsOutOfReach() {
+        BurstStreamPlanner.Plan plan =
+            BurstStreamPlanner.plan(load(STALLING_8MP_DUMP), 5, 30, 5000000);
+        // Nothing at 5 MP or more reaches 30 fps: 2592x1944 is the fastest of those.
+        assertEquals(2592, plan.stream.width);
+        assertTrue(plan.getFramesPerSecond() < 30);
+    }
+
+    public void testMinimumResolutionIsRespected() {
+        BurstStreamPlanner.Plan plan =
+            BurstStreamPlanner.plan(load(STALLING_8MP_DUMP), 5, 30, 3000000);
+        // 2048x1536 reaches 15.4 fps, only the sizes below 3 MP would be faster.
+        assertEquals(2048, plan.stream.width);
+    }
+
+    public void testShortBurstsTolerateStalls() {
+        BurstStreamPlanner.Plan plan =
+            BurstStreamPlanner.plan(load(STALLING_8MP_DUMP), 1, 10, 5000000);
+        assertEquals(3264, plan.stream.width);
+        assertEquals(2448, plan.stream.height);
+    }
+
+    public void testNonStallingSensorKeepsFullResolution() {
+        BurstStreamPlanner.Plan plan =
+            BurstStreamPlanner.plan(load(NON_STALLING_12MP_DUMP), 5, 10, 5000000);
+        assertEquals(4000, plan.stream.width);
+        assertEquals(33 * MS, plan.frameDuration);
+    }
+
+    public void testLegacyDeviceKeepsLargestSize() {
+        BurstStreamPlanner.Plan plan = BurstStreamPlanner.plan(load(LEGACY_DUMP), 5, 10, 5000000);
+        // No size is large enough: the largest one is used, as before the planner.
+        assertEquals(2592, plan.stream.width);
+        assertEquals(0, plan.frameDuration);
+    }
+
+    public void testEmptyConfiguration() {
+        assertNull(BurstStreamPlanner.plan(new ArrayList<BurstStreamPlanner.StreamOption>(),
+            5, 10, 5000000));
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+* Tests for {@link CaptureLog} and {@link CaptureLogReader}.
+*/
+public class CaptureLogTests extends TestCase {
+
+    private static final long FRAME_DURATION = 33333333L;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("capture_log", "");
+        mDirectory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static void fill(CaptureLog.Record record, int i, int afState) {
+        record.clear();
+        record.frameNumber = i;
+        record.sensorTimestamp = 1000000000L + i * FRAME_DURATION;
+        record.arrivalTime = record.sensorTimestamp + 50000000L;
+        record.exposureTime = 10000000L + i;
+        record.frameDuration = FRAME_DURATION;
+        record.iso = 100 + i;
+        record.focusDistance = i * 0.25f;
+        record.afState = afState;
+        record.appState = i % 7;
+        record.flags = i % 2 == 0 ? CaptureLog.FLAG_BURST : 0;
+    }
+
+    public void testRoundTrip() throws IOException {
+        CaptureLog log = new CaptureLog(mDirectory, 16, 1024 * 1024, 2);
+        CaptureLog.Record record = new CaptureLog.Record();
+        for (int i = 0; i < 100; i++) {
+            fill(record, i, i % 6);
+            log.append(record);
+        }
+        record.clear();
+        log.append(record);
+        log.close();
+
+        CaptureLogReader reader = CaptureLogReader.read(mDirectory);
+        assertEquals(101, reader.size);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, reader.frameNumber[i]);
+            assertEquals(1000000000L + i * FRAME_DURATION, reader.sensorTimestamp[i]);
+            assertEquals(10000000L + i, reader.exposureTime[i]);
+            assertEquals(100 + i, reader.iso[i]);
+            assertEquals(i * 0.25f, reader.focusDistance[i]);
+            assertEquals(i % 6, reader.afState[i]);
+            assertEquals(i % 7, reader.appState[i]);
+            assertEquals(i % 2 == 0 ? CaptureLog.FLAG_BURST : 0, reader.flags[i]);
+        }
+        // Unknown values.
+        assertEquals(-1, reader.exposureTime[100]);
+        assertEquals(-1, reader.aeState[100]);
+        assertTrue(Float.isNaN(reader.focusDistance[100]));
+    }
+
+    public void testFilesRotate() throws IOException {
+        // 10 records per file, written 4 by 4.
+        long maxFileSize = 16 + 10 * CaptureLog.RECORD_SIZE;
+        CaptureLog log = new CaptureLog(mDirectory, 4, maxFileSize, 3);
+        CaptureLog.Record record = new CaptureLog.Record();
+        for (int i = 0; i < 100; i++) {
+            fill(record, i, 0);
+            log.append(record);
+        }
+        log.close();
+
+        List<File> files = CaptureLog.listFiles(mDirectory);
+        assertEquals(3, files.size());
+        for (File file : files) {
+            assertTrue(file.length() <= maxFileSize);
+        }
+        CaptureLogReader reader = CaptureLogReader.read(files);
+        // The last 3 files hold the last 8 + 8 + 4 records, in order.
+        assertEquals(20, reader.size);
+        for (int i = 0; i < reader.size; i++) {
+            assertEquals(80 + i, reader.frameNumber[i]);
+        }
+
+        // A new log starts a new file after the existing ones.
+        log = new CaptureLog(mDirectory, 4, maxFileSize, 3);
+        fill(record, 1000, 0);
+        log.append(record);
+        log.close();
+        reader = CaptureLogReader.read(mDirectory);
+        assertEquals(1000, reader.frameNumber[reader.size - 1]);
+        assertEquals(3, CaptureLog.listFiles(mDirectory).size());
+    }
+
+    public void testTruncatedRecordIsIgnored() throws IOException {
+        CaptureLog log = new CaptureLog(mDirectory, 8, 1024 * 1024, 1);
+        CaptureLog.Record record = new CaptureLog.Record();
+        for (int i = 0; i < 5; i++) {
+            fill(record, i, 0);
+            log.append(record);
+        }
+        log.close();
+        File file = CaptureLog.listFiles(mDirectory).get(0);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(file.length() - 10);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertEquals(4, CaptureLogReader.read(mDirectory).size);
+    }
+
+    public void testFocusLockTimes() throws IOException {
+        int[] afStates = {0, 0, 3, 3, 3, 4, 4, 0, 3, 3, 5, 0, 3, 0};
+        CaptureLog log = new CaptureLog(mDirectory, 8, 1024 * 1024, 1);
+        CaptureLog.Record record = new CaptureLog.Record();
+        for (int i = 0; i < afStates.length; i++) {
+            fill(record, i, afStates[i]);
+            record.flags = 0;
+            log.append(record);
+            // Partial results are not considered.
+            record.flags = CaptureLog.FLAG_PARTIAL;
+            record.afState = CaptureLogReader.AF_STATE_FOCUSED_LOCKED;
+            log.append(record);
+        }
+        log.close();
+
+        long[] times = CaptureLogReader.read(mDirectory).getFocusLockTimes();
+        assertEquals(2, times.length);
+        assertEquals(3 * FRAME_DURATION, times[0]);
+        assertEquals(2 * FRAME_DURATION, times[1]);
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* Tests for {@link ContinuousCaptureController}, with simulated pipeline loads.
+*/
+public class ContinuousCaptureControllerTests extends TestCase {
+
+    private static final long MS = 1000000L;
+    private static final long WINDOW = 500 * MS;
+
+    private static ByteBuffer jpeg(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putInt(0, value);
+        return buffer;
+    }
+
+    private static BurstContainer.FrameInfo frame(long timestamp, float score) {
+        return new BurstContainer.FrameInfo(timestamp, 10 * MS, 100, score);
+    }
+
+    public void testKeepsTheSharpestFrameOfEachWindow() {
+        ContinuousCaptureController controller = new ContinuousCaptureController(WINDOW, 3);
+        controller.start(0);
+        float[] scores = {1, 5, 3, Float.NaN, 2, 4, 1, 0};
+        List<Integer> kept = new ArrayList<Integer>();
+        for (int i = 0; i < scores.length; i++) {
+            // 4 frames per window.
+            assertTrue(controller.onImage(0));
+            ContinuousCaptureController.KeptFrame frame = controller.onAnalyzed(
+                frame(i * 125 * MS, scores[i]), jpeg(i));
+            if (null != frame) {
+                kept.add(frame.jpeg.getInt(0));
+                assertEquals(scores[frame.jpeg.getInt(0)], frame.info.score);
+            }
+        }
+        ContinuousCaptureController.KeptFrame last = controller.finish();
+        kept.add(last.jpeg.getInt(0));
+        assertNull(controller.finish());
+
+        assertEquals(2, kept.size());
+        assertEquals(1, (int) kept.get(0));
+        assertEquals(5, (int) kept.get(1));
+        assertEquals(5f, controller.getSharpestKept().score);
+
+        ContinuousCaptureController.Stats stats = controller.takeStats(1000 * MS);
+        assertEquals(8.0, stats.analyzed, 1e-9);
+        assertEquals(2.0, stats.kept, 1e-9);
+        assertEquals(0.0, stats.dropped, 1e-9);
+    }
+
+    /**
+    * A pipeline slower than the camera: the analysis rate goes down, then the capture rate, and
+    * both come back up in the opposite order once it keeps up.
+    */
+    public void testDegradesAnalysisThenCapture() {
+        ContinuousCaptureController controller = new ContinuousCaptureController(WINDOW, 2);
+        controller.start(0);
+        int frames = 0;
+        while (controller.getCaptureStride() == 1) {
+            assertTrue(++frames < 1000);
+            controller.onImage(1);
+            if (controller.getAnalysisStride() < ContinuousCaptureController.MAX_ANALYSIS_STRIDE) {
+                assertEquals(1, controller.getCaptureStride());
+            }
+        }
+        assertEquals(ContinuousCaptureController.MAX_ANALYSIS_STRIDE,
+            controller.getAnalysisStride());
+        assertTrue(controller.takeCaptureStrideChange());
+        assertFalse(controller.takeCaptureStrideChange());
+
+        while (controller.getCaptureStride() < ContinuousCaptureController.MAX_CAPTURE_STRIDE) {
+            assertTrue(++frames < 1000);
+            controller.onImage(1);
+        }
+        // Full: frames are dropped without looking at the stride.
+        assertFalse(controller.onImage(2));
+
+        while (controller.getAnalysisStride() > 1) {
+            assertTrue(++frames < 1000);
+            controller.onImage(0);
+            if (controller.getCaptureStride() > 1) {
+                assertEquals(ContinuousCaptureController.MAX_ANALYSIS_STRIDE,
+                    controller.getAnalysisStride());
+            }
+        }
+        assertEquals(1, controller.getCaptureStride());
+    }
+
+    /**
+    * The camera at 30 fps, an analysis that takes 50 ms per frame: the frames that don't fit are
+    * dropped, and the rest is analyzed at the rate the pipeline can take.
+    */
+    public void testSimulatedLoad() {
+        ContinuousCaptureController controller = new ContinuousCaptureController(WINDOW, 2);
+        long frameDuration = 33 * MS;
+        long analysisTime = 50 * MS;
+        controller.start(0);
+        // The frames queued for the analysis, the first one being analyzed until busyUntil.
+        List<Long> pending = new ArrayList<Long>();
+        long busyUntil = 0;
+        long captured = 0;
+        long end = 10000 * MS;
+        for (long time = 0; time < end; time += frameDuration) {
+            // Only one frame out of the capture stride goes to the JPEG stream.
+            if ((time / frameDuration) % controller.getCaptureStride() != 0) {
+                continue;
+            }
+            captured++;
+            controller.onCaptured();
+            while (!pending.isEmpty() && busyUntil <= time) {
+                long timestamp = pending.remove(0);
+                controller.onAnalyzed(frame(timestamp, timestamp % 7), jpeg(0));
+                busyUntil += analysisTime;
+            }
+            if (controller.onImage(pending.size())) {
+                if (pending.isEmpty()) {
+                    busyUntil = time + analysisTime;
+                }
+                pending.add(time);
+            }
+        }
+        controller.finish();
+        ContinuousCaptureController.Stats stats = controller.takeStats(end);
+
+        assertEquals(captured / 10.0, stats.captured, 1e-9);
+        assertTrue(stats.dropped > 0);
+        // No more than the pipeline can take.
+        assertTrue(stats.analyzed <= 1000.0 / 50 + 1);
+        assertTrue(stats.analyzed > 0);
+        // About one frame per window.
+        assertEquals(2.0, stats.kept, 0.2);
+        assertTrue(stats.analysisStride > 1);
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+* Tests and benchmark for the restoration of blurred frames: {@link Fft}, {@link GyroTrace},
+* {@link MotionBlurKernel} and {@link WienerDeconvolver}, on synthetic images blurred with known
+* kernels.
+*/
+public class DeconvolutionTests extends TestCase {
+
+    private static final String TAG = "DeconvolutionTests";
+
+    private static final double NOISE_TO_SIGNAL = 0.005;
+
+    public void testFftMatchesDft() {
+        Random random = new Random(1);
+        int n = 32;
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int i = 0; i < n; i++) {
+            re[i] = random.nextDouble();
+            im[i] = random.nextDouble();
+        }
+        double[] originalRe = re.clone();
+        double[] originalIm = im.clone();
+
+        Fft.transform(re, im, 0, 1, n, false);
+        for (int k = 0; k < n; k++) {
+            double sumRe = 0;
+            double sumIm = 0;
+            for (int t = 0; t < n; t++) {
+                double angle = -2 * Math.PI * k * t / n;
+                sumRe += originalRe[t] * Math.cos(angle) - originalIm[t] * Math.sin(angle);
+                sumIm += originalRe[t] * Math.sin(angle) + originalIm[t] * Math.cos(angle);
+            }
+            assertEquals(sumRe, re[k], 1e-9);
+            assertEquals(sumIm, im[k], 1e-9);
+        }
+
+        Fft.transform(re, im, 0, 1, n, true);
+        for (int i = 0; i < n; i++) {
+            assertEquals(originalRe[i], re[i], 1e-12);
+            assertEquals(originalIm[i], im[i], 1e-12);
+        }
+    }
+
+    public void testGyroRotationGivesKernel() {
+        // The device turns left at 0.1 rad/s, sampled at 200 Hz.
+        GyroTrace trace = new GyroTrace(256);
+        for (int i = 0; i < 40; i++) {
+            trace.add(i * 5000000L, 0, 0.1f, 0);
+        }
+        assertNull("Window not covered by the samples", trace.integrate(0, 500000000L, 8));
+        float[] angles = trace.integrate(50000000L, 100000000L, 16);
+        assertEquals(0.005f, angles[angles.length - 1], 1e-6f);
+        assertEquals(0f, angles[angles.length - 2], 1e-6f);
+
+        // 50 ms at 0.1 rad/s with a 3000 px focal length: 15 px. The sensor of a phone is
+        // mounted at 90 degrees, so the horizontal motion of the screen is vertical in the image.
+        MotionBlurKernel kernel = MotionBlurKernel.fromRotation(angles, 3000, 90, 63);
+        assertEquals(15f, kernel.length, 0.01f);
+        int radius = kernel.size / 2;
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                if (Math.abs(dx) > 0) {
+                    assertEquals(0f, kernel.getWeight(dx, dy), 1e-6f);
+                }
+            }
+        }
+        assertNull("Too large for the maximum size",
+            MotionBlurKernel.fromRotation(angles, 3000, 90, 9));
+    }
+
+    public void testKernelRotation() {
+        MotionBlurKernel kernel = MotionBlurKernel.linear(9, 30, 63);
+        MotionBlurKernel rotated = kernel.rotate(90, 63);
+        assertEquals(kernel.size, rotated.size);
+        assertEquals(kernel.length, rotated.length, 1e-4f);
+        int radius = kernel.size / 2;
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                // A quarter turn clockwise brings what is at (x, y) to (-y, x).
+                assertEquals(kernel.getWeight(dy, -dx), rotated.getWeight(dx, dy), 1e-6f);
+            }
+        }
+        MotionBlurKernel back = rotated.rotate(-90, 63);
+        for (int i = 0; i < kernel.weights.length; i++) {
+            assertEquals(kernel.weights[i], back.weights[i], 1e-6f);
+        }
+        assertTrue(Arrays.equals(kernel.weights, kernel.rotate(360, 63).weights));
+    }
+
+    public void testDeconvolutionRestoresKnownBlur() {
+        int width = 320;
+        int height = 240;
+        Random random = new Random(2);
+        float[] sharp = createScene(width, height, random);
+        float[] angles = {0, 30, 75, 120};
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (float angle : angles) {
+                MotionBlurKernel kernel = MotionBlurKernel.linear(9, angle, 63);
+                float[] blurred = blur(sharp, width, height, kernel);
+                for (int i = 0; i < blurred.length; i++) {
+                    blurred[i] += (float) random.nextGaussian() * 0.5f;
+                }
+                float[] restored = new WienerDeconvolver(pool, NOISE_TO_SIGNAL)
+                    .deconvolve(blurred, width, height, kernel);
+
+                double blurredError = rmse(blurred, sharp, width, height);
+                double restoredError = rmse(restored, sharp, width, height);
+                Log.i(TAG, "Blur at " + angle + " degrees: RMSE " + blurredError + " -> "
+                    + restoredError);
+                assertTrue(angle + " degrees: " + restoredError + " vs " + blurredError,
+                    restoredError < 0.6 * blurredError);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testParallelDeconvolutionBenchmark() {
+        int width = 2048;
+        int height = 1536;
+        float[] blurred = blur(createScene(width, height, new Random(3)), width, height,
+            MotionBlurKernel.linear(12, 20, 63));
+        MotionBlurKernel kernel = MotionBlurKernel.linear(12, 20, 63);
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool all = new ForkJoinPool();
+        try {
+            long start = System.nanoTime();
+            float[] sequential = new WienerDeconvolver(single, NOISE_TO_SIGNAL)
+                .deconvolve(blurred, width, height, kernel);
+            long sequentialTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            float[] parallel = new WienerDeconvolver(all, NOISE_TO_SIGNAL)
+                .deconvolve(blurred, width, height, kernel);
+            long parallelTime = System.nanoTime() - start;
+            Log.i(TAG, "3 MP plane: " + sequentialTime / 1000000 + " ms on 1 thread, "
+                + parallelTime / 1000000 + " ms on " + all.getParallelism() + " threads");
+
+            // Tiles are independent, so the split doesn't change the result.
+            for (int i = 0; i < sequential.length; i++) {
+                assertEquals(sequential[i], parallel[i], 0f);
+            }
+        } finally {
+            single.shutdown();
+            all.shutdown();
+        }
+    }
+
+    /**
+    * @return A scene with flat areas, sharp edges and fine texture, from 0 to 255
+    */
+    private static float[] createScene(int width, int height, Random random) {
+        float[] scene = new float[width * height];
+        for (int i = 0; i < scene.length; i++) {
+            scene[i] = 128 + random.nextFloat() * 4 - 2;
+        }
+        for (int block = 0; block < width * height / 2000; block++) {
+            int left = random.nextInt(width);
+            int top = random.nextInt(height);
+            int right = Math.min(width, left + 4 + random.nextInt(40));
+            int bottom = Math.min(height, top + 4 + random.nextInt(40));
+            float value = random.nextFloat() * 255;
+            for (int y = top; y < bottom; y++) {
+                for (int x = left; x < right; x++) {
+                    scene[y * width + x] = value;
+                }
+            }
+        }
+        return scene;
+    }
+
+    /**
+    * @return The plane convolved with the kernel, mirrored beyond its edges
+    */
+    private static float[] blur(float[] plane, int width, int height, MotionBlurKernel kernel) {
+        float[] blurred = new float[plane.length];
+        int radius = kernel.size / 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int dy = -radius; dy <= radius; dy++) {
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        float weight = kernel.getWeight(dx, dy);
+                        if (weight != 0) {
+                            sum += weight * plane[mirror(y - dy, height) * width
+                                + mirror(x - dx, width)];
+                        }
+                    }
+                }
+                blurred[y * width + x] = sum;
+            }
+        }
+        return blurred;
+    }
+
+    private static int mirror(int i, int n) {
+        if (i < 0) {
+            return -i - 1;
+        }
+        return i >= n ? 2 * n - 1 - i : i;
+    }
+
+    /**
+    * @return The RMS difference of the planes, away from their edges
+    */
+    private static double rmse(float[] a, float[] b, int width, int height) {
+        int border = 16;
+        double sum = 0;
+        int count = 0;
+        for (int y = border; y < height - border; y++) {
+            for (int x = border; x < width - border; x++) {
+                double d = a[y * width + x] - b[y * width + x];
+                sum += d * d;
+                count++;
+            }
+        }
+        return Math.sqrt(sum / count);
+    }
+
+}
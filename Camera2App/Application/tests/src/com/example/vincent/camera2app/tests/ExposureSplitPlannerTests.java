@@ -0,0 +1,89 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link ExposureSplitPlanner}.
+*/
+public class ExposureSplitPlannerTests extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    /**
+    * A phone sensor: 1/75000 s to 1/1.2 s, ISO 100 to 10000.
+    */
+    private static final long MIN_EXPOSURE = 13000;
+    private static final long MAX_EXPOSURE = 833 * MS;
+
+    private static ExposureSplitPlanner createPlanner(int maxIso) {
+        return new ExposureSplitPlanner(MIN_EXPOSURE, MAX_EXPOSURE, 100, maxIso, 16);
+    }
+
+    public void testShortExposureIsNotSplit() {
+        ExposureSplitPlanner planner = createPlanner(10000);
+        assertNull(planner.plan(30 * MS, 100, 50 * MS));
+        assertNull(planner.plan(50 * MS, 100, 50 * MS));
+        // A still device.
+        assertNull(planner.plan(MAX_EXPOSURE, 100, Long.MAX_VALUE));
+    }
+
+    public void testSplitsEquallyWithinTheBudget() {
+        ExposureSplitPlanner.Plan plan = createPlanner(10000).plan(100 * MS, 100, 40 * MS);
+        assertEquals(3, plan.frames);
+        assertEquals(100 * MS / 3, plan.exposure);
+        // Each frame as bright as the long exposure.
+        assertEquals(300, plan.iso);
+        assertEquals(1, plan.gain, 1e-3);
+    }
+
+    public void testLongestExposureTakesTheMostFrames() {
+        ExposureSplitPlanner.Plan plan = createPlanner(10000).plan(MAX_EXPOSURE, 100,
+            1000 * MS / 30);
+        // 25 frames would fit the budget: the 16 allowed take the whole budget each.
+        assertEquals(16, plan.frames);
+        assertEquals(1000 * MS / 30, plan.exposure);
+        assertEquals(2499, plan.iso);
+        assertEquals(1, plan.gain, 1e-3);
+    }
+
+    public void testGainMakesUpForTheSensitivity() {
+        ExposureSplitPlanner.Plan plan = createPlanner(800).plan(MAX_EXPOSURE, 400, 50 * MS);
+        assertEquals(16, plan.frames);
+        assertEquals(50 * MS, plan.exposure);
+        assertEquals(800, plan.iso);
+        assertEquals(400.0 * MAX_EXPOSURE / (50 * MS) / 800, plan.gain, 1e-6);
+    }
+
+    public void testBudgetIsWithinTheSensorRange() {
+        ExposureSplitPlanner.Plan plan = createPlanner(10000).plan(10 * MS, 100, 1000);
+        assertEquals(16, plan.frames);
+        assertEquals(MIN_EXPOSURE, plan.exposure);
+    }
+
+    public void testBlurBudget() {
+        // 1 degree per second on a 3000 pixel focal length moves the image by 52 pixels/s.
+        float speed = (float) Math.toRadians(1);
+        long budget = ExposureSplitPlanner.getBlurBudget(speed, 3000, 3);
+        assertEquals(3 / (speed * 3000) * 1e9, budget, 1e3);
+        assertEquals(Long.MAX_VALUE, ExposureSplitPlanner.getBlurBudget(0, 3000, 3));
+        assertEquals(Long.MAX_VALUE, ExposureSplitPlanner.getBlurBudget(speed, 0, 3));
+    }
+
+}
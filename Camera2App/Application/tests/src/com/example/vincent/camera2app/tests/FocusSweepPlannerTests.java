@@ -0,0 +1,81 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link FocusSweepPlanner}.
+*/
+public class FocusSweepPlannerTests extends TestCase {
+
+    /**
+    * A phone lens: focus from 10 cm, hyperfocal distance at 2 m.
+    */
+    private static final float MINIMUM_FOCUS_DISTANCE = 10;
+    private static final float HYPERFOCAL_DISTANCE = 0.5f;
+
+    private static void assertSweep(float[] expected, float[] distances) {
+        assertNotNull(distances);
+        assertEquals(expected.length, distances.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], distances[i], 1e-4f);
+        }
+    }
+
+    public void testSweepsAroundTheLastFocusDistance() {
+        // Steps of one depth of field: twice the hyperfocal distance.
+        assertSweep(new float[]{3, 4, 5, 6, 7},
+            FocusSweepPlanner.plan(5, 5, MINIMUM_FOCUS_DISTANCE, HYPERFOCAL_DISTANCE));
+        assertSweep(new float[]{4.5f, 5.5f},
+            FocusSweepPlanner.plan(5, 2, MINIMUM_FOCUS_DISTANCE, HYPERFOCAL_DISTANCE));
+        assertSweep(new float[]{5},
+            FocusSweepPlanner.plan(5, 1, MINIMUM_FOCUS_DISTANCE, HYPERFOCAL_DISTANCE));
+    }
+
+    public void testSweepStaysInTheFocusRange() {
+        // Focused at infinity: the sweep starts at the hyperfocal distance.
+        assertSweep(new float[]{0.5f, 1.5f, 2.5f, 3.5f},
+            FocusSweepPlanner.plan(0, 4, MINIMUM_FOCUS_DISTANCE, HYPERFOCAL_DISTANCE));
+        assertSweep(new float[]{7, 8, 9, 10},
+            FocusSweepPlanner.plan(20, 4, MINIMUM_FOCUS_DISTANCE, HYPERFOCAL_DISTANCE));
+        // Unknown focus: around the middle of the range.
+        assertSweep(new float[]{4.25f, 5.25f, 6.25f},
+            FocusSweepPlanner.plan(Float.NaN, 3, MINIMUM_FOCUS_DISTANCE, HYPERFOCAL_DISTANCE));
+    }
+
+    public void testLongBurstCoversTheWholeRange() {
+        assertSweep(new float[]{1, 2.8f, 4.6f, 6.4f, 8.2f, 10},
+            FocusSweepPlanner.plan(5, 6, MINIMUM_FOCUS_DISTANCE, 1));
+        // Without a hyperfocal distance, from infinity.
+        assertSweep(new float[]{0, 5, 10},
+            FocusSweepPlanner.plan(5, 3, MINIMUM_FOCUS_DISTANCE, 0));
+    }
+
+    public void testFixedFocus() {
+        assertNull(FocusSweepPlanner.plan(0, 5, 0, 0));
+        assertNull(FocusSweepPlanner.plan(0, 5, 0.5f, 0.5f));
+        assertNull(FocusSweepPlanner.plan(5, 0, MINIMUM_FOCUS_DISTANCE, HYPERFOCAL_DISTANCE));
+    }
+
+    public void testHyperfocalDistance() {
+        // 4 mm at f/2 with a 5 um circle of confusion: 1.604 m.
+        assertEquals(1000 / 1604f, FocusSweepPlanner.hyperfocalDistance(4, 2, 0.005f), 1e-4f);
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+* Round-trip tests and benchmark for {@link JpegEncoder}.
+*/
+public class JpegEncoderTests extends TestCase {
+
+    private static final String TAG = "JpegEncoderTests";
+
+    private static final int QUALITY = 95;
+
+    /**
+    * @return Smooth waves with a dark top-left corner
+    */
+    private static byte[] createLuma(int width, int height) {
+        byte[] y = new byte[width * height];
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                double luma = 128 + 90 * Math.sin(column / 17.0) * Math.cos(row / 23.0);
+                if (column < width / 4 && row < height / 4) {
+                    luma -= 100;
+                }
+                y[row * width + column] = (byte) Math.max(0, Math.min(255, luma));
+            }
+        }
+        return y;
+    }
+
+    /**
+    * @return A frame of the luma plane and a chroma gradient
+    */
+    private static YuvFrame createFrame(byte[] y, int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        // Interleaved, as in the NV21 layout of most cameras.
+        byte[] uv = new byte[chromaWidth * chromaHeight * 2];
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                uv[(row * chromaWidth + column) * 2] = (byte) (128 + column % 40);
+                uv[(row * chromaWidth + column) * 2 + 1] = (byte) (100 + row % 50);
+            }
+        }
+        ByteBuffer v = ByteBuffer.wrap(uv);
+        ByteBuffer u = ByteBuffer.wrap(uv, 1, uv.length - 1).slice();
+        return new YuvFrame(width, height, ByteBuffer.wrap(y), width, 1, u, v,
+            chromaWidth * 2, 2);
+    }
+
+    private static YuvFrame createFrame(int width, int height) {
+        return createFrame(createLuma(width, height), width, height);
+    }
+
+    private static byte[] encode(YuvFrame frame, int orientation, int threads)
+        throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int length = new JpegEncoder(pool, QUALITY).encode(frame, orientation, output);
+            assertEquals(output.size(), length);
+            return output.toByteArray();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+    * @return The luma of the frame at a pixel of the image rotated by the orientation
+    */
+    private static int getLuma(YuvFrame frame, byte[] y, int orientation, int x,
+                               int row) {
+        int frameX;
+        int frameY;
+        switch (orientation) {
+            case 90:
+                frameX = row;
+                frameY = frame.height - 1 - x;
+                break;
+            case 180:
+                frameX = frame.width - 1 - x;
+                frameY = frame.height - 1 - row;
+                break;
+            case 270:
+                frameX = frame.width - 1 - row;
+                frameY = x;
+                break;
+            default:
+                frameX = x;
+                frameY = row;
+                break;
+        }
+        return y[frameY * frame.width + frameX] & 0xFF;
+    }
+
+    public void testParallelEncodingMatchesSerial() throws IOException {
+        YuvFrame frame = createFrame(333, 250);
+        byte[] serial = encode(frame, 0, 1);
+        assertTrue(Arrays.equals(serial, encode(frame, 0, 4)));
+        assertTrue(Arrays.equals(encode(frame, 90, 1), encode(frame, 90, 8)));
+    }
+
+    /**
+    * The rows and their restart markers are read back by our own decoder, the right way up.
+    */
+    public void testDecodesWithRestartMarkers() throws IOException {
+        YuvFrame frame = createFrame(320, 240);
+        JpegSharpnessEstimator estimator = new JpegSharpnessEstimator(4, 3);
+        float[] plane = new float[PerceptualHash.SIZE * PerceptualHash.SIZE];
+        int last = PerceptualHash.SIZE - 1;
+        int[] corners = {0, last, last * PerceptualHash.SIZE + last, last * PerceptualHash.SIZE};
+        for (int orientation : new int[] {0, 90, 180, 270}) {
+            JpegSharpnessEstimator.Result result
+                = estimator.estimate(ByteBuffer.wrap(encode(frame, orientation, 4)));
+            boolean rotated = orientation % 180 != 0;
+            assertEquals(rotated ? 240 : 320, result.width);
+            assertEquals(rotated ? 320 : 240, result.height);
+            assertTrue(result.score > 0);
+
+            // The dark corner moves clockwise with the orientation.
+            estimator.getLumaPlane(plane);
+            int dark = corners[orientation / 90];
+            for (int corner : corners) {
+                if (corner != dark) {
+                    assertTrue("orientation " + orientation, plane[dark] < plane[corner]);
+                }
+            }
+        }
+    }
+
+    /**
+    * The platform decoder reads the JPEG back close to the frame.
+    */
+    public void testRoundTrip() throws IOException {
+        byte[] y = createLuma(333, 250);
+        YuvFrame frame = createFrame(y, 333, 250);
+        for (int orientation : new int[] {0, 90, 180, 270}) {
+            byte[] jpeg = encode(frame, orientation, 4);
+            Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+            assertNotNull(bitmap);
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            assertEquals(orientation % 180 != 0 ? 250 : 333, width);
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            double squaredError = 0;
+            for (int row = 0; row < height; row++) {
+                for (int x = 0; x < width; x++) {
+                    int pixel = pixels[row * width + x];
+                    double luma = 0.299 * ((pixel >> 16) & 0xFF) + 0.587 * ((pixel >> 8) & 0xFF)
+                        + 0.114 * (pixel & 0xFF);
+                    double error = luma - getLuma(frame, y, orientation, x, row);
+                    squaredError += error * error;
+                }
+            }
+            double psnr = 10 * Math.log10(255 * 255 / (squaredError / pixels.length));
+            Log.i(TAG, "Orientation " + orientation + ": " + jpeg.length + " bytes, PSNR "
+                + psnr + " dB");
+            assertTrue("orientation " + orientation + ": " + psnr + " dB", psnr > 35);
+        }
+    }
+
+    /**
+    * The encoding time of a 12 MP frame on 1 to 8 threads.
+    */
+    public void testEncodeBenchmark() throws IOException {
+        YuvFrame frame = createFrame(4000, 3000);
+        // Warm up.
+        encode(createFrame(640, 480), 90, 2);
+        StringBuilder results = new StringBuilder();
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            long start = System.nanoTime();
+            byte[] jpeg = encode(frame, 90, threads);
+            long time = System.nanoTime() - start;
+            results.append(", ").append(threads).append(" threads: ").append(time / 1000000)
+                .append(" ms");
+            assertTrue(jpeg.length > 0);
+        }
+        Log.i(TAG, "12 MP at quality " + QUALITY + results);
+    }
+
+}
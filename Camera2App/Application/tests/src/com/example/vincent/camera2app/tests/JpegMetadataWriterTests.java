@@ -0,0 +1,376 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+* Tests for {@link JpegMetadataWriter}, parsing its output back.
+*/
+public class JpegMetadataWriterTests extends TestCase {
+
+    private static final int DQT = 0xFFDB;
+    private static final int SOS = 0xFFDA;
+    private static final int EOI = 0xFFD9;
+
+    private static final BurstContainer.FrameInfo INFO = new BurstContainer.FrameInfo(
+            123456789L, 8000000L, 400, 3.5f);
+
+    /**
+    * A segment of the output.
+    */
+    private static final class Segment {
+
+        final int marker;
+        final ByteBuffer payload;
+
+        Segment(int marker, ByteBuffer payload) {
+            this.marker = marker;
+            this.payload = payload;
+        }
+
+    }
+
+    private static void putSegment(ByteBuffer buffer, int marker, byte[] payload) {
+        buffer.putShort((short) marker);
+        buffer.putShort((short) (payload.length + 2));
+        buffer.put(payload);
+    }
+
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_F_NUMBER = 0x829D;
+    private static final int TYPE_ASCII = 2;
+    private static final String MAKE = "Google";
+
+    private static void putEntry(ByteBuffer ifd, int tag, int type, int count, int value) {
+        ifd.putShort((short) tag);
+        ifd.putShort((short) type);
+        ifd.putInt(count);
+        if (type == JpegMetadataWriter.TYPE_SHORT) {
+            ifd.putShort((short) value);
+            ifd.putShort((short) 0);
+        } else {
+            ifd.putInt(value);
+        }
+    }
+
+    /**
+    * An EXIF payload as a HAL writes it, little endian, with a make, an orientation, and an EXIF
+    * IFD with an exposure time of 1/30 s, an f-number of 1.8 and ISO 100.
+    */
+    private static byte[] halExif(int orientation) {
+        ByteBuffer exif = ByteBuffer.allocate(6 + 116).order(ByteOrder.LITTLE_ENDIAN);
+        exif.put(JpegMetadataWriter.EXIF_ID);
+        ByteBuffer tiff = exif.slice().order(ByteOrder.LITTLE_ENDIAN);
+        tiff.putShort((short) 0x4949);
+        tiff.putShort((short) 42);
+        tiff.putInt(8);
+        // IFD0 at 8, the EXIF IFD at 50, the make at 92, the rationals at 100 and 108.
+        tiff.putShort((short) 3);
+        putEntry(tiff, TAG_MAKE, TYPE_ASCII, MAKE.length() + 1, 92);
+        putEntry(tiff, JpegMetadataWriter.TAG_ORIENTATION, JpegMetadataWriter.TYPE_SHORT, 1,
+            orientation);
+        putEntry(tiff, JpegMetadataWriter.TAG_EXIF_IFD, JpegMetadataWriter.TYPE_LONG, 1, 50);
+        tiff.putInt(0);
+        tiff.putShort((short) 3);
+        putEntry(tiff, JpegMetadataWriter.TAG_EXPOSURE_TIME, JpegMetadataWriter.TYPE_RATIONAL, 1,
+            108);
+        putEntry(tiff, TAG_F_NUMBER, JpegMetadataWriter.TYPE_RATIONAL, 1, 100);
+        putEntry(tiff, JpegMetadataWriter.TAG_ISO, JpegMetadataWriter.TYPE_SHORT, 1, 100);
+        tiff.putInt(0);
+        tiff.put(MAKE.getBytes());
+        tiff.put((byte) 0);
+        tiff.put((byte) 0);
+        tiff.putInt(18);
+        tiff.putInt(10);
+        tiff.putInt(1);
+        tiff.putInt(30);
+        return exif.array();
+    }
+
+    /**
+    * A fake JPEG: SOI, the given APP segments, a quantization table, a scan and EOI.
+    */
+    private static ByteBuffer createJpeg(int[] markers, byte[][] payloads) {
+        ByteBuffer jpeg = ByteBuffer.allocate(4096);
+        jpeg.putShort((short) JpegMetadataWriter.SOI);
+        for (int i = 0; i < markers.length; i++) {
+            putSegment(jpeg, markers[i], payloads[i]);
+        }
+        putSegment(jpeg, DQT, new byte[65]);
+        putSegment(jpeg, SOS, new byte[10]);
+        for (int i = 0; i < 1000; i++) {
+            // Entropy coded data, with stuffed 0xFF bytes.
+            jpeg.put((byte) (i % 7 == 0 ? 0xFF : i));
+            if (i % 7 == 0) {
+                jpeg.put((byte) 0);
+            }
+        }
+        jpeg.putShort((short) EOI);
+        jpeg.flip();
+        return jpeg;
+    }
+
+    private static byte[] write(ByteBuffer jpeg, int frameIndex) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int position = jpeg.position();
+        long written = new JpegMetadataWriter().write(jpeg, Channels.newChannel(output), INFO,
+            frameIndex, 7);
+        assertEquals(position, jpeg.position());
+        assertEquals(output.size(), written);
+        return output.toByteArray();
+    }
+
+    /**
+    * Parses the segments before the scan.
+    */
+    private static List<Segment> parse(byte[] bytes) {
+        ByteBuffer jpeg = ByteBuffer.wrap(bytes);
+        assertEquals(JpegMetadataWriter.SOI, jpeg.getShort() & 0xFFFF);
+        List<Segment> segments = new ArrayList<Segment>();
+        while (true) {
+            int marker = jpeg.getShort() & 0xFFFF;
+            int length = jpeg.getShort() & 0xFFFF;
+            ByteBuffer payload = jpeg.slice();
+            payload.limit(length - 2);
+            segments.add(new Segment(marker, payload));
+            if (marker == SOS) {
+                return segments;
+            }
+            jpeg.position(jpeg.position() + length - 2);
+        }
+    }
+
+    private static Segment find(List<Segment> segments, int marker) {
+        Segment found = null;
+        for (Segment segment : segments) {
+            if (segment.marker == marker) {
+                assertNull("Duplicate segment " + Integer.toHexString(marker), found);
+                found = segment;
+            }
+        }
+        return found;
+    }
+
+    /**
+    * @return The value of an IFD entry, or its offset, or -1 if it is missing
+    */
+    private static long findEntry(ByteBuffer tiff, int ifd, int tag, int type) {
+        int count = tiff.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if ((tiff.getShort(entry) & 0xFFFF) == tag) {
+                assertEquals(type, tiff.getShort(entry + 2));
+                return type == JpegMetadataWriter.TYPE_SHORT
+                    ? tiff.getShort(entry + 8) & 0xFFFF : tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+            }
+        }
+        return -1;
+    }
+
+    /**
+    * @return The TIFF structure of an EXIF segment, in its byte order
+    */
+    private static ByteBuffer getTiff(Segment exif) {
+        ByteBuffer payload = exif.payload.duplicate();
+        for (byte b : JpegMetadataWriter.EXIF_ID) {
+            assertEquals(b, payload.get());
+        }
+        ByteBuffer tiff = payload.slice();
+        if (tiff.getShort(0) == 0x4949) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return tiff;
+    }
+
+    private static void assertExif(Segment exif, int orientation) {
+        ByteBuffer tiff = getTiff(exif);
+        assertEquals(orientation, JpegMetadataWriter.readOrientation(tiff, 0, tiff.limit(), -1));
+        int ifd0 = tiff.getInt(4);
+        int exifIfd = (int) findEntry(tiff, ifd0, JpegMetadataWriter.TAG_EXIF_IFD,
+            JpegMetadataWriter.TYPE_LONG);
+        assertEquals(INFO.iso, findEntry(tiff, exifIfd, JpegMetadataWriter.TAG_ISO,
+            JpegMetadataWriter.TYPE_SHORT));
+        int exposure = (int) findEntry(tiff, exifIfd, JpegMetadataWriter.TAG_EXPOSURE_TIME,
+            JpegMetadataWriter.TYPE_RATIONAL);
+        double seconds = (double) (tiff.getInt(exposure) & 0xFFFFFFFFL)
+            / (tiff.getInt(exposure + 4) & 0xFFFFFFFFL);
+        assertEquals(0.008, seconds, 1e-12);
+    }
+
+    private static void assertBurstSegment(Segment burst, int frameIndex) {
+        ByteBuffer payload = burst.payload.duplicate();
+        byte[] id = new byte[JpegMetadataWriter.BURST_SEGMENT_ID.length];
+        payload.get(id);
+        assertTrue(Arrays.equals(JpegMetadataWriter.BURST_SEGMENT_ID, id));
+        assertEquals(JpegMetadataWriter.BURST_SEGMENT_VERSION, payload.getInt());
+        assertEquals(frameIndex, payload.getInt());
+        assertEquals(7, payload.getInt());
+        assertEquals(INFO.timestamp, payload.getLong());
+        assertEquals(INFO.exposureTime, payload.getLong());
+        assertEquals(INFO.iso, payload.getInt());
+        assertEquals(INFO.score, payload.getFloat());
+        assertFalse(payload.hasRemaining());
+    }
+
+    /**
+    * @return Whether the output ends with the input from {@code from}
+    */
+    private static boolean endsWith(byte[] output, ByteBuffer input, int from) {
+        int length = input.limit() - from;
+        byte[] tail = new byte[length];
+        ByteBuffer duplicate = input.duplicate();
+        duplicate.position(from);
+        duplicate.get(tail);
+        return Arrays.equals(tail, Arrays.copyOfRange(output, output.length - length,
+            output.length));
+    }
+
+    /**
+    * The tags of the HAL we don't set are still there, with their values.
+    */
+    private static void assertHalTags(Segment exif) {
+        ByteBuffer tiff = getTiff(exif);
+        assertEquals(ByteOrder.LITTLE_ENDIAN, tiff.order());
+        int ifd0 = tiff.getInt(4);
+        int make = (int) findEntry(tiff, ifd0, TAG_MAKE, TYPE_ASCII);
+        byte[] bytes = new byte[MAKE.length()];
+        ByteBuffer duplicate = tiff.duplicate();
+        duplicate.position(make);
+        duplicate.get(bytes);
+        assertEquals(MAKE, new String(bytes));
+        int exifIfd = (int) findEntry(tiff, ifd0, JpegMetadataWriter.TAG_EXIF_IFD,
+            JpegMetadataWriter.TYPE_LONG);
+        int fNumber = (int) findEntry(tiff, exifIfd, TAG_F_NUMBER,
+            JpegMetadataWriter.TYPE_RATIONAL);
+        assertEquals(18, tiff.getInt(fNumber));
+        assertEquals(10, tiff.getInt(fNumber + 4));
+        // The entries are sorted by tag.
+        int count = tiff.getShort(exifIfd) & 0xFFFF;
+        for (int i = 1; i < count; i++) {
+            assertTrue((tiff.getShort(exifIfd + 2 + (i - 1) * 12) & 0xFFFF)
+                < (tiff.getShort(exifIfd + 2 + i * 12) & 0xFFFF));
+        }
+    }
+
+    public void testHalExifIsKept() throws IOException {
+        byte[] jfif = {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+        byte[] comment = {'h', 'i'};
+        ByteBuffer jpeg = createJpeg(
+            new int[]{JpegMetadataWriter.APP0, JpegMetadataWriter.APP1, JpegMetadataWriter.COM},
+            new byte[][]{jfif, halExif(6), comment});
+        byte[] output = write(jpeg, 2);
+
+        List<Segment> segments = parse(output);
+        assertEquals(JpegMetadataWriter.APP0, segments.get(0).marker);
+        assertEquals(JpegMetadataWriter.APP1, segments.get(1).marker);
+        assertEquals(JpegMetadataWriter.BURST_SEGMENT_MARKER, segments.get(2).marker);
+        assertEquals(JpegMetadataWriter.COM, segments.get(3).marker);
+        assertEquals(DQT, segments.get(4).marker);
+        // The orientation of the HAL is kept, its exposure and ISO replaced.
+        assertExif(find(segments, JpegMetadataWriter.APP1), 6);
+        assertHalTags(find(segments, JpegMetadataWriter.APP1));
+        assertBurstSegment(find(segments, JpegMetadataWriter.BURST_SEGMENT_MARKER), 2);
+        // Everything from the comment on is copied as is.
+        int comStart = 2 + 4 + jfif.length + 4 + halExif(6).length;
+        assertTrue(endsWith(output, jpeg, comStart));
+    }
+
+    public void testBareJpeg() throws IOException {
+        ByteBuffer jpeg = createJpeg(new int[0], new byte[0][]);
+        // The JPEG does not start at the beginning of its buffer, like in an Image plane.
+        ByteBuffer offset = ByteBuffer.allocateDirect(jpeg.limit() + 5);
+        offset.position(5);
+        offset.put(jpeg);
+        offset.position(5);
+        byte[] output = write(offset, 0);
+
+        List<Segment> segments = parse(output);
+        assertEquals(JpegMetadataWriter.APP1, segments.get(0).marker);
+        assertEquals(JpegMetadataWriter.BURST_SEGMENT_MARKER, segments.get(1).marker);
+        assertEquals(DQT, segments.get(2).marker);
+        assertExif(segments.get(0), JpegMetadataWriter.ORIENTATION_NORMAL);
+        assertBurstSegment(segments.get(1), 0);
+        assertTrue(endsWith(output, jpeg, 2));
+    }
+
+    public void testRewritingReplacesTheSegments() throws IOException {
+        byte[] once = write(createJpeg(new int[]{JpegMetadataWriter.APP1},
+            new byte[][]{halExif(8)}), 1);
+        byte[] twice = write(ByteBuffer.wrap(once), 3);
+        List<Segment> segments = parse(twice);
+        assertExif(find(segments, JpegMetadataWriter.APP1), 8);
+        assertHalTags(find(segments, JpegMetadataWriter.APP1));
+        assertBurstSegment(find(segments, JpegMetadataWriter.BURST_SEGMENT_MARKER), 3);
+    }
+
+    public void testDefaultOrientation() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new JpegMetadataWriter().write(createJpeg(new int[0], new byte[0][]),
+            Channels.newChannel(output), INFO, 0, 7, 6);
+        assertExif(find(parse(output.toByteArray()), JpegMetadataWriter.APP1), 6);
+
+        // The orientation of the JPEG wins.
+        output.reset();
+        new JpegMetadataWriter().write(createJpeg(new int[]{JpegMetadataWriter.APP1},
+            new byte[][]{halExif(8)}), Channels.newChannel(output), INFO, 0, 7, 6);
+        assertExif(find(parse(output.toByteArray()), JpegMetadataWriter.APP1), 8);
+    }
+
+    public void testUnknownExposureIsLeftOut() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new JpegMetadataWriter().write(createJpeg(new int[0], new byte[0][]),
+            Channels.newChannel(output), new BurstContainer.FrameInfo(1, 0, 0, Float.NaN), 0, 1);
+        ByteBuffer tiff = getTiff(parse(output.toByteArray()).get(0));
+        int exifIfd = (int) findEntry(tiff, tiff.getInt(4), JpegMetadataWriter.TAG_EXIF_IFD,
+            JpegMetadataWriter.TYPE_LONG);
+        assertEquals(1, tiff.getShort(exifIfd));
+        assertEquals(-1, findEntry(tiff, exifIfd, JpegMetadataWriter.TAG_EXPOSURE_TIME,
+            JpegMetadataWriter.TYPE_RATIONAL));
+    }
+
+    public void testMalformedJpeg() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            new JpegMetadataWriter().write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}),
+                Channels.newChannel(output), INFO, 0, 1);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        ByteBuffer truncated = createJpeg(new int[]{JpegMetadataWriter.APP1},
+            new byte[][]{halExif(1)});
+        truncated.limit(20);
+        try {
+            new JpegMetadataWriter().write(truncated, Channels.newChannel(output), INFO, 0, 1);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}
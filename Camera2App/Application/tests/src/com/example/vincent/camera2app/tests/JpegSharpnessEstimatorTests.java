@@ -0,0 +1,253 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+* Tests and benchmark for {@link JpegSharpnessEstimator}.
+* <p/>
+* Besides the scenes encoded by {@link Bitmap#compress}, the estimator is run on the JPEGs of
+* {@code tests/resources/jpeg}: a sharp and a blurred version of a scene for each of the layouts
+* in {@link #CORPUS_LAYOUTS}. They were encoded by libjpeg, through the JDK's ImageIO, from
+* textured scenes with hard edges and sensor noise, at 1600x1200 and quality 90.
+*/
+public class JpegSharpnessEstimatorTests extends TestCase {
+
+    private static final String TAG = "JpegSharpnessTests";
+
+    /**
+    * How many times faster than a full decode and a Laplacian the estimator must be.
+    */
+    private static final int MIN_SPEEDUP = 3;
+
+    /**
+    * The layouts of the JPEGs in {@code tests/resources/jpeg}: 4:2:0 without restart markers,
+    * 4:2:0 with a restart marker every MCU row, and 4:2:2 with a restart marker every 7 MCUs.
+    */
+    private static final String[] CORPUS_LAYOUTS = {"420", "420_restart", "422_restart"};
+    private static final int CORPUS_WIDTH = 1600;
+    private static final int CORPUS_HEIGHT = 1200;
+
+    /**
+    * Builds a test scene: a checkerboard over a smooth gradient, with some noise, blurred by
+    * {@code blurPasses} 3x3 box filters.
+    */
+    private static int[] createScene(int width, int height, int blurPasses) {
+        Random random = new Random(42);
+        int[] luma = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int checker = ((x / 7) + (y / 5)) % 2 == 0 ? 40 : -40;
+                luma[y * width + x] = 128 + checker + (int) (60 * Math.sin(x * 0.05))
+                    + random.nextInt(20) - 10;
+            }
+        }
+        for (int pass = 0; pass < blurPasses; pass++) {
+            int[] blurred = new int[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int sum = 0;
+                    int count = 0;
+                    for (int dy = -1; dy <= 1; dy++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int xx = x + dx;
+                            int yy = y + dy;
+                            if (xx >= 0 && yy >= 0 && xx < width && yy < height) {
+                                sum += luma[yy * width + xx];
+                                count++;
+                            }
+                        }
+                    }
+                    blurred[y * width + x] = sum / count;
+                }
+            }
+            luma = blurred;
+        }
+        int[] colors = new int[width * height];
+        for (int i = 0; i < colors.length; i++) {
+            int v = Math.max(0, Math.min(255, luma[i]));
+            colors[i] = 0xFF000000 | (v << 16) | (v << 8) | v;
+        }
+        return colors;
+    }
+
+    private static byte[] encode(int[] colors, int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = Bitmap.createBitmap(colors, width, height, config);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 95, output);
+        bitmap.recycle();
+        return output.toByteArray();
+    }
+
+    private static byte[] readCorpus(String layout, String version) throws IOException {
+        String name = "/jpeg/scene_" + layout + "_" + version + ".jpg";
+        InputStream input = JpegSharpnessEstimatorTests.class.getResourceAsStream(name);
+        assertNotNull("Missing " + name, input);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16384];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static ByteBuffer toDirectBuffer(byte[] jpeg) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(jpeg.length);
+        buffer.put(jpeg);
+        buffer.flip();
+        return buffer;
+    }
+
+    public void testBlurLowersScore() {
+        JpegSharpnessEstimator estimator = new JpegSharpnessEstimator(4, 3);
+        double previous = Double.MAX_VALUE;
+        for (int blur = 0; blur < 4; blur++) {
+            byte[] jpeg = encode(createScene(640, 480, blur), 640, 480, Bitmap.Config.ARGB_8888);
+            JpegSharpnessEstimator.Result result = estimator.estimate(toDirectBuffer(jpeg));
+            assertEquals(640, result.width);
+            assertEquals(480, result.height);
+            assertTrue("blur " + blur + " scored " + result.score, result.score < previous);
+            previous = result.score;
+        }
+    }
+
+    public void testBlurLowersScoreOnCorpus() throws IOException {
+        JpegSharpnessEstimator estimator = new JpegSharpnessEstimator(4, 3);
+        for (String layout : CORPUS_LAYOUTS) {
+            JpegSharpnessEstimator.Result sharp
+                = estimator.estimate(toDirectBuffer(readCorpus(layout, "sharp")));
+            assertEquals(CORPUS_WIDTH, sharp.width);
+            assertEquals(CORPUS_HEIGHT, sharp.height);
+            double sharpScore = sharp.score;
+            JpegSharpnessEstimator.Result blurred
+                = estimator.estimate(toDirectBuffer(readCorpus(layout, "blurred")));
+            assertTrue(layout + ": sharp " + sharpScore + ", blurred " + blurred.score,
+                sharpScore > blurred.score);
+            // The ordering holds in every region, not only on average.
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 4; column++) {
+                    assertTrue(layout + ": region " + column + ", " + row,
+                        sharp.getRegionScore(column, row) > blurred.getRegionScore(column, row));
+                }
+            }
+        }
+    }
+
+    public void testRegionMapFindsTheSharpRegion() {
+        int width = 640;
+        int height = 480;
+        int[] sharp = createScene(width, height, 0);
+        int[] colors = createScene(width, height, 3);
+        // Only the top-left quarter is sharp.
+        for (int y = 0; y < height / 2; y++) {
+            System.arraycopy(sharp, y * width, colors, y * width, width / 2);
+        }
+        JpegSharpnessEstimator.Result result = new JpegSharpnessEstimator(2, 2)
+            .estimate(toDirectBuffer(encode(colors, width, height, Bitmap.Config.ARGB_8888)));
+        assertTrue(result.getRegionScore(0, 0) > 2 * result.getRegionScore(1, 0));
+        assertTrue(result.getRegionScore(0, 0) > 2 * result.getRegionScore(0, 1));
+        assertTrue(result.getRegionScore(0, 0) > 2 * result.getRegionScore(1, 1));
+    }
+
+    public void testBufferIsNotModified() {
+        ByteBuffer buffer = toDirectBuffer(encode(createScene(64, 48, 0), 64, 48,
+            Bitmap.Config.ARGB_8888));
+        new JpegSharpnessEstimator(1, 1).estimate(buffer);
+        assertEquals(0, buffer.position());
+    }
+
+    public void testRejectsNonJpegData() {
+        try {
+            new JpegSharpnessEstimator(1, 1).estimate(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+    * Compares the estimator with a full decode and a Laplacian on a 12 MP JPEG, and on the
+    * JPEGs of every layout of the corpus.
+    */
+    public void testFasterThanDecodeAndLaplacian() throws IOException {
+        int width = 4000;
+        int height = 3000;
+        assertFasterThanDecodeAndLaplacian("12 MP JPEG",
+            encode(createScene(width, height, 1), width, height, Bitmap.Config.RGB_565));
+        for (String layout : CORPUS_LAYOUTS) {
+            assertFasterThanDecodeAndLaplacian(layout, readCorpus(layout, "sharp"));
+            assertFasterThanDecodeAndLaplacian(layout + " blurred", readCorpus(layout, "blurred"));
+        }
+    }
+
+    private static void assertFasterThanDecodeAndLaplacian(String name, byte[] jpeg) {
+        ByteBuffer buffer = toDirectBuffer(jpeg);
+        JpegSharpnessEstimator estimator = new JpegSharpnessEstimator(16, 12);
+        estimator.estimate(buffer);
+
+        long start = System.nanoTime();
+        estimator.estimate(buffer);
+        long estimatorTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        long decodeTime = System.nanoTime() - start;
+        assertNotNull(name + " could not be decoded", bitmap);
+
+        start = System.nanoTime();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width * 3];
+        double laplacian = 0;
+        for (int y = 1; y < height - 1; y++) {
+            bitmap.getPixels(row, 0, width, 0, y - 1, width, 3);
+            for (int x = 1; x < width - 1; x++) {
+                int value = 4 * (row[width + x] & 0xFF) - (row[width + x - 1] & 0xFF)
+                    - (row[width + x + 1] & 0xFF) - (row[x] & 0xFF) - (row[2 * width + x] & 0xFF);
+                laplacian += value * value;
+            }
+        }
+        long laplacianTime = System.nanoTime() - start;
+        bitmap.recycle();
+
+        Log.i(TAG, name + ": estimator " + estimatorTime / 1000000 + " ms, decode "
+            + decodeTime / 1000000 + " ms + Laplacian " + laplacianTime / 1000000 + " ms ("
+            + laplacian + ")");
+        assertTrue(name + ": estimator " + estimatorTime + " ns, decode and Laplacian "
+            + (decodeTime + laplacianTime) + " ns",
+            estimatorTime * MIN_SPEEDUP < decodeTime + laplacianTime);
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+* Tests for {@link JpegThumbnail}.
+*/
+public class JpegThumbnailTests extends TestCase {
+
+    /**
+    * A fake thumbnail JPEG.
+    */
+    private static final byte[] THUMBNAIL = {
+        (byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, 6, 7, 8, (byte) 0xFF, (byte) 0xD9};
+
+    /**
+    * A JPEG with an EXIF segment as a HAL writes it: the orientation in the first IFD, and the
+    * thumbnail referenced by the second one.
+    *
+    * @param withThumbnail Whether to write the second IFD
+    */
+    private static ByteBuffer createJpeg(ByteOrder order, int orientation, boolean withThumbnail) {
+        ByteBuffer tiff = ByteBuffer.allocate(256).order(order);
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiff.putShort((short) 42);
+        tiff.putInt(8);
+        // IFD0
+        tiff.putShort((short) 1);
+        tiff.putShort((short) JpegMetadataWriter.TAG_ORIENTATION);
+        tiff.putShort((short) JpegMetadataWriter.TYPE_SHORT);
+        tiff.putInt(1);
+        tiff.putShort((short) orientation);
+        tiff.putShort((short) 0);
+        int ifd1 = tiff.position() + 4;
+        tiff.putInt(withThumbnail ? ifd1 : 0);
+        if (withThumbnail) {
+            int thumbnailOffset = ifd1 + 2 + 2 * 12 + 4;
+            tiff.putShort((short) 2);
+            tiff.putShort((short) JpegThumbnail.TAG_THUMBNAIL_OFFSET);
+            tiff.putShort((short) JpegMetadataWriter.TYPE_LONG);
+            tiff.putInt(1);
+            tiff.putInt(thumbnailOffset);
+            tiff.putShort((short) JpegThumbnail.TAG_THUMBNAIL_LENGTH);
+            tiff.putShort((short) JpegMetadataWriter.TYPE_LONG);
+            tiff.putInt(1);
+            tiff.putInt(THUMBNAIL.length);
+            tiff.putInt(0);
+            tiff.put(THUMBNAIL);
+        }
+        tiff.flip();
+
+        ByteBuffer jpeg = ByteBuffer.allocate(512);
+        jpeg.putShort((short) JpegMetadataWriter.SOI);
+        // A JFIF segment first, as some encoders write.
+        jpeg.putShort((short) JpegMetadataWriter.APP0);
+        jpeg.putShort((short) 7);
+        jpeg.put(new byte[]{'J', 'F', 'I', 'F', 0});
+        jpeg.putShort((short) JpegMetadataWriter.APP1);
+        jpeg.putShort((short) (2 + JpegMetadataWriter.EXIF_ID.length + tiff.remaining()));
+        jpeg.put(JpegMetadataWriter.EXIF_ID);
+        jpeg.put(tiff);
+        jpeg.putShort((short) 0xFFDB);
+        jpeg.putShort((short) 4);
+        jpeg.putShort((short) 0);
+        jpeg.putShort((short) 0xFFD9);
+        jpeg.flip();
+        return jpeg;
+    }
+
+    private static void assertThumbnail(ByteBuffer thumbnail) {
+        assertNotNull(thumbnail);
+        byte[] bytes = new byte[thumbnail.remaining()];
+        thumbnail.get(bytes);
+        assertTrue(Arrays.equals(THUMBNAIL, bytes));
+    }
+
+    public void testFindsTheThumbnail() {
+        assertThumbnail(JpegThumbnail.find(createJpeg(ByteOrder.LITTLE_ENDIAN, 6, true)));
+        ByteBuffer jpeg = createJpeg(ByteOrder.BIG_ENDIAN, 1, true);
+        assertThumbnail(JpegThumbnail.find(jpeg));
+        assertEquals(0, jpeg.position());
+    }
+
+    public void testNoThumbnail() {
+        assertNull(JpegThumbnail.find(createJpeg(ByteOrder.LITTLE_ENDIAN, 1, false)));
+        assertNull(JpegThumbnail.find(ByteBuffer.wrap(THUMBNAIL)));
+        assertNull(JpegThumbnail.find(ByteBuffer.wrap(new byte[]{1, 2, 3})));
+        // A thumbnail beyond the EXIF segment is ignored.
+        ByteBuffer jpeg = createJpeg(ByteOrder.BIG_ENDIAN, 1, true);
+        int exifLength = jpeg.getShort(2 + 2 + 7 + 2) & 0xFFFF;
+        jpeg.putShort(2 + 2 + 7 + 2, (short) (exifLength - 4));
+        assertNull(JpegThumbnail.find(jpeg));
+    }
+
+    public void testReadsTheOrientation() {
+        assertEquals(6, JpegThumbnail.readOrientation(createJpeg(ByteOrder.LITTLE_ENDIAN, 6,
+            false)));
+        assertEquals(8, JpegThumbnail.readOrientation(createJpeg(ByteOrder.BIG_ENDIAN, 8, true)));
+        assertEquals(JpegMetadataWriter.ORIENTATION_NORMAL,
+            JpegThumbnail.readOrientation(ByteBuffer.wrap(THUMBNAIL)));
+    }
+
+    public void testSampleSize() {
+        // 4160x3120 in a 384x288 cell: 4160 / 8 = 520 is the smallest above 384.
+        assertEquals(8, JpegThumbnail.computeSampleSize(4160, 3120, 384, 288));
+        assertEquals(1, JpegThumbnail.computeSampleSize(320, 240, 384, 288));
+        assertEquals(2, JpegThumbnail.computeSampleSize(800, 600, 400, 300));
+        // Both sides must stay large enough.
+        assertEquals(1, JpegThumbnail.computeSampleSize(1000, 300, 100, 200));
+        assertEquals(1, JpegThumbnail.computeSampleSize(1000, 1000, 0, 0));
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+/**
+* Tests for {@link ManualSettingsController}.
+*/
+public class ManualSettingsControllerTests extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    public void testRapidChangesAreCoalesced() {
+        ManualSettingsController controller = new ManualSettingsController(2);
+        ManualSettingsController.Submission first = controller.request(10 * MS, 100, 0);
+        assertNotNull(first);
+        assertNull(controller.request(20 * MS, 100, 1 * MS));
+        assertNull(controller.request(30 * MS, 100, 2 * MS));
+        assertNull(controller.request(40 * MS, 200, 3 * MS));
+        assertFalse(controller.isSettled());
+
+        // First frame of the new request, still reporting old values, then the sync latency.
+        assertNull(controller.onResult(first.generation, 100, 5 * MS, 50, 30 * MS));
+        assertNull(controller.onResult(first.generation, 101, 5 * MS, 50, 60 * MS));
+        ManualSettingsController.Submission next =
+            controller.onResult(first.generation, 102, 5 * MS, 50, 90 * MS);
+
+        // Only the latest request is submitted.
+        assertNotNull(next);
+        assertEquals(40 * MS, next.exposure);
+        assertEquals(200, next.iso);
+        assertTrue(next.generation != first.generation);
+        assertEquals(90 * MS, controller.getLastLatency());
+        assertEquals(2, controller.getLastLatencyFrames());
+        assertFalse(controller.isSettled());
+    }
+
+    public void testReportedValuesMarkSettingsApplied() {
+        ManualSettingsController controller =
+            new ManualSettingsController(ManualSettingsController.LATENCY_UNKNOWN);
+        ManualSettingsController.Submission submission = controller.request(10 * MS, 400, 0);
+        assertNull(controller.onResult(submission.generation, 7, 33 * MS, 100, 33 * MS));
+        // The HAL rounds the exposure time to its line time.
+        assertNull(controller.onResult(submission.generation, 8, 10 * MS - 1000, 400, 66 * MS));
+        assertTrue(controller.isSettled());
+        assertEquals(66 * MS, controller.getLastLatency());
+        assertEquals(1, controller.getLastLatencyFrames());
+    }
+
+    public void testUnknownLatencyEventuallySettles() {
+        ManualSettingsController controller =
+            new ManualSettingsController(ManualSettingsController.LATENCY_UNKNOWN);
+        ManualSettingsController.Submission submission = controller.request(10 * MS, 400, 0);
+        for (int frame = 0; frame < 8; frame++) {
+            controller.onResult(submission.generation, frame, null, null, frame * 33 * MS);
+            assertFalse(controller.isSettled());
+        }
+        controller.onResult(submission.generation, 8, null, null, 8 * 33 * MS);
+        assertTrue(controller.isSettled());
+    }
+
+    public void testResultsOfOtherRequestsAreIgnored() {
+        ManualSettingsController controller = new ManualSettingsController(0);
+        ManualSettingsController.Submission submission = controller.request(10 * MS, 400, 0);
+        assertNull(controller.onResult(null, 1, 10 * MS, 400, 1 * MS));
+        assertNull(controller.onResult(submission.generation - 1, 2, 10 * MS, 400, 2 * MS));
+        assertFalse(controller.isSettled());
+        controller.onResult(submission.generation, 3, 10 * MS, 400, 3 * MS);
+        assertTrue(controller.isSettled());
+        assertEquals(3 * MS, controller.getAverageLatency());
+    }
+
+    public void testUnchangedSettingsAreNotResubmitted() {
+        ManualSettingsController controller = new ManualSettingsController(0);
+        ManualSettingsController.Submission submission = controller.request(10 * MS, 400, 0);
+        controller.onResult(submission.generation, 1, 10 * MS, 400, 1 * MS);
+        assertNull(controller.request(10 * MS, 400, 2 * MS));
+        assertTrue(controller.isSettled());
+
+        controller.reset();
+        assertNotNull(controller.request(10 * MS, 400, 3 * MS));
+    }
+
+    public void testGoingBackToTheInFlightValueDropsThePendingOne() {
+        ManualSettingsController controller = new ManualSettingsController(0);
+        ManualSettingsController.Submission submission = controller.request(10 * MS, 400, 0);
+        controller.request(20 * MS, 400, 0);
+        controller.request(10 * MS, 400, 0);
+        assertNull(controller.onResult(submission.generation, 1, 10 * MS, 400, 1 * MS));
+        assertTrue(controller.isSettled());
+    }
+
+}
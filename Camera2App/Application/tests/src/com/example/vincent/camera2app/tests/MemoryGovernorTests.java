@@ -0,0 +1,191 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+* Tests for {@link MemoryGovernor}, under simulated memory pressure.
+*/
+public class MemoryGovernorTests extends TestCase {
+
+    private static final long MB = 1024 * 1024;
+
+    /**
+    * A pool of buffers of a fixed size that gives back as many as asked, and records the calls.
+    */
+    private static class BufferPool implements MemoryGovernor.Reclaimer {
+
+        final List<Long> mRequests = new ArrayList<Long>();
+        MemoryGovernor.Account mAccount;
+        private final long mBufferBytes;
+
+        BufferPool(long bufferBytes) {
+            mBufferBytes = bufferBytes;
+        }
+
+        @Override
+        public void reclaim(long bytes) {
+            mRequests.add(bytes);
+            long buffers = Math.min(mAccount.getBytes() / mBufferBytes,
+                (bytes + mBufferBytes - 1) / mBufferBytes);
+            mAccount.release(buffers * mBufferBytes);
+        }
+
+    }
+
+    private static BufferPool register(MemoryGovernor governor, String name, int order,
+                                       long bufferBytes) {
+        BufferPool pool = new BufferPool(bufferBytes);
+        pool.mAccount = governor.register(name, order, pool);
+        return pool;
+    }
+
+    public void testAccounting() {
+        MemoryGovernor governor = new MemoryGovernor(10 * MB);
+        MemoryGovernor.Account streams = governor.register("streams", 2, null);
+        MemoryGovernor.Account restoration = governor.register("restoration", 1, null);
+
+        streams.set(4 * MB);
+        assertTrue(restoration.tryReserve(5 * MB));
+        assertEquals(9 * MB, governor.getBytesInUse());
+        // Doesn't fit: nothing is reserved.
+        assertFalse(restoration.tryReserve(2 * MB));
+        assertEquals(5 * MB, restoration.getBytes());
+
+        restoration.release(5 * MB);
+        streams.set(2 * MB);
+        assertEquals(2 * MB, governor.getBytesInUse());
+        streams.unregister();
+        assertEquals(0, governor.getBytesInUse());
+
+        assertEquals(64 * MB, MemoryGovernor.getBudget(128));
+    }
+
+    public void testReclaimsInOrder() {
+        MemoryGovernor governor = new MemoryGovernor(10 * MB);
+        BufferPool buffers = register(governor, "buffers", 1, MB);
+        BufferPool thumbnails = register(governor, "thumbnails", 0, MB / 4);
+        MemoryGovernor.Account streams = governor.register("streams", 2, null);
+
+        thumbnails.mAccount.set(3 * MB);
+        buffers.mAccount.reserve(4 * MB);
+        streams.set(2 * MB);
+        assertEquals(9 * MB, governor.getBytesInUse());
+        assertTrue(thumbnails.mRequests.isEmpty());
+
+        // 2 MB over: the thumbnails go first, and are enough.
+        streams.reserve(3 * MB);
+        assertEquals(1, thumbnails.mRequests.size());
+        assertEquals(2 * MB, (long) thumbnails.mRequests.get(0));
+        assertTrue(buffers.mRequests.isEmpty());
+        assertEquals(MB, thumbnails.mAccount.getBytes());
+        assertEquals(10 * MB, governor.getBytesInUse());
+
+        // 3 MB over: the last thumbnails, then the buffers.
+        streams.reserve(3 * MB);
+        assertEquals(MB, (long) thumbnails.mRequests.get(1));
+        assertEquals(2 * MB, (long) buffers.mRequests.get(0));
+        assertEquals(0, thumbnails.mAccount.getBytes());
+        assertEquals(2 * MB, buffers.mAccount.getBytes());
+        assertTrue(governor.getBytesInUse() <= governor.getLimit());
+
+        // Over with nothing left to give back.
+        streams.reserve(5 * MB);
+        assertEquals(0, buffers.mAccount.getBytes());
+        assertEquals(13 * MB, governor.getBytesInUse());
+        assertFalse(governor.enforce());
+    }
+
+    public void testTrimLevels() {
+        MemoryGovernor governor = new MemoryGovernor(16 * MB);
+        BufferPool thumbnails = register(governor, "thumbnails", 0, MB);
+        MemoryGovernor.Account streams = governor.register("streams", 2, null);
+        thumbnails.mAccount.set(8 * MB);
+        streams.set(2 * MB);
+
+        governor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(12 * MB, governor.getLimit());
+        assertTrue(thumbnails.mRequests.isEmpty());
+
+        governor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(8 * MB, governor.getLimit());
+        assertEquals(6 * MB, thumbnails.mAccount.getBytes());
+
+        governor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(4 * MB, governor.getLimit());
+        assertEquals(2 * MB, thumbnails.mAccount.getBytes());
+
+        governor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, governor.getLimit());
+        assertEquals(0, thumbnails.mAccount.getBytes());
+        assertEquals(2 * MB, streams.getBytes());
+    }
+
+    public void testFitCount() {
+        MemoryGovernor governor = new MemoryGovernor(10 * MB);
+        MemoryGovernor.Account streams = governor.register("streams", 2, null);
+        assertEquals(4, governor.fitCount(4, 2 * MB, 2));
+        streams.set(5 * MB);
+        assertEquals(2, governor.fitCount(4, 2 * MB, 1));
+        streams.set(9 * MB);
+        assertEquals(2, governor.fitCount(4, 2 * MB, 2));
+        governor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(0, governor.fitCount(4, 2 * MB, 0));
+    }
+
+    /**
+    * Threads reserving and releasing concurrently never get the total over the limit, and leave
+    * it at 0.
+    */
+    public void testConcurrentReservations() throws Exception {
+        final MemoryGovernor governor = new MemoryGovernor(10 * MB);
+        final AtomicBoolean overLimit = new AtomicBoolean();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final MemoryGovernor.Account account = governor.register("thread " + i, i, null);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        long bytes = (j % 7 + 1) * MB / 2;
+                        if (account.tryReserve(bytes)) {
+                            if (governor.getBytesInUse() > governor.getLimit()) {
+                                overLimit.set(true);
+                            }
+                            account.release(bytes);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(overLimit.get());
+        assertEquals(0, governor.getBytesInUse());
+    }
+
+}
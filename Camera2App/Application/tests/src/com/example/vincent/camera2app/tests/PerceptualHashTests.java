@@ -0,0 +1,136 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+* Tests and benchmark for {@link PerceptualHash} and {@link PerceptualHashIndex}.
+*/
+public class PerceptualHashTests extends TestCase {
+
+    private static final String TAG = "PerceptualHashTests";
+
+    private static final int SIZE = PerceptualHash.SIZE;
+
+    /**
+    * @return A plane of a few random rectangles over a gradient
+    */
+    private static float[] createScene(long seed) {
+        Random random = new Random(seed);
+        float[] plane = new float[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                plane[y * SIZE + x] = 64 + 2 * x + y;
+            }
+        }
+        for (int rectangle = 0; rectangle < 6; rectangle++) {
+            int left = random.nextInt(SIZE - 4);
+            int top = random.nextInt(SIZE - 4);
+            int right = left + 4 + random.nextInt(SIZE - left - 4);
+            int bottom = top + 4 + random.nextInt(SIZE - top - 4);
+            float value = random.nextFloat() * 255;
+            for (int y = top; y < bottom; y++) {
+                for (int x = left; x < right; x++) {
+                    plane[y * SIZE + x] = value;
+                }
+            }
+        }
+        return plane;
+    }
+
+    public void testSameSceneIsClose() {
+        PerceptualHash hash = new PerceptualHash();
+        float[] scene = createScene(1);
+        long reference = hash.compute(scene);
+        assertEquals(0, reference & 1);
+        assertEquals(reference, hash.compute(scene));
+
+        // Another exposure of the scene, with some noise.
+        Random random = new Random(2);
+        float[] exposed = new float[scene.length];
+        for (int i = 0; i < scene.length; i++) {
+            exposed[i] = scene[i] * 1.3f + 20 + random.nextFloat() * 4 - 2;
+        }
+        assertTrue(PerceptualHash.distance(reference, hash.compute(exposed)) <= 4);
+
+        for (int seed = 3; seed < 10; seed++) {
+            assertTrue(PerceptualHash.distance(reference, hash.compute(createScene(seed))) > 12);
+        }
+    }
+
+    public void testIndexFindsTheClosestMatch() {
+        PerceptualHashIndex index = new PerceptualHashIndex(8, 4);
+        assertNull(index.findMatch(0));
+        index.add(0xF0L, "a");
+        index.add(0xFFL, "b");
+        assertEquals("a", index.findMatch(0xF1L));
+        assertEquals("b", index.findMatch(0x1FFL));
+        // Too far from both.
+        assertNull(index.findMatch(0x1F00L));
+    }
+
+    public void testIndexEvictsTheLeastRecentlyUsed() {
+        PerceptualHashIndex index = new PerceptualHashIndex(3, 0);
+        index.add(1, "1");
+        index.add(2, "2");
+        index.add(3, "3");
+        // A match counts as a use.
+        assertEquals("1", index.findMatch(1));
+        index.add(4, "4");
+        assertEquals(3, index.size());
+        assertNull(index.findMatch(2));
+        assertEquals("1", index.findMatch(1));
+        assertEquals("3", index.findMatch(3));
+        assertEquals("4", index.findMatch(4));
+    }
+
+    public void testBenchmark() {
+        PerceptualHash hash = new PerceptualHash();
+        float[][] scenes = new float[16][];
+        for (int i = 0; i < scenes.length; i++) {
+            scenes[i] = createScene(i);
+        }
+        long checksum = 0;
+        int count = 10000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            checksum ^= hash.compute(scenes[i % scenes.length]);
+        }
+        long time = System.nanoTime() - start;
+        Log.i(TAG, count + " hashes in " + time / 1000000 + " ms, "
+            + time / count / 1000 + " us each (" + Long.toHexString(checksum) + ")");
+
+        PerceptualHashIndex index = new PerceptualHashIndex(256, 6);
+        Random random = new Random(4);
+        for (int i = 0; i < 256; i++) {
+            index.add(random.nextLong(), Integer.toString(i));
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            index.findMatch(random.nextLong());
+        }
+        time = System.nanoTime() - start;
+        Log.i(TAG, count + " queries of 256 hashes in " + time / 1000000 + " ms");
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.app.Instrumentation;
+import android.content.pm.ActivityInfo;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+
+/**
+* Measures how long the preview stops when the device is rotated.
+*/
+public class PreviewRotationTests extends ActivityInstrumentationTestCase2<CameraActivity> {
+
+    private static final String TAG = "PreviewRotationTests";
+
+    /**
+    * Time we give the camera to start or settle after a rotation.
+    */
+    private static final long SETTLE_TIME_MS = 3000;
+
+    /**
+    * Longest acceptable preview gap on rotation.
+    */
+    private static final long MAX_PREVIEW_GAP_MS = 250;
+
+    /**
+    * Interval we poll at for the first preview frame after reopening the camera.
+    */
+    private static final long POLL_INTERVAL_MS = 5;
+
+    public PreviewRotationTests() {
+        super(CameraActivity.class);
+    }
+
+    /**
+    * Closes and reopens the camera by pausing and resuming the activity, as every rotation used
+    * to.
+    *
+    * @return The time from the last preview frame before the close to the first one after the
+    * reopen, in ms
+    */
+    private long measureReopenGap(final CameraActivity activity,
+                                  final Camera2BasicFragment fragment) throws Exception {
+        final Instrumentation instrumentation = getInstrumentation();
+        final long[] lastFrame = new long[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                lastFrame[0] = fragment.getLastPreviewFrameTimestamp();
+                instrumentation.callActivityOnPause(activity);
+                instrumentation.callActivityOnResume(activity);
+            }
+        });
+        long deadline = SystemClock.elapsedRealtime() + SETTLE_TIME_MS;
+        while (0 == fragment.getLastPreviewFrameTimestamp()
+            && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        long firstFrame = fragment.getLastPreviewFrameTimestamp();
+        assertTrue("preview did not resume after reopening the camera", 0 != firstFrame);
+        return firstFrame - lastFrame[0];
+    }
+
+    /**
+    * Rotates the activity and checks that the preview kept running with only a short gap, shorter
+    * than the gap of closing and reopening the camera.
+    */
+    public void testPreviewGapOnRotation() throws Exception {
+        CameraActivity activity = getActivity();
+        activity.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+        Thread.sleep(SETTLE_TIME_MS);
+
+        Camera2BasicFragment fragment = (Camera2BasicFragment)
+            activity.getFragmentManager().findFragmentById(R.id.container);
+        assertNotNull("fragment is null", fragment);
+        assertTrue("preview never started", fragment.getLastPreviewFrameTimestamp() != 0);
+
+        long reopenGap = measureReopenGap(activity, fragment);
+        Thread.sleep(SETTLE_TIME_MS);
+        fragment.resetPreviewGapStats();
+        long rotationTime = SystemClock.elapsedRealtime();
+        activity.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
+        Thread.sleep(SETTLE_TIME_MS);
+
+        long gap = fragment.getLongestPreviewGap();
+        Log.i(TAG, "Longest preview gap on rotation: " + gap + " ms, on reopening the camera: "
+            + reopenGap + " ms");
+        assertTrue("preview did not resume after rotation",
+            fragment.getLastPreviewFrameTimestamp() > rotationTime);
+        assertTrue("preview gap on rotation was " + gap + " ms", gap < MAX_PREVIEW_GAP_MS);
+        assertTrue("preview gap on rotation was " + gap + " ms, on reopening " + reopenGap + " ms",
+            gap < reopenGap);
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+* Tests for {@link ProcessingJobQueue} and the records of {@link ProcessingJob}.
+*/
+public class ProcessingJobQueueTests extends TestCase {
+
+    private static final long TIMEOUT = 5000;
+
+    private File mDirectory;
+
+    /**
+    * Records the jobs it processes, and fails those of the given container.
+    */
+    private static class RecordingProcessor implements ProcessingJobQueue.Processor {
+
+        final List<ProcessingJob> mJobs
+                = Collections.synchronizedList(new ArrayList<ProcessingJob>());
+        private final String mFailing;
+
+        RecordingProcessor(String failing) {
+            mFailing = failing;
+        }
+
+        @Override
+        public void process(ProcessingJob job) throws IOException {
+            mJobs.add(job);
+            if (job.container.getName().equals(mFailing)) {
+                throw new IOException("Failing " + job);
+            }
+        }
+
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("jobs", "");
+        mDirectory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static ProcessingJob newJob(long id, MotionBlurKernel kernel) {
+        return new ProcessingJob(id, new File("/bursts/burst_" + id + ".burst"),
+                new File("/pictures/burst_" + id + ".jpg"),
+                new File("/pictures/burst_" + id + "_restored.jpg"), true, kernel);
+    }
+
+    private static void waitForJobs(ProcessingJobQueue queue, int jobs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (queue.getMetrics().backlog > 0 || queue.getMetrics().submitted < jobs) {
+            assertTrue("Jobs not processed: " + queue.getMetrics(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private int countRecords() {
+        File[] files = mDirectory.listFiles();
+        int count = 0;
+        for (File file : null == files ? new File[0] : files) {
+            if (file.getName().endsWith(ProcessingJobQueue.EXTENSION)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testNewestJobsFirst() throws Exception {
+        RecordingProcessor processor = new RecordingProcessor(null);
+        ProcessingJobQueue queue = new ProcessingJobQueue(mDirectory, processor);
+        long first = queue.newJobId();
+        long second = queue.newJobId();
+        long third = queue.newJobId();
+        assertTrue(first < second && second < third);
+        queue.submit(newJob(second, null));
+        queue.submit(newJob(first, null));
+        queue.submit(newJob(third, null));
+        assertEquals(3, countRecords());
+        assertEquals(3, queue.getMetrics().backlog);
+        assertEquals(3, queue.getPendingContainers().size());
+        assertTrue(queue.getPendingContainers().contains(newJob(first, null).container));
+
+        queue.start();
+        waitForJobs(queue, 3);
+        queue.stop();
+        assertEquals(3, processor.mJobs.size());
+        assertEquals(third, processor.mJobs.get(0).id);
+        assertEquals(second, processor.mJobs.get(1).id);
+        assertEquals(first, processor.mJobs.get(2).id);
+        assertEquals(1, processor.mJobs.get(0).getAttempts());
+        assertEquals(0, countRecords());
+        assertTrue(queue.getPendingContainers().isEmpty());
+
+        ProcessingJobQueue.Metrics metrics = queue.getMetrics();
+        assertEquals(3, metrics.submitted);
+        assertEquals(3, metrics.completed);
+        assertEquals(0, metrics.failed);
+        assertEquals(0, metrics.backlog);
+    }
+
+    /**
+    * The jobs of a queue that was never started, as after the death of its process, are run by
+    * the next queue of the directory with their kernels.
+    */
+    public void testResumesRecordedJobs() throws Exception {
+        float[] xs = {0, 1.5f, 3, 4.5f, 6};
+        float[] ys = {0, 0.5f, 1, 1, 2};
+        MotionBlurKernel kernel = MotionBlurKernel.fromTrajectory(xs, ys, 15);
+        ProcessingJobQueue dead = new ProcessingJobQueue(mDirectory,
+                new RecordingProcessor(null));
+        long id = dead.newJobId();
+        dead.submit(newJob(id, kernel));
+        dead.submit(newJob(id + 1, null));
+
+        RecordingProcessor processor = new RecordingProcessor(null);
+        ProcessingJobQueue queue = new ProcessingJobQueue(mDirectory, processor);
+        queue.start();
+        waitForJobs(queue, 2);
+        queue.stop();
+        assertEquals(2, processor.mJobs.size());
+        assertTrue(queue.newJobId() > id + 1);
+
+        ProcessingJob plain = processor.mJobs.get(0);
+        assertEquals(id + 1, plain.id);
+        assertNull(plain.kernel);
+        assertNull(plain.restored);
+
+        ProcessingJob job = processor.mJobs.get(1);
+        assertEquals(id, job.id);
+        assertEquals(new File("/bursts/burst_" + id + ".burst"), job.container);
+        assertEquals(new File("/pictures/burst_" + id + ".jpg"), job.exported);
+        assertEquals(new File("/pictures/burst_" + id + "_restored.jpg"), job.restored);
+        assertTrue(job.export);
+        assertEquals(kernel.size, job.kernel.size);
+        assertEquals(kernel.length, job.kernel.length, 1e-4);
+        for (int i = 0; i < kernel.weights.length; i++) {
+            assertEquals(kernel.weights[i], job.kernel.weights[i], 1e-5);
+        }
+    }
+
+    public void testFailedJobsAreRetried() throws Exception {
+        RecordingProcessor processor = new RecordingProcessor("burst_2.burst");
+        ProcessingJobQueue queue = new ProcessingJobQueue(mDirectory, processor);
+        queue.submit(newJob(1, null));
+        queue.submit(newJob(2, null));
+        queue.start();
+        waitForJobs(queue, 2);
+        queue.stop();
+
+        assertEquals(ProcessingJobQueue.MAX_ATTEMPTS + 1, processor.mJobs.size());
+        ProcessingJob failing = processor.mJobs.get(0);
+        assertEquals(2, failing.id);
+        assertEquals(ProcessingJobQueue.MAX_ATTEMPTS, failing.getAttempts());
+        assertEquals(0, countRecords());
+
+        ProcessingJobQueue.Metrics metrics = queue.getMetrics();
+        assertEquals(1, metrics.completed);
+        assertEquals(1, metrics.failed);
+        assertEquals(0, metrics.backlog);
+    }
+
+}
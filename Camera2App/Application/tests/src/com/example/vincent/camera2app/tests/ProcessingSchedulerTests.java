@@ -0,0 +1,280 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Tests and benchmark for {@link ProcessingScheduler}.
+*/
+public class ProcessingSchedulerTests extends TestCase {
+
+    private static final String TAG = "ProcessingSchedulerTests";
+
+    private static final long TIMEOUT = 5000;
+
+    /**
+    * Size of the tiles of the simulated work, as in {@link WienerDeconvolver}.
+    */
+    private static final int TILE_SIZE = 64;
+
+    private ProcessingScheduler mScheduler;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (null != mScheduler) {
+            mScheduler.shutdown();
+        }
+        super.tearDown();
+    }
+
+    /**
+    * Work that transforms a number of tiles back and forth, checking for cancellation between
+    * them.
+    */
+    private static class TileWork implements ProcessingScheduler.Work<Integer> {
+
+        private final int mTiles;
+        private final AtomicInteger mDone = new AtomicInteger();
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+
+        TileWork(int tiles) {
+            mTiles = tiles;
+        }
+
+        @Override
+        public Integer run(ProcessingScheduler.Task<Integer> task) {
+            mStarted.countDown();
+            try {
+                double[] re = new double[TILE_SIZE * TILE_SIZE];
+                double[] im = new double[TILE_SIZE * TILE_SIZE];
+                for (int tile = 0; tile < mTiles; tile++) {
+                    task.checkCancelled();
+                    re[tile % re.length] = tile;
+                    Fft.transform2d(re, im, TILE_SIZE, false);
+                    Fft.transform2d(re, im, TILE_SIZE, true);
+                    mDone.incrementAndGet();
+                }
+                return mDone.get();
+            } finally {
+                mStopped.countDown();
+            }
+        }
+
+    }
+
+    /**
+    * Work that records its name when it runs.
+    */
+    private static ProcessingScheduler.Work<Void> record(final List<String> order,
+                                                         final String name) {
+        return new ProcessingScheduler.Work<Void>() {
+            @Override
+            public Void run(ProcessingScheduler.Task<Void> task) {
+                order.add(name);
+                return null;
+            }
+        };
+    }
+
+    /**
+    * Waits for the tasks to be done, which they are only after their result is available.
+    */
+    private void waitUntilIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mScheduler.getPendingCount() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    public void testOrder() throws Exception {
+        mScheduler = new ProcessingScheduler(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.submit(new ProcessingScheduler.Work<Void>() {
+            @Override
+            public Void run(ProcessingScheduler.Task<Void> task) throws InterruptedException {
+                release.await();
+                return null;
+            }
+        }, ProcessingScheduler.PRIORITY_ARCHIVAL, 0);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mScheduler.submit(record(order, "archival 1"), ProcessingScheduler.PRIORITY_ARCHIVAL, 1);
+        mScheduler.submit(record(order, "review 5"), ProcessingScheduler.PRIORITY_REVIEW, 5);
+        mScheduler.submit(record(order, "current 2"),
+            ProcessingScheduler.PRIORITY_CURRENT_BURST, 2);
+        mScheduler.submit(record(order, "current 3"),
+            ProcessingScheduler.PRIORITY_CURRENT_BURST, 3);
+        mScheduler.submit(record(order, "archival 4"), ProcessingScheduler.PRIORITY_ARCHIVAL, 4);
+        mScheduler.submit(record(order, "archival 4 bis"), ProcessingScheduler.PRIORITY_ARCHIVAL,
+            4);
+        release.countDown();
+        waitUntilIdle();
+
+        assertEquals(6, order.size());
+        assertEquals("current 3", order.get(0));
+        assertEquals("current 2", order.get(1));
+        assertEquals("review 5", order.get(2));
+        assertEquals("archival 4", order.get(3));
+        assertEquals("archival 4 bis", order.get(4));
+        assertEquals("archival 1", order.get(5));
+    }
+
+    public void testSupersededWorkIsCancelledBetweenTiles() throws Exception {
+        mScheduler = new ProcessingScheduler(1);
+        TileWork running = new TileWork(100000);
+        ProcessingScheduler.Task<Integer> runningTask = mScheduler.submit(running,
+            ProcessingScheduler.PRIORITY_CURRENT_BURST, 1);
+        TileWork queued = new TileWork(1);
+        ProcessingScheduler.Task<Integer> queuedTask = mScheduler.submit(queued,
+            ProcessingScheduler.PRIORITY_CURRENT_BURST, 1);
+        TileWork review = new TileWork(1);
+        ProcessingScheduler.Task<Integer> reviewTask = mScheduler.submit(review,
+            ProcessingScheduler.PRIORITY_REVIEW, 1);
+        ProcessingScheduler.Task<Integer> archivalTask = mScheduler.submit(new TileWork(1),
+            ProcessingScheduler.PRIORITY_ARCHIVAL, 1);
+        ProcessingScheduler.Task<Integer> newerArchivalTask = mScheduler.submit(new TileWork(1),
+            ProcessingScheduler.PRIORITY_ARCHIVAL, 2);
+        assertTrue(running.mStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(mScheduler.isCurrentBurst(1));
+
+        mScheduler.setCurrentBurst(2);
+        assertFalse(mScheduler.isCurrentBurst(1));
+        assertTrue(running.mStopped.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(running.mDone.get() < 100000);
+        try {
+            runningTask.get();
+            fail();
+        } catch (CancellationException e) {
+            // Expected
+        }
+        assertTrue(queuedTask.isCancelled());
+        assertTrue(archivalTask.isCancelled());
+
+        // The review of the older burst and the work of the newer one are left alone.
+        assertEquals(1, (int) reviewTask.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, (int) newerArchivalTask.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, queued.mDone.get());
+        waitUntilIdle();
+    }
+
+    public void testDeconvolutionIsCancelled() throws Exception {
+        mScheduler = new ProcessingScheduler(1);
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        ProcessingScheduler.Task<float[]> task = mScheduler.submit(
+            new ProcessingScheduler.Work<float[]>() {
+                @Override
+                public float[] run(ProcessingScheduler.Task<float[]> task) {
+                    started.countDown();
+                    float[] plane = new float[1024 * 1024];
+                    MotionBlurKernel kernel = MotionBlurKernel.linear(8, 0, 31);
+                    WienerDeconvolver deconvolver = new WienerDeconvolver(pool, 0.01);
+                    try {
+                        // Until the cancellation stops one.
+                        while (true) {
+                            attempts.incrementAndGet();
+                            deconvolver.deconvolve(plane, 1024, 1024, kernel, task);
+                        }
+                    } finally {
+                        stopped.countDown();
+                    }
+                }
+            }, ProcessingScheduler.PRIORITY_ARCHIVAL, 1);
+        try {
+            assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            mScheduler.cancelOlder(ProcessingScheduler.PRIORITY_ARCHIVAL, 2);
+            try {
+                task.get();
+                fail();
+            } catch (CancellationException e) {
+                // Expected
+            }
+            assertTrue(stopped.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            waitUntilIdle();
+            int count = attempts.get();
+            Thread.sleep(50);
+            assertEquals(count, attempts.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+    * How much longer than with no backlog the newest burst may wait behind the largest one: the
+    * tiles running when it becomes current, and the cancellation of the backlog.
+    */
+    private static final int MAX_BACKLOG_SLOWDOWN = 4;
+    private static final long MAX_BACKLOG_DELAY = 20000000L;
+
+    /**
+    * The time to the result of the newest burst, behind a growing backlog of archival work.
+    */
+    public void testNewestBurstLatencyBenchmark() throws Exception {
+        mScheduler = new ProcessingScheduler();
+        int tiles = 20;
+        // Warm up.
+        mScheduler.submit(new TileWork(tiles), ProcessingScheduler.PRIORITY_CURRENT_BURST, 0)
+            .get();
+
+        long burst = 1;
+        StringBuilder results = new StringBuilder();
+        int[] backlogs = {0, 8, 32, 128, 512};
+        long[] times = new long[backlogs.length];
+        for (int b = 0; b < backlogs.length; b++) {
+            int backlog = backlogs[b];
+            for (int i = 0; i < backlog; i++) {
+                mScheduler.submit(new TileWork(tiles), ProcessingScheduler.PRIORITY_ARCHIVAL,
+                    burst++);
+            }
+            long start = System.nanoTime();
+            long newest = burst++;
+            mScheduler.setCurrentBurst(newest);
+            int done = mScheduler.submit(new TileWork(tiles),
+                ProcessingScheduler.PRIORITY_CURRENT_BURST, newest).get();
+            long time = System.nanoTime() - start;
+            times[b] = time;
+            assertEquals(tiles, done);
+            results.append(", backlog ").append(backlog).append(": ")
+                .append(time / 1000).append(" us");
+
+            mScheduler.cancelOlder(ProcessingScheduler.PRIORITY_ARCHIVAL, Long.MAX_VALUE);
+            waitUntilIdle();
+        }
+        Log.i(TAG, "Newest burst of " + tiles + " tiles on " + mScheduler.getThreadCount()
+            + " threads" + results);
+        assertTrue(results.toString(), times[times.length - 1]
+            < MAX_BACKLOG_SLOWDOWN * times[0] + MAX_BACKLOG_DELAY);
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Tests for {@link RawFrameStore}, with images simulated by their names.
+*/
+public class RawFrameStoreTests extends TestCase {
+
+    private static final long TIMEOUT = 5000;
+
+    /**
+    * Records the images written and released, and can hold the writing back.
+    */
+    private static class RecordingSink implements RawFrameStore.Sink<String, String> {
+
+        final List<String> mWritten = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> mReleased = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final CountDownLatch mWriting = new CountDownLatch(1);
+        volatile boolean mHoldBack;
+
+        @Override
+        public long write(String image, String result, File file) throws IOException {
+            mWriting.countDown();
+            if (mHoldBack) {
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (image.startsWith("bad")) {
+                throw new IOException("Could not write " + image);
+            }
+            mWritten.add(image + "+" + result + ">" + file.getName());
+            return 1000;
+        }
+
+        @Override
+        public void release(String image) {
+            mReleased.add(image);
+        }
+
+    }
+
+    private static void add(RawFrameStore<String, String> store, long timestamp) {
+        store.addResult(timestamp, "result " + timestamp);
+        store.addImage(timestamp, "image " + timestamp);
+    }
+
+    public void testWritesOnlyThePickedFrame() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        RawFrameStore<String, String> store = new RawFrameStore<String, String>(3, sink);
+        for (long timestamp = 1; timestamp <= 3; timestamp++) {
+            add(store, timestamp);
+            store.setScore(timestamp, timestamp);
+        }
+        store.keep(2, new File("burst_0.dng"));
+        assertEquals(0, store.endBurst());
+        assertTrue(store.close(TIMEOUT));
+
+        assertEquals(1, sink.mWritten.size());
+        assertEquals("image 2+result 2>burst_0.dng", sink.mWritten.get(0));
+        assertEquals(3, sink.mReleased.size());
+        assertTrue(sink.mReleased.contains("image 2"));
+        assertEquals(0, store.getHeldCount());
+        RawFrameStore.Stats stats = store.getStats();
+        assertEquals(1, stats.written);
+        assertEquals(1000, stats.bytes);
+        assertEquals(0, stats.dropped);
+    }
+
+    public void testWaitsForTheResult() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        RawFrameStore<String, String> store = new RawFrameStore<String, String>(2, sink);
+        store.addImage(1, "image 1");
+        store.keep(1, new File("burst_1.dng"));
+        // Picked, still missing its result.
+        assertEquals(1, store.endBurst());
+        assertTrue(sink.mWritten.isEmpty());
+        store.addResult(1, "late result");
+        assertTrue(store.close(TIMEOUT));
+        assertEquals("image 1+late result>burst_1.dng", sink.mWritten.get(0));
+    }
+
+    /**
+    * More images than buffers: the lowest scored ones are given back first, and the picked one
+    * stays held.
+    */
+    public void testGivesBackTheLowestScoredImages() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        RawFrameStore<String, String> store = new RawFrameStore<String, String>(2, sink);
+        float[] scores = {5, 1, 9, 3, 7};
+        for (int i = 0; i < scores.length; i++) {
+            store.addImage(i, "image " + i);
+            store.setScore(i, scores[i]);
+            assertTrue(store.getHeldCount() <= 2);
+        }
+        // The lowest scored first, never the new one.
+        assertEquals(3, sink.mReleased.size());
+        assertEquals("image 1", sink.mReleased.get(0));
+        assertEquals("image 0", sink.mReleased.get(1));
+        assertEquals("image 3", sink.mReleased.get(2));
+
+        store.keep(2, new File("burst_2.dng"));
+        store.addResult(2, "result 2");
+        assertTrue(store.close(TIMEOUT));
+        assertEquals("image 2+result 2>burst_2.dng", sink.mWritten.get(0));
+        assertEquals(3, store.getStats().dropped);
+    }
+
+    /**
+    * A slow write never blocks the capture: the new images are held or given back right away.
+    */
+    public void testCaptureDoesNotWaitForTheWriting() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.mHoldBack = true;
+        RawFrameStore<String, String> store = new RawFrameStore<String, String>(2, sink);
+        add(store, 1);
+        store.keep(1, new File("burst_3.dng"));
+        assertTrue(sink.mWriting.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        for (long timestamp = 2; timestamp < 100; timestamp++) {
+            add(store, timestamp);
+            assertTrue(store.getHeldCount() <= 2);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT));
+        assertTrue(sink.mWritten.isEmpty());
+        // The image being written is still held.
+        assertFalse(sink.mReleased.contains("image 1"));
+
+        sink.mRelease.countDown();
+        assertTrue(store.close(TIMEOUT));
+        assertEquals(1, sink.mWritten.size());
+        assertEquals(0, store.getHeldCount());
+    }
+
+    public void testFailedWriteReleasesTheImage() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        RawFrameStore<String, String> store = new RawFrameStore<String, String>(2, sink);
+        store.addResult(1, "result 1");
+        store.addImage(1, "bad image");
+        store.keep(1, new File("burst_4.dng"));
+        assertTrue(store.close(TIMEOUT));
+        assertTrue(sink.mWritten.isEmpty());
+        assertEquals(Collections.singletonList("bad image"), sink.mReleased);
+        assertEquals(1, store.getStats().failed);
+        assertEquals(0, store.getHeldCount());
+    }
+
+}
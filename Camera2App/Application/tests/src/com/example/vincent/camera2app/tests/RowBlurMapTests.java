@@ -0,0 +1,130 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+* Tests for {@link RowBlurMap} with synthetic gyroscope traces.
+*/
+public class RowBlurMapTests extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    private static final int BANDS = 16;
+    private static final float FOCAL_LENGTH = 3000;
+
+    /**
+    * @return A trace sampled every millisecond for 100 ms, turning at {@code speed} rad/s
+    * between {@code shakeStart} and {@code shakeEnd}
+    */
+    private static GyroTrace createTrace(long shakeStart, long shakeEnd, float speed) {
+        GyroTrace trace = new GyroTrace(256);
+        for (long time = 0; time <= 100 * MS; time += MS) {
+            boolean shaking = time >= shakeStart && time < shakeEnd;
+            // The speed is split between both axes: only its norm matters.
+            trace.add(time, shaking ? speed * 0.6f : 0, shaking ? speed * 0.8f : 0, 0);
+        }
+        return trace;
+    }
+
+    public void testShakeBlursTheRowsExposedDuringIt() {
+        // A 10 ms shake at the start of a frame read out in 32 ms with 8 ms exposures.
+        GyroTrace trace = createTrace(10 * MS, 20 * MS, 0.1f);
+        RowBlurMap map = new RowBlurMap(BANDS);
+        assertTrue(map.compute(trace, 10 * MS, 8 * MS, 32 * MS, FOCAL_LENGTH, 0, 1));
+        assertTrue(map.isValid());
+        assertEquals(10 * MS, map.getTimestamp());
+
+        // The first band starts 1 ms after the frame: fully inside the shake.
+        assertEquals(0.1f * 0.008f * FOCAL_LENGTH, map.getBlur(0), 0.01f);
+        // The bottom of the frame is exposed after the shake.
+        assertEquals(0f, map.getBlur(BANDS - 1), 1e-6f);
+        for (int band = 1; band < BANDS; band++) {
+            assertTrue(map.getBlur(band) <= map.getBlur(band - 1));
+        }
+        assertEquals(map.getBlur(0), map.getMaxBlur(), 1e-6f);
+    }
+
+    public void testGlobalShutterBlursAllRowsAlike() {
+        GyroTrace trace = createTrace(0, 100 * MS, 0.05f);
+        RowBlurMap map = new RowBlurMap(BANDS);
+        assertTrue(map.compute(trace, 20 * MS, 10 * MS, 0, FOCAL_LENGTH, 0, 1));
+        for (int band = 0; band < BANDS; band++) {
+            assertEquals(1.5f, map.getBlur(band), 0.01f);
+        }
+    }
+
+    public void testCroppedImageUsesItsOwnRows() {
+        // The image only shows the bottom half of the readout, exposed after the shake.
+        GyroTrace trace = createTrace(10 * MS, 26 * MS, 0.1f);
+        RowBlurMap map = new RowBlurMap(BANDS);
+        assertTrue(map.compute(trace, 10 * MS, 4 * MS, 32 * MS, FOCAL_LENGTH, 0.5f, 1));
+        assertEquals(0f, map.getMaxBlur(), 1e-6f);
+    }
+
+    public void testMissingSamplesInvalidateTheMap() {
+        GyroTrace trace = createTrace(0, 0, 0);
+        RowBlurMap map = new RowBlurMap(BANDS);
+        assertTrue(map.compute(trace, 10 * MS, 8 * MS, 32 * MS, FOCAL_LENGTH, 0, 1));
+        // The last rows end after the last sample.
+        assertFalse(map.compute(trace, 80 * MS, 8 * MS, 32 * MS, FOCAL_LENGTH, 0, 1));
+        assertFalse(map.isValid());
+    }
+
+    public void testWeightedBlurFollowsTheRegions() {
+        GyroTrace trace = createTrace(10 * MS, 20 * MS, 0.1f);
+        RowBlurMap map = new RowBlurMap(BANDS);
+        map.compute(trace, 10 * MS, 8 * MS, 32 * MS, FOCAL_LENGTH, 0, 1);
+        SharpnessRegion top = new SharpnessRegion(0.2f, 0, 0.8f, 1f / BANDS, 1);
+        SharpnessRegion bottom = new SharpnessRegion(0.2f, 0.75f, 0.8f, 1, 1);
+        assertEquals(map.getBlur(0), map.getWeightedBlur(Collections.singletonList(top)),
+            1e-4f);
+        assertEquals(0f, map.getWeightedBlur(Collections.singletonList(bottom)), 1e-6f);
+    }
+
+    public void testSelectorSkipsFramesThatMovedInTheirCenter() {
+        GyroTrace trace = createTrace(40 * MS, 60 * MS, 0.2f);
+        RowBlurMap shaken = new RowBlurMap(BANDS);
+        RowBlurMap steady = new RowBlurMap(BANDS);
+        assertTrue(shaken.compute(trace, 30 * MS, 8 * MS, 32 * MS, FOCAL_LENGTH, 0, 1));
+        assertTrue(steady.compute(trace, 0, 8 * MS, 32 * MS, FOCAL_LENGTH, 0, 1));
+
+        // The shaken frame scores higher, as noise would make it.
+        BurstSelector selector = new BurstSelector();
+        selector.begin(2, 4000, 3000, 0);
+        selector.onMotion(30 * MS, shaken);
+        selector.onMotion(0, steady);
+        selector.onScored(30 * MS, "shaken.jpg", createResult(50));
+        selector.onScored(0, "steady.jpg", createResult(40));
+        selector.onResult(30 * MS, null, 0, 0, 4000, 3000);
+        BurstSelector.Selection selection = selector.onResult(0, null, 0, 0, 4000, 3000);
+        assertEquals("steady.jpg", selection.name);
+        assertEquals(0f, selection.motionBlur, 1e-6f);
+    }
+
+    private static JpegSharpnessEstimator.Result createResult(float score) {
+        float[] scores = new float[4 * 3];
+        Arrays.fill(scores, score);
+        return new JpegSharpnessEstimator.Result(4000, 3000, score, 4, 3, scores);
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+* Tests and benchmark for {@link SharpnessCascade}, on synthetic labeled bursts: every frame of a
+* burst is the same scene with a different amount of motion blur, and the label is the frame with
+* the least blur.
+*/
+public class SharpnessCascadeTests extends TestCase {
+
+    private static final String TAG = "SharpnessCascadeTests";
+
+    private static final int WIDTH = 1024;
+    private static final int HEIGHT = 768;
+    private static final int BURST_SIZE = 5;
+    private static final int BURST_COUNT = 12;
+
+    private static byte[] createScene(Random random) {
+        byte[] scene = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int checker = ((x / 6) + (y / 9)) % 2 == 0 ? 50 : -50;
+                scene[y * WIDTH + x] = (byte) Math.max(0, Math.min(255,
+                    128 + checker + random.nextInt(30) - 15));
+            }
+        }
+        return scene;
+    }
+
+    /**
+    * Horizontal motion blur of {@code length} pixels, with a row stride larger than the width.
+    */
+    private static SharpnessCascade.LumaPlane blur(byte[] scene, int length, int stride) {
+        byte[] data = new byte[stride * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                for (int i = 0; i < length; i++) {
+                    sum += scene[y * WIDTH + Math.min(WIDTH - 1, x + i)] & 0xFF;
+                }
+                data[y * stride + x] = (byte) (sum / length);
+            }
+        }
+        return new SharpnessCascade.LumaPlane(data, 0, WIDTH, HEIGHT, stride);
+    }
+
+    private static int selectFullFrame(SharpnessCascade.LumaPlane[] frames) {
+        int best = 0;
+        double bestScore = -1;
+        for (int i = 0; i < frames.length; i++) {
+            double score = SharpnessCascade.scoreFullFrame(frames[i]);
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    public void testCascadeAgreesWithFullFrameScoring() {
+        Random random = new Random(7);
+        SharpnessCascade cascade = new SharpnessCascade(8, 2, 0.85);
+        int cascadeCorrect = 0;
+        int fullFrameCorrect = 0;
+        long cascadeTime = 0;
+        long fullFrameTime = 0;
+        long pixelsTouched = 0;
+        for (int burst = 0; burst < BURST_COUNT; burst++) {
+            byte[] scene = createScene(random);
+            SharpnessCascade.LumaPlane[] frames = new SharpnessCascade.LumaPlane[BURST_SIZE];
+            int label = random.nextInt(BURST_SIZE);
+            for (int i = 0; i < BURST_SIZE; i++) {
+                // The labeled frame has 1 pixel of blur, the others 2 to 6.
+                int length = i == label ? 1 : 2 + random.nextInt(5);
+                frames[i] = blur(scene, length, WIDTH + 64);
+            }
+
+            long start = System.nanoTime();
+            SharpnessCascade.Decision decision = cascade.select(frames, null);
+            cascadeTime += System.nanoTime() - start;
+            pixelsTouched += decision.pixelsTouched;
+
+            start = System.nanoTime();
+            int fullFrameSelection = selectFullFrame(frames);
+            fullFrameTime += System.nanoTime() - start;
+
+            cascadeCorrect += decision.selected == label ? 1 : 0;
+            fullFrameCorrect += fullFrameSelection == label ? 1 : 0;
+        }
+
+        long fullFramePixels = (long) BURST_COUNT * BURST_SIZE * WIDTH * HEIGHT;
+        Log.i(TAG, "Cascade: " + cascadeCorrect + "/" + BURST_COUNT + " correct, "
+            + cascadeTime / 1000000 + " ms, " + pixelsTouched + " pixels. Full frame: "
+            + fullFrameCorrect + "/" + BURST_COUNT + " correct, " + fullFrameTime / 1000000
+            + " ms, " + fullFramePixels + " pixels");
+        assertEquals(fullFrameCorrect, cascadeCorrect);
+        assertEquals(BURST_COUNT, cascadeCorrect);
+        assertTrue(cascadeTime < fullFrameTime);
+    }
+
+    public void testClearLosersAreNotRefined() {
+        Random random = new Random(3);
+        byte[] scene = createScene(random);
+        SharpnessCascade.LumaPlane[] frames = {
+            blur(scene, 12, WIDTH), blur(scene, 1, WIDTH), blur(scene, 16, WIDTH)};
+        SharpnessCascade.Decision decision = new SharpnessCascade(8, 3, 0.85).select(frames, null);
+        assertEquals(1, decision.selected);
+        assertEquals(0, decision.refinedCount);
+        assertTrue(Double.isNaN(decision.fineScores[0]));
+        // Only the coarse level was built.
+        assertEquals((long) WIDTH * HEIGHT * frames.length, decision.pixelsTouched);
+    }
+
+    public void testRegionsOfInterestDecide() {
+        Random random = new Random(5);
+        byte[] scene = createScene(random);
+        SharpnessCascade.LumaPlane sharpLeft = blur(scene, 1, WIDTH);
+        SharpnessCascade.LumaPlane sharpRight = blur(scene, 1, WIDTH);
+        SharpnessCascade.LumaPlane blurred = blur(scene, 6, WIDTH);
+        // Blur the right half of the first frame and the left half of the second one.
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(blurred.data, y * WIDTH + WIDTH / 2, sharpLeft.data,
+                y * WIDTH + WIDTH / 2, WIDTH / 2);
+            System.arraycopy(blurred.data, y * WIDTH, sharpRight.data, y * WIDTH, WIDTH / 2);
+        }
+        SharpnessCascade.LumaPlane[] frames = {sharpLeft, sharpRight};
+        SharpnessCascade cascade = new SharpnessCascade(8, 2, 0.5);
+
+        List<SharpnessRegion> right = new ArrayList<SharpnessRegion>();
+        right.add(new SharpnessRegion(0.6f, 0.4f, 0.9f, 0.6f, 1));
+        SharpnessCascade.Decision decision = cascade.select(frames, right);
+        assertEquals(1, decision.selected);
+        assertEquals(2, decision.refinedCount);
+
+        decision = cascade.select(frames,
+            Collections.singletonList(new SharpnessRegion(0.1f, 0.1f, 0.3f, 0.3f, 1)));
+        assertEquals(0, decision.selected);
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+* Tests and benchmark for {@link LumaHistogram} and {@link SoftwareAutoExposure}, on a simulated
+* sensor.
+*/
+public class SoftwareAutoExposureTests extends TestCase {
+
+    private static final String TAG = "SoftwareAETests";
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    /**
+    * Rows are padded, as in the planes of the camera.
+    */
+    private static final int ROW_STRIDE = 336;
+
+    private static final long FRAME_DURATION = 33333333L;
+    private static final long INTERVAL = 200000000L;
+
+    private static final long MIN_EXPOSURE = 100000L;
+    private static final long MAX_EXPOSURE = 1000000000L;
+    private static final int MIN_ISO = 100;
+    private static final int MAX_ISO = 3200;
+
+    /**
+    * The radiance of each pixel of the scene, from 0 to 1.
+    */
+    private float[] mScene;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(5);
+        mScene = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < mScene.length; i++) {
+            mScene[i] = 0.05f + 0.9f * random.nextFloat() * random.nextFloat();
+        }
+    }
+
+    /**
+    * @param light The brightness of the scene: the exposure time by ISO that saturates its
+    *              brightest pixel
+    * @return The luma plane of the scene taken with the given settings
+    */
+    private ByteBuffer takeFrame(double light, long exposure, int iso) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(ROW_STRIDE * HEIGHT);
+        double gain = (double) exposure * iso / light;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double linear = Math.min(1, mScene[y * WIDTH + x] * gain);
+                plane.put(y * ROW_STRIDE + x, (byte) Math.round(255 * Math.pow(linear, 1 / 2.2)));
+            }
+        }
+        return plane;
+    }
+
+    public void testHistogram() {
+        ByteBuffer plane = ByteBuffer.allocate(4 * 2 * 3);
+        byte[] values = {10, 20, 30, 40, 50, (byte) 200};
+        for (int i = 0; i < values.length; i++) {
+            // Interleaved chroma: 2 bytes per pixel, 3 pixels and 2 bytes of padding per row.
+            plane.put(2 + (i / 3) * 8 + (i % 3) * 2, values[i]);
+        }
+        plane.position(2);
+        LumaHistogram histogram = new LumaHistogram();
+        histogram.compute(plane, 3, 2, 8, 2, 1);
+        assertEquals(2, plane.position());
+        assertEquals(6, histogram.getCount());
+        assertEquals(1, histogram.getBin(200));
+        assertEquals(350 / 6.0, histogram.getMean(), 1e-9);
+        assertEquals(30, histogram.getPercentile(0.5));
+        assertEquals(200, histogram.getPercentile(1));
+        assertEquals(10, histogram.getPercentile(0));
+
+        histogram.compute(plane, 3, 2, 8, 2, 2);
+        assertEquals(2, histogram.getCount());
+        assertEquals(1, histogram.getBin(10));
+        assertEquals(1, histogram.getBin(30));
+    }
+
+    /**
+    * Runs the loop on the simulated sensor for a number of frames.
+    *
+    * @return The final settings
+    */
+    private SoftwareAutoExposure.Settings run(SoftwareAutoExposure ae, double light,
+                                              long exposure, int iso, int frames) {
+        LumaHistogram histogram = new LumaHistogram();
+        long now = 0;
+        int updates = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            histogram.compute(takeFrame(light, exposure, iso), WIDTH, HEIGHT, ROW_STRIDE,
+                1, 2);
+            SoftwareAutoExposure.Settings settings = ae.update(histogram, exposure, iso, now);
+            if (null != settings) {
+                exposure = settings.exposure;
+                iso = settings.iso;
+                updates++;
+            }
+            now += FRAME_DURATION;
+        }
+        // At most one update per interval.
+        assertTrue(updates <= frames * FRAME_DURATION / INTERVAL + 1);
+        return new SoftwareAutoExposure.Settings(exposure, iso);
+    }
+
+    private double meanLuma(double light, SoftwareAutoExposure.Settings settings) {
+        LumaHistogram histogram = new LumaHistogram();
+        histogram.compute(takeFrame(light, settings.exposure, settings.iso), WIDTH, HEIGHT,
+            ROW_STRIDE, 1, 1);
+        return histogram.getMean();
+    }
+
+    public void testConvergesWhenTheLightChanges() {
+        SoftwareAutoExposure ae = new SoftwareAutoExposure(MIN_EXPOSURE, MAX_EXPOSURE, MIN_ISO,
+            MAX_ISO, INTERVAL);
+        double light = 100 * 20000000.0;
+        SoftwareAutoExposure.Settings settings = run(ae, light, 1000000, 100, 90);
+        assertEquals(SoftwareAutoExposure.TARGET_LUMA, meanLuma(light, settings), 10);
+        assertEquals(MIN_ISO, settings.iso);
+
+        // 4 stops darker.
+        light /= 16;
+        settings = run(ae, light, settings.exposure, settings.iso, 90);
+        assertEquals(SoftwareAutoExposure.TARGET_LUMA, meanLuma(light, settings), 10);
+    }
+
+    public void testRespectsTheMaximumExposure() {
+        SoftwareAutoExposure ae = new SoftwareAutoExposure(MIN_EXPOSURE, MAX_EXPOSURE, MIN_ISO,
+            MAX_ISO, INTERVAL);
+        ae.setMaxExposure(10000000);
+        double light = 800 * 40000000.0;
+        SoftwareAutoExposure.Settings settings = run(ae, light, 1000000, 100, 90);
+        assertEquals(10000000, settings.exposure);
+        assertTrue(settings.iso > 400);
+        assertEquals(SoftwareAutoExposure.TARGET_LUMA, meanLuma(light, settings), 10);
+
+        // Too dark for the sensor: the settings stop at their limits.
+        settings = run(ae, light * 1000, settings.exposure, settings.iso, 60);
+        assertEquals(10000000, settings.exposure);
+        assertEquals(MAX_ISO, settings.iso);
+
+        // A maximum outside the sensor range is clamped.
+        ae.setMaxExposure(MAX_EXPOSURE * 2);
+        assertEquals(MAX_EXPOSURE, ae.getMaxExposure());
+    }
+
+    public void testHistogramBenchmark() {
+        ByteBuffer plane = takeFrame(100 * 20000000.0, 20000000, 100);
+        LumaHistogram histogram = new LumaHistogram();
+        int frames = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            histogram.compute(plane, WIDTH, HEIGHT, ROW_STRIDE, 1, 1);
+        }
+        long time = System.nanoTime() - start;
+        Log.i(TAG, frames + " histograms of " + WIDTH + "x" + HEIGHT + " in " + time / 1000000
+            + " ms, " + time / frames / 1000 + " us each (mean " + histogram.getMean() + ")");
+    }
+
+}
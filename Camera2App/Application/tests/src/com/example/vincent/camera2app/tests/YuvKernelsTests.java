@@ -0,0 +1,504 @@
+/*
+* Copyright (C) 2013 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.example.vincent.camera2app.tests;
+
+import com.example.vincent.camera2app.*;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+* Tests of {@link YuvKernels} against straightforward reference implementations, on every small
+* size and every layout, and benchmark.
+*/
+public class YuvKernelsTests extends TestCase {
+
+    private static final String TAG = "YuvKernelsTests";
+
+    private static final int I420 = 0;
+    private static final int NV21 = 1;
+    /**
+    * Rows longer than the frame, and U and V interleaved, U first.
+    */
+    private static final int PADDED = 2;
+    /**
+    * I420 in direct buffers, as the planes of an image.
+    */
+    private static final int DIRECT = 3;
+    private static final int LAYOUTS = 4;
+
+    private final Random mRandom = new Random(42);
+    private ForkJoinPool mPool;
+    private YuvKernels mKernels;
+
+    @Override
+    protected void setUp() {
+        mPool = new ForkJoinPool(4);
+        mKernels = new YuvKernels(mPool);
+    }
+
+    @Override
+    protected void tearDown() {
+        mPool.shutdown();
+    }
+
+    /**
+    * A frame, with its planes to read the samples back.
+    */
+    private static final class TestFrame {
+
+        final YuvFrame frame;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+        final int yRowStride;
+        final int uvRowStride;
+        final int uvPixelStride;
+
+        TestFrame(int width, int height, int layout) {
+            int chromaWidth = YuvFrame.getChromaWidth(width);
+            int chromaHeight = YuvFrame.getChromaHeight(height);
+            int ySize = width * height;
+            int chromaSize = chromaWidth * chromaHeight;
+            switch (layout) {
+                case I420: {
+                    byte[] data = new byte[YuvFrame.getPackedSize(width, height)];
+                    frame = YuvFrame.wrapI420(data, width, height);
+                    y = ByteBuffer.wrap(data);
+                    u = ByteBuffer.wrap(data, ySize, chromaSize).slice();
+                    v = ByteBuffer.wrap(data, ySize + chromaSize, chromaSize).slice();
+                    yRowStride = width;
+                    uvRowStride = chromaWidth;
+                    uvPixelStride = 1;
+                    break;
+                }
+                case NV21: {
+                    byte[] data = new byte[YuvFrame.getPackedSize(width, height)];
+                    frame = YuvFrame.wrapNv21(data, width, height);
+                    y = ByteBuffer.wrap(data);
+                    v = ByteBuffer.wrap(data, ySize, 2 * chromaSize).slice();
+                    u = ByteBuffer.wrap(data, ySize + 1, 2 * chromaSize - 1).slice();
+                    yRowStride = width;
+                    uvRowStride = 2 * chromaWidth;
+                    uvPixelStride = 2;
+                    break;
+                }
+                case PADDED: {
+                    yRowStride = width + 5;
+                    uvRowStride = 2 * chromaWidth + 3;
+                    uvPixelStride = 2;
+                    y = ByteBuffer.allocate(yRowStride * height);
+                    byte[] uv = new byte[uvRowStride * chromaHeight];
+                    u = ByteBuffer.wrap(uv);
+                    v = ByteBuffer.wrap(uv, 1, uv.length - 1).slice();
+                    frame = new YuvFrame(width, height, y, yRowStride, 1, u, v, uvRowStride,
+                        uvPixelStride);
+                    break;
+                }
+                default: {
+                    yRowStride = width;
+                    uvRowStride = chromaWidth;
+                    uvPixelStride = 1;
+                    y = ByteBuffer.allocateDirect(ySize);
+                    u = ByteBuffer.allocateDirect(chromaSize);
+                    v = ByteBuffer.allocateDirect(chromaSize);
+                    frame = new YuvFrame(width, height, y, yRowStride, 1, u, v, uvRowStride,
+                        uvPixelStride);
+                    break;
+                }
+            }
+        }
+
+        int getY(int x, int row) {
+            return y.get(row * yRowStride + x) & 0xFF;
+        }
+
+        int getU(int x, int row) {
+            return u.get(row * uvRowStride + x * uvPixelStride) & 0xFF;
+        }
+
+        int getV(int x, int row) {
+            return v.get(row * uvRowStride + x * uvPixelStride) & 0xFF;
+        }
+
+        void fill(Random random) {
+            for (int row = 0; row < frame.height; row++) {
+                for (int x = 0; x < frame.width; x++) {
+                    y.put(row * yRowStride + x, (byte) random.nextInt(256));
+                }
+            }
+            for (int row = 0; row < frame.getChromaHeight(); row++) {
+                for (int x = 0; x < frame.getChromaWidth(); x++) {
+                    u.put(row * uvRowStride + x * uvPixelStride, (byte) random.nextInt(256));
+                    v.put(row * uvRowStride + x * uvPixelStride, (byte) random.nextInt(256));
+                }
+            }
+        }
+
+    }
+
+    private TestFrame createFrame(int width, int height, int layout) {
+        TestFrame frame = new TestFrame(width, height, layout);
+        frame.fill(mRandom);
+        return frame;
+    }
+
+    /**
+    * @return The x and y in an area of the pixel at x and y in the area rotated clockwise
+    */
+    private static int[] unrotate(int x, int y, int degrees, int areaWidth, int areaHeight) {
+        switch (degrees) {
+            case 90:
+                return new int[] {y, areaHeight - 1 - x};
+            case 180:
+                return new int[] {areaWidth - 1 - x, areaHeight - 1 - y};
+            case 270:
+                return new int[] {areaWidth - 1 - y, x};
+            default:
+                return new int[] {x, y};
+        }
+    }
+
+    private static void assertCropAndRotate(String message, TestFrame source, int left, int top,
+                                            int degrees, TestFrame output) {
+        boolean sideways = degrees % 180 != 0;
+        int areaWidth = sideways ? output.frame.height : output.frame.width;
+        int areaHeight = sideways ? output.frame.width : output.frame.height;
+        for (int row = 0; row < output.frame.height; row++) {
+            for (int x = 0; x < output.frame.width; x++) {
+                int[] position = unrotate(x, row, degrees, areaWidth, areaHeight);
+                assertEquals(message, source.getY(left + position[0], top + position[1]),
+                    output.getY(x, row));
+            }
+        }
+        for (int row = 0; row < output.frame.getChromaHeight(); row++) {
+            for (int x = 0; x < output.frame.getChromaWidth(); x++) {
+                int[] position = unrotate(2 * x, 2 * row, degrees, areaWidth, areaHeight);
+                int sourceX = (left + position[0]) / 2;
+                int sourceY = (top + position[1]) / 2;
+                assertEquals(message, source.getU(sourceX, sourceY), output.getU(x, row));
+                assertEquals(message, source.getV(sourceX, sourceY), output.getV(x, row));
+            }
+        }
+    }
+
+    public void testRepacksEveryLayout() {
+        for (int width = 1; width <= 10; width++) {
+            for (int height = 1; height <= 10; height++) {
+                for (int from = 0; from < LAYOUTS; from++) {
+                    for (int to = 0; to < LAYOUTS; to++) {
+                        TestFrame source = createFrame(width, height, from);
+                        TestFrame output = new TestFrame(width, height, to);
+                        mKernels.copy(source.frame, output.frame);
+                        assertCropAndRotate(source.frame + " to " + output.frame, source, 0, 0,
+                            0, output);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testRotatesEverySize() {
+        for (int width = 1; width <= 10; width++) {
+            for (int height = 1; height <= 10; height++) {
+                for (int degrees = 0; degrees < 360; degrees += 90) {
+                    for (int layout = 0; layout < LAYOUTS; layout++) {
+                        TestFrame source = createFrame(width, height, layout);
+                        boolean sideways = degrees % 180 != 0;
+                        TestFrame output = new TestFrame(sideways ? height : width,
+                            sideways ? width : height, (layout + 1) % LAYOUTS);
+                        mKernels.rotate(source.frame, degrees, output.frame);
+                        assertCropAndRotate(source.frame + " by " + degrees, source, 0, 0,
+                            degrees, output);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testCropsEveryArea() {
+        int width = 10;
+        int height = 8;
+        TestFrame source = createFrame(width, height, NV21);
+        for (int left = 0; left < width; left += 2) {
+            for (int top = 0; top < height; top += 2) {
+                for (int areaWidth = 1; left + areaWidth <= width; areaWidth++) {
+                    for (int areaHeight = 1; top + areaHeight <= height; areaHeight++) {
+                        for (int degrees = 0; degrees < 360; degrees += 90) {
+                            boolean sideways = degrees % 180 != 0;
+                            TestFrame output = new TestFrame(sideways ? areaHeight : areaWidth,
+                                sideways ? areaWidth : areaHeight, I420);
+                            mKernels.cropAndRotate(source.frame, left, top, degrees,
+                                output.frame);
+                            assertCropAndRotate(areaWidth + "x" + areaHeight + " at " + left
+                                + "," + top + " by " + degrees, source, left, top, degrees,
+                                output);
+                        }
+                    }
+                }
+            }
+        }
+        try {
+            mKernels.crop(source.frame, 1, 0, new TestFrame(4, 4, I420).frame);
+            fail("Odd left");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            mKernels.crop(source.frame, 8, 0, new TestFrame(4, 4, I420).frame);
+            fail("Past the right");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testExtractsLuma() {
+        for (int width = 1; width <= 10; width++) {
+            for (int height = 1; height <= 10; height++) {
+                for (int layout = 0; layout < LAYOUTS; layout++) {
+                    TestFrame source = createFrame(width, height, layout);
+                    int rowStride = width + layout;
+                    byte[] luma = new byte[rowStride * height];
+                    mKernels.extractLuma(source.frame, luma, rowStride);
+                    for (int row = 0; row < height; row++) {
+                        for (int x = 0; x < width; x++) {
+                            assertEquals(source.getY(x, row), luma[row * rowStride + x] & 0xFF);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+    * @return The average of a square of a plane, cut at its edges
+    */
+    private static int boxAverage(TestFrame frame, int plane, int left, int top, int factor,
+                                  int width, int height) {
+        int sum = 0;
+        int count = 0;
+        for (int row = top; row < Math.min(top + factor, height); row++) {
+            for (int x = left; x < Math.min(left + factor, width); x++) {
+                sum += 0 == plane ? frame.getY(x, row)
+                    : 1 == plane ? frame.getU(x, row) : frame.getV(x, row);
+                count++;
+            }
+        }
+        return (sum + count / 2) / count;
+    }
+
+    public void testDownscalesByBoxes() {
+        for (int width = 1; width <= 12; width++) {
+            for (int height = 1; height <= 12; height++) {
+                for (int factor = 1; factor <= Math.min(width, height); factor++) {
+                    TestFrame source = createFrame(width, height, factor % LAYOUTS);
+                    TestFrame output = new TestFrame(width / factor, height / factor, NV21);
+                    mKernels.downscaleBox(source.frame, factor, output.frame);
+                    String message = source.frame + " by " + factor;
+                    for (int row = 0; row < output.frame.height; row++) {
+                        for (int x = 0; x < output.frame.width; x++) {
+                            assertEquals(message, boxAverage(source, 0, x * factor, row * factor,
+                                factor, width, height), output.getY(x, row));
+                        }
+                    }
+                    int chromaWidth = source.frame.getChromaWidth();
+                    int chromaHeight = source.frame.getChromaHeight();
+                    for (int row = 0; row < output.frame.getChromaHeight(); row++) {
+                        for (int x = 0; x < output.frame.getChromaWidth(); x++) {
+                            assertEquals(message, boxAverage(source, 1, x * factor,
+                                row * factor, factor, chromaWidth, chromaHeight),
+                                output.getU(x, row));
+                            assertEquals(message, boxAverage(source, 2, x * factor,
+                                row * factor, factor, chromaWidth, chromaHeight),
+                                output.getV(x, row));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+    * @return The average of the samples of a plane under a pixel of the plane downscaled,
+    * weighted by their coverage, in floating point
+    */
+    private static double areaAverage(TestFrame frame, int plane, int width, int height,
+                                      int outWidth, int outHeight, int x, int row) {
+        double scaleX = (double) width / outWidth;
+        double scaleY = (double) height / outHeight;
+        double left = x * scaleX;
+        double right = (x + 1) * scaleX;
+        double top = row * scaleY;
+        double bottom = (row + 1) * scaleY;
+        double sum = 0;
+        double weights = 0;
+        for (int sourceY = 0; sourceY < height; sourceY++) {
+            double weightY = Math.min(sourceY + 1, bottom) - Math.max(sourceY, top);
+            if (weightY <= 0) {
+                continue;
+            }
+            for (int sourceX = 0; sourceX < width; sourceX++) {
+                double weightX = Math.min(sourceX + 1, right) - Math.max(sourceX, left);
+                if (weightX <= 0) {
+                    continue;
+                }
+                int value = 0 == plane ? frame.getY(sourceX, sourceY)
+                    : 1 == plane ? frame.getU(sourceX, sourceY) : frame.getV(sourceX, sourceY);
+                sum += weightX * weightY * value;
+                weights += weightX * weightY;
+            }
+        }
+        return sum / weights;
+    }
+
+    public void testDownscalesByArea() {
+        int layout = 0;
+        for (int width = 1; width <= 11; width++) {
+            for (int height = 1; height <= 11; height++) {
+                TestFrame source = createFrame(width, height, layout++ % LAYOUTS);
+                for (int outWidth = 1; outWidth <= width; outWidth++) {
+                    for (int outHeight = 1; outHeight <= height; outHeight++) {
+                        TestFrame output = new TestFrame(outWidth, outHeight, PADDED);
+                        mKernels.downscaleArea(source.frame, output.frame);
+                        assertDownscaledByArea(source, output);
+                    }
+                }
+            }
+        }
+        try {
+            mKernels.downscaleArea(createFrame(4, 4, I420).frame,
+                new TestFrame(5, 4, I420).frame);
+            fail("Upscaling");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static void assertDownscaledByArea(TestFrame source, TestFrame output) {
+        String message = source.frame + " to " + output.frame;
+        YuvFrame out = output.frame;
+        for (int row = 0; row < out.height; row++) {
+            for (int x = 0; x < out.width; x++) {
+                double expected = areaAverage(source, 0, source.frame.width,
+                    source.frame.height, out.width, out.height, x, row);
+                assertEquals(message, expected, output.getY(x, row), 0.5 + 1e-6);
+            }
+        }
+        int chromaWidth = source.frame.getChromaWidth();
+        int chromaHeight = source.frame.getChromaHeight();
+        for (int row = 0; row < out.getChromaHeight(); row++) {
+            for (int x = 0; x < out.getChromaWidth(); x++) {
+                assertEquals(message, areaAverage(source, 1, chromaWidth, chromaHeight,
+                    out.getChromaWidth(), out.getChromaHeight(), x, row), output.getU(x, row),
+                    0.5 + 1e-6);
+                assertEquals(message, areaAverage(source, 2, chromaWidth, chromaHeight,
+                    out.getChromaWidth(), out.getChromaHeight(), x, row), output.getV(x, row),
+                    0.5 + 1e-6);
+            }
+        }
+    }
+
+    /**
+    * Frames large enough to be split across the threads.
+    */
+    public void testLargeFrames() {
+        TestFrame source = createFrame(641, 479, PADDED);
+        TestFrame rotated = new TestFrame(479, 641, NV21);
+        mKernels.rotate(source.frame, 270, rotated.frame);
+        assertCropAndRotate("Rotated", source, 0, 0, 270, rotated);
+
+        TestFrame cropped = new TestFrame(300, 400, DIRECT);
+        mKernels.cropAndRotate(source.frame, 100, 50, 90, cropped.frame);
+        assertCropAndRotate("Cropped", source, 100, 50, 90, cropped);
+
+        TestFrame downscaled = new TestFrame(203, 151, I420);
+        mKernels.downscaleArea(source.frame, downscaled.frame);
+        assertDownscaledByArea(source, downscaled);
+    }
+
+    private static final String[] OPERATIONS = {
+        "luma", "NV21 to I420", "rotate", "crop and rotate", "box /4", "area to 1080p"
+    };
+
+    /**
+    * Runs an operation of {@link #OPERATIONS} on the source, the first of the frames.
+    */
+    private static void runOperation(YuvKernels kernels, int operation, TestFrame[] frames,
+                                     byte[] luma) {
+        YuvFrame source = frames[0].frame;
+        switch (operation) {
+            case 0:
+                kernels.extractLuma(source, luma, source.width);
+                break;
+            case 1:
+                kernels.copy(source, frames[1].frame);
+                break;
+            case 2:
+                kernels.rotate(source, 90, frames[2].frame);
+                break;
+            case 3:
+                kernels.cropAndRotate(source, 1000, 750, 90, frames[3].frame);
+                break;
+            case 4:
+                kernels.downscaleBox(source, 4, frames[4].frame);
+                break;
+            default:
+                kernels.downscaleArea(source, frames[5].frame);
+                break;
+        }
+    }
+
+    /**
+    * The best time of 3 runs of every operation on a 12 MP NV21 frame, on 1 to 8 threads.
+    */
+    public void testKernelsBenchmark() {
+        TestFrame[] frames = {
+            createFrame(4000, 3000, NV21),
+            new TestFrame(4000, 3000, I420),
+            new TestFrame(3000, 4000, I420),
+            new TestFrame(1500, 2000, I420),
+            new TestFrame(1000, 750, I420),
+            new TestFrame(1440, 1080, I420)
+        };
+        byte[] luma = new byte[4000 * 3000];
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                YuvKernels kernels = new YuvKernels(pool);
+                StringBuilder results = new StringBuilder();
+                for (int operation = 0; operation < OPERATIONS.length; operation++) {
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < 3; run++) {
+                        long start = System.nanoTime();
+                        runOperation(kernels, operation, frames, luma);
+                        best = Math.min(best, System.nanoTime() - start);
+                    }
+                    results.append(", ").append(OPERATIONS[operation]).append(" ")
+                        .append(best / 1000000).append(" ms");
+                }
+                Log.i(TAG, "12 MP, " + threads + " threads" + results);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+}